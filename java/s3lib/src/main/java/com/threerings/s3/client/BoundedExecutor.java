@@ -0,0 +1,116 @@
+/*
+ * BoundedExecutor vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed-size worker pool with a bounded backlog. Submitting a task blocks while the pool
+ * is saturated, allowing a producer (such as a bucket listing) to feed work at the rate it
+ * is consumed without queueing an unbounded number of tasks in memory.
+ */
+class BoundedExecutor {
+    /**
+     * Create a new executor.
+     *
+     * @param threads Number of worker threads.
+     * @param name Worker thread name prefix.
+     */
+    public BoundedExecutor (int threads, final String name)
+    {
+        _permits = new Semaphore(threads * 2);
+        _executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, name + " " + _threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Submit a task, blocking until there is room in the backlog.
+     */
+    public void execute (final Runnable task)
+        throws InterruptedException
+    {
+        _permits.acquire();
+        try {
+            _executor.execute(new Runnable() {
+                public void run () {
+                    try {
+                        task.run();
+                    } finally {
+                        _permits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            _permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop accepting new tasks, and wait for all submitted tasks to complete.
+     */
+    public void awaitCompletion ()
+        throws InterruptedException
+    {
+        _executor.shutdown();
+        while (!_executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            // Keep waiting
+        }
+    }
+
+    /**
+     * Stop accepting new tasks and interrupt any running tasks.
+     */
+    public void shutdownNow ()
+    {
+        _executor.shutdownNow();
+    }
+
+    /** Worker pool. */
+    private final ExecutorService _executor;
+
+    /** Backlog permits. */
+    private final Semaphore _permits;
+
+    /** Worker thread counter, used for naming. */
+    private final AtomicInteger _threadCount = new AtomicInteger();
+}
@@ -0,0 +1,115 @@
+/*
+ * ByteBufferInputStream vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream that reads, in order, the remaining contents of a sequence of buffers.
+ * The buffers' positions are not modified.
+ */
+class ByteBufferInputStream extends InputStream {
+    /**
+     * Create a new stream over the given buffers.
+     */
+    public ByteBufferInputStream (ByteBuffer[] buffers)
+    {
+        _buffers = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            _buffers[i] = buffers[i].duplicate();
+        }
+    }
+
+    @Override
+    public int read () {
+        ByteBuffer buffer = current();
+        return (buffer != null) ? (buffer.get() & 0xff) : -1;
+    }
+
+    @Override
+    public int read (byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+
+        ByteBuffer buffer = current();
+        if (buffer == null) {
+            return -1;
+        }
+
+        len = Math.min(len, buffer.remaining());
+        buffer.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public long skip (long n) {
+        long skipped = 0;
+        ByteBuffer buffer;
+        while (skipped < n && (buffer = current()) != null) {
+            int count = (int)Math.min(n - skipped, buffer.remaining());
+            buffer.position(buffer.position() + count);
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available () {
+        long available = 0;
+        for (int i = _index; i < _buffers.length; i++) {
+            available += _buffers[i].remaining();
+        }
+        return (int)Math.min(available, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return the first buffer with data remaining, or null if the stream is exhausted.
+     */
+    private ByteBuffer current () {
+        while (_index < _buffers.length) {
+            if (_buffers[_index].hasRemaining()) {
+                return _buffers[_index];
+            }
+            _index++;
+        }
+        return null;
+    }
+
+    /** Source buffers. */
+    private final ByteBuffer[] _buffers;
+
+    /** Index of the buffer currently being read. */
+    private int _index;
+}
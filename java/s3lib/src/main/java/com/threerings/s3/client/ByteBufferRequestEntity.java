@@ -0,0 +1,106 @@
+/*
+ * ByteBufferRequestEntity vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A request entity for the remaining contents of a sequence of buffers, such as the mapped
+ * windows of a file. When the entity is written to a connection created by
+ * {@link S3ChannelSocketFactory}, the buffers are written directly to the socket's channel,
+ * and any digest is computed from the buffers themselves, without copying the data through
+ * a heap array. Otherwise, the data is copied as by {@link DigestingRequestEntity}.
+ */
+class ByteBufferRequestEntity extends DigestingRequestEntity {
+    /**
+     * Create a new buffer request entity. The buffers' positions are not modified.
+     *
+     * @param buffers Data buffers.
+     * @param contentType Content type.
+     * @param digest If true, compute the MD5 digest of the written data.
+     */
+    public ByteBufferRequestEntity (ByteBuffer[] buffers, String contentType, boolean digest)
+    {
+        super(new ByteBufferInputStream(buffers), remaining(buffers), contentType, digest);
+        _buffers = buffers;
+    }
+
+    @Override
+    public void writeRequest (OutputStream output)
+        throws IOException
+    {
+        SocketChannel socket = ChannelOutputStream.findChannel(output);
+        if (socket == null) {
+            super.writeRequest(output);
+            return;
+        }
+
+        /* Digest and send each chunk in turn, so that the chunk is still cached when it is
+         * written. */
+        for (ByteBuffer buffer : _buffers) {
+            ByteBuffer data = buffer.duplicate();
+            while (data.hasRemaining()) {
+                ByteBuffer chunk = data.slice();
+                chunk.limit(Math.min(chunk.remaining(), CHUNK_SIZE));
+                data.position(data.position() + chunk.remaining());
+
+                updateDigest(chunk.duplicate());
+                while (chunk.hasRemaining()) {
+                    socket.write(chunk);
+                }
+            }
+        }
+        finishDigest();
+    }
+
+    /**
+     * Return the total number of bytes remaining in the given buffers.
+     */
+    private static long remaining (ByteBuffer[] buffers)
+    {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        return remaining;
+    }
+
+    /** Data buffers. */
+    private final ByteBuffer[] _buffers;
+
+    /** Digest and write chunk size (1MB). */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+}
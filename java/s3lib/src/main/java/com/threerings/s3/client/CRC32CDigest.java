@@ -0,0 +1,87 @@
+/*
+ * CRC32CDigest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.nio.ByteBuffer;
+
+import java.security.MessageDigest;
+
+import java.util.zip.CRC32C;
+
+/**
+ * A {@link MessageDigest} computing a CRC32C checksum, allowing the checksum to be used
+ * wherever a digest is expected. The checksum is returned as 4 big-endian bytes, as sent in
+ * the x-amz-checksum-crc32c header.
+ */
+class CRC32CDigest extends MessageDigest {
+    public CRC32CDigest ()
+    {
+        super("CRC32C");
+    }
+
+    @Override
+    protected void engineUpdate (byte input) {
+        _crc.update(input);
+    }
+
+    @Override
+    protected void engineUpdate (byte[] input, int offset, int len) {
+        _crc.update(input, offset, len);
+    }
+
+    @Override
+    protected void engineUpdate (ByteBuffer input) {
+        _crc.update(input);
+    }
+
+    @Override
+    protected int engineGetDigestLength () {
+        return 4;
+    }
+
+    @Override
+    protected byte[] engineDigest () {
+        int value = (int)_crc.getValue();
+        _crc.reset();
+        return new byte[] {
+            (byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value
+        };
+    }
+
+    @Override
+    protected void engineReset () {
+        _crc.reset();
+    }
+
+    /** Checksum state. */
+    private final CRC32C _crc = new CRC32C();
+}
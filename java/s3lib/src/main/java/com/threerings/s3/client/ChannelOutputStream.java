@@ -0,0 +1,100 @@
+/*
+ * ChannelOutputStream vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * A socket output stream that can be located beneath any number of wrapping streams (such
+ * as the buffered streams httpclient places between a request entity and its socket), so
+ * that the socket's channel may be written to directly.
+ *
+ * The stream is found by flushing the outermost stream: the flush propagates down to this
+ * stream, which registers its channel with a probe installed for the calling thread.
+ */
+class ChannelOutputStream extends FilterOutputStream {
+    /**
+     * Flush the given stream, returning the channel of the ChannelOutputStream it wraps, or
+     * null if it does not wrap one. Once the stream has been flushed, data written directly
+     * to the channel is correctly ordered after any data previously written to the stream.
+     */
+    public static SocketChannel findChannel (OutputStream output)
+        throws IOException
+    {
+        SocketChannel[] probe = new SocketChannel[1];
+        _probe.set(probe);
+        try {
+            output.flush();
+        } finally {
+            _probe.remove();
+        }
+        return probe[0];
+    }
+
+    /**
+     * Wrap the given channel's output stream.
+     */
+    public ChannelOutputStream (OutputStream output, SocketChannel channel)
+    {
+        super(output);
+        _channel = channel;
+    }
+
+    @Override
+    public void write (byte[] b, int off, int len)
+        throws IOException
+    {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void flush ()
+        throws IOException
+    {
+        out.flush();
+
+        SocketChannel[] probe = _probe.get();
+        if (probe != null) {
+            probe[0] = _channel;
+        }
+    }
+
+    /** Socket channel. */
+    private final SocketChannel _channel;
+
+    /** Per-thread channel probe, set only while {@link #findChannel} flushes. */
+    private static final ThreadLocal<SocketChannel[]> _probe = new ThreadLocal<SocketChannel[]>();
+}
@@ -0,0 +1,269 @@
+/*
+ * ChannelSocket vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connected, blocking socket backed by a {@link SocketChannel}. All socket operations are
+ * delegated to the channel's socket adaptor, but the output stream is a
+ * {@link ChannelOutputStream}, allowing request entities to write directly to the channel.
+ */
+class ChannelSocket extends Socket {
+    /**
+     * Wrap the given connected channel.
+     */
+    public ChannelSocket (SocketChannel channel)
+    {
+        _channel = channel;
+        _socket = channel.socket();
+    }
+
+    @Override
+    public SocketChannel getChannel () {
+        return _channel;
+    }
+
+    @Override
+    public InputStream getInputStream ()
+        throws IOException
+    {
+        return _socket.getInputStream();
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream ()
+        throws IOException
+    {
+        if (_output == null) {
+            _output = new ChannelOutputStream(_socket.getOutputStream(), _channel);
+        }
+        return _output;
+    }
+
+    @Override
+    public void connect (SocketAddress endpoint, int timeout)
+        throws IOException
+    {
+        throw new SocketException("Already connected");
+    }
+
+    @Override
+    public void bind (SocketAddress bindpoint)
+        throws IOException
+    {
+        throw new SocketException("Already bound");
+    }
+
+    @Override
+    public InetAddress getInetAddress () {
+        return _socket.getInetAddress();
+    }
+
+    @Override
+    public InetAddress getLocalAddress () {
+        return _socket.getLocalAddress();
+    }
+
+    @Override
+    public int getPort () {
+        return _socket.getPort();
+    }
+
+    @Override
+    public int getLocalPort () {
+        return _socket.getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress () {
+        return _socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress () {
+        return _socket.getLocalSocketAddress();
+    }
+
+    @Override
+    public void setTcpNoDelay (boolean on)
+        throws SocketException
+    {
+        _socket.setTcpNoDelay(on);
+    }
+
+    @Override
+    public boolean getTcpNoDelay ()
+        throws SocketException
+    {
+        return _socket.getTcpNoDelay();
+    }
+
+    @Override
+    public void setSoLinger (boolean on, int linger)
+        throws SocketException
+    {
+        _socket.setSoLinger(on, linger);
+    }
+
+    @Override
+    public int getSoLinger ()
+        throws SocketException
+    {
+        return _socket.getSoLinger();
+    }
+
+    @Override
+    public synchronized void setSoTimeout (int timeout)
+        throws SocketException
+    {
+        _socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public synchronized int getSoTimeout ()
+        throws SocketException
+    {
+        return _socket.getSoTimeout();
+    }
+
+    @Override
+    public synchronized void setSendBufferSize (int size)
+        throws SocketException
+    {
+        _socket.setSendBufferSize(size);
+    }
+
+    @Override
+    public synchronized int getSendBufferSize ()
+        throws SocketException
+    {
+        return _socket.getSendBufferSize();
+    }
+
+    @Override
+    public synchronized void setReceiveBufferSize (int size)
+        throws SocketException
+    {
+        _socket.setReceiveBufferSize(size);
+    }
+
+    @Override
+    public synchronized int getReceiveBufferSize ()
+        throws SocketException
+    {
+        return _socket.getReceiveBufferSize();
+    }
+
+    @Override
+    public void setKeepAlive (boolean on)
+        throws SocketException
+    {
+        _socket.setKeepAlive(on);
+    }
+
+    @Override
+    public boolean getKeepAlive ()
+        throws SocketException
+    {
+        return _socket.getKeepAlive();
+    }
+
+    @Override
+    public synchronized void close ()
+        throws IOException
+    {
+        _channel.close();
+    }
+
+    @Override
+    public void shutdownInput ()
+        throws IOException
+    {
+        _socket.shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput ()
+        throws IOException
+    {
+        _socket.shutdownOutput();
+    }
+
+    @Override
+    public boolean isConnected () {
+        return _socket.isConnected();
+    }
+
+    @Override
+    public boolean isBound () {
+        return _socket.isBound();
+    }
+
+    @Override
+    public boolean isClosed () {
+        return _socket.isClosed();
+    }
+
+    @Override
+    public boolean isInputShutdown () {
+        return _socket.isInputShutdown();
+    }
+
+    @Override
+    public boolean isOutputShutdown () {
+        return _socket.isOutputShutdown();
+    }
+
+    @Override
+    public String toString () {
+        return _socket.toString();
+    }
+
+    /** Socket channel. */
+    private final SocketChannel _channel;
+
+    /** The channel's socket adaptor. */
+    private final Socket _socket;
+
+    /** Output stream, created on demand. */
+    private OutputStream _output;
+}
@@ -0,0 +1,172 @@
+/*
+ * DigestingRequestEntity vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * A request entity that streams a fixed-length input stream through a large buffer,
+ * optionally computing the MD5 digest of the data as it is written. This allows an object to
+ * be uploaded and digested in a single pass over its data.
+ *
+ * The entity is not repeatable.
+ */
+class DigestingRequestEntity implements RequestEntity {
+    /**
+     * Create a new request entity.
+     *
+     * @param input Data stream. The stream is closed once the entity has been written.
+     * @param length Data length.
+     * @param contentType Content type.
+     * @param digest If true, compute the MD5 digest of the written data.
+     */
+    public DigestingRequestEntity (InputStream input, long length, String contentType,
+        boolean digest)
+    {
+        _input = input;
+        _length = length;
+        _contentType = contentType;
+        if (digest) {
+            try {
+                _md = MessageDigest.getInstance("md5");
+            } catch (NoSuchAlgorithmException nsa) {
+                // If MD5 isn't available, we're in trouble.
+                throw new RuntimeException(nsa);
+            }
+        } else {
+            _md = null;
+        }
+    }
+
+    /**
+     * Returns true if the entity computes the digest of its data.
+     */
+    public boolean isDigesting () {
+        return _md != null;
+    }
+
+    /**
+     * Returns the MD5 digest of the written data, or null if the entity was not digested or
+     * has not been written in full.
+     */
+    public byte[] getDigest () {
+        return _digest;
+    }
+
+    // from interface RequestEntity
+    public boolean isRepeatable () {
+        return false;
+    }
+
+    // from interface RequestEntity
+    public long getContentLength () {
+        return _length;
+    }
+
+    // from interface RequestEntity
+    public String getContentType () {
+        return _contentType;
+    }
+
+    // from interface RequestEntity
+    public void writeRequest (OutputStream output)
+        throws IOException
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = _length;
+        try {
+            while (remaining > 0) {
+                int len = _input.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                if (len == -1) {
+                    throw new IOException("Unexpected end of stream with " + remaining +
+                        " bytes remaining");
+                }
+                if (_md != null) {
+                    _md.update(buffer, 0, len);
+                }
+                output.write(buffer, 0, len);
+                remaining -= len;
+            }
+        } finally {
+            _input.close();
+        }
+
+        finishDigest();
+    }
+
+    /**
+     * Add data written directly by a subclass to the digest, if the entity is digesting.
+     */
+    protected void updateDigest (ByteBuffer data)
+    {
+        if (_md != null) {
+            _md.update(data);
+        }
+    }
+
+    /**
+     * Complete the digest of data written directly by a subclass.
+     */
+    protected void finishDigest ()
+    {
+        if (_md != null) {
+            _digest = _md.digest();
+        }
+    }
+
+    /** Data stream. */
+    private final InputStream _input;
+
+    /** Data length. */
+    private final long _length;
+
+    /** Content type. */
+    private final String _contentType;
+
+    /** Digest, or null. */
+    private final MessageDigest _md;
+
+    /** The computed digest. */
+    private byte[] _digest;
+
+    /** Copy buffer size (64k). */
+    private static final int BUFFER_SIZE = 64 * 1024;
+}
@@ -0,0 +1,169 @@
+/*
+ * FileMapping vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory mapping of a file. As a single mapping is limited to 2GB, the file is
+ * mapped in fixed-size windows, each of which is mapped on first use and then shared by
+ * all readers of the file.
+ *
+ * The file's size is fixed when the mapping is created. The file must not be truncated
+ * while it is mapped: accessing a mapped page beyond the end of the file fails with an
+ * error rather than an exception. Mappings are released when they are garbage collected.
+ */
+class FileMapping {
+    /** Default window size (256MB). */
+    public static final int DEFAULT_WINDOW_SIZE = 256 * 1024 * 1024;
+
+    /**
+     * Create a new mapping of the given file, using the default window size.
+     *
+     * @throws IOException If the file does not exist or cannot be read.
+     */
+    public FileMapping (File file)
+        throws IOException
+    {
+        this(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Create a new mapping of the given file.
+     *
+     * @param file File to map.
+     * @param windowSize Size of each mapped window.
+     * @throws IOException If the file does not exist or cannot be read.
+     */
+    public FileMapping (File file, int windowSize)
+        throws IOException
+    {
+        /* File.length() reports a missing file as empty, so open the file to size it. */
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            _size = raf.length();
+        } finally {
+            raf.close();
+        }
+
+        _file = file;
+        _windowSize = windowSize;
+        _windows = new MappedByteBuffer[(int)((_size + windowSize - 1) / windowSize)];
+    }
+
+    /**
+     * Returns the mapped file.
+     */
+    public File getFile () {
+        return _file;
+    }
+
+    /**
+     * Returns the size of the mapped file.
+     */
+    public long size () {
+        return _size;
+    }
+
+    /**
+     * Return read-only views of the given region of the file, one per window spanned by the
+     * region. The views share the underlying mapping.
+     */
+    public ByteBuffer[] slice (long offset, long length)
+        throws IOException
+    {
+        if (offset < 0 || length < 0 || offset + length > _size) {
+            throw new IllegalArgumentException("Region [" + offset + ", " + (offset + length) +
+                ") lies outside of the mapped file (" + _size + " bytes)");
+        }
+
+        if (length == 0) {
+            return new ByteBuffer[0];
+        }
+
+        int first = (int)(offset / _windowSize);
+        int last = (int)((offset + length - 1) / _windowSize);
+        ByteBuffer[] slices = new ByteBuffer[last - first + 1];
+
+        for (int i = first; i <= last; i++) {
+            long windowStart = (long)i * _windowSize;
+            long start = Math.max(offset, windowStart);
+            long end = Math.min(offset + length, windowStart + _windowSize);
+
+            ByteBuffer slice = window(i).duplicate();
+            slice.position((int)(start - windowStart));
+            slice.limit((int)(end - windowStart));
+            slices[i - first] = slice.slice();
+        }
+        return slices;
+    }
+
+    /**
+     * Return the given window, mapping it if necessary.
+     */
+    private synchronized MappedByteBuffer window (int index)
+        throws IOException
+    {
+        if (_windows[index] == null) {
+            long start = (long)index * _windowSize;
+            long length = Math.min(_windowSize, _size - start);
+
+            /* The mapping remains valid once the channel is closed. */
+            RandomAccessFile file = new RandomAccessFile(_file, "r");
+            try {
+                _windows[index] = file.getChannel().map(FileChannel.MapMode.READ_ONLY, start,
+                    length);
+            } finally {
+                file.close();
+            }
+        }
+        return _windows[index];
+    }
+
+    /** Mapped file. */
+    private final File _file;
+
+    /** File size at the time the mapping was created. */
+    private final long _size;
+
+    /** Window size. */
+    private final int _windowSize;
+
+    /** Mapped windows, or null for windows not yet mapped. */
+    private final MappedByteBuffer[] _windows;
+}
@@ -0,0 +1,100 @@
+/*
+ * FileRequestEntity vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A request entity for a region of a file. When the entity is written to a connection
+ * created by {@link S3ChannelSocketFactory}, and its digest is not required, the file data
+ * is sent with {@link FileChannel#transferTo}, without being copied through the Java heap.
+ * Otherwise, the data is copied as by {@link DigestingRequestEntity}.
+ */
+class FileRequestEntity extends DigestingRequestEntity {
+    /**
+     * Create a new file request entity.
+     *
+     * @param input The file's input stream, positioned at the start of the region. The
+     *  stream is closed once the entity has been written.
+     * @param offset Offset of the region.
+     * @param length Length of the region.
+     * @param contentType Content type.
+     * @param digest If true, compute the MD5 digest of the written data.
+     */
+    public FileRequestEntity (FileInputStream input, long offset, long length,
+        String contentType, boolean digest)
+    {
+        super(input, length, contentType, digest);
+        _input = input;
+        _offset = offset;
+    }
+
+    @Override
+    public void writeRequest (OutputStream output)
+        throws IOException
+    {
+        SocketChannel socket = isDigesting() ? null : ChannelOutputStream.findChannel(output);
+        if (socket == null) {
+            super.writeRequest(output);
+            return;
+        }
+
+        FileChannel file = _input.getChannel();
+        try {
+            long position = _offset;
+            long remaining = getContentLength();
+            while (remaining > 0) {
+                long count = file.transferTo(position, remaining, socket);
+                if (count == 0 && position >= file.size()) {
+                    throw new IOException("Unexpected end of file with " + remaining +
+                        " bytes remaining");
+                }
+                position += count;
+                remaining -= count;
+            }
+        } finally {
+            _input.close();
+        }
+    }
+
+    /** File input stream. */
+    private final FileInputStream _input;
+
+    /** Region offset. */
+    private final long _offset;
+}
@@ -33,27 +33,95 @@
 package com.threerings.s3.client;
 
 import org.apache.commons.io.input.AutoCloseInputStream;
-import org.apache.commons.httpclient.HttpMethod;
 
 import java.io.InputStream;
 import java.io.IOException;
 
 /**
- * Auto-closing HTTP connection input stream. The method will automatically
- * be closed, and associated resources returned when the end of the stream
+ * Auto-closing HTTP connection input stream. The response will automatically
+ * be released, and associated resources returned when the end of the stream
  * is reached, the stream is closed, or finalization of the object occurs.
+ *
+ * A read that fails because the request's cancellation handle was cancelled fails with an
+ * IOException whose cause is an {@link S3ClientException.CancelledException}.
  */
 class HttpInputStream extends AutoCloseInputStream {
-    /** Wrapped HTTP method */
-    private final HttpMethod method;
+    /** Wrapped HTTP response */
+    private final S3TransportResponse response;
+
+    /** The request's cancellation handle, or null. */
+    private final S3Cancellation cancellation;
+
+    /** Description of the request, used in error messages. */
+    private final Object call;
 
     /**
      * Wrap the provided body stream. 
      */
-    public HttpInputStream (InputStream stream, HttpMethod method) {
+    public HttpInputStream (InputStream stream, S3TransportResponse response) {
+        this(stream, response, null, null);
+    }
+
+    /**
+     * Wrap the provided body stream, read on behalf of a call with the given cancellation
+     * handle.
+     */
+    public HttpInputStream (InputStream stream, S3TransportResponse response,
+        S3Cancellation cancellation, Object call) {
         super(stream);
 
-        this.method = method;
+        this.response = response;
+        this.cancellation = cancellation;
+        this.call = call;
+    }
+
+    @Override
+    public int read () throws IOException {
+        try {
+            return super.read();
+        } catch (IOException ioe) {
+            throw translate(ioe);
+        }
+    }
+
+    @Override
+    public int read (byte[] b) throws IOException {
+        try {
+            return super.read(b);
+        } catch (IOException ioe) {
+            throw translate(ioe);
+        }
+    }
+
+    @Override
+    public int read (byte[] b, int off, int len) throws IOException {
+        try {
+            return super.read(b, off, len);
+        } catch (IOException ioe) {
+            throw translate(ioe);
+        }
+    }
+
+    @Override
+    public long skip (long n) throws IOException {
+        try {
+            return super.skip(n);
+        } catch (IOException ioe) {
+            throw translate(ioe);
+        }
+    }
+
+    /**
+     * Translate a read failure caused by cancellation.
+     */
+    private IOException translate (IOException ioe) {
+        if (cancellation == null || !cancellation.isCancelled()) {
+            return ioe;
+        }
+        S3ClientException.CancelledException ce = cancellation.createException(call);
+        IOException cancelled = new IOException(ce.getMessage(), ce);
+        cancelled.addSuppressed(ioe);
+        return cancelled;
     }
 
     /**
@@ -65,7 +133,7 @@ class HttpInputStream extends AutoCloseInputStream {
         try {
             super.close();
         } finally {
-            method.releaseConnection();
+            response.release();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,212 @@
+/*
+ * PooledConnectionManager vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.IOException;
+
+import java.lang.ref.WeakReference;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+
+/**
+ * A multi-threaded connection manager that records pool statistics, and closes connections
+ * that have outlived their time to live as they are returned to the pool. Connections
+ * retired by a {@link S3ResolvingSocketFactory} are closed as they are leased or returned.
+ *
+ * httpclient reclaims a leased connection whose lease is garbage collected without being
+ * released, without calling {@link #releaseConnection}. Leases are therefore tracked by
+ * weak reference, so that reclaimed connections are no longer counted as leased.
+ */
+class PooledConnectionManager extends MultiThreadedHttpConnectionManager {
+    /**
+     * Create a new connection manager.
+     *
+     * @param connectionTTL Connection time to live, in milliseconds, or 0 for no limit.
+     */
+    public PooledConnectionManager (long connectionTTL)
+    {
+        _connectionTTL = connectionTTL;
+    }
+
+    @Override
+    public HttpConnection getConnectionWithTimeout (HostConfiguration hostConfiguration,
+        long timeout)
+        throws ConnectionPoolTimeoutException
+    {
+        long start = System.nanoTime();
+        _pending.incrementAndGet();
+        try {
+            HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration,
+                timeout);
+            closeIfRetired(connection);
+
+            long wait = System.nanoTime() - start;
+            synchronized (_leases) {
+                _leases.put(connection.getParams(),
+                    new WeakReference<HttpConnection>(connection));
+            }
+            _leaseCount.incrementAndGet();
+            _totalWaitNanos.addAndGet(wait);
+            long max;
+            while (wait > (max = _maxWaitNanos.get()) &&
+                !_maxWaitNanos.compareAndSet(max, wait))
+            {
+                // Retry
+            }
+            return connection;
+        } finally {
+            _pending.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void releaseConnection (HttpConnection connection)
+    {
+        if (connection == null) {
+            return;
+        }
+        if (_connectionTTL > 0) {
+            expire(connection);
+        }
+        closeIfRetired(connection);
+        synchronized (_leases) {
+            _leases.remove(connection.getParams());
+        }
+        super.releaseConnection(connection);
+    }
+
+    /**
+     * Return a snapshot of the pool's statistics.
+     */
+    public S3ConnectionPoolStats getStats ()
+    {
+        /* The pool does not distinguish leased and idle connections. */
+        int leased = getLeased();
+        return new S3ConnectionPoolStats(leased, Math.max(0, getConnectionsInPool() - leased),
+            _pending.get(), _leaseCount.get(), _totalWaitNanos.get(), _maxWaitNanos.get());
+    }
+
+    /**
+     * Returns the number of leased connections, discarding leases that httpclient has
+     * reclaimed.
+     */
+    private int getLeased ()
+    {
+        synchronized (_leases) {
+            for (Iterator<WeakReference<HttpConnection>> iter = _leases.values().iterator();
+                iter.hasNext(); )
+            {
+                if (iter.next().get() == null) {
+                    iter.remove();
+                }
+            }
+            return _leases.size();
+        }
+    }
+
+    /**
+     * Close the connection if it has outlived its time to live. A connection's age is
+     * measured from the first time it is returned to the pool open, and restarts once it has
+     * been closed and reopened.
+     */
+    private void expire (HttpConnection connection)
+    {
+        long now = System.currentTimeMillis();
+        synchronized (_opened) {
+            if (!connection.isOpen()) {
+                _opened.remove(connection);
+                return;
+            }
+
+            Long opened = _opened.get(connection);
+            if (opened == null) {
+                _opened.put(connection, now);
+            } else if (now - opened >= _connectionTTL) {
+                _opened.remove(connection);
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Close the connection if its socket has been retired. A closed connection is reopened
+     * when it is next used.
+     */
+    private static void closeIfRetired (HttpConnection connection)
+    {
+        if (!ResolvedSocket.hasRetired() || !connection.isOpen()) {
+            return;
+        }
+        try {
+            if (ResolvedSocket.isRetired(connection.getRequestOutputStream())) {
+                connection.close();
+            }
+        } catch (IOException ioe) {
+            connection.close();
+        }
+    }
+
+    /** Connection time to live. */
+    private final long _connectionTTL;
+
+    /** Time at which each open connection was first seen. */
+    private final Map<HttpConnection,Long> _opened = new WeakHashMap<HttpConnection,Long>();
+
+    /** Outstanding leases, keyed by the leased connection's parameters. A lease wraps its
+     * pooled connection, which is what is returned to {@link #releaseConnection}; the
+     * parameters are shared by both, and identify the pooled connection. */
+    private final Map<HttpConnectionParams,WeakReference<HttpConnection>> _leases =
+        new IdentityHashMap<HttpConnectionParams,WeakReference<HttpConnection>>();
+
+    /** Requests waiting for a connection. */
+    private final AtomicInteger _pending = new AtomicInteger();
+
+    /** Total leases. */
+    private final AtomicLong _leaseCount = new AtomicLong();
+
+    /** Total lease wait time. */
+    private final AtomicLong _totalWaitNanos = new AtomicLong();
+
+    /** Longest lease wait time. */
+    private final AtomicLong _maxWaitNanos = new AtomicLong();
+}
@@ -0,0 +1,223 @@
+/*
+ * RequestEntityPublisher vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Publishes a request entity's data as a flow of byte buffers, for transports that consume
+ * a reactive request body. As entities push their data to an output stream, the entity is
+ * written on a thread taken from the provided executor, which blocks until the subscriber
+ * requests more data.
+ */
+class RequestEntityPublisher implements Flow.Publisher<ByteBuffer> {
+
+    /**
+     * Create a new publisher.
+     *
+     * @param entity Request entity.
+     * @param executor Executor on which the entity is written.
+     * @param chunkSize Size of the published buffers.
+     */
+    public RequestEntityPublisher (RequestEntity entity, Executor executor, int chunkSize)
+    {
+        _entity = entity;
+        _executor = executor;
+        _chunkSize = chunkSize;
+    }
+
+    // from interface Flow.Publisher
+    public void subscribe (Flow.Subscriber<? super ByteBuffer> subscriber)
+    {
+        Writer writer = new Writer(subscriber);
+        subscriber.onSubscribe(writer);
+        _executor.execute(writer);
+    }
+
+    /**
+     * Writes the entity to a single subscriber.
+     */
+    private class Writer extends OutputStream implements Flow.Subscription, Runnable {
+        public Writer (Flow.Subscriber<? super ByteBuffer> subscriber) {
+            _subscriber = subscriber;
+        }
+
+        // from interface Runnable
+        public void run () {
+            try {
+                _entity.writeRequest(this);
+                if (_chunk != null && _chunk.position() > 0) {
+                    emit();
+                }
+            } catch (IOException ioe) {
+                fail(ioe);
+                return;
+            } catch (RuntimeException re) {
+                fail(re);
+                return;
+            }
+
+            synchronized (this) {
+                if (_cancelled) {
+                    return;
+                }
+                _cancelled = true;
+            }
+            _subscriber.onComplete();
+        }
+
+        // from interface Flow.Subscription
+        public synchronized void request (long n) {
+            if (n <= 0) {
+                _error = new IllegalArgumentException("Non-positive request: " + n);
+            } else {
+                // Saturate, per the reactive streams specification
+                _demand = (_demand + n < 0) ? Long.MAX_VALUE : _demand + n;
+            }
+            notifyAll();
+        }
+
+        // from interface Flow.Subscription
+        public synchronized void cancel () {
+            _cancelled = true;
+            notifyAll();
+        }
+
+        @Override // from OutputStream
+        public void write (int b)
+            throws IOException
+        {
+            if (_chunk == null) {
+                _chunk = ByteBuffer.allocate(_chunkSize);
+            }
+            _chunk.put((byte)b);
+            if (!_chunk.hasRemaining()) {
+                emit();
+            }
+        }
+
+        @Override // from OutputStream
+        public void write (byte[] b, int off, int len)
+            throws IOException
+        {
+            while (len > 0) {
+                if (_chunk == null) {
+                    _chunk = ByteBuffer.allocate(_chunkSize);
+                }
+                int count = Math.min(len, _chunk.remaining());
+                _chunk.put(b, off, count);
+                off += count;
+                len -= count;
+                if (!_chunk.hasRemaining()) {
+                    emit();
+                }
+            }
+        }
+
+        /**
+         * Wait for demand, and then publish the current chunk. The subscriber may retain
+         * the buffer, so a new chunk is allocated for subsequent writes.
+         */
+        private void emit ()
+            throws IOException
+        {
+            synchronized (this) {
+                while (_demand == 0 && !_cancelled && _error == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while writing request");
+                    }
+                }
+                if (_error != null) {
+                    throw new IOException("Request body subscription failed", _error);
+                }
+                if (_cancelled) {
+                    throw new IOException("Request body subscription was cancelled");
+                }
+                _demand--;
+            }
+
+            ByteBuffer chunk = _chunk;
+            _chunk = null;
+            chunk.flip();
+            _subscriber.onNext(chunk);
+        }
+
+        /**
+         * Report a failure to the subscriber, unless the subscription has been cancelled.
+         */
+        private void fail (Throwable cause) {
+            synchronized (this) {
+                if (_cancelled) {
+                    return;
+                }
+                _cancelled = true;
+            }
+            _subscriber.onError(cause);
+        }
+
+        /** The subscriber. */
+        private final Flow.Subscriber<? super ByteBuffer> _subscriber;
+
+        /** The chunk being filled, or null. */
+        private ByteBuffer _chunk;
+
+        /** Outstanding demand. */
+        private long _demand;
+
+        /** Set once the subscription is cancelled or complete. */
+        private boolean _cancelled;
+
+        /** Set if the subscriber violated the subscription contract. */
+        private Throwable _error;
+    }
+
+    /** The request entity. */
+    private final RequestEntity _entity;
+
+    /** Executor on which the entity is written. */
+    private final Executor _executor;
+
+    /** Published buffer size. */
+    private final int _chunkSize;
+}
@@ -0,0 +1,387 @@
+/*
+ * ResolvedSocket vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.FilterOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+import java.nio.channels.SocketChannel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connected socket, opened by a {@link S3ResolvingSocketFactory} to one of a host's
+ * resolved addresses, that may be retired once the address disappears from the host's DNS
+ * records. All socket operations are delegated to the wrapped socket.
+ *
+ * A retired socket is not closed immediately, as it may be carrying a request. Instead, the
+ * connection pool locates the socket beneath httpclient's wrapping streams as connections
+ * are leased and returned -- by flushing the outermost stream, as
+ * {@link ChannelOutputStream#findChannel} does -- and closes retired connections then.
+ */
+class ResolvedSocket extends Socket {
+    /**
+     * Notified when a resolved socket is closed.
+     */
+    public interface Observer {
+        /** Called once the socket has been closed. */
+        public void socketClosed (ResolvedSocket socket);
+    }
+
+    /**
+     * Returns true if any open resolved socket has been retired.
+     */
+    public static boolean hasRetired ()
+    {
+        return _retiredCount.get() > 0;
+    }
+
+    /**
+     * Flush the given stream, returning true if it wraps the output stream of a retired
+     * resolved socket.
+     */
+    public static boolean isRetired (OutputStream output)
+        throws IOException
+    {
+        ResolvedSocket[] probe = new ResolvedSocket[1];
+        _probe.set(probe);
+        try {
+            output.flush();
+        } finally {
+            _probe.remove();
+        }
+        return probe[0] != null && probe[0].isRetired();
+    }
+
+    /**
+     * Wrap the given connected socket.
+     *
+     * @param address The resolved address to which the socket is connected.
+     */
+    public ResolvedSocket (Socket socket, InetAddress address, Observer observer)
+    {
+        _socket = socket;
+        _address = address;
+        _observer = observer;
+    }
+
+    /**
+     * Returns the resolved address to which the socket is connected.
+     */
+    public InetAddress getResolvedAddress () {
+        return _address;
+    }
+
+    /**
+     * Retire the socket, causing its connection to be closed once it is not in use.
+     */
+    public synchronized void retire ()
+    {
+        if (!_closed && !_retired) {
+            _retired = true;
+            _retiredCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns true if the socket has been retired.
+     */
+    public synchronized boolean isRetired () {
+        return _retired;
+    }
+
+    @Override
+    public SocketChannel getChannel () {
+        return _socket.getChannel();
+    }
+
+    @Override
+    public InputStream getInputStream ()
+        throws IOException
+    {
+        return _socket.getInputStream();
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream ()
+        throws IOException
+    {
+        if (_output == null) {
+            _output = new FilterOutputStream(_socket.getOutputStream()) {
+                @Override
+                public void write (byte[] b, int off, int len)
+                    throws IOException
+                {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void flush ()
+                    throws IOException
+                {
+                    out.flush();
+
+                    ResolvedSocket[] probe = _probe.get();
+                    if (probe != null) {
+                        probe[0] = ResolvedSocket.this;
+                    }
+                }
+            };
+        }
+        return _output;
+    }
+
+    @Override
+    public void connect (SocketAddress endpoint, int timeout)
+        throws IOException
+    {
+        throw new SocketException("Already connected");
+    }
+
+    @Override
+    public void bind (SocketAddress bindpoint)
+        throws IOException
+    {
+        throw new SocketException("Already bound");
+    }
+
+    @Override
+    public InetAddress getInetAddress () {
+        return _socket.getInetAddress();
+    }
+
+    @Override
+    public InetAddress getLocalAddress () {
+        return _socket.getLocalAddress();
+    }
+
+    @Override
+    public int getPort () {
+        return _socket.getPort();
+    }
+
+    @Override
+    public int getLocalPort () {
+        return _socket.getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress () {
+        return _socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress () {
+        return _socket.getLocalSocketAddress();
+    }
+
+    @Override
+    public void setTcpNoDelay (boolean on)
+        throws SocketException
+    {
+        _socket.setTcpNoDelay(on);
+    }
+
+    @Override
+    public boolean getTcpNoDelay ()
+        throws SocketException
+    {
+        return _socket.getTcpNoDelay();
+    }
+
+    @Override
+    public void setSoLinger (boolean on, int linger)
+        throws SocketException
+    {
+        _socket.setSoLinger(on, linger);
+    }
+
+    @Override
+    public int getSoLinger ()
+        throws SocketException
+    {
+        return _socket.getSoLinger();
+    }
+
+    @Override
+    public void setSoTimeout (int timeout)
+        throws SocketException
+    {
+        _socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public int getSoTimeout ()
+        throws SocketException
+    {
+        return _socket.getSoTimeout();
+    }
+
+    @Override
+    public void setSendBufferSize (int size)
+        throws SocketException
+    {
+        _socket.setSendBufferSize(size);
+    }
+
+    @Override
+    public int getSendBufferSize ()
+        throws SocketException
+    {
+        return _socket.getSendBufferSize();
+    }
+
+    @Override
+    public void setReceiveBufferSize (int size)
+        throws SocketException
+    {
+        _socket.setReceiveBufferSize(size);
+    }
+
+    @Override
+    public int getReceiveBufferSize ()
+        throws SocketException
+    {
+        return _socket.getReceiveBufferSize();
+    }
+
+    @Override
+    public void setKeepAlive (boolean on)
+        throws SocketException
+    {
+        _socket.setKeepAlive(on);
+    }
+
+    @Override
+    public boolean getKeepAlive ()
+        throws SocketException
+    {
+        return _socket.getKeepAlive();
+    }
+
+    @Override
+    public void close ()
+        throws IOException
+    {
+        boolean closing;
+        synchronized (this) {
+            closing = !_closed;
+            _closed = true;
+            if (closing && _retired) {
+                _retiredCount.decrementAndGet();
+            }
+        }
+        try {
+            _socket.close();
+        } finally {
+            if (closing) {
+                _observer.socketClosed(this);
+            }
+        }
+    }
+
+    @Override
+    public void shutdownInput ()
+        throws IOException
+    {
+        _socket.shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput ()
+        throws IOException
+    {
+        _socket.shutdownOutput();
+    }
+
+    @Override
+    public boolean isConnected () {
+        return _socket.isConnected();
+    }
+
+    @Override
+    public boolean isBound () {
+        return _socket.isBound();
+    }
+
+    @Override
+    public boolean isClosed () {
+        return _socket.isClosed();
+    }
+
+    @Override
+    public boolean isInputShutdown () {
+        return _socket.isInputShutdown();
+    }
+
+    @Override
+    public boolean isOutputShutdown () {
+        return _socket.isOutputShutdown();
+    }
+
+    @Override
+    public String toString () {
+        return _socket.toString();
+    }
+
+    /** The wrapped socket. */
+    private final Socket _socket;
+
+    /** The resolved address to which the socket is connected. */
+    private final InetAddress _address;
+
+    /** Notified when the socket is closed. */
+    private final Observer _observer;
+
+    /** Set once the socket is retired. */
+    private boolean _retired;
+
+    /** Set once the socket is closed. */
+    private boolean _closed;
+
+    /** Output stream, created on demand. */
+    private OutputStream _output;
+
+    /** Open sockets that have been retired, across all factories. */
+    private static final AtomicInteger _retiredCount = new AtomicInteger();
+
+    /** Per-thread socket probe, set only while {@link #isRetired(OutputStream)} flushes. */
+    private static final ThreadLocal<ResolvedSocket[]> _probe =
+        new ThreadLocal<ResolvedSocket[]>();
+}
@@ -0,0 +1,478 @@
+/*
+ * S3BalancingTransport vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.HostConfiguration;
+
+/**
+ * A transport that spreads requests over a set of equivalent endpoints -- such as the
+ * gateway nodes of an S3-compatible cluster -- each with its own transport and connection
+ * pool. Endpoints are chosen by a pluggable {@link Balancer}.
+ *
+ * Endpoint health is tracked passively: an endpoint whose requests fail a number of times
+ * in a row, with a network error or a 5xx response other than 503 (which S3 uses for
+ * throttling), is ejected from the rotation for the ejection time, after which it is
+ * returned to the rotation. A single further failure ejects it again. If every endpoint has
+ * been ejected, requests are spread over all of them rather than refused.
+ *
+ * Failed requests are not redirected by the transport itself; a connection's
+ * {@link S3RetryPolicy} retries them, and the retry is balanced like any other request.
+ */
+public class S3BalancingTransport implements S3Transport {
+
+    /** Default number of consecutive failures that ejects an endpoint. */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    /** Default time for which an ejected endpoint is removed from rotation, in ms. */
+    public static final long DEFAULT_EJECTION_TIME = 30 * 1000;
+
+    /**
+     * Selects the endpoint to which a request is sent.
+     */
+    public interface Balancer {
+        /**
+         * Return one of the provided endpoints.
+         *
+         * @param endpoints The endpoints in rotation. Never empty.
+         */
+        public Endpoint select (List<Endpoint> endpoints);
+    }
+
+    /**
+     * Sends each request to the next endpoint in turn.
+     */
+    public static final Balancer ROUND_ROBIN = new Balancer() {
+        public Endpoint select (List<Endpoint> endpoints) {
+            int next = _next.getAndIncrement() & Integer.MAX_VALUE;
+            return endpoints.get(next % endpoints.size());
+        }
+
+        /** Next endpoint index. */
+        private final AtomicInteger _next = new AtomicInteger();
+    };
+
+    /**
+     * Sends each request to whichever of two randomly chosen endpoints has fewer requests
+     * outstanding. Choosing between two, rather than among all endpoints, avoids sending
+     * every request to the same idle endpoint at once.
+     */
+    public static final Balancer LEAST_OUTSTANDING = new Balancer() {
+        public Endpoint select (List<Endpoint> endpoints) {
+            Endpoint[] pair = pickTwo(endpoints);
+            return (pair[1].getOutstanding() < pair[0].getOutstanding()) ? pair[1] : pair[0];
+        }
+    };
+
+    /**
+     * Sends each request to whichever of two randomly chosen endpoints has the lower
+     * exponentially weighted moving average latency, scaled by its outstanding requests.
+     * Endpoints whose latency has not yet been measured are assumed to have the mean latency
+     * of those that have.
+     */
+    public static final Balancer LATENCY_EWMA = new Balancer() {
+        public Endpoint select (List<Endpoint> endpoints) {
+            Endpoint[] pair = pickTwo(endpoints);
+            double unknown = (pair[0].getLatency() < 0 || pair[1].getLatency() < 0) ?
+                meanLatency(endpoints) : 0;
+            return (cost(pair[1], unknown) < cost(pair[0], unknown)) ? pair[1] : pair[0];
+        }
+
+        private double cost (Endpoint endpoint, double unknown) {
+            double latency = endpoint.getLatency();
+            return ((latency < 0) ? unknown : latency) * (endpoint.getOutstanding() + 1);
+        }
+
+        private double meanLatency (List<Endpoint> endpoints) {
+            double total = 0;
+            int count = 0;
+            for (Endpoint endpoint : endpoints) {
+                double latency = endpoint.getLatency();
+                if (latency >= 0) {
+                    total += latency;
+                    count++;
+                }
+            }
+            return (count > 0) ? total / count : DEFAULT_LATENCY;
+        }
+    };
+
+    /**
+     * A single endpoint and its health.
+     */
+    public static class Endpoint {
+        /** Returns the endpoint's transport. */
+        public S3Transport getTransport () {
+            return _transport;
+        }
+
+        /** Returns the number of requests outstanding on the endpoint. */
+        public int getOutstanding () {
+            return _outstanding.get();
+        }
+
+        /**
+         * Returns the moving average of the endpoint's response latency, in milliseconds, or
+         * -1 if no response has yet been received.
+         */
+        public synchronized double getLatency () {
+            return _latency;
+        }
+
+        /**
+         * Returns true if the endpoint is in rotation.
+         */
+        public synchronized boolean isHealthy () {
+            return System.nanoTime() - _ejectedUntil >= 0;
+        }
+
+        @Override
+        public String toString () {
+            return _name;
+        }
+
+        protected Endpoint (String name, S3Transport transport)
+        {
+            _name = name;
+            _transport = transport;
+            _ejectedUntil = System.nanoTime();
+        }
+
+        /**
+         * Record a request's outcome.
+         */
+        protected synchronized void record (boolean failed, long latencyNanos,
+            int failureThreshold, long ejectionTime)
+        {
+            if (!failed) {
+                _failures = 0;
+                double latency = latencyNanos / 1e6;
+                _latency = (_latency < 0) ? latency :
+                    _latency + EWMA_WEIGHT * (latency - _latency);
+                return;
+            }
+
+            if (++_failures >= failureThreshold) {
+                _ejectedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ejectionTime);
+                // A single failure after the endpoint returns ejects it again
+                _failures = failureThreshold - 1;
+            }
+        }
+
+        /** Endpoint name. */
+        private final String _name;
+
+        /** Endpoint transport. */
+        private final S3Transport _transport;
+
+        /** Outstanding requests. */
+        private final AtomicInteger _outstanding = new AtomicInteger();
+
+        /** Latency moving average, in milliseconds, or -1 if unknown. */
+        private double _latency = -1;
+
+        /** Consecutive failures. */
+        private int _failures;
+
+        /** Time at which the endpoint returns to rotation, in nanoseconds. */
+        private long _ejectedUntil;
+    }
+
+    /**
+     * Create a transport balancing over the given hosts, each with its own commons-httpclient
+     * connection pool configured as provided.
+     */
+    public S3BalancingTransport (List<HostConfiguration> hosts, S3ConnectionConfig config,
+        Balancer balancer)
+    {
+        this(createTransports(hosts, config), balancer);
+    }
+
+    /**
+     * Create a transport balancing over the given endpoint transports.
+     */
+    public S3BalancingTransport (List<? extends S3Transport> transports, Balancer balancer)
+    {
+        if (transports.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is required");
+        }
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        for (S3Transport transport : transports) {
+            endpoints.add(new Endpoint(transport.toString(), transport));
+        }
+        _endpoints = Collections.unmodifiableList(endpoints);
+        _balancer = balancer;
+    }
+
+    /**
+     * Set the number of consecutive failures that ejects an endpoint. Defaults to
+     * {@link #DEFAULT_FAILURE_THRESHOLD}.
+     */
+    public S3BalancingTransport setFailureThreshold (int failureThreshold) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be positive: " +
+                failureThreshold);
+        }
+        _failureThreshold = failureThreshold;
+        return this;
+    }
+
+    /** Returns the number of consecutive failures that ejects an endpoint. */
+    public int getFailureThreshold () {
+        return _failureThreshold;
+    }
+
+    /**
+     * Set the time, in milliseconds, for which an ejected endpoint is removed from
+     * rotation. Defaults to {@link #DEFAULT_EJECTION_TIME}.
+     */
+    public S3BalancingTransport setEjectionTime (long ejectionTime) {
+        _ejectionTime = ejectionTime;
+        return this;
+    }
+
+    /** Returns the ejection time, in milliseconds. */
+    public long getEjectionTime () {
+        return _ejectionTime;
+    }
+
+    /**
+     * Returns all endpoints, healthy or not.
+     */
+    public List<Endpoint> getEndpoints () {
+        return _endpoints;
+    }
+
+    // from interface S3Transport
+    public S3TransportResponse execute (S3TransportRequest request)
+        throws IOException
+    {
+        final Endpoint endpoint = select();
+        long start = System.nanoTime();
+        endpoint._outstanding.incrementAndGet();
+
+        S3TransportResponse response;
+        try {
+            response = endpoint.getTransport().execute(request);
+        } catch (IOException ioe) {
+            endpoint._outstanding.decrementAndGet();
+            if (!request.isAborted()) {
+                endpoint.record(true, 0, _failureThreshold, _ejectionTime);
+            }
+            throw ioe;
+        } catch (RuntimeException e) {
+            endpoint._outstanding.decrementAndGet();
+            throw e;
+        }
+
+        int status = response.getStatusCode();
+        boolean failed = (status >= 500 && status != SLOW_DOWN_STATUS);
+        endpoint.record(failed, System.nanoTime() - start, _failureThreshold, _ejectionTime);
+        return new Response(response, endpoint);
+    }
+
+    // from interface S3Transport
+    public S3ConnectionPoolStats getPoolStats ()
+    {
+        int leased = 0, idle = 0, pending = 0;
+        long leaseCount = 0, totalWait = 0, maxWait = 0;
+        for (Endpoint endpoint : _endpoints) {
+            S3ConnectionPoolStats stats = endpoint.getTransport().getPoolStats();
+            leased += stats.getLeased();
+            idle += stats.getIdle();
+            pending += stats.getPending();
+            leaseCount += stats.getLeaseCount();
+            totalWait += stats.getTotalWaitNanos();
+            maxWait = Math.max(maxWait, stats.getMaxWaitNanos());
+        }
+        return new S3ConnectionPoolStats(leased, idle, pending, leaseCount, totalWait, maxWait);
+    }
+
+    // from interface S3Transport
+    public void shutdown ()
+    {
+        for (Endpoint endpoint : _endpoints) {
+            endpoint.getTransport().shutdown();
+        }
+    }
+
+    /**
+     * Select an endpoint for the next request.
+     */
+    protected Endpoint select ()
+    {
+        List<Endpoint> healthy = new ArrayList<Endpoint>(_endpoints.size());
+        for (Endpoint endpoint : _endpoints) {
+            if (endpoint.isHealthy()) {
+                healthy.add(endpoint);
+            }
+        }
+        return _balancer.select(healthy.isEmpty() ? _endpoints : healthy);
+    }
+
+    /**
+     * Return two distinct random endpoints from the given list, or the same endpoint twice if
+     * the list holds only one.
+     */
+    protected static Endpoint[] pickTwo (List<Endpoint> endpoints)
+    {
+        int size = endpoints.size();
+        if (size == 1) {
+            return new Endpoint[] { endpoints.get(0), endpoints.get(0) };
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        return new Endpoint[] { endpoints.get(first), endpoints.get(second) };
+    }
+
+    /**
+     * Create a commons-httpclient transport, with its own connection pool, for each host.
+     */
+    protected static List<S3Transport> createTransports (List<HostConfiguration> hosts,
+        S3ConnectionConfig config)
+    {
+        List<S3Transport> transports = new ArrayList<S3Transport>();
+        for (HostConfiguration host : hosts) {
+            transports.add(new S3CommonsTransport(host, config));
+        }
+        return transports;
+    }
+
+    /**
+     * A response that ends its request's outstanding count once released.
+     */
+    protected static class Response implements S3TransportResponse {
+        public Response (S3TransportResponse response, Endpoint endpoint) {
+            _response = response;
+            _endpoint = endpoint;
+        }
+
+        // from interface S3TransportResponse
+        public int getStatusCode () {
+            return _response.getStatusCode();
+        }
+
+        // from interface S3TransportResponse
+        public String getHeader (String name) {
+            return _response.getHeader(name);
+        }
+
+        // from interface S3TransportResponse
+        public Map<String,String> getHeaders () {
+            return _response.getHeaders();
+        }
+
+        // from interface S3TransportResponse
+        public long getContentLength () {
+            return _response.getContentLength();
+        }
+
+        // from interface S3TransportResponse
+        public InputStream getBody ()
+            throws IOException
+        {
+            return _response.getBody();
+        }
+
+        // from interface S3TransportResponse
+        public void release ()
+        {
+            try {
+                _response.release();
+            } finally {
+                finish();
+            }
+        }
+
+        // from interface S3TransportResponse
+        public void abort ()
+        {
+            try {
+                _response.abort();
+            } finally {
+                finish();
+            }
+        }
+
+        private void finish () {
+            if (_finished.compareAndSet(false, true)) {
+                _endpoint._outstanding.decrementAndGet();
+            }
+        }
+
+        /** The endpoint's response. */
+        private final S3TransportResponse _response;
+
+        /** The endpoint. */
+        private final Endpoint _endpoint;
+
+        /** Set once the response is released. */
+        private final AtomicBoolean _finished = new AtomicBoolean();
+    }
+
+    /** All endpoints. */
+    private final List<Endpoint> _endpoints;
+
+    /** Endpoint balancer. */
+    private final Balancer _balancer;
+
+    /** Consecutive failures that eject an endpoint. */
+    private volatile int _failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+    /** Ejection time, in milliseconds. */
+    private volatile long _ejectionTime = DEFAULT_EJECTION_TIME;
+
+    /** The HTTP status S3 returns when throttling requests. */
+    private static final int SLOW_DOWN_STATUS = 503;
+
+    /** Weight given to each new latency sample. */
+    private static final double EWMA_WEIGHT = 0.2;
+
+    /** Latency assumed of every endpoint before any has been measured, in milliseconds. */
+    private static final double DEFAULT_LATENCY = 1;
+}
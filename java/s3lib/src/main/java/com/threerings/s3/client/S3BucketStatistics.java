@@ -0,0 +1,415 @@
+/*
+ * S3BucketStatistics vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Computes per-prefix {@link S3PrefixStatistics} for a bucket by walking its key space in
+ * parallel.
+ *
+ * The key space is split on a delimiter (by default, "/"): each common prefix found by a
+ * delimited listing is walked by its own fork-join task, and the results are merged as the
+ * tasks complete. Statistics for each prefix at the configured reporting depth are
+ * streamed to a {@link Listener} as soon as that prefix has been fully walked. Object
+ * entries are never retained; memory use is bounded by the number of in-progress tasks.
+ *
+ * Listing requests are issued as managed blocks, so that the pool may add threads while
+ * tasks wait on S3, but no more than the configured parallelism are in flight at once. If
+ * any listing fails, the walk stops: outstanding tasks are cancelled, and no further
+ * listings are issued.
+ *
+ * Instances may be re-used, but are not thread-safe.
+ */
+public class S3BucketStatistics {
+
+    /**
+     * Receives statistics as each reporting prefix is completed. Calls are serialized, but
+     * may be made from any worker thread.
+     */
+    public interface Listener {
+        /**
+         * Called once the given prefix has been fully walked.
+         */
+        public void prefixCompleted (S3PrefixStatistics statistics);
+    }
+
+    /** Default key delimiter. */
+    public static final String DEFAULT_DELIMITER = "/";
+
+    /**
+     * Create a new statistics aggregator.
+     *
+     * @param connection S3 connection.
+     * @param bucketName Bucket to walk.
+     * @param parallelism Maximum number of concurrent listing requests.
+     */
+    public S3BucketStatistics (S3Connection connection, String bucketName, int parallelism)
+    {
+        _connection = connection;
+        _bucketName = bucketName;
+        _parallelism = parallelism;
+    }
+
+    /**
+     * Set the key delimiter used to split the key space. Defaults to
+     * {@link #DEFAULT_DELIMITER}.
+     */
+    public void setDelimiter (String delimiter) {
+        _delimiter = delimiter;
+    }
+
+    /**
+     * Set the reporting depth: statistics are reported for each prefix this many delimited
+     * levels beneath the walked root prefix. A depth of 0 reports only the root prefix.
+     * Objects stored above the reporting depth are included only in the returned totals.
+     * Defaults to 1.
+     */
+    public void setDepth (int depth) {
+        _depth = depth;
+    }
+
+    /**
+     * Set the number of additional delimited levels, beneath the reporting depth, that
+     * will be split into parallel tasks. Prefixes below this level are walked with a single
+     * flat listing. Deeper splitting improves parallelism for large prefixes, at the cost of
+     * additional listing requests for sparsely populated ones. Defaults to 1.
+     */
+    public void setExtraSplitDepth (int extraSplitDepth) {
+        _extraSplitDepth = extraSplitDepth;
+    }
+
+    /**
+     * Walk the given prefix.
+     *
+     * @param prefix Root prefix, or null to walk the entire bucket.
+     * @param listener Receives per-prefix statistics. May be null.
+     * @return Statistics for all objects beneath the prefix.
+     */
+    public S3PrefixStatistics collect (String prefix, Listener listener)
+        throws S3Exception
+    {
+        return collect(Collections.singletonList(prefix), listener);
+    }
+
+    /**
+     * Walk the given prefixes in parallel. The prefixes must not overlap, or their common
+     * objects will be counted more than once.
+     *
+     * @param prefixes Root prefixes. A null prefix walks the entire bucket.
+     * @param listener Receives per-prefix statistics. May be null.
+     * @return Statistics for all objects beneath the prefixes.
+     */
+    public S3PrefixStatistics collect (List<String> prefixes, Listener listener)
+        throws S3Exception
+    {
+        ForkJoinPool pool = new ForkJoinPool(_parallelism);
+        Walk walk = new Walk(listener);
+        final List<PrefixTask> roots = new ArrayList<PrefixTask>(prefixes.size());
+        for (String prefix : prefixes) {
+            roots.add(new PrefixTask(prefix, 0, walk));
+        }
+
+        try {
+            return pool.invoke(new RecursiveTask<S3PrefixStatistics>() {
+                @Override protected S3PrefixStatistics compute () {
+                    return mergeAll(roots);
+                }
+            });
+        } catch (RuntimeException re) {
+            // A failed walk may surface as the cancellation of a sibling task
+            S3Exception failure = walk.getFailure();
+            if (failure != null) {
+                throw failure;
+            }
+            throw re;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Fork and join the given root tasks, merging their results.
+     */
+    private static S3PrefixStatistics mergeAll (List<PrefixTask> tasks)
+    {
+        S3PrefixStatistics stats = new S3PrefixStatistics(null);
+        for (PrefixTask task : RecursiveTask.invokeAll(tasks)) {
+            stats.merge(task.join());
+        }
+        return stats;
+    }
+
+    /**
+     * State shared by the tasks of a single walk.
+     */
+    private class Walk {
+        public Walk (Listener listener) {
+            _listener = listener;
+            _permits = new Semaphore(_parallelism);
+        }
+
+        /**
+         * Returns the exception that failed the walk, or null.
+         */
+        public synchronized S3Exception getFailure () {
+            return _failure;
+        }
+
+        /**
+         * Record the walk's failure, if it has not already failed.
+         */
+        public synchronized void fail (S3Exception e) {
+            if (_failure == null) {
+                _failure = e;
+            }
+        }
+
+        /**
+         * Fail the calling task if the walk has already failed.
+         */
+        public void check () {
+            S3Exception failure = getFailure();
+            if (failure != null) {
+                throw new TaskFailure(failure);
+            }
+        }
+
+        /** Statistics listener, or null. */
+        private final Listener _listener;
+
+        /** Bounds the number of listing requests in flight. */
+        private final Semaphore _permits;
+
+        /** The first listing failure, or null. */
+        private S3Exception _failure;
+    }
+
+    /**
+     * Issues a single listing request while blocked in a fork-join task, allowing the
+     * pool to compensate for the blocked worker.
+     */
+    private class Listing implements ForkJoinPool.ManagedBlocker {
+        public Listing (Walk walk, String prefix, String marker, String delimiter) {
+            _walk = walk;
+            _prefix = prefix;
+            _marker = marker;
+            _delimiter = delimiter;
+        }
+
+        /**
+         * Issue the request, returning the listing.
+         */
+        public S3ObjectListing run ()
+            throws S3Exception
+        {
+            try {
+                ForkJoinPool.managedBlock(this);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new S3ClientException("Interrupted while listing " + _prefix, ie);
+            }
+            if (_error != null) {
+                throw _error;
+            }
+            return _listing;
+        }
+
+        // from interface ForkJoinPool.ManagedBlocker
+        public boolean block ()
+            throws InterruptedException
+        {
+            _walk._permits.acquire();
+            try {
+                _walk.check();
+                _listing = _connection.listObjects(_bucketName, _prefix, _marker,
+                    S3ListingSource.DEFAULT_PAGE_SIZE, _delimiter);
+            } catch (S3Exception e) {
+                _error = e;
+            } finally {
+                _walk._permits.release();
+            }
+            return true;
+        }
+
+        // from interface ForkJoinPool.ManagedBlocker
+        public boolean isReleasable () {
+            return (_listing != null || _error != null);
+        }
+
+        /** The walk. */
+        private final Walk _walk;
+
+        /** Listing prefix, or null. */
+        private final String _prefix;
+
+        /** Listing marker, or null. */
+        private final String _marker;
+
+        /** Listing delimiter, or null. */
+        private final String _delimiter;
+
+        /** The listing, once issued. */
+        private S3ObjectListing _listing;
+
+        /** The listing's failure, once issued. */
+        private S3Exception _error;
+    }
+
+    /**
+     * Walks a single prefix.
+     */
+    private class PrefixTask extends RecursiveTask<S3PrefixStatistics> {
+        public PrefixTask (String prefix, int level, Walk walk) {
+            _prefix = prefix;
+            _level = level;
+            _walk = walk;
+        }
+
+        @Override
+        protected S3PrefixStatistics compute () {
+            S3PrefixStatistics stats;
+
+            try {
+                if (_level < _depth + _extraSplitDepth) {
+                    stats = walk(_delimiter);
+                } else {
+                    stats = walk(null);
+                }
+            } catch (S3Exception e) {
+                _walk.fail(e);
+                throw new TaskFailure(e);
+            }
+
+            Listener listener = _walk._listener;
+            if (_level == _depth && listener != null) {
+                synchronized (listener) {
+                    listener.prefixCompleted(stats);
+                }
+            }
+            return stats;
+        }
+
+        /**
+         * List the prefix, walking each common prefix as a subtask. Without a delimiter,
+         * the prefix is walked with a single flat listing.
+         */
+        private S3PrefixStatistics walk (String delimiter)
+            throws S3Exception
+        {
+            S3PrefixStatistics stats = new S3PrefixStatistics(_prefix);
+            List<PrefixTask> children = new ArrayList<PrefixTask>();
+            S3ObjectListing listing;
+            String marker = null;
+            boolean success = false;
+
+            try {
+                do {
+                    listing = new Listing(_walk, _prefix, marker, delimiter).run();
+
+                    for (S3ObjectEntry entry : listing.getEntries()) {
+                        stats.add(entry);
+                    }
+
+                    /* Start walking the sub-prefixes while we fetch the next page. */
+                    for (String commonPrefix : listing.getCommonPrefixes()) {
+                        PrefixTask child = new PrefixTask(commonPrefix, _level + 1, _walk);
+                        child.fork();
+                        children.add(child);
+                    }
+
+                    marker = listing.getNextMarker();
+                } while (listing.truncated() && marker != null);
+
+                for (PrefixTask child : children) {
+                    stats.merge(child.join());
+                }
+                success = true;
+            } finally {
+                if (!success) {
+                    // Abandon the remaining sub-prefixes
+                    for (PrefixTask child : children) {
+                        child.cancel(true);
+                    }
+                }
+            }
+            return stats;
+        }
+
+        /** Prefix to walk. */
+        private final String _prefix;
+
+        /** Delimited level beneath the root prefix. */
+        private final int _level;
+
+        /** The walk. */
+        private final Walk _walk;
+    }
+
+    /**
+     * Carries an S3Exception out of a fork-join task.
+     */
+    private static class TaskFailure extends RuntimeException {
+        public TaskFailure (S3Exception cause) {
+            super(cause);
+        }
+
+        @Override
+        public S3Exception getCause () {
+            return (S3Exception)super.getCause();
+        }
+    }
+
+    /** S3 connection. */
+    private final S3Connection _connection;
+
+    /** Bucket to walk. */
+    private final String _bucketName;
+
+    /** Maximum number of concurrent tasks. */
+    private final int _parallelism;
+
+    /** Key delimiter. */
+    private String _delimiter = DEFAULT_DELIMITER;
+
+    /** Reporting depth. */
+    private int _depth = 1;
+
+    /** Additional levels to split beneath the reporting depth. */
+    private int _extraSplitDepth = 1;
+}
@@ -0,0 +1,403 @@
+/*
+ * S3BulkCopy vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import com.threerings.s3.client.acl.AccessControlList;
+
+import java.util.Map;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Copies many objects, server-side, with bounded concurrency. Source keys are read from an
+ * {@link S3EntrySource} (typically a prefix listing), mapped to destination keys by a
+ * {@link KeyMapper}, and copied with {@link S3Connection#copyObject}. As server-side copies
+ * move no data through the client, throughput is limited only by request parallelism.
+ * Objects larger than the multipart threshold are copied in parallel parts with an
+ * {@link S3MultipartCopy}.
+ *
+ * Failed copies are retried; copies that still fail are reported to the {@link Listener}
+ * and do not stop the remaining copies.
+ *
+ * Instances may be re-used, but are not thread-safe.
+ */
+public class S3BulkCopy {
+
+    /**
+     * Maps source keys to destination keys.
+     */
+    public interface KeyMapper {
+        /**
+         * Return the destination key for the given source key, or null to skip the key.
+         */
+        public String map (String sourceKey);
+    }
+
+    /**
+     * Receives per-key progress. Calls are made from worker threads, and implementations
+     * must be thread-safe.
+     */
+    public interface Listener {
+        /** The source object was copied. */
+        public void copied (S3ObjectEntry source, String destKey);
+
+        /** The destination already held identical content, and the copy was skipped. */
+        public void skipped (S3ObjectEntry source, String destKey);
+
+        /** The copy failed, and will not be retried. */
+        public void failed (S3ObjectEntry source, String destKey, S3Exception cause);
+    }
+
+    /** Maps each key to itself. */
+    public static final KeyMapper IDENTITY = new KeyMapper() {
+        public String map (String sourceKey) {
+            return sourceKey;
+        }
+    };
+
+    /**
+     * Return a mapper that replaces the given source key prefix with a new prefix. Keys not
+     * beginning with the source prefix are skipped.
+     */
+    public static KeyMapper prefixMapper (final String sourcePrefix, final String destPrefix)
+    {
+        return new KeyMapper() {
+            public String map (String sourceKey) {
+                if (!sourceKey.startsWith(sourcePrefix)) {
+                    return null;
+                }
+                return destPrefix + sourceKey.substring(sourcePrefix.length());
+            }
+        };
+    }
+
+    /**
+     * Create a new bulk copier.
+     *
+     * @param connection S3 connection.
+     * @param srcBucket Source bucket.
+     * @param destBucket Destination bucket. May be the same as the source bucket.
+     * @param mapper Source to destination key mapper.
+     * @param concurrency Maximum number of concurrent copy requests.
+     */
+    public S3BulkCopy (S3Connection connection, String srcBucket, String destBucket,
+        KeyMapper mapper, int concurrency)
+    {
+        _connection = connection;
+        _srcBucket = srcBucket;
+        _destBucket = destBucket;
+        _mapper = mapper;
+        _concurrency = concurrency;
+    }
+
+    /**
+     * Set the destination objects' access policy. Defaults to PRIVATE.
+     */
+    public void setAccessPolicy (AccessControlList.StandardPolicy accessPolicy) {
+        _accessPolicy = accessPolicy;
+    }
+
+    /**
+     * Replace the destination objects' metadata with the given map. If null (the default),
+     * the source objects' metadata is preserved.
+     */
+    public void setMetadata (Map<String,String> metadata) {
+        _metadata = metadata;
+    }
+
+    /**
+     * Set the maximum number of times a failed copy is retried. Defaults to 5. If the
+     * connection has a retry policy, copies are retried only as it allows.
+     */
+    public void setMaxRetry (int maxRetry) {
+        _maxRetry = maxRetry;
+    }
+
+    /**
+     * If true (the default), the destination object is fetched with a HEAD request before
+     * copying, and the copy is skipped if the destination already has the same size and
+     * MD5 as the source. Sources created by a multipart upload are compared by ETag, and
+     * match only destinations uploaded with the same part sizes. Only the object data is
+     * compared, not its metadata.
+     */
+    public void setSkipIdentical (boolean skipIdentical) {
+        _skipIdentical = skipIdentical;
+    }
+
+    /**
+     * Set the size above which objects are copied as multipart uploads. Defaults to
+     * {@link S3MultipartCopy#MAX_PART_SIZE}, the largest object that may be copied with a
+     * single request. Lower thresholds improve the copy time of large objects, at the cost of
+     * additional requests.
+     */
+    public void setMultipartThreshold (long threshold) {
+        _multipartThreshold = threshold;
+    }
+
+    /**
+     * Set the preferred part size of multipart copies. Defaults to
+     * {@link S3MultipartCopy#DEFAULT_PART_SIZE}.
+     *
+     * @see S3MultipartCopy#setPartSize
+     */
+    public void setPartSize (long partSize) {
+        if (partSize < S3MultipartCopy.MIN_PART_SIZE ||
+            partSize > S3MultipartCopy.MAX_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be between " +
+                S3MultipartCopy.MIN_PART_SIZE + " and " + S3MultipartCopy.MAX_PART_SIZE +
+                " bytes: " + partSize);
+        }
+        _partSize = partSize;
+    }
+
+    /**
+     * Set the progress listener.
+     */
+    public void setListener (Listener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * Copy all objects beginning with the given source prefix.
+     *
+     * @param prefix Source key prefix, or null to copy the entire source bucket.
+     * @throws S3ClientException If any copies failed.
+     */
+    public void copy (String prefix)
+        throws S3Exception
+    {
+        copy(new S3ListingSource(_connection, _srcBucket, prefix));
+    }
+
+    /**
+     * Copy all objects returned by the given source, blocking until all copies have
+     * completed.
+     *
+     * @throws S3ClientException If any copies failed.
+     */
+    public void copy (S3EntrySource source)
+        throws S3Exception
+    {
+        /* Multipart copies run their part copies alongside the other copies, all sharing a
+         * single bound on concurrent requests. */
+        BoundedExecutor executor = new BoundedExecutor(_concurrency, "S3BulkCopy");
+        _permits = new Semaphore(_concurrency);
+        _multipartCopy = new S3MultipartCopy(_connection, _concurrency);
+        _multipartCopy.setRequestPermits(_permits);
+        _multipartCopy.setPartSize(_partSize);
+        _multipartCopy.setAccessPolicy(_accessPolicy);
+        _multipartCopy.setMetadata(_metadata);
+        _multipartCopy.setMaxRetry(_maxRetry);
+        long failed = _failed.get();
+
+        try {
+            try {
+                S3ObjectEntry entry;
+                while ((entry = source.next()) != null) {
+                    final S3ObjectEntry sourceEntry = entry;
+                    final String destKey = _mapper.map(entry.getKey());
+                    if (destKey == null) {
+                        continue;
+                    }
+
+                    executor.execute(new Runnable() {
+                        public void run () {
+                            copyEntry(sourceEntry, destKey);
+                        }
+                    });
+                }
+            } finally {
+                /* Let any in-progress copies finish, even if the listing failed. */
+                executor.awaitCompletion();
+            }
+        } catch (InterruptedException ie) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new S3ClientException("Interrupted while copying objects", ie);
+        }
+
+        failed = _failed.get() - failed;
+        if (failed > 0) {
+            throw new S3ClientException(failed + " object(s) failed to copy", _lastFailure);
+        }
+    }
+
+    /** Returns the number of objects copied. */
+    public long getCopiedCount () {
+        return _copied.get();
+    }
+
+    /** Returns the number of copies skipped as identical. */
+    public long getSkippedCount () {
+        return _skipped.get();
+    }
+
+    /** Returns the number of failed copies. */
+    public long getFailedCount () {
+        return _failed.get();
+    }
+
+    /**
+     * Copy a single entry, retrying on failure.
+     */
+    private void copyEntry (S3ObjectEntry source, String destKey)
+    {
+        boolean multipart = (source.getSize() > _multipartThreshold);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                S3Utils.acquirePermit(_permits);
+                try {
+                    if (_skipIdentical && isIdentical(source, destKey)) {
+                        _skipped.incrementAndGet();
+                        if (_listener != null) {
+                            _listener.skipped(source, destKey);
+                        }
+                        return;
+                    }
+                    if (!multipart) {
+                        _connection.copyObject(source.getKey(), destKey, _srcBucket,
+                            _destBucket, _accessPolicy, _metadata);
+                    }
+                } finally {
+                    S3Utils.releasePermit(_permits);
+                }
+
+                if (multipart) {
+                    _multipartCopy.copy(_srcBucket, source.getKey(), _destBucket, destKey);
+                }
+
+                _copied.incrementAndGet();
+                if (_listener != null) {
+                    _listener.copied(source, destKey);
+                }
+                return;
+            } catch (S3Exception e) {
+                /* The multipart copier retries individual parts itself. */
+                if (!multipart && S3Utils.retryOperation(_connection.getRetryPolicy(), attempt,
+                    _maxRetry, e)) {
+                    continue;
+                }
+
+                _failed.incrementAndGet();
+                _lastFailure = e;
+                if (_listener != null) {
+                    _listener.failed(source, destKey, e);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Return true if the destination key already holds the source entry's data.
+     */
+    private boolean isIdentical (S3ObjectEntry source, String destKey)
+        throws S3Exception
+    {
+        S3Metadata dest;
+        try {
+            dest = _connection.getObjectMetadata(_destBucket, destKey);
+        } catch (S3ServerException.S3Server404Exception e) {
+            return false;
+        }
+
+        String eTag = source.getETag();
+        if (eTag == null || dest.length() != source.getSize()) {
+            return false;
+        }
+
+        /* Multipart ETags are not MD5 digests, and are only comparable with each other. */
+        if (eTag.indexOf('-') >= 0) {
+            return eTag.equalsIgnoreCase(dest.getETag());
+        }
+        byte[] md5 = dest.getMD5();
+        return (md5 != null) && eTag.equalsIgnoreCase(new String(Hex.encodeHex(md5)));
+    }
+
+    /** S3 connection. */
+    private final S3Connection _connection;
+
+    /** Source bucket. */
+    private final String _srcBucket;
+
+    /** Destination bucket. */
+    private final String _destBucket;
+
+    /** Source to destination key mapper. */
+    private final KeyMapper _mapper;
+
+    /** Maximum concurrent copies. */
+    private final int _concurrency;
+
+    /** Destination access policy. */
+    private AccessControlList.StandardPolicy _accessPolicy =
+        AccessControlList.StandardPolicy.PRIVATE;
+
+    /** Replacement metadata, or null. */
+    private Map<String,String> _metadata;
+
+    /** Maximum retries per key. */
+    private int _maxRetry = 5;
+
+    /** Skip copies to identical destinations. */
+    private boolean _skipIdentical = true;
+
+    /** Size above which objects are copied as multipart uploads. */
+    private long _multipartThreshold = S3MultipartCopy.MAX_PART_SIZE;
+
+    /** Preferred multipart copy part size. */
+    private long _partSize = S3MultipartCopy.DEFAULT_PART_SIZE;
+
+    /** Progress listener, or null. */
+    private Listener _listener;
+
+    /** Bounds the concurrent requests of the current copy. */
+    private Semaphore _permits;
+
+    /** Large object copier, configured for the current copy. */
+    private S3MultipartCopy _multipartCopy;
+
+    /** Number of copied objects. */
+    private final AtomicLong _copied = new AtomicLong();
+
+    /** Number of skipped objects. */
+    private final AtomicLong _skipped = new AtomicLong();
+
+    /** Number of failed objects. */
+    private final AtomicLong _failed = new AtomicLong();
+
+    /** The most recent copy failure. */
+    private volatile S3Exception _lastFailure;
+}
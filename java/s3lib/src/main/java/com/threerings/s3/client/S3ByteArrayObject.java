@@ -32,7 +32,6 @@
 package com.threerings.s3.client;
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
@@ -72,23 +71,9 @@ public class S3ByteArrayObject extends S3Object {
     public S3ByteArrayObject(String key, byte[] data, int offset, int length, MediaType mediaType)
     {
         super(key, mediaType);
-
-        MessageDigest md;
-
         _data = data;
         _offset = offset;
         _length = length;
-
-        // Compute the _md5 digest
-        try {
-            md = MessageDigest.getInstance("md5");
-        } catch (NoSuchAlgorithmException nsa) {
-            // If MD5 isn't available, we're in trouble.
-            throw new RuntimeException(nsa);
-        }
-
-        md.update(_data, _offset, _length);
-        _md5 =  md.digest();
     }
 
     @Override // From S3Object
@@ -97,12 +82,29 @@ public class S3ByteArrayObject extends S3Object {
         return new ByteArrayInputStream(_data, _offset, _length);
     }
 
+    @Override // From S3Object
+    public boolean isRepeatable () {
+        return true;
+    }
+
     @Override // From S3Object
     public byte[] getMD5 ()
     {
+        /* The digest is computed on first use, as it may not be needed at all. */
+        if (_md5 == null) {
+            _md5 = computeChecksum(S3ChecksumAlgorithm.MD5);
+        }
         return _md5;
     }
 
+    @Override // From S3Object
+    protected byte[] computeChecksum (S3ChecksumAlgorithm algorithm)
+    {
+        MessageDigest md = algorithm.createDigest();
+        md.update(_data, _offset, _length);
+        return md.digest();
+    }
+
     @Override // From S3Object
     public long length () {
         return _length;
@@ -117,6 +119,6 @@ public class S3ByteArrayObject extends S3Object {
     /** Data offset. */
     private int _offset;
 
-    /** MD5 Digest. */
+    /** MD5 Digest, or null if not yet computed. */
     private byte[] _md5;
 }
@@ -0,0 +1,121 @@
+/*
+ * S3ByteBufferObject vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.security.MessageDigest;
+
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A representation of a buffer-backed object stored in S3. Both heap and direct buffers are
+ * supported; the data is digested and uploaded directly from the buffer, without being
+ * copied into an intermediate array.
+ */
+public class S3ByteBufferObject extends S3Object {
+
+    /**
+     * Instantiate an S3 buffer object with the given key and data.
+     * The data is not copied, and a reference is retained.
+     *
+     * @param key S3 object key.
+     * @param data Object data: the bytes between the buffer's current position and its limit.
+     *  The buffer's position and limit are not modified.
+     */
+    public S3ByteBufferObject (String key, ByteBuffer data)
+    {
+        this(key, data, S3Object.DEFAULT_MEDIA_TYPE);
+    }
+
+    /**
+     * Instantiate an S3 buffer object.
+     * The data is not copied, and a reference is retained.
+     *
+     * @param key S3 object key.
+     * @param data Object data: the bytes between the buffer's current position and its limit.
+     *  The buffer's position and limit are not modified.
+     * @param mediaType Object's media type.
+     */
+    public S3ByteBufferObject (String key, ByteBuffer data, MediaType mediaType)
+    {
+        super(key, mediaType);
+        _data = data.slice();
+    }
+
+    @Override // From S3Object
+    public InputStream getInputStream ()
+    {
+        return new ByteBufferInputStream(new ByteBuffer[] { _data });
+    }
+
+    @Override // From S3Object
+    public boolean isRepeatable () {
+        return true;
+    }
+
+    @Override // From S3Object
+    DigestingRequestEntity createRequestEntity (boolean digest)
+    {
+        return new ByteBufferRequestEntity(new ByteBuffer[] { _data },
+            getMediaType().getMimeType(), digest);
+    }
+
+    @Override // From S3Object
+    public byte[] getMD5 ()
+    {
+        /* The digest is computed on first use. */
+        if (_md5 == null) {
+            _md5 = computeChecksum(S3ChecksumAlgorithm.MD5);
+        }
+        return _md5;
+    }
+
+    @Override // From S3Object
+    protected byte[] computeChecksum (S3ChecksumAlgorithm algorithm)
+    {
+        MessageDigest md = algorithm.createDigest();
+        md.update(_data.duplicate());
+        return md.digest();
+    }
+
+    @Override // From S3Object
+    public long length () {
+        return _data.remaining();
+    }
+
+    /** Backing buffer. */
+    private final ByteBuffer _data;
+
+    /** MD5 digest, or null if not yet computed. */
+    private byte[] _md5;
+}
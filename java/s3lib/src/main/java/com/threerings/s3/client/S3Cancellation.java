@@ -0,0 +1,257 @@
+/*
+ * S3Cancellation vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cancellation handle, with an optional deadline, for one or more S3 calls. Cancelling the
+ * handle, or reaching its deadline, aborts any HTTP exchange the calls have in flight --
+ * including the reading of an object stream returned by
+ * {@link S3Connection#getObject(String, String, S3RequestOptions)} -- and frees its
+ * connection. Calls then fail with a {@link S3ClientException.CancelledException}, or a
+ * {@link S3ClientException.DeadlineExceededException}, neither of which is retried.
+ *
+ * The deadline covers the whole call, including any retries: a retry that could not
+ * begin before the deadline is not attempted. Handles are supplied through
+ * {@link S3RequestOptions#setCancellation}:
+ *
+ * <pre>
+ * S3Cancellation cancellation = new S3Cancellation(500);
+ * connection.getObject(bucket, key, new S3RequestOptions().setCancellation(cancellation));
+ * </pre>
+ *
+ * Handles are thread-safe; {@link #cancel} may be called from any thread.
+ */
+public class S3Cancellation {
+
+    /**
+     * Create a handle with no deadline, cancelled only by {@link #cancel}.
+     */
+    public S3Cancellation ()
+    {
+        _deadline = 0;
+        _hasDeadline = false;
+    }
+
+    /**
+     * Create a handle whose deadline falls the given number of milliseconds from now.
+     */
+    public S3Cancellation (long timeoutMillis)
+    {
+        _deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0,
+            timeoutMillis));
+        _hasDeadline = true;
+    }
+
+    /**
+     * Cancel the handle, aborting any requests in flight.
+     */
+    public void cancel ()
+    {
+        List<S3TransportRequest> requests;
+        synchronized (this) {
+            if (_cancelled) {
+                return;
+            }
+            _cancelled = true;
+            requests = new ArrayList<S3TransportRequest>(_requests);
+            _requests.clear();
+            notifyAll();
+        }
+
+        for (S3TransportRequest request : requests) {
+            request.abort();
+        }
+    }
+
+    /**
+     * Returns true if the handle has been cancelled, or its deadline has passed.
+     */
+    public synchronized boolean isCancelled () {
+        return _cancelled || getRemaining() <= 0;
+    }
+
+    /**
+     * Returns the milliseconds remaining until the deadline, which is zero or negative once
+     * it has passed, or {@link Long#MAX_VALUE} if the handle has no deadline.
+     */
+    public long getRemaining ()
+    {
+        if (!_hasDeadline) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(_deadline - System.nanoTime());
+    }
+
+    /**
+     * Throw the appropriate exception if the handle has been cancelled, or its deadline has
+     * passed.
+     */
+    void check (Object call)
+        throws S3ClientException.CancelledException
+    {
+        if (isCancelled()) {
+            throw createException(call);
+        }
+    }
+
+    /**
+     * Create the exception with which a cancelled call fails.
+     */
+    S3ClientException.CancelledException createException (Object call)
+    {
+        if (getRemaining() <= 0) {
+            return new S3ClientException.DeadlineExceededException("Deadline exceeded for " +
+                call);
+        }
+        return new S3ClientException.CancelledException("Cancelled " + call);
+    }
+
+    /**
+     * Sleep for the given number of nanoseconds, waking early if the handle is cancelled or
+     * its deadline passes. Returns true if the full time elapsed, or false if the handle was
+     * cancelled first.
+     */
+    synchronized boolean sleep (long nanos)
+        throws InterruptedException
+    {
+        long end = System.nanoTime() + nanos;
+        while (!isCancelled()) {
+            long now = System.nanoTime();
+            long wait = end - now;
+            if (wait <= 0) {
+                return true;
+            }
+            if (_hasDeadline) {
+                wait = Math.min(wait, _deadline - now);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, wait);
+        }
+        return false;
+    }
+
+    /**
+     * Register a request about to be sent, so that it is aborted if the handle is
+     * cancelled. If it already has been, the request is aborted immediately.
+     */
+    void register (S3TransportRequest request)
+    {
+        synchronized (this) {
+            if (!_cancelled) {
+                _requests.add(request);
+                if (_hasDeadline && _expiry == null) {
+                    _expiry = scheduleExpiry();
+                }
+                return;
+            }
+        }
+        request.abort();
+    }
+
+    /**
+     * Unregister a completed request. Once no requests remain, the deadline need not abort
+     * anything, and its expiry is cancelled until another request is registered.
+     */
+    synchronized void unregister (S3TransportRequest request)
+    {
+        _requests.remove(request);
+        if (_requests.isEmpty() && _expiry != null) {
+            _expiry.cancel(false);
+            _expiry = null;
+        }
+    }
+
+    /**
+     * Returns the number of handles whose expiry is scheduled.
+     */
+    static int getScheduledCount () {
+        return getTimer().getQueue().size();
+    }
+
+    /**
+     * Arrange for the handle to be cancelled at its deadline.
+     */
+    private ScheduledFuture<?> scheduleExpiry ()
+    {
+        long delay = Math.max(0, _deadline - System.nanoTime());
+        return getTimer().schedule(new Runnable() {
+            public void run () {
+                cancel();
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the shared deadline timer, creating it if necessary.
+     */
+    private static synchronized ScheduledThreadPoolExecutor getTimer ()
+    {
+        if (_timer == null) {
+            _timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "S3Cancellation Timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // Most calls complete long before their deadline, so don't retain their expiry
+            _timer.setRemoveOnCancelPolicy(true);
+        }
+        return _timer;
+    }
+
+    /** Deadline, in nanoseconds. */
+    private final long _deadline;
+
+    /** Set if the handle has a deadline. */
+    private final boolean _hasDeadline;
+
+    /** Set once the handle is cancelled. */
+    private boolean _cancelled;
+
+    /** The scheduled expiry, while requests are registered, or null. */
+    private ScheduledFuture<?> _expiry;
+
+    /** Registered requests. */
+    private final Set<S3TransportRequest> _requests = new LinkedHashSet<S3TransportRequest>();
+
+    /** Shared deadline timer, or null. */
+    private static ScheduledThreadPoolExecutor _timer;
+}
@@ -0,0 +1,138 @@
+/*
+ * S3ChannelSocketFactory vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import java.nio.channels.SocketChannel;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+
+/**
+ * A socket factory for plain (unencrypted) HTTP connections that creates
+ * {@link SocketChannel}-backed sockets. File-backed objects uploaded over such connections
+ * are sent with {@link java.nio.channels.FileChannel#transferTo}, allowing the operating
+ * system to send file data directly from the page cache (eg, via sendfile(2)) without
+ * copying it through the Java heap.
+ *
+ * To use the factory, connect with a host configuration using the {@link #HTTP} protocol:
+ *
+ * <pre>
+ * HostConfiguration hostConfig = new HostConfiguration();
+ * hostConfig.setHost(host, 80, S3ChannelSocketFactory.HTTP);
+ * </pre>
+ *
+ * TLS connections can not be written to directly; over TLS, file data is instead written
+ * in large blocks that bypass httpclient's internal buffering.
+ */
+public class S3ChannelSocketFactory implements ProtocolSocketFactory {
+
+    /** Plain HTTP, using channel-backed sockets. */
+    public static final Protocol HTTP = new Protocol("http",
+        (ProtocolSocketFactory)new S3ChannelSocketFactory(), 80);
+
+    // from interface ProtocolSocketFactory
+    public Socket createSocket (String host, int port)
+        throws IOException, UnknownHostException
+    {
+        return open(host, port, null, 0, 0);
+    }
+
+    // from interface ProtocolSocketFactory
+    public Socket createSocket (String host, int port, InetAddress localAddress, int localPort)
+        throws IOException, UnknownHostException
+    {
+        return open(host, port, localAddress, localPort, 0);
+    }
+
+    // from interface ProtocolSocketFactory
+    public Socket createSocket (String host, int port, InetAddress localAddress, int localPort,
+        HttpConnectionParams params)
+        throws IOException, UnknownHostException, ConnectTimeoutException
+    {
+        return open(host, port, localAddress, localPort,
+            params != null ? params.getConnectionTimeout() : 0);
+    }
+
+    @Override
+    public boolean equals (Object other) {
+        return other != null && other.getClass() == getClass();
+    }
+
+    @Override
+    public int hashCode () {
+        return getClass().hashCode();
+    }
+
+    /**
+     * Open a blocking, channel-backed socket.
+     *
+     * @param timeout Connection timeout in milliseconds, or 0 for no timeout.
+     */
+    protected Socket open (String host, int port, InetAddress localAddress, int localPort,
+        int timeout)
+        throws IOException
+    {
+        InetSocketAddress remote = new InetSocketAddress(host, port);
+        if (remote.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+
+        SocketChannel channel = SocketChannel.open();
+        boolean success = false;
+        try {
+            if (localAddress != null) {
+                channel.socket().bind(new InetSocketAddress(localAddress, localPort));
+            }
+            try {
+                channel.socket().connect(remote, timeout);
+            } catch (SocketTimeoutException ste) {
+                throw new ConnectTimeoutException("Connect to " + remote + " timed out", ste);
+            }
+            success = true;
+            return new ChannelSocket(channel);
+        } finally {
+            if (!success) {
+                channel.close();
+            }
+        }
+    }
+}
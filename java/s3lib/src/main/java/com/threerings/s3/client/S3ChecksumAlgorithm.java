@@ -0,0 +1,77 @@
+/*
+ * S3ChecksumAlgorithm vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Integrity checksum algorithms used to protect object data in transit.
+ */
+public enum S3ChecksumAlgorithm {
+    /**
+     * MD5 digest, sent as the Content-MD5 header and compared against the ETag S3 returns.
+     * This is the default, and is supported by all S3 implementations.
+     */
+    MD5,
+
+    /**
+     * CRC32C checksum, sent as the x-amz-checksum-crc32c header. CRC32C is computed in
+     * hardware on modern processors, and is far cheaper than MD5.
+     */
+    CRC32C,
+
+    /**
+     * No checksum. Data integrity rests solely on the transport (such as TLS).
+     */
+    NONE;
+
+    /**
+     * Create a digest computing this checksum, or return null for {@link #NONE}.
+     */
+    public MessageDigest createDigest ()
+    {
+        switch (this) {
+        case MD5:
+            try {
+                return MessageDigest.getInstance("md5");
+            } catch (NoSuchAlgorithmException nsa) {
+                // If MD5 isn't available, we're in trouble.
+                throw new RuntimeException(nsa);
+            }
+        case CRC32C:
+            return new CRC32CDigest();
+        default:
+            return null;
+        }
+    }
+}
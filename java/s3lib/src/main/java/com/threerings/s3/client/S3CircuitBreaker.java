@@ -0,0 +1,252 @@
+/*
+ * S3CircuitBreaker vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+/**
+ * Fails requests fast while their endpoint is failing. A closed breaker passes all
+ * requests; once a number of consecutive requests fail with transient errors -- network
+ * failures and timeouts, or S3 5xx responses -- the breaker opens, and requests are refused
+ * with a {@link S3ClientException.CircuitOpenException} without being sent. After the open
+ * time has passed, the breaker becomes half-open, and admits a single trial request: if
+ * the trial succeeds, the breaker closes, and if it fails, the breaker opens again. Only
+ * the outcomes of requests admitted since the breaker last changed state are counted: a
+ * request admitted before the breaker opened can neither close it nor count towards
+ * opening it again.
+ *
+ * A breaker guards a single endpoint, and may be shared by all connections to that
+ * endpoint. Breakers are thread-safe. Setters return the breaker instance, allowing them
+ * to be chained:
+ *
+ * <pre>
+ * connection.setCircuitBreaker(new S3CircuitBreaker().setFailureThreshold(10));
+ * </pre>
+ */
+public class S3CircuitBreaker {
+
+    /** Breaker states. */
+    public enum State {
+        /** Requests are passed. */
+        CLOSED,
+
+        /** Requests are refused. */
+        OPEN,
+
+        /** A single trial request is passed. */
+        HALF_OPEN
+    }
+
+    /**
+     * Admission to send a single request. The request's outcome must be recorded with
+     * {@link #record} once it is known.
+     */
+    public static class Permit {
+        /**
+         * Record the outcome of the request. Outcomes after the first are ignored.
+         *
+         * @param failed True if the request failed with a transient error.
+         */
+        public void record (boolean failed)
+        {
+            if (!_recorded) {
+                _recorded = true;
+                _breaker.record(this, failed);
+            }
+        }
+
+        private Permit (S3CircuitBreaker breaker, long generation, boolean trial)
+        {
+            _breaker = breaker;
+            _generation = generation;
+            _trial = trial;
+        }
+
+        /** The breaker that issued the permit. */
+        private final S3CircuitBreaker _breaker;
+
+        /** The breaker's generation when the permit was issued. */
+        private final long _generation;
+
+        /** True if the permit admits a half-open trial request. */
+        private final boolean _trial;
+
+        /** Set once the outcome has been recorded. */
+        private boolean _recorded;
+    }
+
+    /** Default number of consecutive failures that opens the breaker. */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /** Default time for which the breaker remains open, in milliseconds. */
+    public static final long DEFAULT_OPEN_TIME = 30 * 1000;
+
+    /**
+     * Set the number of consecutive transient failures that opens the breaker. Defaults to
+     * {@link #DEFAULT_FAILURE_THRESHOLD}.
+     */
+    public synchronized S3CircuitBreaker setFailureThreshold (int failureThreshold) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be positive: " +
+                failureThreshold);
+        }
+        _failureThreshold = failureThreshold;
+        return this;
+    }
+
+    /** Returns the number of consecutive failures that opens the breaker. */
+    public synchronized int getFailureThreshold () {
+        return _failureThreshold;
+    }
+
+    /**
+     * Set the time, in milliseconds, for which the breaker remains open before admitting a
+     * trial request. A trial request that has not completed within this time is presumed
+     * lost, and another is admitted. Defaults to {@link #DEFAULT_OPEN_TIME}.
+     */
+    public synchronized S3CircuitBreaker setOpenTime (long openTime) {
+        _openTime = openTime;
+        return this;
+    }
+
+    /** Returns the open time, in milliseconds. */
+    public synchronized long getOpenTime () {
+        return _openTime;
+    }
+
+    /**
+     * Returns the breaker's current state.
+     */
+    public synchronized State getState ()
+    {
+        if (_state == State.OPEN && elapsed() >= _openTime) {
+            return State.HALF_OPEN;
+        }
+        return _state;
+    }
+
+    /**
+     * Return a permit to send a request, or null if the request is refused. The outcome of
+     * each admitted request should be recorded with {@link Permit#record}; a trial request
+     * whose outcome is never recorded is presumed lost after the open time.
+     */
+    public synchronized Permit allowRequest ()
+    {
+        switch (_state) {
+        case CLOSED:
+            return new Permit(this, _generation, false);
+
+        case OPEN:
+        case HALF_OPEN:
+            /* Admit a single trial once the open time (or a previous trial) has expired. */
+            if (elapsed() < _openTime) {
+                return null;
+            }
+            setState(State.HALF_OPEN);
+            return new Permit(this, _generation, true);
+        }
+        return null;
+    }
+
+    /**
+     * Return true if the outcome of a request failing with the given exception counts
+     * towards the breaker: only S3 responses and network failures say anything of the
+     * endpoint's health.
+     */
+    public static boolean isOutcome (S3Exception e) {
+        return (e instanceof S3ServerException) ||
+            (e instanceof S3ClientException.NetworkException);
+    }
+
+    /**
+     * Return true if the given failure counts against the breaker.
+     */
+    public static boolean isFailure (S3Exception e) {
+        return S3Utils.isRetryable(e);
+    }
+
+    /**
+     * Record the outcome of a request admitted with the given permit.
+     */
+    protected synchronized void record (Permit permit, boolean failed)
+    {
+        /* Ignore requests admitted before the breaker last changed state. */
+        if (permit._generation != _generation) {
+            return;
+        }
+
+        if (_state == State.HALF_OPEN) {
+            if (permit._trial) {
+                setState(failed ? State.OPEN : State.CLOSED);
+            }
+        } else if (!failed) {
+            _failures = 0;
+        } else if (++_failures >= _failureThreshold) {
+            setState(State.OPEN);
+        }
+    }
+
+    /**
+     * Change the breaker's state, starting a new generation of requests.
+     */
+    private void setState (State state)
+    {
+        _state = state;
+        _since = System.nanoTime();
+        _failures = 0;
+        _generation++;
+    }
+
+    /**
+     * Returns the milliseconds elapsed since the breaker last changed state.
+     */
+    private long elapsed ()
+    {
+        return (System.nanoTime() - _since) / (1000 * 1000);
+    }
+
+    /** Current state. */
+    private State _state = State.CLOSED;
+
+    /** Time at which the breaker opened, or admitted its last trial, in nanoseconds. */
+    private long _since;
+
+    /** Incremented with each change of state. */
+    private long _generation;
+
+    /** Consecutive failures. */
+    private int _failures;
+
+    /** Consecutive failures that open the breaker. */
+    private int _failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+    /** Open time, in milliseconds. */
+    private long _openTime = DEFAULT_OPEN_TIME;
+}
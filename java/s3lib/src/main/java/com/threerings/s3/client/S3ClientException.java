@@ -66,4 +66,35 @@ public class S3ClientException extends S3Exception
             super(message, cause, true);
         }
     }
+
+    /** The data stored or received did not match its expected digest or size. As the
+      * corruption most likely occurred in transit, the request may succeed on retry. */
+    public static class DigestMismatchException extends S3ClientException {
+        public DigestMismatchException (String message) {
+            super(message, null, true);
+        }
+    }
+
+    /** The request was refused without being sent, as the circuit breaker guarding its
+      * endpoint is open. The request is not retried, allowing callers to shed load while
+      * the endpoint recovers. */
+    public static class CircuitOpenException extends S3ClientException {
+        public CircuitOpenException (String message) {
+            super(message);
+        }
+    }
+
+    /** The request was cancelled through its {@link S3Cancellation}. */
+    public static class CancelledException extends S3ClientException {
+        public CancelledException (String message) {
+            super(message);
+        }
+    }
+
+    /** The request's {@link S3Cancellation} deadline passed before it completed. */
+    public static class DeadlineExceededException extends CancelledException {
+        public DeadlineExceededException (String message) {
+            super(message);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,283 @@
+/*
+ * S3CommonsTransport vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpMethodRetryHandler;
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.params.HttpClientParams;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+/**
+ * An {@link S3Transport} built on commons-httpclient, with a bounded connection pool. This
+ * is the default transport.
+ */
+public class S3CommonsTransport implements S3Transport {
+
+    /**
+     * Create a new transport for the given S3 endpoint.
+     *
+     * @param hostConfig HttpClient HostConfig.
+     * @param config Connection pool and socket configuration.
+     */
+    public S3CommonsTransport (HostConfiguration hostConfig, S3ConnectionConfig config)
+    {
+        _httpClient = new HttpClient();
+        _httpClient.setHostConfiguration(hostConfig);
+
+        /* httpclient defaults to no timeout, which is troublesome if we ever drop our network
+         * connection.  Give it a generous timeout to keep things moving. */
+        HttpClientParams clientParams = new HttpClientParams();
+        clientParams.setSoTimeout(config.getSocketTimeout());
+        clientParams.setConnectionManagerTimeout(config.getLeaseTimeout());
+        _httpClient.setParams(clientParams);
+
+        /* Configure the multi-threaded connection manager. By default, connections are
+         * unlimited, as S3 is intended to support such use */
+        HttpConnectionManagerParams managerParam = new HttpConnectionManagerParams();
+        _connectionManager = new PooledConnectionManager(config.getConnectionTTL());
+        managerParam.setDefaultMaxConnectionsPerHost(config.getMaxConnectionsPerHost());
+        managerParam.setMaxTotalConnections(config.getMaxTotalConnections());
+        managerParam.setStaleCheckingEnabled(config.getStaleChecking());
+        managerParam.setConnectionTimeout(config.getConnectTimeout());
+        managerParam.setSoTimeout(config.getSocketTimeout());
+        managerParam.setTcpNoDelay(config.getTcpNoDelay());
+        if (config.getSendBufferSize() > 0) {
+            managerParam.setSendBufferSize(config.getSendBufferSize());
+        }
+        if (config.getReceiveBufferSize() > 0) {
+            managerParam.setReceiveBufferSize(config.getReceiveBufferSize());
+        }
+        _connectionManager.setParams(managerParam);
+        _httpClient.setHttpConnectionManager(_connectionManager);
+
+        /* Close idle connections from a reaper thread. */
+        if (config.getIdleTimeout() > 0) {
+            _idleReaper = new IdleConnectionTimeoutThread();
+            _idleReaper.setName("S3Connection idle reaper");
+            _idleReaper.setDaemon(true);
+            _idleReaper.setConnectionTimeout(config.getIdleTimeout());
+            _idleReaper.setTimeoutInterval(Math.max(MIN_REAPER_INTERVAL,
+                config.getIdleTimeout() / 2));
+            _idleReaper.addConnectionManager(_connectionManager);
+            _idleReaper.start();
+        } else {
+            _idleReaper = null;
+        }
+    }
+
+    // from interface S3Transport
+    public S3TransportResponse execute (S3TransportRequest request)
+        throws IOException
+    {
+        HttpMethodBase method = createMethod(request);
+        if (request.getQueryString() != null) {
+            method.setQueryString(request.getQueryString());
+        }
+        for (Map.Entry<String,String> header : request.getHeaders().entrySet()) {
+            method.setRequestHeader(header.getKey(), header.getValue());
+        }
+        if (request.getEntity() != null) {
+            ((EntityEnclosingMethod)method).setRequestEntity(request.getEntity());
+        }
+
+        // httpclient can't retry anything without buffered input, and when it tries, it spits an
+        // internal method instead of telling us what happened. Just tell it not to retry.
+        if (!request.isRetryable()) {
+            method.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, NO_RETRY);
+        }
+
+        final HttpMethodBase abortable = method;
+        request.setAbortHandler(new Runnable() {
+            public void run () {
+                abortable.abort();
+            }
+        });
+
+        boolean success = false;
+        try {
+            _httpClient.executeMethod(method);
+            success = true;
+            return new Response(method);
+        } catch (IllegalStateException ise) {
+            // httpclient refuses to execute a method aborted before it was sent
+            if (request.isAborted()) {
+                throw new IOException("Aborted " + request);
+            }
+            throw ise;
+        } finally {
+            if (!success) {
+                method.releaseConnection();
+            }
+        }
+    }
+
+    // from interface S3Transport
+    public S3ConnectionPoolStats getPoolStats ()
+    {
+        return _connectionManager.getStats();
+    }
+
+    // from interface S3Transport
+    public void shutdown ()
+    {
+        if (_idleReaper != null) {
+            _idleReaper.shutdown();
+        }
+        _connectionManager.shutdown();
+    }
+
+    @Override
+    public String toString ()
+    {
+        return _httpClient.getHostConfiguration().getHostURL();
+    }
+
+    /**
+     * Create the httpclient method for the given request.
+     */
+    private static HttpMethodBase createMethod (S3TransportRequest request)
+        throws IOException
+    {
+        String method = request.getMethod();
+        String path = request.getPath();
+        boolean hasEntity = request.getEntity() != null;
+
+        if (method.equals(S3TransportRequest.PUT)) {
+            return new PutMethod(path);
+        } else if (method.equals(S3TransportRequest.POST)) {
+            return new PostMethod(path);
+        } else if (hasEntity) {
+            throw new IOException("Request entities are not supported for " + method);
+        } else if (method.equals(S3TransportRequest.GET)) {
+            return new GetMethod(path);
+        } else if (method.equals(S3TransportRequest.HEAD)) {
+            return new HeadMethod(path);
+        } else if (method.equals(S3TransportRequest.DELETE)) {
+            return new DeleteMethod(path);
+        }
+        throw new IOException("Unsupported HTTP method: " + method);
+    }
+
+    /**
+     * A response backed by an executed httpclient method.
+     */
+    private static class Response implements S3TransportResponse {
+        public Response (HttpMethodBase method) {
+            _method = method;
+        }
+
+        // from interface S3TransportResponse
+        public int getStatusCode () {
+            return _method.getStatusCode();
+        }
+
+        // from interface S3TransportResponse
+        public String getHeader (String name) {
+            Header header = _method.getResponseHeader(name);
+            return (header != null) ? header.getValue() : null;
+        }
+
+        // from interface S3TransportResponse
+        public Map<String,String> getHeaders () {
+            Map<String,String> headers = new LinkedHashMap<String,String>();
+            for (Header header : _method.getResponseHeaders()) {
+                if (!headers.containsKey(header.getName())) {
+                    headers.put(header.getName(), header.getValue());
+                }
+            }
+            return headers;
+        }
+
+        // from interface S3TransportResponse
+        public long getContentLength () {
+            return _method.getResponseContentLength();
+        }
+
+        // from interface S3TransportResponse
+        public InputStream getBody ()
+            throws IOException
+        {
+            return _method.getResponseBodyAsStream();
+        }
+
+        // from interface S3TransportResponse
+        public void release () {
+            _method.releaseConnection();
+        }
+
+        // from interface S3TransportResponse
+        public void abort () {
+            _method.abort();
+            _method.releaseConnection();
+        }
+
+        /** The executed method. */
+        private final HttpMethodBase _method;
+    }
+
+    /** HTTP client. */
+    private final HttpClient _httpClient;
+
+    /** Pooled connection manager. */
+    private final PooledConnectionManager _connectionManager;
+
+    /** Idle connection reaper, or null. */
+    private final IdleConnectionTimeoutThread _idleReaper;
+
+    /** Minimum interval between idle connection reaper runs, in milliseconds. */
+    private static final long MIN_REAPER_INTERVAL = 1000;
+
+    /** A retry handler that never retries. */
+    private static final HttpMethodRetryHandler NO_RETRY = new HttpMethodRetryHandler () {
+        public boolean retryMethod (HttpMethod method, IOException exception, int exceptionCount) {
+            return false;
+        }
+    };
+}
@@ -0,0 +1,520 @@
+/*
+ * S3ConcurrencyLimiter vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adapts the number of concurrent requests issued to S3 to the rate S3 will actually
+ * sustain, using additive-increase/multiplicative-decrease (AIMD).
+ *
+ * Each bucket (or, optionally, each key prefix within a bucket) is tracked as a separate
+ * partition with its own concurrency limit. Requests must acquire a permit from their
+ * partition before they are handed to the transport, and wait while the partition's limit
+ * is reached. Every response that completes normally raises the limit by 1/limit -- about
+ * one request per round of requests -- while a SlowDown, 5xx or network failure, or a
+ * response slower than the configured latency threshold, cuts it by the backoff ratio.
+ * Only one cut is made for any group of requests that were in flight together, so a burst
+ * of throttled responses does not collapse the limit.
+ *
+ * Idle partitions are discarded, so that walking many prefixes does not grow the limiter
+ * without bound: a partition with no requests in flight is discarded once its limit is
+ * back at the initial limit, or once it has been idle for {@link #IDLE_EXPIRY}
+ * milliseconds, in which case its limit is forgotten.
+ *
+ * Limiters are thread-safe, and may be shared between connections. Setters return the
+ * limiter instance, allowing them to be chained:
+ *
+ * <pre>
+ * connection.setConcurrencyLimiter(new S3ConcurrencyLimiter().setMaxLimit(64));
+ * </pre>
+ *
+ * A limiter must not be reconfigured once it is in use.
+ */
+public class S3ConcurrencyLimiter {
+
+    /** Default initial per-partition concurrency limit. */
+    public static final int DEFAULT_INITIAL_LIMIT = 16;
+
+    /** Default minimum per-partition concurrency limit. */
+    public static final int DEFAULT_MIN_LIMIT = 1;
+
+    /** Default maximum per-partition concurrency limit. */
+    public static final int DEFAULT_MAX_LIMIT = 256;
+
+    /** Default multiplicative decrease applied when S3 is overloaded. */
+    public static final double DEFAULT_BACKOFF_RATIO = 0.5;
+
+    /** Time after which an idle partition is discarded, in milliseconds. */
+    public static final long IDLE_EXPIRY = 60 * 1000;
+
+    /**
+     * A permit to issue a single request. Permits must be released exactly once.
+     */
+    public static class Permit {
+        /**
+         * Record the outcome of the request. Call once the response status is known, or
+         * the request has failed; this may be called before the response body has been
+         * read.
+         *
+         * @param overloaded True if the request failed in a way that indicates S3, or the
+         *  path to it, is overloaded.
+         */
+        public void record (boolean overloaded)
+        {
+            if (!_recorded) {
+                _recorded = true;
+                _partition.record(_start, System.nanoTime(), overloaded);
+            }
+        }
+
+        /**
+         * Release the permit, allowing another request to proceed.
+         */
+        public void release ()
+        {
+            if (!_released) {
+                _released = true;
+                _partition.release();
+            }
+        }
+
+        private Permit (Partition partition)
+        {
+            _partition = partition;
+            _start = System.nanoTime();
+        }
+
+        /** The partition from which the permit was acquired. */
+        private final Partition _partition;
+
+        /** Time at which the permit was acquired, in nanoseconds. */
+        private final long _start;
+
+        /** Set once the outcome has been recorded. */
+        private boolean _recorded;
+
+        /** Set once the permit has been released. */
+        private boolean _released;
+    }
+
+    /**
+     * Set the concurrency limit with which each partition starts. Defaults to
+     * {@link #DEFAULT_INITIAL_LIMIT}.
+     */
+    public S3ConcurrencyLimiter setInitialLimit (int initialLimit) {
+        _initialLimit = initialLimit;
+        return this;
+    }
+
+    /** Returns the initial per-partition concurrency limit. */
+    public int getInitialLimit () {
+        return _initialLimit;
+    }
+
+    /**
+     * Set the minimum per-partition concurrency limit. Defaults to
+     * {@link #DEFAULT_MIN_LIMIT}.
+     */
+    public S3ConcurrencyLimiter setMinLimit (int minLimit) {
+        if (minLimit < 1) {
+            throw new IllegalArgumentException("Minimum limit must be positive: " + minLimit);
+        }
+        _minLimit = minLimit;
+        return this;
+    }
+
+    /** Returns the minimum per-partition concurrency limit. */
+    public int getMinLimit () {
+        return _minLimit;
+    }
+
+    /**
+     * Set the maximum per-partition concurrency limit. Defaults to
+     * {@link #DEFAULT_MAX_LIMIT}.
+     */
+    public S3ConcurrencyLimiter setMaxLimit (int maxLimit) {
+        _maxLimit = maxLimit;
+        return this;
+    }
+
+    /** Returns the maximum per-partition concurrency limit. */
+    public int getMaxLimit () {
+        return _maxLimit;
+    }
+
+    /**
+     * Set the ratio by which a partition's limit is multiplied when S3 is overloaded.
+     * Defaults to {@link #DEFAULT_BACKOFF_RATIO}.
+     */
+    public S3ConcurrencyLimiter setBackoffRatio (double backoffRatio) {
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("Backoff ratio must be between 0 and 1: " +
+                backoffRatio);
+        }
+        _backoffRatio = backoffRatio;
+        return this;
+    }
+
+    /** Returns the backoff ratio. */
+    public double getBackoffRatio () {
+        return _backoffRatio;
+    }
+
+    /**
+     * Set the response latency, in milliseconds, above which a request is treated as a
+     * sign of overload. Latency is measured to the arrival of the response status, and so
+     * excludes the time spent reading the response body, but includes the time spent
+     * sending any request body. Specify 0 to ignore latency. Defaults to 0.
+     */
+    public S3ConcurrencyLimiter setLatencyThreshold (long latencyThreshold) {
+        _latencyThreshold = latencyThreshold;
+        return this;
+    }
+
+    /** Returns the latency threshold, in milliseconds, or 0. */
+    public long getLatencyThreshold () {
+        return _latencyThreshold;
+    }
+
+    /**
+     * Set the number of key prefix components, delimited by '/', that identify a
+     * partition. Specify 0 to track each bucket as a single partition. Defaults to 0.
+     */
+    public S3ConcurrencyLimiter setPrefixDepth (int prefixDepth) {
+        _prefixDepth = prefixDepth;
+        return this;
+    }
+
+    /** Returns the partition prefix depth. */
+    public int getPrefixDepth () {
+        return _prefixDepth;
+    }
+
+    /**
+     * Acquire a permit to issue a request for the given resource path, waiting while the
+     * path's partition is at its concurrency limit.
+     *
+     * @param path The encoded request path, as returned by
+     *  {@link S3TransportRequest#getPath}.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public Permit acquire (String path)
+        throws InterruptedException
+    {
+        return acquire(path, 0);
+    }
+
+    /**
+     * Acquire a permit to issue a request for the given resource path, waiting no longer
+     * than the given timeout while the path's partition is at its concurrency limit.
+     *
+     * @param path The encoded request path, as returned by
+     *  {@link S3TransportRequest#getPath}.
+     * @param timeout Maximum wait, in milliseconds, or 0 to wait indefinitely.
+     * @return The permit, or null if the timeout elapsed first.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public Permit acquire (String path, long timeout)
+        throws InterruptedException
+    {
+        String key = partitionKey(path, _prefixDepth);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            Partition partition = getPartition(key);
+            if (partition.acquire(timeout, deadline)) {
+                return new Permit(partition);
+            } else if (!partition.isEvicted()) {
+                return null;
+            }
+            // The partition was discarded before we could enter it; try its replacement
+        }
+    }
+
+    /**
+     * Returns the current concurrency limit for the given resource path's partition.
+     */
+    public int getLimit (String path) {
+        Partition partition = _partitions.get(partitionKey(path, _prefixDepth));
+        return (partition != null) ? partition.getLimit() : getStartingLimit();
+    }
+
+    /**
+     * Returns the number of requests in flight in the given resource path's partition.
+     */
+    public int getInFlight (String path) {
+        Partition partition = _partitions.get(partitionKey(path, _prefixDepth));
+        return (partition != null) ? partition.getInFlight() : 0;
+    }
+
+    /**
+     * Returns the number of partitions currently tracked.
+     */
+    public int getPartitionCount () {
+        return _partitions.size();
+    }
+
+    /**
+     * Return true if the given failure indicates that S3 is overloaded.
+     */
+    public static boolean isOverloaded (S3Exception e) {
+        return S3Utils.isRetryable(e);
+    }
+
+    /**
+     * Return the partition key for the given encoded request path: the bucket, followed by
+     * at most depth '/'-delimited key components. Object keys are www-form-urlencoded in
+     * request paths, and so their delimiters appear as "%2F".
+     */
+    static String partitionKey (String path, int depth)
+    {
+        int end = path.indexOf('/', 1);
+        if (end < 0) {
+            return path;
+        }
+
+        for (int i = 0; i < depth; i++) {
+            int next = path.indexOf(ENCODED_DELIMITER, end + 1);
+            if (next < 0) {
+                break;
+            }
+            end = next;
+        }
+        return path.substring(0, end);
+    }
+
+    /**
+     * Return the partition for the given key, creating it if necessary.
+     */
+    private Partition getPartition (String key)
+    {
+        Partition partition = _partitions.get(key);
+        if (partition == null) {
+            sweep();
+            Partition created = new Partition(key);
+            partition = _partitions.putIfAbsent(key, created);
+            if (partition == null) {
+                partition = created;
+            }
+        }
+        return partition;
+    }
+
+    /**
+     * Discard idle partitions, at most once per {@link #SWEEP_INTERVAL}.
+     */
+    private void sweep ()
+    {
+        long now = System.nanoTime();
+        long last = _lastSweep.get();
+        if (now - last < SWEEP_INTERVAL || !_lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        for (Partition partition : _partitions.values()) {
+            if (partition.evictIfIdle(now)) {
+                _partitions.remove(partition.getKey(), partition);
+            }
+        }
+    }
+
+    /**
+     * Returns the limit with which partitions start.
+     */
+    private int getStartingLimit () {
+        return Math.max(_minLimit, Math.min(_maxLimit, _initialLimit));
+    }
+
+    /**
+     * The concurrency limit and in-flight requests of a single partition.
+     */
+    private class Partition {
+        public Partition (String key) {
+            _key = key;
+        }
+
+        /**
+         * Enter the partition, waiting until the given deadline if the timeout is positive.
+         * Returns false if the deadline passes first, or if the partition has been
+         * discarded.
+         */
+        public synchronized boolean acquire (long timeout, long deadline)
+            throws InterruptedException
+        {
+            _waiting++;
+            try {
+                while (!_evicted && _inFlight >= (int)_limit) {
+                    if (timeout <= 0) {
+                        wait();
+                        continue;
+                    }
+
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline -
+                        System.nanoTime());
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    wait(remaining);
+                }
+            } finally {
+                _waiting--;
+            }
+            if (_evicted) {
+                return false;
+            }
+            _inFlight++;
+            return true;
+        }
+
+        public synchronized void release ()
+        {
+            if (--_inFlight == 0) {
+                _idleSince = System.nanoTime();
+            }
+            notify();
+        }
+
+        /**
+         * Mark the partition discarded, and return true, if it is idle and its limit is
+         * either back at the initial limit or has expired.
+         */
+        public synchronized boolean evictIfIdle (long now)
+        {
+            if (_inFlight > 0 || _waiting > 0) {
+                return false;
+            }
+            if ((int)_limit == getStartingLimit() ||
+                now - _idleSince >= TimeUnit.MILLISECONDS.toNanos(IDLE_EXPIRY))
+            {
+                _evicted = true;
+            }
+            return _evicted;
+        }
+
+        public synchronized boolean isEvicted () {
+            return _evicted;
+        }
+
+        public String getKey () {
+            return _key;
+        }
+
+        public synchronized void record (long start, long end, boolean overloaded)
+        {
+            if (!overloaded && _latencyThreshold > 0 &&
+                (end - start) / NANOS_PER_MILLI > _latencyThreshold) {
+                overloaded = true;
+            }
+
+            int oldLimit = (int)_limit;
+            if (overloaded) {
+                /* Only the first request of a group in flight together backs off. */
+                if (start - _lastBackoff >= 0) {
+                    _limit = Math.max(_minLimit, _limit * _backoffRatio);
+                    _lastBackoff = end;
+                }
+            } else if (_inFlight * 2 >= oldLimit) {
+                /* Only grow while the current limit is actually in use. */
+                _limit = Math.min(_maxLimit, _limit + 1.0 / _limit);
+            }
+
+            if ((int)_limit > oldLimit) {
+                notifyAll();
+            }
+        }
+
+        public synchronized int getLimit () {
+            return (int)_limit;
+        }
+
+        public synchronized int getInFlight () {
+            return _inFlight;
+        }
+
+        /** Partition key. */
+        private final String _key;
+
+        /** Current concurrency limit. */
+        private double _limit = getStartingLimit();
+
+        /** Requests in flight. */
+        private int _inFlight;
+
+        /** Requests waiting to enter. */
+        private int _waiting;
+
+        /** Time at which the last request in flight completed, in nanoseconds. */
+        private long _idleSince = System.nanoTime();
+
+        /** Set once the partition has been discarded. */
+        private boolean _evicted;
+
+        /** Time of the last backoff, in nanoseconds. */
+        private long _lastBackoff = System.nanoTime();
+    }
+
+    /** Partitions, by key. */
+    private final ConcurrentMap<String, Partition> _partitions =
+        new ConcurrentHashMap<String, Partition>();
+
+    /** Initial per-partition limit. */
+    private int _initialLimit = DEFAULT_INITIAL_LIMIT;
+
+    /** Minimum per-partition limit. */
+    private int _minLimit = DEFAULT_MIN_LIMIT;
+
+    /** Maximum per-partition limit. */
+    private int _maxLimit = DEFAULT_MAX_LIMIT;
+
+    /** Multiplicative decrease. */
+    private double _backoffRatio = DEFAULT_BACKOFF_RATIO;
+
+    /** Latency threshold, in milliseconds, or 0. */
+    private long _latencyThreshold = 0;
+
+    /** Partition key prefix depth. */
+    private int _prefixDepth = 0;
+
+    /** Time of the last sweep for idle partitions, in nanoseconds. */
+    private final AtomicLong _lastSweep = new AtomicLong(System.nanoTime());
+
+    /** Minimum interval between sweeps for idle partitions, in nanoseconds. */
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /** An encoded key delimiter. */
+    private static final String ENCODED_DELIMITER = "%2F";
+
+    /** Nanoseconds per millisecond. */
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+}
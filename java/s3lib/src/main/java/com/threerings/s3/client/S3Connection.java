@@ -35,14 +35,43 @@ package com.threerings.s3.client;
 import com.threerings.s3.client.S3ClientException.InvalidURIException;
 import com.threerings.s3.client.acl.AccessControlList;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
@@ -50,29 +79,21 @@ import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.EncoderException;
 import org.apache.commons.codec.net.URLCodec;
 
+import org.apache.commons.io.IOUtils;
+
 import org.apache.commons.httpclient.HostConfiguration;
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
-
-import org.apache.commons.httpclient.params.HttpClientParams;
-import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
-import org.apache.commons.httpclient.params.HttpMethodParams;
-
-import org.apache.commons.httpclient.Header;
-import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.HttpMethodRetryHandler;
-import org.apache.commons.httpclient.NameValuePair;
-import org.apache.commons.httpclient.methods.DeleteMethod;
-import org.apache.commons.httpclient.methods.HeadMethod;
-import org.apache.commons.httpclient.methods.PutMethod;
-import org.apache.commons.httpclient.methods.GetMethod;
+
 import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
 import org.apache.commons.httpclient.protocol.Protocol;
 import org.apache.commons.httpclient.util.DateParseException;
 import org.apache.commons.httpclient.util.DateUtil;
 
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
 import org.xml.sax.SAXException;
 
 /**
@@ -139,27 +160,38 @@ public class S3Connection {
     public S3Connection (String keyId, String secretKey, HostConfiguration hostConfig,
             int timeoutMillis)
     {
-        this.keyId = keyId;
-        this.secretKey = secretKey;
-        this.httpClient = new HttpClient();
-        this.httpClient.setHostConfiguration(hostConfig);
-
+        this(keyId, secretKey, hostConfig, new S3ConnectionConfig()
+            .setSocketTimeout(timeoutMillis).setLeaseTimeout(timeoutMillis));
+    }
 
-        /* httpclient defaults to no timeout, which is troublesome if we ever drop our network
-         * connection.  Give it a generous timeout to keep things moving. */
-        HttpClientParams clientParams = new HttpClientParams();
-        clientParams.setSoTimeout(timeoutMillis);
-        clientParams.setConnectionManagerTimeout(timeoutMillis);
-        this.httpClient.setParams(clientParams);
+    /**
+     * Create a new S3 client connection, with the given credentials, connection host
+     * parameters, and connection pool configuration.
+     *
+     * @param keyId The your user key into AWS
+     * @param secretKey The secret string used to generate signatures for authentication.
+     * @param hostConfig HttpClient HostConfig.
+     * @param config Connection pool and socket configuration.
+     */
+    public S3Connection (String keyId, String secretKey, HostConfiguration hostConfig,
+            S3ConnectionConfig config)
+    {
+        this(keyId, secretKey, new S3CommonsTransport(hostConfig, config));
+    }
 
-        /* Configure the multi-threaded connection manager. Default to MAX_INT (eg, unlimited)
-         * connections, as S3 is intended to support such use */
-        HttpConnectionManagerParams managerParam = new HttpConnectionManagerParams();
-        MultiThreadedHttpConnectionManager manager = new MultiThreadedHttpConnectionManager();
-        managerParam.setDefaultMaxConnectionsPerHost(Integer.MAX_VALUE);
-        managerParam.setMaxTotalConnections(Integer.MAX_VALUE);
-        manager.setParams(managerParam);
-        this.httpClient.setHttpConnectionManager(manager);
+    /**
+     * Create a new S3 client connection, with the given credentials, sending its requests
+     * over the provided transport.
+     *
+     * @param keyId The your user key into AWS
+     * @param secretKey The secret string used to generate signatures for authentication.
+     * @param transport HTTP transport.
+     */
+    public S3Connection (String keyId, String secretKey, S3Transport transport)
+    {
+        this.keyId = keyId;
+        this.secretKey = secretKey;
+        _transport = transport;
     }
 
     /**
@@ -186,6 +218,126 @@ public class S3Connection {
         this(awsKeyId, awsSecretKey, S3Utils.createHostConfig(host, port, protocol));
     }
 
+    /**
+     * Return a snapshot of the connection pool's statistics.
+     */
+    public S3ConnectionPoolStats getPoolStats ()
+    {
+        return _transport.getPoolStats();
+    }
+
+    /**
+     * Close all pooled connections and stop the transport's threads. The connection must
+     * not be used afterwards.
+     */
+    public void shutdown ()
+    {
+        _transport.shutdown();
+    }
+
+    /**
+     * Set the policy used to retry failed requests, or null to disable retries. Requests
+     * are retried when they fail with a network error or a retryable S3 error response;
+     * uploads are retried only if the uploaded object is
+     * {@link S3Object#isRepeatable repeatable}. Errors detected while reading a successful
+     * response's body are not retried. Defaults to null.
+     */
+    public void setRetryPolicy (S3RetryPolicy retryPolicy) {
+        _retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Returns the policy used to retry failed requests, or null.
+     */
+    public S3RetryPolicy getRetryPolicy () {
+        return _retryPolicy;
+    }
+
+    /**
+     * Set the limiter used to adapt the number of concurrent requests to the rate S3 will
+     * sustain, or null to issue requests without limit. Requests wait for a permit before
+     * they are handed to the transport, and hold it until their response is released.
+     * Defaults to null.
+     */
+    public void setConcurrencyLimiter (S3ConcurrencyLimiter concurrencyLimiter) {
+        _concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * Returns the limiter used to adapt request concurrency, or null.
+     */
+    public S3ConcurrencyLimiter getConcurrencyLimiter () {
+        return _concurrencyLimiter;
+    }
+
+    /**
+     * Set the limiter used to hold requests below a per-bucket or per-prefix request rate,
+     * or null to issue requests without limit. Defaults to null.
+     */
+    public void setRateLimiter (S3RateLimiter rateLimiter) {
+        _rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Returns the limiter used to hold requests below a request rate, or null.
+     */
+    public S3RateLimiter getRateLimiter () {
+        return _rateLimiter;
+    }
+
+    /**
+     * Set the circuit breaker guarding this connection's endpoint, or null to send every
+     * request regardless of the endpoint's health. Defaults to null.
+     */
+    public void setCircuitBreaker (S3CircuitBreaker circuitBreaker) {
+        _circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Returns the circuit breaker guarding this connection's endpoint, or null.
+     */
+    public S3CircuitBreaker getCircuitBreaker () {
+        return _circuitBreaker;
+    }
+
+    /**
+     * Set the policy used to hedge slow GET and HEAD requests, or null to never hedge
+     * requests. Defaults to null.
+     */
+    public void setHedgePolicy (S3HedgePolicy hedgePolicy) {
+        _hedgePolicy = hedgePolicy;
+    }
+
+    /**
+     * Returns the policy used to hedge slow requests, or null.
+     */
+    public S3HedgePolicy getHedgePolicy () {
+        return _hedgePolicy;
+    }
+
+    /**
+     * Returns the transport over which requests are sent.
+     */
+    public S3Transport getTransport ()
+    {
+        return _transport;
+    }
+
+    /**
+     * Set the checksum algorithm used to protect uploaded data, for objects that do not
+     * specify their own. Defaults to {@link S3ChecksumAlgorithm#MD5}.
+     */
+    public void setChecksumAlgorithm (S3ChecksumAlgorithm checksumAlgorithm) {
+        _checksumAlgorithm = checksumAlgorithm;
+    }
+
+    /**
+     * Returns the default checksum algorithm used to protect uploaded data.
+     */
+    public S3ChecksumAlgorithm getChecksumAlgorithm () {
+        return _checksumAlgorithm;
+    }
+
     /**
      * Creates a new bucket.
      * @param bucketName The name of the bucket to create.
@@ -193,7 +345,8 @@ public class S3Connection {
     public void createBucket (String bucketName)
         throws S3Exception
     {
-        executeS3MethodAndRelease(new PutMethod(encodePath(bucketName)));
+        executeS3MethodAndRelease(new S3TransportRequest(S3TransportRequest.PUT,
+            encodePath(bucketName)));
     }
 
 
@@ -239,32 +392,28 @@ public class S3Connection {
     public S3ObjectListing listObjects (String bucketName, String prefix, String marker, int maxKeys, String delimiter)
         throws S3Exception
     {
-        GetMethod method = new GetMethod(encodePath(bucketName));
-        List<NameValuePair> parameters = new ArrayList<NameValuePair>(4);
+        S3TransportRequest request = new S3TransportRequest(S3TransportRequest.GET,
+            encodePath(bucketName));
 
         if (prefix != null) {
-            parameters.add(new NameValuePair(LIST_PREFIX_PARAMETER, prefix));
+            request.addQueryParameter(LIST_PREFIX_PARAMETER, prefix);
         }
 
         if (marker != null) {
-            parameters.add(new NameValuePair(LIST_MARKER_PARAMETER, marker));
+            request.addQueryParameter(LIST_MARKER_PARAMETER, marker);
         }
 
         if (maxKeys != 0) {
-            parameters.add(new NameValuePair(LIST_MAXKEYS_PARAMETER, Integer.toString(maxKeys)));
+            request.addQueryParameter(LIST_MAXKEYS_PARAMETER, Integer.toString(maxKeys));
         }
 
         if (delimiter != null) {
-            parameters.add(new NameValuePair(LIST_DELIMITER_PARAMETER, delimiter));
-        }
-
-        if (parameters.size() > 0) {
-            method.setQueryString(parameters.toArray(new NameValuePair[parameters.size()]));
+            request.addQueryParameter(LIST_DELIMITER_PARAMETER, delimiter);
         }
 
+        S3TransportResponse response = executeS3Method(request);
         try {
-            executeS3Method(method);
-            return new S3ObjectListing(method.getResponseBodyAsStream());
+            return new S3ObjectListing(response.getBody());
         } catch (SAXException se) {
             throw new S3ClientException("Error parsing bucket GET response: " + se.getMessage(),
                 se);
@@ -272,7 +421,7 @@ public class S3Connection {
             throw new S3ClientException.NetworkException("Error receiving bucket GET response: " +
                 ioe.getMessage(), ioe);
         } finally {
-            method.releaseConnection();
+            response.release();
         }
     }
 
@@ -284,7 +433,8 @@ public class S3Connection {
     public void deleteBucket (String bucketName)
         throws S3Exception
     {
-        executeS3MethodAndRelease(new DeleteMethod(encodePath(bucketName)));
+        executeS3MethodAndRelease(new S3TransportRequest(S3TransportRequest.DELETE,
+            encodePath(bucketName)));
     }
 
     /**
@@ -324,93 +474,326 @@ public class S3Connection {
         AccessControlList.StandardPolicy accessPolicy, Map<String,String> headers)
         throws S3Exception
     {
-        byte[] checksum;
+        putObject(bucketName, object, accessPolicy, headers, null);
+    }
+
+    /**
+     * Upload an S3 Object.
+     * @param bucketName Destination bucket.
+     * @param object S3 Object.
+     * @param accessPolicy S3 Object's access policy.
+     * @param headers http headers to be served with the object.
+     * @param options Request options, or null. Only the cancellation handle applies.
+     */
+    public void putObject (final String bucketName, final S3Object object,
+        final AccessControlList.StandardPolicy accessPolicy, final Map<String,String> headers,
+        S3RequestOptions options)
+        throws S3Exception
+    {
+        final S3Cancellation cancellation = (options != null) ? options.getCancellation() : null;
 
-        PutMethod method = new PutMethod(encodePath(bucketName, object.getKey()));
+        // Each attempt re-reads the object's data, so only repeatable objects are retried
+        retry(object.isRepeatable(), cancellation, new Attempt<Void>() {
+            public Void run () throws S3Exception {
+                putObjectOnce(bucketName, object, accessPolicy, headers, cancellation);
+                return null;
+            }
+        });
+    }
 
-        // Set the request entity, handling unknown content lengths
-        final MediaType mediaType = object.getMediaType();
-        long length = object.length();
-        if (length < 0) {
-          length = InputStreamRequestEntity.CONTENT_LENGTH_AUTO;
-        } else {
-          // httpclient can't retry anything without buffered input, and when it tries, it spits an
-          // internal method instead of telling us what happened. Just tell it not to retry.
-          method.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, NO_RETRY);
-        }
+    /**
+     * Make a single attempt to upload an S3 Object.
+     */
+    private void putObjectOnce (String bucketName, S3Object object,
+        AccessControlList.StandardPolicy accessPolicy, Map<String,String> headers,
+        S3Cancellation cancellation)
+        throws S3Exception
+    {
+        S3TransportRequest request = new S3TransportRequest(S3TransportRequest.PUT,
+            encodePath(bucketName, object.getKey()));
+        request.setCancellation(cancellation);
 
-        method.setRequestEntity(new InputStreamRequestEntity(
-            object.getInputStream(), length, mediaType.getMimeType()));
+        // Set the request entity and content-md5
+        DigestingRequestEntity streamingEntity = setRequestEntity(request, object);
 
         // Set the content encoding
+        final MediaType mediaType = object.getMediaType();
         if (mediaType.getContentEncoding() != null) {
-          method.setRequestHeader(CONTENT_ENCODING_HEADER, mediaType.getContentEncoding());
+          request.setHeader(CONTENT_ENCODING_HEADER, mediaType.getContentEncoding());
         }
 
         // Set the access policy
-        method.setRequestHeader(S3Utils.ACL_HEADER, accessPolicy.toString());
+        request.setHeader(S3Utils.ACL_HEADER, accessPolicy.toString());
 
         // add any headers that were supplied
         for (Map.Entry<String,String> header : headers.entrySet()) {
-            method.setRequestHeader(header.getKey(), header.getValue());
+            request.setHeader(header.getKey(), header.getValue());
+        }
+
+        // Set any metadata fields
+        for (Map.Entry<String,String> entry : object.getMetadata().entrySet()) {
+            String header = S3_METADATA_PREFIX + entry.getKey();
+            request.setHeader(header, entry.getValue());
+        }
+
+        S3TransportResponse response = executeS3Method(request);
+        try {
+            if (streamingEntity != null) {
+                verifyStreamingDigest(response, object.getKey(), streamingEntity.getDigest());
+            }
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Upload a part of a multipart upload, returning the part's ETag. The part's data is
+     * taken from the provided object, whose key is ignored; to upload a region of a file,
+     * use an {@link S3FileObject} constructed with the region's offset and length.
+     *
+     * @param bucketName Destination bucket.
+     * @param objectKey Destination object key.
+     * @param uploadId Multipart upload ID, as returned by {@link #initiateMultipartUpload}.
+     * @param partNumber Part number, from 1 to 10,000.
+     * @param part The part's data. Its length must be known.
+     */
+    public String uploadPart (String bucketName, String objectKey, String uploadId,
+        int partNumber, S3Object part)
+        throws S3Exception
+    {
+        return uploadPart(bucketName, objectKey, uploadId, partNumber, part, null);
+    }
+
+    /**
+     * Upload a part of a multipart upload, returning the part's ETag.
+     *
+     * @param bucketName Destination bucket.
+     * @param objectKey Destination object key.
+     * @param uploadId Multipart upload ID, as returned by {@link #initiateMultipartUpload}.
+     * @param partNumber Part number, from 1 to 10,000.
+     * @param part The part's data. Its length must be known.
+     * @param options Request options, or null. Only the cancellation handle applies.
+     */
+    public String uploadPart (final String bucketName, final String objectKey,
+        final String uploadId, final int partNumber, final S3Object part,
+        S3RequestOptions options)
+        throws S3Exception
+    {
+        if (part.length() < 0) {
+            throw new S3ClientException("Multipart upload parts must have a known length");
         }
 
-        // Compute and set the content-md5 value (base64 of 128bit digest)
-        // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.15
+        final S3Cancellation cancellation = (options != null) ? options.getCancellation() : null;
+        return retry(part.isRepeatable(), cancellation, new Attempt<String>() {
+            public String run () throws S3Exception {
+                return uploadPartOnce(bucketName, objectKey, uploadId, partNumber, part,
+                    cancellation);
+            }
+        });
+    }
+
+    /**
+     * Make a single attempt to upload a part of a multipart upload.
+     */
+    private String uploadPartOnce (String bucketName, String objectKey, String uploadId,
+        int partNumber, S3Object part, S3Cancellation cancellation)
+        throws S3Exception
+    {
+        S3TransportRequest request = new S3TransportRequest(S3TransportRequest.PUT,
+            encodePath(bucketName, objectKey))
+            .addQueryParameter(MULTIPART_PART_NUMBER_PARAMETER, Integer.toString(partNumber))
+            .addQueryParameter(MULTIPART_UPLOAD_ID_PARAMETER, uploadId)
+            .setCancellation(cancellation);
+        DigestingRequestEntity streamingEntity = setRequestEntity(request, part);
+
+        S3TransportResponse response = executeS3Method(request);
         try {
-            byte[] md5 = object.getMD5();
-            if (md5 != null) {
-                checksum = Base64.encodeBase64(md5);
-                method.setRequestHeader(CONTENT_MD5_HEADER, new String(checksum, "ascii"));
+            if (streamingEntity != null) {
+                verifyStreamingDigest(response, objectKey, streamingEntity.getDigest());
+            }
+            return stripQuotes(getResponseHeader(response, S3_MD5_HEADER, true));
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Set the request entity used to upload the given object's data, along with its
+     * checksum header. If the object's MD5 digest is to be computed while it is uploaded, the
+     * entity is returned, and its digest must be verified against the response.
+     */
+    private DigestingRequestEntity setRequestEntity (S3TransportRequest request,
+        S3Object object)
+        throws S3ClientException
+    {
+        S3ChecksumAlgorithm algorithm = object.getChecksumAlgorithm();
+        if (algorithm == null) {
+            algorithm = _checksumAlgorithm;
+        }
+
+        // Handle unknown content lengths
+        if (object.length() < 0) {
+            request.setEntity(new InputStreamRequestEntity(object.getInputStream(),
+                InputStreamRequestEntity.CONTENT_LENGTH_AUTO,
+                object.getMediaType().getMimeType()));
+            setChecksum(request, object, algorithm);
+            return null;
+        }
+
+        // The object's data is streamed, and may not be resent.
+        request.setRetryable(false);
+
+        // Compute the digest while streaming the data, if the object prefers it. Only the MD5
+        // digest may be verified after the fact, against the returned ETag.
+        boolean streamingDigest = algorithm == S3ChecksumAlgorithm.MD5 &&
+            object.isStreamingDigest();
+        if (!streamingDigest) {
+            setChecksum(request, object, algorithm);
+        }
+        DigestingRequestEntity entity = object.createRequestEntity(streamingDigest);
+        request.setEntity(entity);
+        return streamingDigest ? entity : null;
+    }
+
+    /**
+     * Set the checksum header for the given object's data, if its checksum is known.
+     */
+    private void setChecksum (S3TransportRequest request, S3Object object,
+        S3ChecksumAlgorithm algorithm)
+        throws S3ClientException
+    {
+        switch (algorithm) {
+        case MD5:
+            setContentMD5(request, object.getMD5());
+            break;
+        case CRC32C:
+            byte[] crc = object.getChecksum(S3ChecksumAlgorithm.CRC32C);
+            if (crc != null) {
+                request.setHeader(S3_CHECKSUM_CRC32C_HEADER, encodeBase64(crc));
             }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Set the content-md5 value (base64 of 128bit digest), if the digest is known.
+     * http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.15
+     */
+    private void setContentMD5 (S3TransportRequest request, byte[] md5)
+    {
+        if (md5 == null) {
+            return;
+        }
+
+        request.setHeader(CONTENT_MD5_HEADER, encodeBase64(md5));
+    }
+
+    /**
+     * Return the base64 encoding of the given data.
+     */
+    private static String encodeBase64 (byte[] data)
+    {
+        try {
+            return new String(Base64.encodeBase64(data), "ascii");
         } catch (UnsupportedEncodingException uee) {
             // ASCII must always be supported.
             throw new RuntimeException("Missing ASCII encoding");
         }
+    }
 
-        // Set any metadata fields
-        for (Map.Entry<String,String> entry : object.getMetadata().entrySet()) {
-            String header = S3_METADATA_PREFIX + entry.getKey();
-            method.setRequestHeader(header, entry.getValue());
+    /**
+     * Decode the given base64 string.
+     */
+    private static byte[] decodeBase64 (String data)
+    {
+        try {
+            return Base64.decodeBase64(data.getBytes("ascii"));
+        } catch (UnsupportedEncodingException uee) {
+            // ASCII must always be supported.
+            throw new RuntimeException("Missing ASCII encoding");
+        }
+    }
+
+    /**
+     * Verify a digest computed while uploading an object against the ETag returned by S3,
+     * which is the MD5 of the data S3 received. An upload that fails verification has
+     * nonetheless replaced the remote object, and should be retried.
+     */
+    private void verifyStreamingDigest (S3TransportResponse response, String objectKey,
+        byte[] digest)
+        throws S3Exception
+    {
+        if (!hasDigestETag(response)) {
+            return;
         }
 
-        executeS3MethodAndRelease(method);
+        String eTag = stripQuotes(getResponseHeader(response, S3_MD5_HEADER, true));
+        String expected = new String(Hex.encodeHex(digest));
+        if (!eTag.equalsIgnoreCase(expected)) {
+            throw new S3ClientException.DigestMismatchException("S3 returned ETag " + eTag +
+                " for '" + objectKey + "', expected " + expected);
+        }
+    }
+
+    /**
+     * Returns true if the ETag of the given response's object may be an MD5 digest of its
+     * data. The ETags of objects encrypted with a KMS key or a customer-provided key are not.
+     */
+    private boolean hasDigestETag (S3TransportResponse response)
+        throws S3Exception
+    {
+        String encryption = getResponseHeader(response, S3_ENCRYPTION_HEADER, false);
+        return (encryption == null || encryption.equals(S3_ENCRYPTION_AES256_VALUE)) &&
+            getResponseHeader(response, S3_ENCRYPTION_CUSTOMER_HEADER, false) == null;
     }
 
     /**
-     * Retrieve an S3Object, using the provided HttpMethodBase.
+     * Retrieve an S3Object, using either a GET or HEAD request.
      *
      * @param objectKey The object key request, used to instantiate the returned S3Object.
-     * @param method The HTTP method to execute.
      * @param hasBody Set to true if a response body is expected (eg, for an HTTP GET request)
+     * @param options Request options, or null. If S3 is asked to return the checksum
+     *  selected by the options, the returned object provides it.
+     * @param verify If true and enabled by the options, the response body is verified as it
+     *  is read.
      */
-    private S3Metadata getObject (String bucketName, String objectKey, boolean hasBody)
+    private S3Metadata getObject (String bucketName, String objectKey, boolean hasBody,
+        S3RequestOptions options, boolean verify)
     	throws S3Exception
     {
         final InputStream response;
         final HashMap<String,String> metadata;
         final MediaType mediaType;
         final byte digest[];
+        final String eTag;
         final long length;
         boolean success = false;
         long lastModified = 0L;
 
-        String path = encodePath(bucketName, objectKey);
-        HttpMethodBase method;
-        if (hasBody) {
-            method = new GetMethod(path);
-        } else {
-            method = new HeadMethod(path);
+        S3TransportRequest request = new S3TransportRequest(hasBody ?
+            S3TransportRequest.GET : S3TransportRequest.HEAD, encodePath(bucketName, objectKey));
+        if (options != null) {
+            request.setCancellation(options.getCancellation());
         }
 
-        /* Attempt the GET, and release the held method connection on failure */
-        try {
-            // Execute the get request and retrieve all metadata from the response
-            executeS3Method(method);
+        // Ask S3 to return any additional checksum stored with the object
+        final S3ChecksumAlgorithm checksumAlgorithm = (options != null) ?
+            options.getChecksumAlgorithm() : S3ChecksumAlgorithm.MD5;
+        if (checksumAlgorithm == S3ChecksumAlgorithm.CRC32C) {
+            request.setHeader(S3_CHECKSUM_MODE_HEADER, S3_CHECKSUM_MODE_ENABLED_VALUE);
+        }
 
+        // Execute the get request
+        final S3TransportResponse httpResponse = executeS3Method(request);
+
+        /* Retrieve all metadata from the response, and release the held connection on failure */
+        try {
             // Mime type
-            final String mimeType = getResponseHeader(method, CONTENT_TYPE_HEADER, true);
-            final String contentEncoding = getResponseHeader(method, CONTENT_ENCODING_HEADER, false);
+            final String mimeType = getResponseHeader(httpResponse, CONTENT_TYPE_HEADER, true);
+            final String contentEncoding = getResponseHeader(httpResponse,
+                CONTENT_ENCODING_HEADER, false);
             if (contentEncoding != null) {
                 mediaType = new MediaType(mimeType, contentEncoding);
             } else {
@@ -418,7 +801,7 @@ public class S3Connection {
             }
 
             // Last modified
-            final String dateString = getResponseHeader(method, LAST_MODIFIED_HEADER, false);
+            final String dateString = getResponseHeader(httpResponse, LAST_MODIFIED_HEADER, false);
             try {
                 if (dateString != null)
                     lastModified = DateUtil.parseDate(dateString).getTime();
@@ -427,7 +810,7 @@ public class S3Connection {
             }
 
             // Data length
-            length = method.getResponseContentLength();
+            length = httpResponse.getContentLength();
             if (length == -1) {
                 throw new S3Exception("S3 failed to supply the Content-Length header");
             }
@@ -437,10 +820,18 @@ public class S3Connection {
             try {
                 String hex;
 
-                hex = getResponseHeader(method, S3_MD5_HEADER, true);
+                hex = getResponseHeader(httpResponse, S3_MD5_HEADER, true);
                 // Strip the surrounding quotes
                 hex = hex.substring(1, hex.length() - 1);
-                digest = new Hex().decode(hex.getBytes("utf8"));
+                eTag = hex;
+                if (hex.indexOf('-') >= 0 || !hasDigestETag(httpResponse)) {
+                    // Objects created by a multipart upload have an ETag of the form
+                    // "<hex>-<part count>", which is not an MD5 of the object's data,
+                    // nor are the ETags of most encrypted objects.
+                    digest = null;
+                } else {
+                    digest = new Hex().decode(hex.getBytes("utf8"));
+                }
             } catch (DecoderException de) {
                 throw new S3Exception("S3 returned an invalid " + S3_MD5_HEADER + " header: " +
                     de);
@@ -449,12 +840,22 @@ public class S3Connection {
                 throw new RuntimeException("Missing UTF8 encoding");
             }
 
+            // CRC32C checksum, base64 encoded. The checksums of objects created by a
+            // multipart upload are suffixed with "-<part count>", and are not checksums of the
+            // object's data.
+            byte[] crc = null;
+            String crcString = getResponseHeader(httpResponse, S3_CHECKSUM_CRC32C_HEADER,
+                false);
+            if (crcString != null && crcString.indexOf('-') < 0) {
+                crc = decodeBase64(crcString);
+            }
+
             // Retrieve metadata
             metadata = new HashMap<String,String>();
-            for (Header header : method.getResponseHeaders()) {
+            for (Map.Entry<String,String> header : httpResponse.getHeaders().entrySet()) {
                 String name;
 
-                name = header.getName();
+                name = header.getKey();
                 if (name.startsWith(S3_METADATA_PREFIX)) {
                     // Strip the S3 prefix
                     String key = name.substring(S3_METADATA_PREFIX.length());
@@ -466,26 +867,49 @@ public class S3Connection {
                 // Get the response body as an "auto closing" stream -- it will close the HTTP connection
                 // when the stream is closed, the end of the stream is reached, or finalization occurs.
                 try {
-                    InputStream s = method.getResponseBodyAsStream();
-                    response = new HttpInputStream(s, method);
+                    InputStream s = httpResponse.getBody();
+                    if (verify && options.getVerifyDigest()) {
+                        S3ChecksumAlgorithm algorithm = selectChecksum(checksumAlgorithm,
+                            digest, crc);
+                        response = new VerifyingInputStream(new HttpInputStream(s, httpResponse,
+                            request.getCancellation(), request),
+                            objectKey, length, algorithm,
+                            (algorithm == S3ChecksumAlgorithm.CRC32C) ? crc : digest,
+                            options.getBackgroundDigest());
+                    } else {
+                        response = new HttpInputStream(s, httpResponse,
+                            request.getCancellation(), request);
+                    }
                 } catch (IOException ioe) {
-                    throw new S3ClientException.NetworkException("Error receiving object " + method.getName() +
+                    throw new S3ClientException.NetworkException("Error receiving object " + request.getMethod() +
                     	"response: " + ioe.getMessage(), ioe);
                 }
 
                 /* Finished successfully */
                 success = true;
-                return new S3StreamObject(objectKey, mediaType, length, digest, metadata, response, lastModified);
+                S3StreamObject object = new S3StreamObject(objectKey, mediaType, length,
+                    digest, metadata, response, lastModified);
+                if (crc != null) {
+                    object.setChecksum(S3ChecksumAlgorithm.CRC32C, crc);
+                }
+                object.setETag(eTag);
+                return object;
             } else {
-            	return new S3EmptyObject(objectKey, mediaType, length, digest, metadata, lastModified);
+                S3EmptyObject object = new S3EmptyObject(objectKey, mediaType, length, digest,
+                    metadata, lastModified);
+                if (crc != null) {
+                    object.setChecksum(S3ChecksumAlgorithm.CRC32C, crc);
+                }
+                object.setETag(eTag);
+                return object;
             }
         } finally {
             /* If a body was requested and the request was successful, cleanup will be handled by
-             * the HttpInputStream. Otherwise, return the method now. */
+             * the HttpInputStream. Otherwise, release the response now. */
             if (hasBody && success) {
                 // Concluded successfully
             } else {
-                method.releaseConnection();
+                httpResponse.release();
             }
         }
     }
@@ -500,7 +924,26 @@ public class S3Connection {
     public S3Object getObject (String bucketName, String objectKey)
         throws S3Exception
     {
-        return (S3Object)getObject(bucketName, objectKey, true);
+        return (S3Object)getObject(bucketName, objectKey, true, null, false);
+    }
+
+    /**
+     * Retrieve a S3Object, verifying its data as it is read unless verification is
+     * disabled by the provided options. Once the end of the object's stream is reached, the
+     * number of bytes read and -- where S3 provides one -- the MD5 digest of the data are
+     * checked; if the options select {@link S3ChecksumAlgorithm#CRC32C}, S3 is asked for the
+     * object's CRC32C checksum, which is checked in preference to its MD5 digest where the
+     * object has one. On mismatch, or if the body is truncated, the final read fails with an
+     * IOException whose cause is a {@link S3ClientException.DigestMismatchException}.
+     *
+     * @param bucketName Source bucket.
+     * @param objectKey Object key.
+     * @param options Request options.
+     */
+    public S3Object getObject (String bucketName, String objectKey, S3RequestOptions options)
+        throws S3Exception
+    {
+        return (S3Object)getObject(bucketName, objectKey, true, options, true);
     }
 
     /**
@@ -514,57 +957,264 @@ public class S3Connection {
     public S3Metadata getObjectMetadata (String bucketName, String objectKey)
         throws S3Exception
     {
-        return getObject(bucketName, objectKey, false);
+        return getObject(bucketName, objectKey, false, null, false);
     }
 
     /**
-     * Delete a remote S3 Object.
-     * @param bucketName Remote bucket.
-     * @param objectKey S3 object key.
+     * Retrieve an S3Object's metadata, as per {@link #getObjectMetadata(String, String)}.
+     *
+     * @param bucketName Source bucket.
+     * @param objectKey Object key.
+     * @param options Request options.
      */
-    public void deleteObject (String bucketName, String objectKey)
+    public S3Metadata getObjectMetadata (String bucketName, String objectKey,
+        S3RequestOptions options)
         throws S3Exception
     {
-        executeS3MethodAndRelease(new DeleteMethod(encodePath(bucketName, objectKey)));
+        return getObject(bucketName, objectKey, false, options, false);
     }
 
     /**
-     * Copies the object at <code>srcObjectKey</code> in <code>bucket</code> to
-     * <code>destObjectKey</code> in the same bucket preserving its metadata and setting its
-     * access to private.
+     * Download an S3 Object to a file, using the default request options. See
+     * {@link #getObjectToFile(String, String, Path, S3RequestOptions)}.
      */
-    public void copyObject (String srcObjectKey, String destObjectKey, String bucket)
+    public S3Metadata getObjectToFile (String bucketName, String objectKey, Path path)
         throws S3Exception
     {
-        copyObject(srcObjectKey, destObjectKey, bucket, bucket);
+        return getObjectToFile(bucketName, objectKey, path, new S3RequestOptions());
     }
 
     /**
-     * Copies the object at <code>srcObjectKey</code> in <code>srcBucket</code> to
-     * <code>destObjectKey</code> in <code>destBucket</code>. The metadata on the destination are
-     * the same as on the source and its access is set to private.
+     * Download an S3 Object to a file. The object's data is streamed into a temporary file
+     * in the destination directory through a large direct buffer, computing its MD5 digest
+     * as it is written. Once the download is complete and verified, the temporary file
+     * atomically replaces the destination, and its modification time is set to that of the
+     * object. On failure, the destination is left untouched.
+     *
+     * @param bucketName Source bucket.
+     * @param objectKey Object key.
+     * @param path Destination file.
+     * @param options Request options.
+     * @return The downloaded object's metadata.
+     * @throws S3ClientException.DigestMismatchException If verification is enabled and the
+     *  downloaded data does not match the object's digest.
      */
-    public void copyObject (String srcObjectKey, String destObjectKey, String srcBucket,
-        String destBucket)
+    public S3Metadata getObjectToFile (String bucketName, String objectKey, Path path,
+        S3RequestOptions options)
         throws S3Exception
     {
-
-        copyObject(srcObjectKey, destObjectKey, srcBucket, destBucket,
-            AccessControlList.StandardPolicy.PRIVATE);
+        return saveObject((S3Object)getObject(bucketName, objectKey, true, options, false),
+            path, options);
     }
 
     /**
-     * Copies the object at <code>srcObjectKey</code> in <code>srcBucket</code> to
-     * <code>destObjectKey</code> in <code>destBucket</code>. The metadata on the destination are
-     * the same as on the source and its access is set to the given policy.
+     * Save the given object's data to a file, closing the object's input stream. See
+     * {@link #getObjectToFile(String, String, Path, S3RequestOptions)}.
      */
-    public void copyObject (String srcObjectKey, String destObjectKey, String srcBucket,
-        String destBucket, AccessControlList.StandardPolicy accessPolicy)
+    static S3Metadata saveObject (S3Object object, Path path, S3RequestOptions options)
         throws S3Exception
     {
-        copyObject(srcObjectKey, destObjectKey, srcBucket, destBucket, accessPolicy,
-            null);
-    }
+        InputStream input = object.getInputStream();
+        Path temp = null;
+        try {
+            Path dir = path.toAbsolutePath().getParent();
+            temp = createTempFile(dir, "." + path.getFileName(), path);
+
+            long length = object.length();
+            if (options.getPreallocate() && length > 0) {
+                long usable = Files.getFileStore(dir).getUsableSpace();
+                if (usable < length) {
+                    throw new S3ClientException("Insufficient space to download '" +
+                        object.getKey() + "' (" + length + " bytes) to " + dir + " (" + usable +
+                        " bytes available)");
+                }
+            }
+
+            MessageDigest md = null;
+            byte[] expected = null;
+            S3ChecksumAlgorithm algorithm = S3ChecksumAlgorithm.NONE;
+            if (options.getVerifyDigest()) {
+                S3ChecksumAlgorithm preferred = options.getChecksumAlgorithm();
+                algorithm = selectChecksum(preferred, object.getMD5(),
+                    (preferred == S3ChecksumAlgorithm.CRC32C) ?
+                        object.getChecksum(S3ChecksumAlgorithm.CRC32C) : null);
+                expected = object.getChecksum(algorithm);
+                md = algorithm.createDigest();
+            }
+
+            long total = 0;
+            FileChannel output = FileChannel.open(temp, StandardOpenOption.WRITE);
+            try {
+                ReadableByteChannel source = Channels.newChannel(input);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(options.getBufferSize());
+                while (source.read(buffer) != -1) {
+                    buffer.flip();
+                    if (md != null) {
+                        buffer.mark();
+                        md.update(buffer);
+                        buffer.reset();
+                    }
+                    while (buffer.hasRemaining()) {
+                        total += output.write(buffer, total);
+                    }
+                    buffer.clear();
+                }
+            } finally {
+                output.close();
+            }
+
+            if (length >= 0 && total != length) {
+                throw new S3ClientException.DigestMismatchException("Received " + total +
+                    " bytes for '" + object.getKey() + "', expected " + length);
+            }
+            if (md != null && !MessageDigest.isEqual(expected, md.digest())) {
+                throw new S3ClientException.DigestMismatchException("Data received for '" +
+                    object.getKey() + "' does not match its " + algorithm + " checksum");
+            }
+
+            if (object.lastModified() > 0) {
+                Files.setLastModifiedTime(temp, FileTime.fromMillis(object.lastModified()));
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+            temp = null;
+        } catch (IOException ioe) {
+            if (ioe.getCause() instanceof S3ClientException.CancelledException) {
+                throw (S3ClientException.CancelledException)ioe.getCause();
+            }
+            throw new S3ClientException.NetworkException("Failure downloading '" +
+                object.getKey() + "' to " + path + ": " + ioe, ioe);
+        } finally {
+            IOUtils.closeQuietly(input);
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ioe) {
+                    // Nothing more we can do
+                }
+            }
+        }
+
+        return new S3EmptyObject(object.getKey(), object.getMediaType(), object.length(),
+            object.getMD5(), object.getMetadata(), object.lastModified());
+    }
+
+    /**
+     * Create a temporary file in the given directory, to replace the given destination. The
+     * file is created with the default permissions, or those of the destination if it
+     * exists: Files.createTempFile() would leave the destination readable by its owner alone.
+     */
+    private static Path createTempFile (Path dir, String prefix, Path destination)
+        throws IOException
+    {
+        Path temp;
+        while (true) {
+            temp = dir.resolve(prefix + Long.toHexString(ThreadLocalRandom.current().nextLong()) +
+                ".tmp");
+            try {
+                Files.createFile(temp);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                // Try another name
+            }
+        }
+
+        PosixFileAttributeView view = Files.getFileAttributeView(destination,
+            PosixFileAttributeView.class);
+        if (view != null && Files.exists(destination)) {
+            try {
+                Files.setPosixFilePermissions(temp, view.readAttributes().permissions());
+            } catch (IOException ioe) {
+                Files.deleteIfExists(temp);
+                throw ioe;
+            }
+        }
+        return temp;
+    }
+
+    /**
+     * Select the checksum used to verify downloaded data: the preferred checksum if S3
+     * supplied it, falling back to the MD5 digest, or {@link S3ChecksumAlgorithm#NONE} if
+     * neither is available.
+     */
+    private static S3ChecksumAlgorithm selectChecksum (S3ChecksumAlgorithm preferred,
+        byte[] md5, byte[] crc)
+    {
+        if (preferred == S3ChecksumAlgorithm.NONE) {
+            return S3ChecksumAlgorithm.NONE;
+        } else if (preferred == S3ChecksumAlgorithm.CRC32C && crc != null) {
+            return S3ChecksumAlgorithm.CRC32C;
+        } else if (md5 != null) {
+            return S3ChecksumAlgorithm.MD5;
+        }
+        return S3ChecksumAlgorithm.NONE;
+    }
+
+    /**
+     * Delete a remote S3 Object.
+     * @param bucketName Remote bucket.
+     * @param objectKey S3 object key.
+     */
+    public void deleteObject (String bucketName, String objectKey)
+        throws S3Exception
+    {
+        deleteObject(bucketName, objectKey, null);
+    }
+
+    /**
+     * Delete a remote S3 Object.
+     * @param bucketName Remote bucket.
+     * @param objectKey S3 object key.
+     * @param options Request options, or null. Only the cancellation handle applies.
+     */
+    public void deleteObject (String bucketName, String objectKey, S3RequestOptions options)
+        throws S3Exception
+    {
+        S3TransportRequest request = new S3TransportRequest(S3TransportRequest.DELETE,
+            encodePath(bucketName, objectKey));
+        if (options != null) {
+            request.setCancellation(options.getCancellation());
+        }
+        executeS3MethodAndRelease(request);
+    }
+
+    /**
+     * Copies the object at <code>srcObjectKey</code> in <code>bucket</code> to
+     * <code>destObjectKey</code> in the same bucket preserving its metadata and setting its
+     * access to private.
+     */
+    public void copyObject (String srcObjectKey, String destObjectKey, String bucket)
+        throws S3Exception
+    {
+        copyObject(srcObjectKey, destObjectKey, bucket, bucket);
+    }
+
+    /**
+     * Copies the object at <code>srcObjectKey</code> in <code>srcBucket</code> to
+     * <code>destObjectKey</code> in <code>destBucket</code>. The metadata on the destination are
+     * the same as on the source and its access is set to private.
+     */
+    public void copyObject (String srcObjectKey, String destObjectKey, String srcBucket,
+        String destBucket)
+        throws S3Exception
+    {
+
+        copyObject(srcObjectKey, destObjectKey, srcBucket, destBucket,
+            AccessControlList.StandardPolicy.PRIVATE);
+    }
+
+    /**
+     * Copies the object at <code>srcObjectKey</code> in <code>srcBucket</code> to
+     * <code>destObjectKey</code> in <code>destBucket</code>. The metadata on the destination are
+     * the same as on the source and its access is set to the given policy.
+     */
+    public void copyObject (String srcObjectKey, String destObjectKey, String srcBucket,
+        String destBucket, AccessControlList.StandardPolicy accessPolicy)
+        throws S3Exception
+    {
+        copyObject(srcObjectKey, destObjectKey, srcBucket, destBucket, accessPolicy,
+            null);
+    }
 
     /**
      * Copies the object at <code>srcObjectKey</code> in <code>srcBucket</code> to
@@ -577,77 +1227,485 @@ public class S3Connection {
         throws S3Exception
     {
 
-        PutMethod method = new PutMethod(encodePath(destBucket, destObjectKey));
+        S3TransportRequest request = new S3TransportRequest(S3TransportRequest.PUT,
+            encodePath(destBucket, destObjectKey));
 
-        method.setRequestHeader(S3_COPY_SOURCE_HEADER, encodePath(srcBucket, srcObjectKey));
+        request.setHeader(S3_COPY_SOURCE_HEADER, encodePath(srcBucket, srcObjectKey));
 
         // Set the access policy
-        method.setRequestHeader(S3Utils.ACL_HEADER, accessPolicy.toString());
+        request.setHeader(S3Utils.ACL_HEADER, accessPolicy.toString());
         if (metadata != null) {
-            method.setRequestHeader(S3_COPY_METADATA_HEADER, S3_COPY_METADATA_REPLACE_VALUE);
+            request.setHeader(S3_COPY_METADATA_HEADER, S3_COPY_METADATA_REPLACE_VALUE);
             // Set any metadata fields
             for (Map.Entry<String, String> entry : metadata.entrySet()) {
                 String header = S3_METADATA_PREFIX + entry.getKey();
-                method.setRequestHeader(header, entry.getValue());
+                request.setHeader(header, entry.getValue());
             }
         } else {
-            method.setRequestHeader(S3_COPY_METADATA_HEADER, S3_COPY_METADATA_COPY_VALUE);
+            request.setHeader(S3_COPY_METADATA_HEADER, S3_COPY_METADATA_COPY_VALUE);
         }
 
-        executeS3MethodAndRelease(method);
+        // A copy may fail after S3 has returned a 200 status, so check the response document
+        S3TransportResponse response = executeS3Method(request);
+        try {
+            readResponseDocument(response);
+        } finally {
+            response.release();
+        }
     }
 
     /**
-     * Execute the provided method, translating any error response into the appropriate
-     * S3Exception, and then releases the method's connection.
+     * Initiate a multipart upload, returning the new upload's ID. The upload's parts may then
+     * be copied with {@link #uploadPartCopy}, and the upload completed with
+     * {@link #completeMultipartUpload} or discarded with {@link #abortMultipartUpload}.
+     *
+     * @param bucketName Destination bucket.
+     * @param objectKey Destination object key.
+     * @param mediaType The completed object's media type.
+     * @param accessPolicy The completed object's access policy.
+     * @param metadata The completed object's metadata.
      */
-    private void executeS3MethodAndRelease (HttpMethod method)
+    public String initiateMultipartUpload (String bucketName, String objectKey,
+        MediaType mediaType, AccessControlList.StandardPolicy accessPolicy,
+        Map<String,String> metadata)
         throws S3Exception
     {
+        S3TransportRequest request = new S3TransportRequest(S3TransportRequest.POST,
+            encodePath(bucketName, objectKey))
+            .addQueryParameter(MULTIPART_UPLOADS_PARAMETER, null);
+
+        request.setHeader(CONTENT_TYPE_HEADER, mediaType.getMimeType());
+        if (mediaType.getContentEncoding() != null) {
+            request.setHeader(CONTENT_ENCODING_HEADER, mediaType.getContentEncoding());
+        }
+        request.setHeader(S3Utils.ACL_HEADER, accessPolicy.toString());
+        for (Map.Entry<String,String> entry : metadata.entrySet()) {
+            request.setHeader(S3_METADATA_PREFIX + entry.getKey(), entry.getValue());
+        }
+
+        S3TransportResponse response = executeS3Method(request);
         try {
-            executeS3Method(method);
+            return getResponseElement(readResponseDocument(response), "UploadId");
         } finally {
-            method.releaseConnection();
+            response.release();
         }
     }
 
     /**
-     * Execute the provided method, translating any error response into the appropriate
-     * S3Exception.
-     * @param method HTTP method to execute.
+     * Copy a byte range of an existing object into a part of a multipart upload, returning
+     * the new part's ETag.
+     *
+     * @param srcBucket Source bucket.
+     * @param srcObjectKey Source object key.
+     * @param srcETag If non-null, the copy fails unless the source object's ETag matches,
+     *  guarding against the source changing while its parts are copied.
+     * @param destBucket Destination bucket.
+     * @param destObjectKey Destination object key.
+     * @param uploadId Multipart upload ID, as returned by {@link #initiateMultipartUpload}.
+     * @param partNumber Part number, from 1 to 10,000.
+     * @param firstByte Offset of the first source byte to copy.
+     * @param lastByte Offset of the last source byte to copy (inclusive).
+     */
+    public String uploadPartCopy (String srcBucket, String srcObjectKey, String srcETag,
+        String destBucket, String destObjectKey, String uploadId, int partNumber,
+        long firstByte, long lastByte)
+        throws S3Exception
+    {
+        S3TransportRequest request = new S3TransportRequest(S3TransportRequest.PUT,
+            encodePath(destBucket, destObjectKey))
+            .addQueryParameter(MULTIPART_PART_NUMBER_PARAMETER, Integer.toString(partNumber))
+            .addQueryParameter(MULTIPART_UPLOAD_ID_PARAMETER, uploadId);
+
+        request.setHeader(S3_COPY_SOURCE_HEADER, encodePath(srcBucket, srcObjectKey));
+        request.setHeader(S3_COPY_SOURCE_RANGE_HEADER, "bytes=" + firstByte + "-" + lastByte);
+        if (srcETag != null) {
+            request.setHeader(S3_COPY_SOURCE_IF_MATCH_HEADER, "\"" + srcETag + "\"");
+        }
+
+        S3TransportResponse response = executeS3Method(request);
+        try {
+            return stripQuotes(getResponseElement(readResponseDocument(response), "ETag"));
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Complete a multipart upload, assembling the provided parts into the destination object.
+     * Returns the new object's ETag.
+     *
+     * @param bucketName Destination bucket.
+     * @param objectKey Destination object key.
+     * @param uploadId Multipart upload ID.
+     * @param parts The upload's parts, in ascending part number order.
+     */
+    public String completeMultipartUpload (String bucketName, String objectKey,
+        String uploadId, List<S3UploadPart> parts)
+        throws S3Exception
+    {
+        S3TransportRequest request = new S3TransportRequest(S3TransportRequest.POST,
+            encodePath(bucketName, objectKey))
+            .addQueryParameter(MULTIPART_UPLOAD_ID_PARAMETER, uploadId);
+
+        StringBuilder body = new StringBuilder("<CompleteMultipartUpload>");
+        for (S3UploadPart part : parts) {
+            body.append("<Part><PartNumber>").append(part.getPartNumber())
+                .append("</PartNumber><ETag>\"").append(part.getETag())
+                .append("\"</ETag></Part>");
+        }
+        body.append("</CompleteMultipartUpload>");
+
+        try {
+            request.setEntity(new StringRequestEntity(body.toString(), "application/xml",
+                "UTF-8"));
+        } catch (UnsupportedEncodingException uee) {
+            // UTF8 must always be supported.
+            throw new RuntimeException("Missing UTF8 encoding");
+        }
+
+        S3TransportResponse response = executeS3Method(request);
+        try {
+            return stripQuotes(getResponseElement(readResponseDocument(response), "ETag"));
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Abort a multipart upload, discarding any parts that have been uploaded.
+     *
+     * @param bucketName Destination bucket.
+     * @param objectKey Destination object key.
+     * @param uploadId Multipart upload ID.
+     */
+    public void abortMultipartUpload (String bucketName, String objectKey, String uploadId)
+        throws S3Exception
+    {
+        executeS3MethodAndRelease(new S3TransportRequest(S3TransportRequest.DELETE,
+            encodePath(bucketName, objectKey))
+            .addQueryParameter(MULTIPART_UPLOAD_ID_PARAMETER, uploadId));
+    }
+
+    /**
+     * Execute the provided request, translating any error response into the appropriate
+     * S3Exception, and then releases the response's connection.
      */
-    private void executeS3Method (HttpMethod method)
+    private void executeS3MethodAndRelease (S3TransportRequest request)
         throws S3Exception
     {
-        int statusCode;
+        executeS3Method(request).release();
+    }
+
+    /**
+     * Execute the provided request, translating any error response into the appropriate
+     * S3Exception. If the request has no body, or its body is repeatable, it is retried
+     * according to the connection's retry policy. The returned response must be released by
+     * the caller.
+     * @param request HTTP request to execute.
+     */
+    private S3TransportResponse executeS3Method (final S3TransportRequest request)
+        throws S3Exception
+    {
+        RequestEntity entity = request.getEntity();
+        boolean repeatable = (entity == null || entity.isRepeatable());
+        return retry(repeatable, request.getCancellation(), new Attempt<S3TransportResponse>() {
+            public S3TransportResponse run () throws S3Exception {
+                return executeS3MethodHedged(request);
+            }
+        });
+    }
+
+    /**
+     * Make a single attempt to execute the provided request, hedging it according to the
+     * connection's hedge policy if it is a GET or HEAD request.
+     */
+    private S3TransportResponse executeS3MethodHedged (S3TransportRequest request)
+        throws S3Exception
+    {
+        final S3HedgePolicy policy = _hedgePolicy;
+        String method = request.getMethod();
+        if (policy == null ||
+            !(method.equals(S3TransportRequest.GET) || method.equals(S3TransportRequest.HEAD))) {
+            return executeS3MethodOnce(request);
+        }
+
+        policy.recordRequest();
+        CompletionService<S3TransportResponse> completion =
+            new ExecutorCompletionService<S3TransportResponse>(policy.getExecutor());
+        final AtomicBoolean decided = new AtomicBoolean();
+        List<Future<S3TransportResponse>> attempts =
+            new ArrayList<Future<S3TransportResponse>>();
+        List<S3TransportRequest> copies = new ArrayList<S3TransportRequest>();
+        Future<S3TransportResponse> winner = null;
+        S3Exception failure = null;
+
+        try {
+            copies.add(request.copy());
+            attempts.add(completion.submit(new HedgedAttempt(copies.get(0), policy, decided)));
+            Future<S3TransportResponse> done = completion.poll(policy.getHedgeDelay(),
+                TimeUnit.MILLISECONDS);
+            if (done == null && policy.tryHedge()) {
+                copies.add(request.copy());
+                attempts.add(completion.submit(new HedgedAttempt(copies.get(1), policy,
+                    decided)));
+            }
+
+            // The first successful response wins; the attempts abort any later responses,
+            // completing with null, and the loser may complete before the winner
+            for (int i = 0; i < attempts.size(); i++) {
+                if (done == null) {
+                    done = completion.take();
+                }
+                try {
+                    S3TransportResponse response = done.get();
+                    if (response != null) {
+                        winner = done;
+                        return response;
+                    }
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof S3Exception) {
+                        if (failure == null) {
+                            failure = (S3Exception)cause;
+                        }
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException)cause;
+                    } else {
+                        throw (Error)cause;
+                    }
+                }
+                done = null;
+            }
+            throw failure;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new S3ClientException("Interrupted while executing " + request, ie);
+        } finally {
+            // Interrupting a loser does not unblock a socket read, so abort its exchange
+            decided.set(true);
+            for (int i = 0; i < attempts.size(); i++) {
+                Future<S3TransportResponse> attempt = attempts.get(i);
+                if (attempt != winner) {
+                    attempt.cancel(true);
+                    copies.get(i).abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * Make a single attempt to execute the provided request, if the connection's circuit
+     * breaker, if any, admits it.
+     */
+    private S3TransportResponse executeS3MethodOnce (S3TransportRequest request)
+        throws S3Exception
+    {
+        S3CircuitBreaker breaker = _circuitBreaker;
+        if (breaker == null) {
+            return executeS3MethodLimited(request);
+        }
+
+        S3CircuitBreaker.Permit permit = breaker.allowRequest();
+        if (permit == null) {
+            throw new S3ClientException.CircuitOpenException("Circuit breaker is open; " +
+                "refusing to execute " + request);
+        }
+
+        // Failures not caused by the endpoint, such as cancellation, are not recorded
+        try {
+            S3TransportResponse response = executeS3MethodLimited(request);
+            permit.record(false);
+            return response;
+        } catch (S3Exception e) {
+            if (S3CircuitBreaker.isOutcome(e)) {
+                permit.record(S3CircuitBreaker.isFailure(e));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Execute the provided request, once the connection's rate and concurrency limiters,
+     * if any, admit it.
+     */
+    private S3TransportResponse executeS3MethodLimited (S3TransportRequest request)
+        throws S3Exception
+    {
+        S3RateLimiter rateLimiter = _rateLimiter;
+        S3ConcurrencyLimiter limiter = _concurrencyLimiter;
+        S3Cancellation cancellation = request.getCancellation();
+        S3ConcurrencyLimiter.Permit permit = null;
+
+        // Wait for the request's partition to admit it, but no longer than its deadline
+        try {
+            if (rateLimiter != null &&
+                !rateLimiter.acquire(request.getMethod(), request.getPath(), cancellation)) {
+                cancellation.check(request);
+            }
+            if (limiter != null) {
+                long timeout = 0;
+                if (cancellation != null) {
+                    cancellation.check(request);
+                    long remaining = cancellation.getRemaining();
+                    timeout = (remaining == Long.MAX_VALUE) ? 0 : Math.max(1, remaining);
+                }
+                permit = limiter.acquire(request.getPath(), timeout);
+                if (permit == null) {
+                    throw new S3ClientException.DeadlineExceededException(
+                        "Deadline exceeded while waiting to execute " + request);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new S3ClientException("Interrupted while waiting to execute " + request, ie);
+        }
+
+        if (permit == null) {
+            return executeS3MethodOnce(request, null);
+        }
+
+        boolean success = false;
+        try {
+            S3TransportResponse response = executeS3MethodOnce(request, permit);
+            success = true;
+            return response;
+        } finally {
+            if (!success) {
+                permit.release();
+            }
+        }
+    }
+
+    /**
+     * Make a single attempt to execute the provided request, recording its outcome with
+     * the given concurrency limiter permit, if any. The returned response releases the
+     * permit, and unregisters the request from its cancellation handle, once it is released.
+     */
+    private S3TransportResponse executeS3MethodOnce (S3TransportRequest request,
+        S3ConcurrencyLimiter.Permit permit)
+        throws S3Exception
+    {
+        S3Cancellation cancellation = request.getCancellation();
+        S3TransportResponse response;
 
         // Sign the request
-        S3Utils.signAWSRequest(keyId, secretKey, method, null);
+        S3Utils.signAWSRequest(keyId, secretKey, request);
 
-        // Execute the request
+        // Execute the request, aborting it if it is cancelled
+        if (cancellation != null) {
+            cancellation.check(request);
+            cancellation.register(request);
+        }
         try {
-            statusCode = httpClient.executeMethod(method);
+            response = _transport.execute(request);
         } catch (IOException ioe) {
+            boolean cancelled = (cancellation != null && cancellation.isCancelled());
+            if (permit != null) {
+                permit.record(!cancelled);
+            }
+            if (cancellation != null) {
+                cancellation.unregister(request);
+                cancellation.check(request);
+            }
             throw new S3ClientException.NetworkException("Network error executing S3 method: " +
                 ioe.getMessage(), ioe);
         }
 
+        if (permit != null || cancellation != null) {
+            response = new TrackedResponse(response, request, permit);
+        }
+
+        boolean success = false;
+        try {
+            checkResponse(request, response);
+            success = true;
+            return response;
+        } catch (S3Exception e) {
+            if (permit != null) {
+                permit.record(S3ConcurrencyLimiter.isOverloaded(e));
+            }
+            throw e;
+        } finally {
+            if (permit != null) {
+                permit.record(false);
+            }
+            if (!success) {
+                response.release();
+            }
+        }
+    }
+
+    /**
+     * Run the provided attempt, retrying it according to the connection's retry policy if
+     * it fails and is repeatable.
+     */
+    private <T> T retry (boolean repeatable, S3Cancellation cancellation, Attempt<T> attempt)
+        throws S3Exception
+    {
+        S3RetryPolicy policy = _retryPolicy;
+        if (policy == null || !repeatable) {
+            return attempt.run();
+        }
+
+        long start = System.currentTimeMillis();
+        for (int retry = 0; ; retry++) {
+            try {
+                T result = attempt.run();
+                policy.recordSuccess();
+                return result;
+            } catch (S3Exception e) {
+                long delay = policy.getRetryDelay(e, retry, System.currentTimeMillis() - start);
+
+                // Don't start a retry that would begin after the call's deadline
+                if (delay >= 0 && cancellation != null && delay >= cancellation.getRemaining()) {
+                    delay = -1;
+                }
+                if (delay < 0) {
+                    throw e;
+                }
+
+                // Wake early if the call is cancelled while waiting to retry
+                if (cancellation == null) {
+                    if (!S3Utils.retrySleep(delay)) {
+                        throw e;
+                    }
+                } else {
+                    try {
+                        if (!cancellation.sleep(TimeUnit.MILLISECONDS.toNanos(delay))) {
+                            cancellation.check("retry after " + e.getMessage());
+                        }
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Translate an error response into the appropriate S3Exception.
+     */
+    private void checkResponse (S3TransportRequest request, S3TransportResponse response)
+        throws S3Exception
+    {
+        int statusCode = response.getStatusCode();
         if (!(statusCode >= HttpStatus.SC_OK && statusCode < HttpStatus.SC_MULTIPLE_CHOICES)) {
-            if (method instanceof HeadMethod) {
+            if (request.getMethod().equals(S3TransportRequest.HEAD)) {
                 // HEAD calls don't include a response body, so the best we can do is to throw an
                 // exception indicating the status code.  Happily, S3 does a good job of mapping
                 // their errors to HTTP status codes, so things like 404 mean either the bucket
                 // or key didn't exist
                 throw S3ServerException.exceptionForS3ErrorCode(statusCode,
                     "S3 returned status code " + statusCode + " for a HEAD request for "
-                        + method.getPath());
+                        + request.getPath()).setStatusCode(statusCode);
             }
             // Request failed, throw exception.
             byte[] responseData = new byte[S3_MAX_ERROR_SIZE];
             int errorLen;
 
             try {
-                InputStream stream = method.getResponseBodyAsStream();
+                InputStream stream = response.getBody();
                 if (stream == null) {
                     // We should always receive a response!
                     throw new S3Exception("S3 failed to return an error " +
@@ -666,19 +1724,105 @@ public class S3Connection {
             // Trim the byte array to the response's length to make it a valid XML document.
             byte[] errorDoc = new byte[errorLen];
             System.arraycopy(responseData, 0, errorDoc, 0, errorLen);
+            throw S3ServerException.exceptionForS3Error(errorDoc).setStatusCode(statusCode);
+        }
+    }
+
+    /**
+     * Read and parse a successful request's XML response document. Some requests, such as
+     * completing a multipart upload, may fail after S3 has already returned a 200 status; in
+     * that case the response is an error document, which is thrown as the appropriate
+     * S3Exception.
+     */
+    private Element readResponseDocument (S3TransportResponse response)
+        throws S3Exception
+    {
+        byte[] document;
+        try {
+            InputStream stream = response.getBody();
+            if (stream == null) {
+                throw new S3Exception("S3 failed to return a response document");
+            }
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] data = new byte[S3_MAX_ERROR_SIZE];
+            int len;
+            while ((len = stream.read(data)) != -1) {
+                buffer.write(data, 0, len);
+                if (buffer.size() > S3_MAX_RESPONSE_SIZE) {
+                    throw new S3Exception("S3 returned a response document longer than is valid");
+                }
+            }
+            document = buffer.toByteArray();
+        } catch (IOException ioe) {
+            throw new S3ClientException.NetworkException("Network error receiving S3 response: " +
+                ioe.getMessage(), ioe);
+        }
+
+        // S3 may send whitespace to keep the connection alive while a long-running request
+        // is processed, so the document does not necessarily begin with the XML declaration.
+        int start = 0;
+        while (start < document.length && Character.isWhitespace(document[start])) {
+            start++;
+        }
+
+        Element root;
+        try {
+            DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            root = db.parse(new ByteArrayInputStream(document, start, document.length - start))
+                .getDocumentElement();
+        } catch (ParserConfigurationException pce) {
+            throw new S3ClientException("Error configuring XML parser: " + pce.getMessage(), pce);
+        } catch (SAXException se) {
+            throw new S3ClientException("Error parsing S3 response: " + se.getMessage(), se);
+        } catch (IOException ioe) {
+            throw new S3ClientException("Error parsing S3 response: " + ioe.getMessage(), ioe);
+        }
+
+        if (root.getNodeName().equals("Error")) {
+            byte[] errorDoc = new byte[document.length - start];
+            System.arraycopy(document, start, errorDoc, 0, errorDoc.length);
             throw S3ServerException.exceptionForS3Error(errorDoc);
         }
+        return root;
     }
 
     /**
-     * Pull the header value out of the HTTP method response.
+     * Return the text of the named child element of the given response document element.
      */
-    private String getResponseHeader (HttpMethod method, String name, boolean required)
+    private String getResponseElement (Element root, String name)
         throws S3Exception
     {
-        Header header;
+        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeName().equals(name)) {
+                return node.getTextContent();
+            }
+        }
+        throw new S3Exception("S3 failed to return a " + name + " element in " +
+            root.getNodeName());
+    }
 
-        header = method.getResponseHeader(name);
+    /**
+     * Strip the surrounding quotes from an ETag value.
+     */
+    static String stripQuotes (String eTag)
+    {
+        if (eTag.length() >= 2 && eTag.startsWith("\"") && eTag.endsWith("\"")) {
+            return eTag.substring(1, eTag.length() - 1);
+        }
+        return eTag;
+    }
+
+    /**
+     * Pull the header value out of the HTTP response.
+     */
+    private String getResponseHeader (S3TransportResponse response, String name,
+        boolean required)
+        throws S3Exception
+    {
+        String header;
+
+        header = response.getHeader(name);
         if (header == null) {
             if (required) {
                 throw new S3Exception("S3 failed to return a " + name + " header");
@@ -687,7 +1831,7 @@ public class S3Connection {
             }
         }
 
-        return header.getValue();
+        return header;
     }
 
     /**
@@ -725,12 +1869,30 @@ public class S3Connection {
     /** AWS Access Key. */
     private final String secretKey;
 
-    /** S3 HTTP client. */
-    private final HttpClient httpClient;
+    /** HTTP transport. */
+    private final S3Transport _transport;
 
     /** URL encoder. */
     private final URLCodec _urlEncoder = new URLCodec();
 
+    /** Default upload checksum algorithm. */
+    private volatile S3ChecksumAlgorithm _checksumAlgorithm = S3ChecksumAlgorithm.MD5;
+
+    /** Request retry policy, or null. */
+    private volatile S3RetryPolicy _retryPolicy;
+
+    /** Request concurrency limiter, or null. */
+    private volatile S3ConcurrencyLimiter _concurrencyLimiter;
+
+    /** Request rate limiter, or null. */
+    private volatile S3RateLimiter _rateLimiter;
+
+    /** Endpoint circuit breaker, or null. */
+    private volatile S3CircuitBreaker _circuitBreaker;
+
+    /** Request hedge policy, or null. */
+    private volatile S3HedgePolicy _hedgePolicy;
+
     /** Prefix parameter. */
     private static final String LIST_PREFIX_PARAMETER = "prefix";
 
@@ -746,6 +1908,18 @@ public class S3Connection {
     /** Maximum size of S3's error output. Should never be larger than 2k!!! */
     private static final int S3_MAX_ERROR_SIZE = 2048;
 
+    /** Maximum size of the multipart upload responses we parse. */
+    private static final int S3_MAX_RESPONSE_SIZE = 64 * 1024;
+
+    /** Initiate multipart upload sub-resource. */
+    private static final String MULTIPART_UPLOADS_PARAMETER = "uploads";
+
+    /** Multipart upload ID parameter. */
+    private static final String MULTIPART_UPLOAD_ID_PARAMETER = "uploadId";
+
+    /** Multipart part number parameter. */
+    private static final String MULTIPART_PART_NUMBER_PARAMETER = "partNumber";
+
     /** Header for MD5 checksum validation. */
     private static final String CONTENT_MD5_HEADER = "Content-MD5";
 
@@ -765,9 +1939,34 @@ public class S3Connection {
     /** Header prefix for object metadata. */
     private static final String S3_METADATA_PREFIX = "x-amz-meta-";
 
+    /** Header for an object's CRC32C checksum. */
+    private static final String S3_CHECKSUM_CRC32C_HEADER = "x-amz-checksum-crc32c";
+
+    /** Header requesting that S3 return an object's stored checksums. */
+    private static final String S3_CHECKSUM_MODE_HEADER = "x-amz-checksum-mode";
+
+    /** Checksum mode value enabling returned checksums. */
+    private static final String S3_CHECKSUM_MODE_ENABLED_VALUE = "ENABLED";
+
+    /** Server-side encryption response header. */
+    private static final String S3_ENCRYPTION_HEADER = "x-amz-server-side-encryption";
+
+    /** Server-side encryption with S3-managed keys, which preserves MD5 ETags. */
+    private static final String S3_ENCRYPTION_AES256_VALUE = "AES256";
+
+    /** Server-side encryption with a customer-provided key response header. */
+    private static final String S3_ENCRYPTION_CUSTOMER_HEADER =
+        "x-amz-server-side-encryption-customer-algorithm";
+
     /** Header prefix for object metadata. */
     private static final String S3_COPY_SOURCE_HEADER = "x-amz-copy-source";
 
+    /** Header for the source byte range of a part copy. */
+    private static final String S3_COPY_SOURCE_RANGE_HEADER = "x-amz-copy-source-range";
+
+    /** Header for the expected source ETag of a copy. */
+    private static final String S3_COPY_SOURCE_IF_MATCH_HEADER = "x-amz-copy-source-if-match";
+
     /** Header prefix for object metadata. */
     private static final String S3_COPY_METADATA_HEADER = "x-amz-metadata-directive";
 
@@ -777,10 +1976,130 @@ public class S3Connection {
     /** Header prefix for object metadata. */
     private static final String S3_COPY_METADATA_COPY_VALUE = "COPY";
 
-    /** A retry handler that never retries. */
-    private static final HttpMethodRetryHandler NO_RETRY = new HttpMethodRetryHandler () {
-        public boolean retryMethod (HttpMethod method, IOException exception, int exceptionCount) {
-            return false;
+    /** A request that may be attempted more than once. */
+    private interface Attempt<T> {
+        public T run () throws S3Exception;
+    }
+
+    /**
+     * A single attempt of a hedged request. Once a response has been accepted, any later
+     * response is aborted.
+     */
+    private class HedgedAttempt implements Callable<S3TransportResponse> {
+        public HedgedAttempt (S3TransportRequest request, S3HedgePolicy policy,
+            AtomicBoolean decided)
+        {
+            _request = request;
+            _policy = policy;
+            _decided = decided;
+        }
+
+        // from interface Callable
+        public S3TransportResponse call ()
+            throws S3Exception
+        {
+            long start = System.nanoTime();
+            S3TransportResponse response = executeS3MethodOnce(_request);
+            _policy.recordLatency((System.nanoTime() - start) / (1000 * 1000));
+
+            if (!_decided.compareAndSet(false, true)) {
+                response.abort();
+                return null;
+            }
+            return response;
+        }
+
+        /** The attempt's copy of the request. */
+        private final S3TransportRequest _request;
+
+        /** The hedge policy. */
+        private final S3HedgePolicy _policy;
+
+        /** Set once a response has been accepted, or the request abandoned. */
+        private final AtomicBoolean _decided;
+    }
+
+    /**
+     * A response that releases its concurrency limiter permit, if any, and unregisters its
+     * request from its cancellation handle, if any, along with its connection.
+     */
+    private static class TrackedResponse implements S3TransportResponse {
+        public TrackedResponse (S3TransportResponse response, S3TransportRequest request,
+            S3ConcurrencyLimiter.Permit permit)
+        {
+            _response = response;
+            _request = request;
+            _permit = permit;
         }
-    };
+
+        // from interface S3TransportResponse
+        public int getStatusCode () {
+            return _response.getStatusCode();
+        }
+
+        // from interface S3TransportResponse
+        public String getHeader (String name) {
+            return _response.getHeader(name);
+        }
+
+        // from interface S3TransportResponse
+        public Map<String,String> getHeaders () {
+            return _response.getHeaders();
+        }
+
+        // from interface S3TransportResponse
+        public long getContentLength () {
+            return _response.getContentLength();
+        }
+
+        // from interface S3TransportResponse
+        public InputStream getBody ()
+            throws IOException
+        {
+            return _response.getBody();
+        }
+
+        // from interface S3TransportResponse
+        public void release ()
+        {
+            try {
+                _response.release();
+            } finally {
+                finish();
+            }
+        }
+
+        // from interface S3TransportResponse
+        public void abort ()
+        {
+            try {
+                _response.abort();
+            } finally {
+                finish();
+            }
+        }
+
+        /**
+         * Release the permit and unregister the request.
+         */
+        private void finish ()
+        {
+            if (_permit != null) {
+                _permit.release();
+            }
+            S3Cancellation cancellation = _request.getCancellation();
+            if (cancellation != null) {
+                cancellation.unregister(_request);
+            }
+        }
+
+        /** The wrapped response. */
+        private final S3TransportResponse _response;
+
+        /** The request. */
+        private final S3TransportRequest _request;
+
+        /** The request's permit, or null. */
+        private final S3ConcurrencyLimiter.Permit _permit;
+    }
 }
@@ -0,0 +1,246 @@
+/*
+ * S3ConnectionConfig vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+/**
+ * Connection pool and socket settings for an {@link S3Connection}. Setters return the
+ * configuration instance, allowing them to be chained:
+ *
+ * <pre>
+ * new S3Connection(keyId, secretKey, hostConfig, new S3ConnectionConfig()
+ *     .setMaxConnectionsPerHost(64).setMaxTotalConnections(256)
+ *     .setIdleTimeout(30 * 1000));
+ * </pre>
+ *
+ * The defaults reproduce the behavior of connections created without a configuration: an
+ * unbounded pool, whose connections are never evicted. Applications issuing bursts of
+ * concurrent requests should bound the pool, so as not to exhaust the host's ephemeral
+ * ports; requests beyond the limit wait up to the lease timeout for a connection.
+ */
+public class S3ConnectionConfig {
+
+    /**
+     * Set the maximum number of pooled connections to a single host. Defaults to unlimited.
+     */
+    public S3ConnectionConfig setMaxConnectionsPerHost (int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("Invalid connection limit: " +
+                maxConnectionsPerHost);
+        }
+        _maxConnectionsPerHost = maxConnectionsPerHost;
+        return this;
+    }
+
+    /** Returns the maximum number of pooled connections to a single host. */
+    public int getMaxConnectionsPerHost () {
+        return _maxConnectionsPerHost;
+    }
+
+    /**
+     * Set the maximum number of pooled connections. Defaults to unlimited.
+     */
+    public S3ConnectionConfig setMaxTotalConnections (int maxTotalConnections) {
+        if (maxTotalConnections < 1) {
+            throw new IllegalArgumentException("Invalid connection limit: " +
+                maxTotalConnections);
+        }
+        _maxTotalConnections = maxTotalConnections;
+        return this;
+    }
+
+    /** Returns the maximum number of pooled connections. */
+    public int getMaxTotalConnections () {
+        return _maxTotalConnections;
+    }
+
+    /**
+     * Set the time, in milliseconds, a request waits for a pooled connection once the pool
+     * is exhausted, or 0 to wait indefinitely. Defaults to
+     * {@link S3Connection#DEFAULT_TIMEOUT_MILLIS}.
+     */
+    public S3ConnectionConfig setLeaseTimeout (long leaseTimeout) {
+        _leaseTimeout = leaseTimeout;
+        return this;
+    }
+
+    /** Returns the connection lease timeout, in milliseconds. */
+    public long getLeaseTimeout () {
+        return _leaseTimeout;
+    }
+
+    /**
+     * Set the time, in milliseconds, after which idle pooled connections are closed by a
+     * reaper thread, or 0 to never close idle connections. Defaults to 0.
+     */
+    public S3ConnectionConfig setIdleTimeout (long idleTimeout) {
+        _idleTimeout = idleTimeout;
+        return this;
+    }
+
+    /** Returns the idle connection timeout, in milliseconds. */
+    public long getIdleTimeout () {
+        return _idleTimeout;
+    }
+
+    /**
+     * Set the maximum lifetime, in milliseconds, of a pooled connection, or 0 for no limit.
+     * A connection older than its time to live is closed when it is returned to the pool,
+     * and is reopened on its next use; this spreads long-running clients across S3's hosts
+     * as DNS changes. Defaults to 0.
+     */
+    public S3ConnectionConfig setConnectionTTL (long connectionTTL) {
+        _connectionTTL = connectionTTL;
+        return this;
+    }
+
+    /** Returns the connection time to live, in milliseconds. */
+    public long getConnectionTTL () {
+        return _connectionTTL;
+    }
+
+    /**
+     * Set whether pooled connections are checked for staleness before each use. The check
+     * detects connections closed by the server while idle, at the cost of a short blocking
+     * read per request. Defaults to true.
+     */
+    public S3ConnectionConfig setStaleChecking (boolean staleChecking) {
+        _staleChecking = staleChecking;
+        return this;
+    }
+
+    /** Returns true if pooled connections are checked for staleness. */
+    public boolean getStaleChecking () {
+        return _staleChecking;
+    }
+
+    /**
+     * Set the socket connect timeout, in milliseconds, or 0 for no timeout. Defaults to 0.
+     */
+    public S3ConnectionConfig setConnectTimeout (int connectTimeout) {
+        _connectTimeout = connectTimeout;
+        return this;
+    }
+
+    /** Returns the socket connect timeout, in milliseconds. */
+    public int getConnectTimeout () {
+        return _connectTimeout;
+    }
+
+    /**
+     * Set the socket read timeout, in milliseconds, or 0 for no timeout. Defaults to
+     * {@link S3Connection#DEFAULT_TIMEOUT_MILLIS}.
+     */
+    public S3ConnectionConfig setSocketTimeout (int socketTimeout) {
+        _socketTimeout = socketTimeout;
+        return this;
+    }
+
+    /** Returns the socket read timeout, in milliseconds. */
+    public int getSocketTimeout () {
+        return _socketTimeout;
+    }
+
+    /**
+     * Set whether Nagle's algorithm is disabled (TCP_NODELAY). Defaults to true.
+     */
+    public S3ConnectionConfig setTcpNoDelay (boolean tcpNoDelay) {
+        _tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    /** Returns true if Nagle's algorithm is disabled. */
+    public boolean getTcpNoDelay () {
+        return _tcpNoDelay;
+    }
+
+    /**
+     * Set the socket send buffer size (SO_SNDBUF), or -1 for the system default. Links with
+     * a high bandwidth-delay product require buffers of at least the product to saturate
+     * the link. Defaults to -1.
+     */
+    public S3ConnectionConfig setSendBufferSize (int sendBufferSize) {
+        _sendBufferSize = sendBufferSize;
+        return this;
+    }
+
+    /** Returns the socket send buffer size, or -1 for the system default. */
+    public int getSendBufferSize () {
+        return _sendBufferSize;
+    }
+
+    /**
+     * Set the socket receive buffer size (SO_RCVBUF), or -1 for the system default.
+     * Defaults to -1.
+     */
+    public S3ConnectionConfig setReceiveBufferSize (int receiveBufferSize) {
+        _receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    /** Returns the socket receive buffer size, or -1 for the system default. */
+    public int getReceiveBufferSize () {
+        return _receiveBufferSize;
+    }
+
+    /** Per-host connection limit. */
+    private int _maxConnectionsPerHost = Integer.MAX_VALUE;
+
+    /** Total connection limit. */
+    private int _maxTotalConnections = Integer.MAX_VALUE;
+
+    /** Connection lease timeout. */
+    private long _leaseTimeout = S3Connection.DEFAULT_TIMEOUT_MILLIS;
+
+    /** Idle connection timeout. */
+    private long _idleTimeout = 0;
+
+    /** Connection time to live. */
+    private long _connectionTTL = 0;
+
+    /** Check connections for staleness. */
+    private boolean _staleChecking = true;
+
+    /** Socket connect timeout. */
+    private int _connectTimeout = 0;
+
+    /** Socket read timeout. */
+    private int _socketTimeout = S3Connection.DEFAULT_TIMEOUT_MILLIS;
+
+    /** Disable Nagle's algorithm. */
+    private boolean _tcpNoDelay = true;
+
+    /** Socket send buffer size. */
+    private int _sendBufferSize = -1;
+
+    /** Socket receive buffer size. */
+    private int _receiveBufferSize = -1;
+}
@@ -0,0 +1,111 @@
+/*
+ * S3ConnectionPoolStats vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+/**
+ * A snapshot of an {@link S3Connection}'s connection pool.
+ */
+public class S3ConnectionPoolStats {
+    /**
+     * Create a new snapshot.
+     */
+    public S3ConnectionPoolStats (int leased, int idle, int pending, long leaseCount,
+        long totalWaitNanos, long maxWaitNanos)
+    {
+        _leased = leased;
+        _idle = idle;
+        _pending = pending;
+        _leaseCount = leaseCount;
+        _totalWaitNanos = totalWaitNanos;
+        _maxWaitNanos = maxWaitNanos;
+    }
+
+    /** Returns the number of connections currently in use by requests. */
+    public int getLeased () {
+        return _leased;
+    }
+
+    /** Returns the number of pooled connections not currently in use. */
+    public int getIdle () {
+        return _idle;
+    }
+
+    /** Returns the number of requests currently waiting for a connection. */
+    public int getPending () {
+        return _pending;
+    }
+
+    /** Returns the total number of connections leased. */
+    public long getLeaseCount () {
+        return _leaseCount;
+    }
+
+    /** Returns the total time requests have spent waiting for a connection, in nanoseconds. */
+    public long getTotalWaitNanos () {
+        return _totalWaitNanos;
+    }
+
+    /** Returns the longest time a request has waited for a connection, in nanoseconds. */
+    public long getMaxWaitNanos () {
+        return _maxWaitNanos;
+    }
+
+    /** Returns the mean time requests have waited for a connection, in nanoseconds. */
+    public long getMeanWaitNanos () {
+        return (_leaseCount > 0) ? _totalWaitNanos / _leaseCount : 0;
+    }
+
+    @Override
+    public String toString () {
+        return "leased=" + _leased + ", idle=" + _idle + ", pending=" + _pending +
+            ", leases=" + _leaseCount + ", meanWait=" + getMeanWaitNanos() / 1000 + "us" +
+            ", maxWait=" + _maxWaitNanos / 1000 + "us";
+    }
+
+    /** Leased connections. */
+    private final int _leased;
+
+    /** Idle connections. */
+    private final int _idle;
+
+    /** Waiting requests. */
+    private final int _pending;
+
+    /** Total leases. */
+    private final long _leaseCount;
+
+    /** Total lease wait time. */
+    private final long _totalWaitNanos;
+
+    /** Longest lease wait time. */
+    private final long _maxWaitNanos;
+}
@@ -0,0 +1,292 @@
+/*
+ * S3DigestCacheFile vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A persistent {@link S3DigestCache}, stored in a compact append-only log file. The log is
+ * read into memory when the cache is opened; each new digest is then appended to the log,
+ * superseding any earlier record for the same path. When superseded records come to
+ * dominate the log, it is rewritten with only the current records.
+ *
+ * A log truncated by a crash loses only its final, partially written record. The cache must
+ * be closed to ensure that all digests are written.
+ */
+public class S3DigestCacheFile implements S3DigestCache {
+
+    /**
+     * Open (or create) the digest cache stored in the given file.
+     */
+    public S3DigestCacheFile (File file)
+        throws S3ClientException
+    {
+        _file = file;
+
+        boolean rewrite = false;
+        if (file.exists()) {
+            rewrite = load() || _records > COMPACT_MIN_RECORDS && _records > _entries.size() * 2;
+        }
+
+        try {
+            if (rewrite || !file.exists()) {
+                rewrite();
+            }
+            _output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file, true), BUFFER_SIZE));
+        } catch (IOException ioe) {
+            throw new S3ClientException("Failure writing digest cache " + file + ": " + ioe, ioe);
+        }
+    }
+
+    // from interface S3DigestCache
+    public synchronized byte[] get (S3FileIdentity identity)
+    {
+        Entry entry = _entries.get(identity.getPath());
+        if (entry == null || !entry.identity.equals(identity)) {
+            return null;
+        }
+        return entry.digest.clone();
+    }
+
+    // from interface S3DigestCache
+    public synchronized void put (S3FileIdentity identity, byte[] digest)
+        throws S3ClientException
+    {
+        if (_output == null) {
+            throw new S3ClientException("Digest cache " + _file + " is closed");
+        }
+
+        Entry entry = new Entry(identity, digest.clone());
+        _entries.put(identity.getPath(), entry);
+        try {
+            writeEntry(_output, entry);
+            _records++;
+        } catch (IOException ioe) {
+            throw new S3ClientException("Failure writing digest cache " + _file + ": " + ioe,
+                ioe);
+        }
+    }
+
+    /**
+     * Returns the number of cached digests.
+     */
+    public synchronized int size () {
+        return _entries.size();
+    }
+
+    /**
+     * Write any buffered digests to disk.
+     */
+    public synchronized void flush ()
+        throws S3ClientException
+    {
+        try {
+            if (_output != null) {
+                _output.flush();
+            }
+        } catch (IOException ioe) {
+            throw new S3ClientException("Failure writing digest cache " + _file + ": " + ioe,
+                ioe);
+        }
+    }
+
+    /**
+     * Write any buffered digests to disk and close the cache. Further digests may not be
+     * cached.
+     */
+    public synchronized void close ()
+        throws S3ClientException
+    {
+        if (_output == null) {
+            return;
+        }
+
+        try {
+            _output.close();
+        } catch (IOException ioe) {
+            throw new S3ClientException("Failure writing digest cache " + _file + ": " + ioe,
+                ioe);
+        } finally {
+            _output = null;
+        }
+    }
+
+    /**
+     * Read the log into memory. Returns true if the log was truncated, and must be
+     * rewritten before further records are appended.
+     */
+    private boolean load ()
+        throws S3ClientException
+    {
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(_file),
+                BUFFER_SIZE));
+            if (input.readInt() != MAGIC) {
+                throw new S3ClientException("Invalid digest cache header: " + _file);
+            }
+            int version = input.readInt();
+            if (version != VERSION) {
+                throw new S3ClientException("Unsupported digest cache version " + version +
+                    ": " + _file);
+            }
+
+            int record;
+            while ((record = input.read()) != -1) {
+                if (record != RECORD_ENTRY) {
+                    throw new S3ClientException("Invalid digest cache record " + record +
+                        ": " + _file);
+                }
+
+                String path = input.readUTF();
+                long size = input.readLong();
+                long modified = input.readLong();
+                String fileKey = input.readBoolean() ? input.readUTF() : null;
+                byte[] digest = new byte[input.readUnsignedByte()];
+                input.readFully(digest);
+
+                _entries.put(path, new Entry(new S3FileIdentity(path, size, modified, fileKey),
+                    digest));
+                _records++;
+            }
+            return false;
+        } catch (EOFException eof) {
+            /* A partially written final record. */
+            return true;
+        } catch (IOException ioe) {
+            throw new S3ClientException("Failure reading digest cache " + _file + ": " + ioe,
+                ioe);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Replace the log with the current records. The records are written to a temporary
+     * file, which then replaces the log.
+     */
+    private void rewrite ()
+        throws IOException
+    {
+        File temp = new File(_file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(temp), BUFFER_SIZE));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            for (Entry entry : _entries.values()) {
+                writeEntry(output, entry);
+            }
+        } finally {
+            output.close();
+        }
+
+        if (!temp.renameTo(_file)) {
+            throw new IOException("Unable to replace " + _file);
+        }
+        _records = _entries.size();
+    }
+
+    /**
+     * Write a single record.
+     */
+    private static void writeEntry (DataOutputStream output, Entry entry)
+        throws IOException
+    {
+        S3FileIdentity identity = entry.identity;
+        output.writeByte(RECORD_ENTRY);
+        output.writeUTF(identity.getPath());
+        output.writeLong(identity.getSize());
+        output.writeLong(identity.getModified());
+        output.writeBoolean(identity.getFileKey() != null);
+        if (identity.getFileKey() != null) {
+            output.writeUTF(identity.getFileKey());
+        }
+        output.writeByte(entry.digest.length);
+        output.write(entry.digest);
+    }
+
+    /** A cached digest. */
+    private static class Entry {
+        /** File identity. */
+        public final S3FileIdentity identity;
+
+        /** MD5 digest. */
+        public final byte[] digest;
+
+        public Entry (S3FileIdentity identity, byte[] digest) {
+            this.identity = identity;
+            this.digest = digest;
+        }
+    }
+
+    /** Log file. */
+    private final File _file;
+
+    /** Current records, by path. */
+    private final Map<String,Entry> _entries = new HashMap<String,Entry>();
+
+    /** Number of records in the log, including superseded records. */
+    private int _records;
+
+    /** Log output stream, or null once closed. */
+    private DataOutputStream _output;
+
+    /** Cache file magic ("S3DC"). */
+    private static final int MAGIC = 0x53334443;
+
+    /** Cache format version. */
+    private static final int VERSION = 1;
+
+    /** Record type for a digest entry. */
+    private static final byte RECORD_ENTRY = 1;
+
+    /** Logs with fewer records than this are never compacted. */
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    /** Log I/O buffer size (64k). */
+    private static final int BUFFER_SIZE = 64 * 1024;
+}
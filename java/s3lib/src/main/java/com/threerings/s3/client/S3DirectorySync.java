@@ -0,0 +1,502 @@
+/*
+ * S3DirectorySync vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import com.threerings.s3.client.acl.AccessControlList;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Synchronizes a local directory tree to a bucket. The tree and the bucket listing are
+ * compared as a stream with an {@link S3ListingDiff}, and only files that are missing from
+ * the bucket or have changed are uploaded, using a bounded pool of upload workers. Keys with
+ * no corresponding local file may optionally be deleted.
+ *
+ * A file is considered unchanged if its size matches the remote object's, and it has not
+ * been modified since the object was uploaded. If a file of the same size has been modified
+ * since, its MD5 is compared against the remote ETag before uploading, so that a touched but
+ * otherwise unmodified file is not uploaded again. Providing an {@link S3DigestCache} avoids
+ * re-reading unmodified files across runs. Files are digested while they are uploaded,
+ * so that an upload reads each file only once. Remote objects created by a multipart
+ * upload are compared by recomputing their multipart ETag, digesting the file's parts in
+ * parallel, for the part size set by {@link #setPartSize} and for each part size the
+ * uploader plausibly used, as guessed by {@link S3MultipartDigest#getCandidatePartSizes}.
+ * Files larger than the multipart threshold, which defaults to S3's 5 GB single upload
+ * limit, are themselves uploaded in parts.
+ *
+ * Instances are "one-shot", and are not thread-safe.
+ */
+public class S3DirectorySync {
+
+    /**
+     * Receives per-file progress. Calls are made from worker threads, and implementations
+     * must be thread-safe.
+     */
+    public interface Listener {
+        /** The file was uploaded. */
+        public void uploaded (S3ObjectEntry local, File file);
+
+        /** The remote object, which had no corresponding local file, was deleted. */
+        public void deleted (S3ObjectEntry remote);
+
+        /** The upload or deletion failed, and will not be retried. */
+        public void failed (String key, S3Exception cause);
+    }
+
+    /**
+     * Matches local and remote entries by size and modification time. Entries that fail to
+     * match may still have the same contents, which is checked prior to upload.
+     */
+    public static final S3ListingDiff.Matcher SIZE_AND_MTIME = new S3ListingDiff.Matcher() {
+        public boolean matches (S3ObjectEntry remote, S3ObjectEntry local) {
+            if (remote.getSize() != local.getSize()) {
+                return false;
+            }
+            return remote.getLastModified() != null &&
+                !local.getLastModified().after(remote.getLastModified());
+        }
+    };
+
+    /**
+     * Create a new directory sync.
+     *
+     * @param connection S3 connection.
+     * @param directory Local root directory.
+     * @param bucketName Destination bucket.
+     * @param keyPrefix Prefix prepended to each file's relative path to form its key,
+     *  typically ending with '/'. Specify null for no prefix.
+     * @param concurrency Maximum number of concurrent uploads.
+     */
+    public S3DirectorySync (S3Connection connection, File directory, String bucketName,
+        String keyPrefix, int concurrency)
+    {
+        _connection = connection;
+        _directory = directory;
+        _bucketName = bucketName;
+        _keyPrefix = (keyPrefix != null) ? keyPrefix : "";
+        _concurrency = concurrency;
+    }
+
+    /**
+     * If true, remote keys beneath the key prefix with no corresponding local file are
+     * deleted. Defaults to false.
+     */
+    public void setDelete (boolean delete) {
+        _delete = delete;
+    }
+
+    /**
+     * Set the uploaded objects' access policy. Defaults to PRIVATE.
+     */
+    public void setAccessPolicy (AccessControlList.StandardPolicy accessPolicy) {
+        _accessPolicy = accessPolicy;
+    }
+
+    /**
+     * Set the maximum number of times a failed upload or deletion is retried. Defaults to 5.
+     * If the connection has a retry policy, they are retried only as it allows.
+     */
+    public void setMaxRetry (int maxRetry) {
+        _maxRetry = maxRetry;
+    }
+
+    /**
+     * Set the digest cache used for local files. Defaults to null, for no caching.
+     */
+    public void setDigestCache (S3DigestCache digestCache) {
+        _digestCache = digestCache;
+    }
+
+    /**
+     * Set the number of threads used to digest the parts of a file being compared against a
+     * multipart object's ETag. Defaults to the number of available processors.
+     */
+    public void setDigestThreads (int digestThreads) {
+        _digestThreads = digestThreads;
+    }
+
+    /**
+     * Set the part size, in bytes, with which existing multipart objects were uploaded. It
+     * is tried before the sizes guessed from the object's size and part count, which cover
+     * only whole-megabyte minimums and powers of two. Specify 0 to only guess. Files above
+     * the multipart threshold are uploaded with this part size, or with
+     * {@link S3MultipartCopy#DEFAULT_PART_SIZE} if it is 0, adjusted to fit S3's limits.
+     * Defaults to 0.
+     */
+    public void setPartSize (long partSize) {
+        _partSize = partSize;
+    }
+
+    /**
+     * Set the size above which files are uploaded as multipart uploads. Defaults to
+     * {@link S3MultipartCopy#MAX_PART_SIZE}, the largest object that may be uploaded with a
+     * single request.
+     */
+    public void setMultipartThreshold (long threshold) {
+        _multipartThreshold = threshold;
+    }
+
+    /**
+     * Set the progress listener.
+     */
+    public void setListener (Listener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * Run the sync to completion.
+     *
+     * @throws S3ClientException If any uploads or deletions failed.
+     */
+    public void run ()
+        throws S3Exception
+    {
+        S3ListingDiff diff = new S3ListingDiff(
+            new S3ListingSource(_connection, _bucketName, _keyPrefix),
+            new S3FileTreeSource(_directory, _keyPrefix), SIZE_AND_MTIME);
+
+        final BoundedExecutor executor = new BoundedExecutor(_concurrency, "S3DirectorySync");
+        try {
+            try {
+                diff.run(new S3ListingDiff.Listener() {
+                    public void added (final S3ObjectEntry local) throws S3Exception {
+                        submit(executor, new Runnable() {
+                            public void run () {
+                                upload(local, null);
+                            }
+                        });
+                    }
+
+                    public void changed (final S3ObjectEntry remote, final S3ObjectEntry local)
+                        throws S3Exception
+                    {
+                        submit(executor, new Runnable() {
+                            public void run () {
+                                upload(local, remote);
+                            }
+                        });
+                    }
+
+                    public void removed (final S3ObjectEntry remote) throws S3Exception {
+                        /* Keys ending in '/' are directory placeholders, not files. */
+                        if (!_delete || remote.getKey().endsWith("/")) {
+                            return;
+                        }
+                        submit(executor, new Runnable() {
+                            public void run () {
+                                delete(remote);
+                            }
+                        });
+                    }
+
+                    public void unchanged (S3ObjectEntry remote, S3ObjectEntry local) {
+                        _unchanged.incrementAndGet();
+                    }
+                });
+            } finally {
+                /* Let any in-progress uploads finish, even if the listing failed. */
+                executor.awaitCompletion();
+            }
+        } catch (InterruptedException ie) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new S3ClientException("Interrupted while synchronizing " + _directory, ie);
+        }
+
+        if (_failed.get() > 0) {
+            throw new S3ClientException(_failed.get() + " file(s) failed to synchronize",
+                _lastFailure);
+        }
+    }
+
+    /** Returns the number of files uploaded. */
+    public long getUploadedCount () {
+        return _uploaded.get();
+    }
+
+    /** Returns the number of bytes uploaded. */
+    public long getUploadedBytes () {
+        return _uploadedBytes.get();
+    }
+
+    /** Returns the number of files that were already up to date. */
+    public long getUnchangedCount () {
+        return _unchanged.get();
+    }
+
+    /** Returns the number of remote objects deleted. */
+    public long getDeletedCount () {
+        return _deleted.get();
+    }
+
+    /** Returns the number of failed uploads and deletions. */
+    public long getFailedCount () {
+        return _failed.get();
+    }
+
+    /**
+     * Submit a task to the executor.
+     */
+    private void submit (BoundedExecutor executor, Runnable task)
+        throws S3Exception
+    {
+        try {
+            executor.execute(task);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new S3ClientException("Interrupted while synchronizing " + _directory, ie);
+        }
+    }
+
+    /**
+     * Upload a single file, retrying on failure.
+     *
+     * @param local The local file entry.
+     * @param remote The existing remote entry, or null.
+     */
+    private void upload (S3ObjectEntry local, S3ObjectEntry remote)
+    {
+        File file = S3FileTreeSource.getFile(_directory, _keyPrefix, local.getKey());
+        S3FileObject object = new S3FileObject(local.getKey(), file);
+        object.setDigestCache(_digestCache);
+        object.setStreamingDigest(true);
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (remote != null && isIdentical(object, remote)) {
+                    _unchanged.incrementAndGet();
+                    return;
+                }
+
+                if (object.length() > _multipartThreshold) {
+                    uploadMultipart(object, file);
+                } else {
+                    _connection.putObject(_bucketName, object, _accessPolicy);
+                }
+
+                _uploaded.incrementAndGet();
+                _uploadedBytes.addAndGet(local.getSize());
+                if (_listener != null) {
+                    _listener.uploaded(local, file);
+                }
+                return;
+            } catch (S3Exception e) {
+                if (retry(attempt, local.getKey(), e)) {
+                    continue;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Upload a file as a multipart upload, one part at a time. If any part fails to upload,
+     * the upload is aborted.
+     */
+    private void uploadMultipart (S3FileObject object, File file)
+        throws S3Exception
+    {
+        String key = object.getKey();
+        long length = object.length();
+        long partSize = S3MultipartCopy.choosePartSize(length,
+            (_partSize > 0) ? _partSize : S3MultipartCopy.DEFAULT_PART_SIZE);
+        String uploadId = _connection.initiateMultipartUpload(_bucketName, key,
+            object.getMediaType(), _accessPolicy, Collections.<String,String>emptyMap());
+
+        boolean success = false;
+        try {
+            List<S3UploadPart> parts = new ArrayList<S3UploadPart>();
+            for (long offset = 0; offset < length; offset += partSize) {
+                int partNumber = parts.size() + 1;
+                S3FileObject part = new S3FileObject(key, file, object.getMediaType(), offset,
+                    Math.min(partSize, length - offset));
+                parts.add(new S3UploadPart(partNumber,
+                    _connection.uploadPart(_bucketName, key, uploadId, partNumber, part)));
+            }
+            _connection.completeMultipartUpload(_bucketName, key, uploadId, parts);
+            success = true;
+        } finally {
+            if (!success) {
+                abort(key, uploadId);
+            }
+        }
+    }
+
+    /**
+     * Abort a failed upload. Failure to abort is not reported, as the upload has already
+     * failed.
+     */
+    private void abort (String key, String uploadId)
+    {
+        try {
+            _connection.abortMultipartUpload(_bucketName, key, uploadId);
+        } catch (S3Exception e) {
+            // Nothing more we can do
+        }
+    }
+
+    /**
+     * Delete a single remote object, retrying on failure.
+     */
+    private void delete (S3ObjectEntry remote)
+    {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                _connection.deleteObject(_bucketName, remote.getKey());
+
+                _deleted.incrementAndGet();
+                if (_listener != null) {
+                    _listener.deleted(remote);
+                }
+                return;
+            } catch (S3Exception e) {
+                if (retry(attempt, remote.getKey(), e)) {
+                    continue;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Handle a failed request, returning true if it should be retried. Otherwise, the
+     * failure is recorded and reported.
+     */
+    private boolean retry (int attempt, String key, S3Exception e)
+    {
+        if (S3Utils.retryOperation(_connection.getRetryPolicy(), attempt, _maxRetry, e)) {
+            return true;
+        }
+
+        _failed.incrementAndGet();
+        _lastFailure = e;
+        if (_listener != null) {
+            _listener.failed(key, e);
+        }
+        return false;
+    }
+
+    /**
+     * Return true if the local file's digest matches the remote object's ETag.
+     */
+    private boolean isIdentical (S3FileObject local, S3ObjectEntry remote)
+        throws S3Exception
+    {
+        String eTag = remote.getETag();
+        if (remote.getSize() != local.length() || eTag == null) {
+            return false;
+        }
+
+        int partCount = S3MultipartDigest.getPartCount(eTag);
+        if (partCount < 0) {
+            return eTag.equalsIgnoreCase(new String(Hex.encodeHex(local.getMD5())));
+        }
+
+        List<Long> partSizes = S3MultipartDigest.getCandidatePartSizes(local.length(),
+            partCount);
+        if (_partSize > 0 && (local.length() + _partSize - 1) / _partSize == partCount) {
+            partSizes.remove(Long.valueOf(_partSize));
+            partSizes.add(0, _partSize);
+        }
+        for (long partSize : partSizes) {
+            if (local.getMultipartDigest(partSize, _digestThreads).matches(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** S3 connection. */
+    private final S3Connection _connection;
+
+    /** Local root directory. */
+    private final File _directory;
+
+    /** Destination bucket. */
+    private final String _bucketName;
+
+    /** Key prefix. */
+    private final String _keyPrefix;
+
+    /** Maximum concurrent uploads. */
+    private final int _concurrency;
+
+    /** Delete extraneous remote keys. */
+    private boolean _delete = false;
+
+    /** Uploaded object access policy. */
+    private AccessControlList.StandardPolicy _accessPolicy =
+        AccessControlList.StandardPolicy.PRIVATE;
+
+    /** Maximum retries per file. */
+    private int _maxRetry = 5;
+
+    /** Threads used to digest the parts of a file. */
+    private int _digestThreads = Runtime.getRuntime().availableProcessors();
+
+    /** Known multipart upload part size, or 0. */
+    private long _partSize = 0;
+
+    /** Size above which files are uploaded as multipart uploads. */
+    private long _multipartThreshold = S3MultipartCopy.MAX_PART_SIZE;
+
+    /** Local file digest cache, or null. */
+    private S3DigestCache _digestCache;
+
+    /** Progress listener, or null. */
+    private Listener _listener;
+
+    /** Number of uploaded files. */
+    private final AtomicLong _uploaded = new AtomicLong();
+
+    /** Number of uploaded bytes. */
+    private final AtomicLong _uploadedBytes = new AtomicLong();
+
+    /** Number of unchanged files. */
+    private final AtomicLong _unchanged = new AtomicLong();
+
+    /** Number of deleted objects. */
+    private final AtomicLong _deleted = new AtomicLong();
+
+    /** Number of failed files. */
+    private final AtomicLong _failed = new AtomicLong();
+
+    /** The most recent failure. */
+    private volatile S3Exception _lastFailure;
+}
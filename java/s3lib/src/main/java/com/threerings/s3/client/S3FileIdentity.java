@@ -0,0 +1,140 @@
+/*
+ * S3FileIdentity vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Identifies a particular version of a local file: its canonical path, size, modification
+ * time and, where the platform provides one, its file key (such as a device and inode
+ * number). A file whose identity is unchanged is assumed to have unchanged contents, which
+ * allows a file's digest to be cached without re-reading the file.
+ */
+public class S3FileIdentity {
+
+    /**
+     * Return the current identity of the given file.
+     *
+     * @throws IOException If the file can not be read.
+     */
+    public static S3FileIdentity of (File file)
+        throws IOException
+    {
+        Path path = file.toPath().toRealPath();
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        Object fileKey = attrs.fileKey();
+        return new S3FileIdentity(path.toString(), attrs.size(),
+            attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+            fileKey != null ? fileKey.toString() : null);
+    }
+
+    /**
+     * Create a file identity.
+     *
+     * @param path Canonical file path.
+     * @param size File size.
+     * @param modified Modification time, in nanoseconds since the epoch.
+     * @param fileKey Platform file key, or null.
+     */
+    public S3FileIdentity (String path, long size, long modified, String fileKey)
+    {
+        _path = path;
+        _size = size;
+        _modified = modified;
+        _fileKey = fileKey;
+    }
+
+    /** Returns the canonical file path. */
+    public String getPath () {
+        return _path;
+    }
+
+    /** Returns the file size. */
+    public long getSize () {
+        return _size;
+    }
+
+    /** Returns the modification time, in nanoseconds since the epoch. */
+    public long getModified () {
+        return _modified;
+    }
+
+    /** Returns the platform file key, or null. */
+    public String getFileKey () {
+        return _fileKey;
+    }
+
+    @Override
+    public boolean equals (Object other)
+    {
+        if (!(other instanceof S3FileIdentity)) {
+            return false;
+        }
+
+        S3FileIdentity that = (S3FileIdentity)other;
+        return _path.equals(that._path) && _size == that._size &&
+            _modified == that._modified &&
+            (_fileKey == null ? that._fileKey == null : _fileKey.equals(that._fileKey));
+    }
+
+    @Override
+    public int hashCode ()
+    {
+        return _path.hashCode() ^ (int)(_size ^ (_size >>> 32)) ^
+            (int)(_modified ^ (_modified >>> 32));
+    }
+
+    @Override
+    public String toString ()
+    {
+        return _path + " (" + _size + " bytes, modified " + _modified + ")";
+    }
+
+    /** Canonical path. */
+    private final String _path;
+
+    /** File size. */
+    private final long _size;
+
+    /** Modification time, in nanoseconds. */
+    private final long _modified;
+
+    /** Platform file key, or null. */
+    private final String _fileKey;
+}
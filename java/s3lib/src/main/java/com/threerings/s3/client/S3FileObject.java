@@ -37,6 +37,7 @@ import java.security.NoSuchAlgorithmException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 
@@ -52,8 +53,7 @@ public class S3FileObject extends S3Object {
      */
     public S3FileObject(String key, File file)
     {
-        super(key);
-        _file = file;
+        this(key, file, S3Object.DEFAULT_MEDIA_TYPE);
     }
 
     /**
@@ -63,25 +63,199 @@ public class S3FileObject extends S3Object {
      * @param mediaType Object's media type.
      */
     public S3FileObject(String key, File file, MediaType mediaType)
+    {
+        this(key, file, mediaType, 0L, -1L);
+    }
+
+    /**
+     * Instantiate an S3 object backed by a region of a file, such as a part of a multipart
+     * upload.
+     * @param key S3 object key.
+     * @param file File backing.
+     * @param mediaType Object's media type.
+     * @param offset Offset of the region within the file.
+     * @param length Length of the region.
+     */
+    public S3FileObject(String key, File file, MediaType mediaType, long offset, long length)
     {
         super(key, mediaType);
         _file = file;
+        _offset = offset;
+        _length = length;
     }
 
     @Override // From S3Object
     public InputStream getInputStream ()
         throws S3ClientException
     {
-        try {
-            return new FileInputStream(_file);
-        } catch (FileNotFoundException fnf) {
-            throw new S3ClientException("File was not found.", fnf);
+        FileInputStream input = openStream();
+        if (_length < 0) {
+            return input;
         }
+
+        // Limit reads to the region
+        return new FilterInputStream(input) {
+            @Override
+            public int read ()
+                throws IOException
+            {
+                if (_remaining <= 0) {
+                    return -1;
+                }
+                int b = super.read();
+                if (b != -1) {
+                    _remaining--;
+                }
+                return b;
+            }
+
+            @Override
+            public int read (byte[] b, int off, int len)
+                throws IOException
+            {
+                if (_remaining <= 0) {
+                    return -1;
+                }
+                int count = super.read(b, off, (int)Math.min(len, _remaining));
+                if (count > 0) {
+                    _remaining -= count;
+                }
+                return count;
+            }
+
+            @Override
+            public long skip (long n)
+                throws IOException
+            {
+                long count = super.skip(Math.min(n, _remaining));
+                _remaining -= count;
+                return count;
+            }
+
+            @Override
+            public int available ()
+                throws IOException
+            {
+                return (int)Math.min(super.available(), _remaining);
+            }
+
+            @Override
+            public boolean markSupported () {
+                return false;
+            }
+
+            private long _remaining = _length;
+        };
+    }
+
+    @Override // From S3Object
+    public boolean isRepeatable () {
+        return true;
+    }
+
+    @Override // From S3Object
+    DigestingRequestEntity createRequestEntity (boolean digest)
+        throws S3ClientException
+    {
+        return new FileRequestEntity(openStream(), _offset, length(),
+            getMediaType().getMimeType(), digest);
+    }
+
+    /**
+     * Set the digest cache consulted by {@link #getMD5}. Defaults to null, in which case the
+     * file is read in full each time its digest is requested.
+     */
+    public void setDigestCache (S3DigestCache digestCache) {
+        _digestCache = digestCache;
+    }
+
+    /**
+     * If true, the file's digest is computed while it is uploaded, rather than by reading the
+     * file beforehand, unless the digest is already cached. Defaults to false.
+     */
+    public void setStreamingDigest (boolean streamingDigest) {
+        _streamingDigest = streamingDigest;
+    }
+
+    @Override // From S3Object
+    public boolean isStreamingDigest () {
+        if (!_streamingDigest) {
+            return false;
+        }
+
+        // A cached digest costs nothing to send up front
+        if (_digestCache != null && isWholeFile()) {
+            try {
+                return _digestCache.get(identify()) == null;
+            } catch (S3ClientException e) {
+                return true;
+            }
+        }
+        return true;
     }
 
     @Override // From S3Object
     public byte[] getMD5 ()
         throws S3ClientException
+    {
+        // Digests are cached by file, and so are not cached for regions
+        if (_digestCache == null || !isWholeFile()) {
+            return computeMD5();
+        }
+
+        S3FileIdentity identity = identify();
+        byte[] digest = _digestCache.get(identity);
+        if (digest != null) {
+            return digest;
+        }
+
+        digest = computeMD5();
+
+        /* Only cache the digest if the file was not modified while it was being read. */
+        if (identity.equals(identify())) {
+            _digestCache.put(identity, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * Digest the object as it would be uploaded as a multipart upload with the given part
+     * size, digesting the parts in parallel. See {@link S3MultipartDigest}.
+     *
+     * @param partSize Upload part size.
+     * @param threads Number of threads used to digest the parts.
+     */
+    public S3MultipartDigest getMultipartDigest (long partSize, int threads)
+        throws S3ClientException
+    {
+        FileInputStream input = openStream();
+        try {
+            return S3MultipartDigest.compute(input.getChannel(), _offset, length(), partSize,
+                threads);
+        } finally {
+            try {
+                input.close();
+            } catch (IOException ioe) {
+                // Nothing to do
+            }
+        }
+    }
+
+    @Override // From S3Object
+    public long lastModified () {
+        return _file.lastModified();
+    }
+
+    @Override // From S3Object
+    public long length () {
+        return (_length >= 0) ? _length : _file.length();
+    }
+
+    /**
+     * Read the file in full, returning its MD5 digest.
+     */
+    private byte[] computeMD5 ()
+        throws S3ClientException
     {
          InputStream input;
          MessageDigest md;
@@ -97,7 +271,7 @@ public class S3FileObject extends S3Object {
          }
 
          input = getInputStream();
-         data = new byte[1024];
+         data = new byte[DIGEST_BUFFER_SIZE];
 
          // Compute the digest
          try {
@@ -106,20 +280,80 @@ public class S3FileObject extends S3Object {
              }
          } catch (IOException ioe) {
              throw new S3ClientException("Failure reading input file: " + ioe, ioe);
+         } finally {
+             try {
+                 input.close();
+             } catch (IOException ioe) {
+                 // Nothing to do
+             }
          }
          return md.digest();
     }
 
-    @Override // From S3Object
-    public long lastModified () {
-        return _file.lastModified();
+    /**
+     * Returns true if the object is backed by the entire file, rather than a region.
+     */
+    private boolean isWholeFile ()
+    {
+        return _offset == 0 && _length < 0;
     }
 
-    @Override // From S3Object
-    public long length () {
-        return _file.length();
+    /**
+     * Open the file, positioned at the start of the region.
+     */
+    private FileInputStream openStream ()
+        throws S3ClientException
+    {
+        FileInputStream input;
+        try {
+            input = new FileInputStream(_file);
+        } catch (FileNotFoundException fnf) {
+            throw new S3ClientException("File was not found.", fnf);
+        }
+
+        if (_offset > 0) {
+            try {
+                input.getChannel().position(_offset);
+            } catch (IOException ioe) {
+                try {
+                    input.close();
+                } catch (IOException ioe2) {
+                    // Nothing to do
+                }
+                throw new S3ClientException("Failure seeking input file: " + ioe, ioe);
+            }
+        }
+        return input;
+    }
+
+    /**
+     * Return the file's current identity.
+     */
+    private S3FileIdentity identify ()
+        throws S3ClientException
+    {
+        try {
+            return S3FileIdentity.of(_file);
+        } catch (IOException ioe) {
+            throw new S3ClientException("Failure reading input file attributes: " + ioe, ioe);
+        }
     }
 
     /** File path. */
     private final File _file;
+
+    /** Offset of the region within the file. */
+    private final long _offset;
+
+    /** Length of the region, or -1 for the remainder of the file. */
+    private final long _length;
+
+    /** Digest cache, or null. */
+    private S3DigestCache _digestCache;
+
+    /** Compute the digest while uploading. */
+    private boolean _streamingDigest = false;
+
+    /** Digest read buffer size (64k). */
+    private static final int DIGEST_BUFFER_SIZE = 64 * 1024;
 }
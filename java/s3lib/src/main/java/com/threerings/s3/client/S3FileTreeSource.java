@@ -0,0 +1,179 @@
+/*
+ * S3FileTreeSource vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.File;
+
+import java.nio.file.Files;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * An {@link S3EntrySource} backed by a local directory tree. Each regular file is returned as
+ * an entry whose key is the file's path relative to the root directory, using '/' as the
+ * separator, appended to an optional key prefix. Entries carry the file's size and
+ * modification time, but no ETag.
+ *
+ * Entries are returned in S3 key order. The tree is walked depth-first, and only the
+ * directory listings along the current path are held in memory. Symbolic links to
+ * directories are not followed.
+ */
+public class S3FileTreeSource implements S3EntrySource {
+
+    /**
+     * Create a new source for the given directory tree.
+     *
+     * @param root Root directory.
+     * @param keyPrefix Prefix prepended to each relative path to form its key. Specify null
+     *  or the empty string for no prefix.
+     */
+    public S3FileTreeSource (File root, String keyPrefix)
+    {
+        _root = root;
+        _keyPrefix = (keyPrefix != null) ? keyPrefix : "";
+    }
+
+    /**
+     * Return the local file corresponding to the given key, as returned by a source with the
+     * given root and key prefix.
+     */
+    public static File getFile (File root, String keyPrefix, String key)
+    {
+        String path = key.substring(keyPrefix != null ? keyPrefix.length() : 0);
+        return new File(root, path.replace('/', File.separatorChar));
+    }
+
+    // from interface S3EntrySource
+    public S3ObjectEntry next ()
+        throws S3Exception
+    {
+        if (_stack == null) {
+            _stack = new LinkedList<Level>();
+            _stack.addFirst(new Level(_root, _keyPrefix));
+        }
+
+        while (!_stack.isEmpty()) {
+            Level level = _stack.getFirst();
+            if (!level.children.hasNext()) {
+                _stack.removeFirst();
+                continue;
+            }
+
+            Child child = level.children.next();
+            String key = level.keyPrefix + child.name;
+            if (child.directory) {
+                _stack.addFirst(new Level(child.file, key));
+                continue;
+            }
+
+            return new S3ObjectEntry(key, new Date(child.file.lastModified()), null,
+                child.file.length(), null, null);
+        }
+
+        return null;
+    }
+
+    /** A directory entry. */
+    private static class Child {
+        /** The file. */
+        public final File file;
+
+        /** The file's name, with a trailing '/' if it is a directory. */
+        public final String name;
+
+        /** True if the file is a directory. */
+        public final boolean directory;
+
+        public Child (File file, boolean directory) {
+            this.file = file;
+            this.directory = directory;
+            this.name = directory ? file.getName() + "/" : file.getName();
+        }
+    }
+
+    /** A directory being walked. */
+    private static class Level {
+        /** The directory's remaining children, in key order. */
+        public final Iterator<Child> children;
+
+        /** The key prefix of the directory's children. */
+        public final String keyPrefix;
+
+        public Level (File directory, String keyPrefix)
+            throws S3ClientException
+        {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                throw new S3ClientException("Unable to list directory " + directory);
+            }
+
+            /* Directory names are sorted with their trailing separator, so that each
+             * subtree is returned in the position its keys occupy in a bucket listing. */
+            List<Child> children = new ArrayList<Child>(files.length);
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    if (!Files.isSymbolicLink(file.toPath())) {
+                        children.add(new Child(file, true));
+                    }
+                } else if (file.isFile()) {
+                    children.add(new Child(file, false));
+                }
+            }
+            Collections.sort(children, CHILD_ORDER);
+
+            this.children = children.iterator();
+            this.keyPrefix = keyPrefix;
+        }
+    }
+
+    /** Root directory. */
+    private final File _root;
+
+    /** Key prefix. */
+    private final String _keyPrefix;
+
+    /** The directories along the current path, innermost first. */
+    private LinkedList<Level> _stack;
+
+    /** Orders directory entries by key. */
+    private static final Comparator<Child> CHILD_ORDER = new Comparator<Child>() {
+        public int compare (Child a, Child b) {
+            return S3Utils.compareKeys(a.name, b.name);
+        }
+    };
+}
@@ -0,0 +1,223 @@
+/*
+ * S3HedgePolicy vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Determines when an idempotent request (GET or HEAD, including bucket listings) is
+ * "hedged": if a request has not received its response status within the hedge delay, a
+ * duplicate request is sent, the first response to arrive is used, and the other is
+ * aborted. This trims the latency tail caused by an occasional slow S3 node, at the cost of
+ * a small number of extra requests.
+ *
+ * The hedge delay is either fixed, or adapts to a percentile of the latencies observed by
+ * the policy. The number of hedges is bounded by the policy's {@link S3RetryBudget}: every
+ * request adds a token to the budget, and every hedge withdraws {@link #HEDGE_COST} tokens,
+ * so that no more than one request in {@link #HEDGE_COST} is hedged over time.
+ *
+ * Setters return the policy instance, allowing them to be chained:
+ *
+ * <pre>
+ * connection.setHedgePolicy(new S3HedgePolicy().setPercentile(99));
+ * </pre>
+ *
+ * A policy must not be modified once it is in use, but may be shared between connections.
+ */
+public class S3HedgePolicy {
+
+    /** Default hedge delay, in milliseconds, used until enough latencies are observed. */
+    public static final long DEFAULT_DELAY = 100;
+
+    /** Default latency percentile used as the hedge delay. */
+    public static final double DEFAULT_PERCENTILE = 95;
+
+    /** Budget tokens withdrawn for each hedge. */
+    public static final int HEDGE_COST = 20;
+
+    /** Default budget capacity. */
+    public static final int DEFAULT_BUDGET_CAPACITY = 5 * HEDGE_COST;
+
+    /**
+     * Set the hedge delay, in milliseconds. If a percentile is also set, this delay is only
+     * used until enough latencies have been observed to compute it. Defaults to
+     * {@link #DEFAULT_DELAY}.
+     */
+    public S3HedgePolicy setDelay (long delay) {
+        _delay = delay;
+        return this;
+    }
+
+    /** Returns the fixed hedge delay, in milliseconds. */
+    public long getDelay () {
+        return _delay;
+    }
+
+    /**
+     * Set the percentile of observed response latencies used as the hedge delay, or 0 to
+     * always use the fixed delay. Defaults to {@link #DEFAULT_PERCENTILE}.
+     */
+    public S3HedgePolicy setPercentile (double percentile) {
+        if (percentile < 0 || percentile >= 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100: " +
+                percentile);
+        }
+        _percentile = percentile;
+        return this;
+    }
+
+    /** Returns the hedge delay percentile, or 0. */
+    public double getPercentile () {
+        return _percentile;
+    }
+
+    /**
+     * Set the budget from which hedges are drawn, or null to hedge without a budget.
+     * Defaults to a budget of {@link #DEFAULT_BUDGET_CAPACITY} tokens, private to this
+     * policy.
+     */
+    public S3HedgePolicy setBudget (S3RetryBudget budget) {
+        _budget = budget;
+        return this;
+    }
+
+    /** Returns the hedge budget, or null. */
+    public S3RetryBudget getBudget () {
+        return _budget;
+    }
+
+    /**
+     * Returns the current hedge delay, in milliseconds.
+     */
+    public synchronized long getHedgeDelay ()
+    {
+        if (_percentile > 0 && _sampleCount >= MIN_SAMPLES) {
+            return _threshold;
+        }
+        return _delay;
+    }
+
+    /**
+     * Record the latency, in milliseconds, with which a request received its response
+     * status.
+     */
+    public synchronized void recordLatency (long latency)
+    {
+        _samples[(int)(_sampleCount % _samples.length)] = latency;
+        _sampleCount++;
+
+        /* Sorting the samples is not free; recompute the threshold periodically. */
+        if (_percentile > 0 && _sampleCount >= MIN_SAMPLES &&
+            _sampleCount % RECOMPUTE_INTERVAL == 0) {
+            long[] sorted = Arrays.copyOf(_samples,
+                (int)Math.min(_sampleCount, _samples.length));
+            Arrays.sort(sorted);
+            int index = (int)Math.ceil(_percentile / 100 * sorted.length) - 1;
+            _threshold = Math.max(1, sorted[Math.max(0, index)]);
+        }
+    }
+
+    /**
+     * Record a request eligible for hedging, adding a token to the budget.
+     */
+    public void recordRequest ()
+    {
+        S3RetryBudget budget = _budget;
+        if (budget != null) {
+            budget.release(1);
+        }
+    }
+
+    /**
+     * Return true, and withdraw the hedge's cost from the budget, if a hedge may be sent.
+     */
+    public boolean tryHedge ()
+    {
+        S3RetryBudget budget = _budget;
+        return (budget == null || budget.tryAcquire(HEDGE_COST));
+    }
+
+    /**
+     * Returns the executor on which hedged requests are run, creating it if necessary.
+     * Idle threads exit after a minute.
+     */
+    synchronized ExecutorService getExecutor ()
+    {
+        if (_executor == null) {
+            _executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "S3Hedge " + _threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return _executor;
+    }
+
+    /** Fixed hedge delay. */
+    private long _delay = DEFAULT_DELAY;
+
+    /** Hedge delay percentile, or 0. */
+    private double _percentile = DEFAULT_PERCENTILE;
+
+    /** Hedge budget, or null. */
+    private S3RetryBudget _budget = new S3RetryBudget(DEFAULT_BUDGET_CAPACITY);
+
+    /** Recent latencies, as a ring buffer. */
+    private final long[] _samples = new long[MAX_SAMPLES];
+
+    /** Total latencies recorded. */
+    private long _sampleCount;
+
+    /** The most recently computed percentile latency. */
+    private long _threshold;
+
+    /** Hedged request executor, or null. */
+    private ExecutorService _executor;
+
+    /** Executor thread counter, used for naming. */
+    private final AtomicInteger _threadCount = new AtomicInteger();
+
+    /** Number of latencies retained. */
+    private static final int MAX_SAMPLES = 1000;
+
+    /** Number of latencies required before the percentile is used. */
+    private static final int MIN_SAMPLES = 100;
+
+    /** Number of latencies recorded between recomputing the percentile. */
+    private static final int RECOMPUTE_INTERVAL = 50;
+}
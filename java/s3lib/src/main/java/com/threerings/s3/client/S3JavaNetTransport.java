@@ -0,0 +1,532 @@
+/*
+ * S3JavaNetTransport vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import java.time.Duration;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * An {@link S3Transport} built on {@code java.net.http}. Requests do not synchronize on a
+ * shared connection pool, making the transport suitable for use from large numbers of
+ * threads.
+ *
+ * Of the {@link S3ConnectionConfig} settings, the connection limits bound the number of
+ * requests in flight, the lease timeout bounds the time spent waiting for a request slot,
+ * the connect timeout is applied to new connections, and the socket timeout bounds the time
+ * spent waiting for each response's headers, and for each read of its body. A body read
+ * that times out discards the response's connection. Idle eviction, time to live and
+ * socket options are managed by {@code java.net.http} itself, and are not applied.
+ */
+public class S3JavaNetTransport implements S3Transport {
+
+    /**
+     * Create a new transport for the default, SSL encrypted, S3 endpoint.
+     *
+     * @param config Connection and timeout configuration.
+     */
+    public S3JavaNetTransport (S3ConnectionConfig config)
+    {
+        this(S3Utils.createDefaultHostConfig(), config);
+    }
+
+    /**
+     * Create a new transport for the given S3 endpoint.
+     *
+     * @param hostConfig HttpClient HostConfig, specifying the endpoint's protocol, host and
+     *  port.
+     * @param config Connection and timeout configuration.
+     */
+    public S3JavaNetTransport (HostConfiguration hostConfig, S3ConnectionConfig config)
+    {
+        _endpoint = hostConfig.getProtocol().getScheme() + "://" + hostConfig.getHost() + ":" +
+            hostConfig.getPort();
+
+        // S3 does not support HTTP/2
+        HttpClient.Builder builder = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .followRedirects(HttpClient.Redirect.NEVER);
+        if (config.getConnectTimeout() > 0) {
+            builder.connectTimeout(Duration.ofMillis(config.getConnectTimeout()));
+        }
+        _client = builder.build();
+
+        _requestTimeout = config.getSocketTimeout();
+        _leaseTimeout = config.getLeaseTimeout();
+        _slots = new Semaphore(Math.min(config.getMaxConnectionsPerHost(),
+            config.getMaxTotalConnections()));
+
+        _writers = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "S3JavaNetTransport writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // from interface S3Transport
+    public S3TransportResponse execute (S3TransportRequest request)
+        throws IOException
+    {
+        String query = request.getQueryString();
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(_endpoint +
+            request.getPath() + (query != null ? "?" + query : "")));
+        if (_requestTimeout > 0) {
+            builder.timeout(Duration.ofMillis(_requestTimeout));
+        }
+
+        for (Map.Entry<String,String> header : request.getHeaders().entrySet()) {
+            if (!RESTRICTED_HEADERS.contains(header.getKey().toLowerCase())) {
+                builder.setHeader(header.getKey(), header.getValue());
+            }
+        }
+
+        RequestEntity entity = request.getEntity();
+        HttpRequest.BodyPublisher body;
+        if (entity == null) {
+            body = HttpRequest.BodyPublishers.noBody();
+        } else {
+            if (entity.getContentType() != null) {
+                builder.setHeader(CONTENT_TYPE_HEADER, entity.getContentType());
+            }
+
+            long length = entity.getContentLength();
+            if (length == 0) {
+                // Write the empty entity anyway, completing any digest it computes
+                entity.writeRequest(OutputStream.nullOutputStream());
+                body = HttpRequest.BodyPublishers.noBody();
+            } else {
+                RequestEntityPublisher publisher = new RequestEntityPublisher(entity, _writers,
+                    CHUNK_SIZE);
+                body = (length > 0) ? HttpRequest.BodyPublishers.fromPublisher(publisher, length) :
+                    HttpRequest.BodyPublishers.fromPublisher(publisher);
+            }
+        }
+        builder.method(request.getMethod(), body);
+
+        acquireSlot();
+        boolean success = false;
+        try {
+            final CompletableFuture<HttpResponse<InputStream>> future = _client.sendAsync(
+                builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+            request.setAbortHandler(new Runnable() {
+                public void run () {
+                    discard(future);
+                }
+            });
+
+            HttpResponse<InputStream> response = await(future, request);
+            success = true;
+            return new Response(response);
+        } finally {
+            if (!success) {
+                releaseSlot();
+            }
+        }
+    }
+
+    // from interface S3Transport
+    public S3ConnectionPoolStats getPoolStats ()
+    {
+        return new S3ConnectionPoolStats(Math.max(0, _leased.get()), 0, _pending.get(),
+            _leaseCount.get(), _totalWaitNanos.get(), _maxWaitNanos.get());
+    }
+
+    // from interface S3Transport
+    public void shutdown ()
+    {
+        // The client's connections are closed once it is no longer referenced
+        _writers.shutdownNow();
+    }
+
+    /**
+     * Wait for the given exchange to complete, returning its response.
+     */
+    private static HttpResponse<InputStream> await (
+        CompletableFuture<HttpResponse<InputStream>> future, S3TransportRequest request)
+        throws IOException
+    {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            discard(future);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while executing " + request);
+        } catch (CancellationException ce) {
+            throw new IOException("Aborted " + request);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof CancellationException) {
+                throw new IOException("Aborted " + request);
+            } else if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IOException("Failure executing " + request, cause);
+        }
+    }
+
+    /**
+     * Cancel the given exchange or, if it has already completed, close its response body,
+     * discarding its connection.
+     */
+    private static void discard (CompletableFuture<HttpResponse<InputStream>> future)
+    {
+        if (!future.cancel(true)) {
+            try {
+                future.join().body().close();
+            } catch (Exception e) {
+                // Nothing to do; the exchange failed, or the connection is discarded
+            }
+        }
+    }
+
+    /**
+     * Wait for a request slot, recording the time spent waiting.
+     */
+    private void acquireSlot ()
+        throws IOException
+    {
+        long start = System.nanoTime();
+        _pending.incrementAndGet();
+        try {
+            if (_leaseTimeout > 0) {
+                if (!_slots.tryAcquire(_leaseTimeout, TimeUnit.MILLISECONDS)) {
+                    throw new ConnectionPoolTimeoutException("Timeout waiting for connection");
+                }
+            } else {
+                _slots.acquire();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for connection");
+        } finally {
+            _pending.decrementAndGet();
+        }
+
+        long wait = System.nanoTime() - start;
+        _leased.incrementAndGet();
+        _leaseCount.incrementAndGet();
+        _totalWaitNanos.addAndGet(wait);
+        long max;
+        while (wait > (max = _maxWaitNanos.get()) && !_maxWaitNanos.compareAndSet(max, wait)) {
+            // Retry
+        }
+    }
+
+    /**
+     * Return a request slot.
+     */
+    private void releaseSlot ()
+    {
+        _leased.decrementAndGet();
+        _slots.release();
+    }
+
+    /**
+     * Create the timer on which response body reads are timed out.
+     */
+    private static ScheduledThreadPoolExecutor createTimer ()
+    {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "S3JavaNetTransport timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        // Reads almost always complete in time, so don't let their timeouts accumulate
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * A response backed by a java.net.http response.
+     */
+    private class Response implements S3TransportResponse {
+        public Response (HttpResponse<InputStream> response) {
+            _response = response;
+            // The request timeout only bounds the wait for the headers
+            _body = (_requestTimeout > 0) ? new TimedInputStream(response.body()) :
+                response.body();
+        }
+
+        // from interface S3TransportResponse
+        public int getStatusCode () {
+            return _response.statusCode();
+        }
+
+        // from interface S3TransportResponse
+        public String getHeader (String name) {
+            return _response.headers().firstValue(name).orElse(null);
+        }
+
+        // from interface S3TransportResponse
+        public Map<String,String> getHeaders () {
+            Map<String,String> headers = new LinkedHashMap<String,String>();
+            for (Map.Entry<String,List<String>> header : _response.headers().map().entrySet()) {
+                if (!header.getValue().isEmpty()) {
+                    headers.put(header.getKey(), header.getValue().get(0));
+                }
+            }
+            return headers;
+        }
+
+        // from interface S3TransportResponse
+        public long getContentLength () {
+            return _response.headers().firstValueAsLong(CONTENT_LENGTH_HEADER).orElse(-1L);
+        }
+
+        // from interface S3TransportResponse
+        public InputStream getBody () {
+            return _body;
+        }
+
+        // from interface S3TransportResponse
+        public void release () {
+            if (!_released.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                _response.body().close();
+            } catch (IOException ioe) {
+                // Nothing to do; the connection is discarded
+            } finally {
+                releaseSlot();
+            }
+        }
+
+        // from interface S3TransportResponse
+        public void abort () {
+            /* Closing an unread body discards its connection. */
+            release();
+        }
+
+        /** The response. */
+        private final HttpResponse<InputStream> _response;
+
+        /** The response body, with each read bounded by the request timeout, if any. */
+        private final InputStream _body;
+
+        /** Set once the response is released. */
+        private final AtomicBoolean _released = new AtomicBoolean();
+    }
+
+    /**
+     * A response body whose reads each fail if they do not complete within the request
+     * timeout. A read that times out closes the body, which discards its connection.
+     */
+    private class TimedInputStream extends FilterInputStream {
+        public TimedInputStream (InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read ()
+            throws IOException
+        {
+            int result;
+            ScheduledFuture<?> timeout = startTimeout();
+            try {
+                result = super.read();
+            } catch (IOException ioe) {
+                checkTimeout(ioe);
+                throw ioe;
+            } finally {
+                timeout.cancel(false);
+            }
+            checkTimeout(null);
+            return result;
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len)
+            throws IOException
+        {
+            int result;
+            ScheduledFuture<?> timeout = startTimeout();
+            try {
+                result = super.read(b, off, len);
+            } catch (IOException ioe) {
+                checkTimeout(ioe);
+                throw ioe;
+            } finally {
+                timeout.cancel(false);
+            }
+            checkTimeout(null);
+            return result;
+        }
+
+        @Override
+        public long skip (long n)
+            throws IOException
+        {
+            long result;
+            ScheduledFuture<?> timeout = startTimeout();
+            try {
+                result = super.skip(n);
+            } catch (IOException ioe) {
+                checkTimeout(ioe);
+                throw ioe;
+            } finally {
+                timeout.cancel(false);
+            }
+            checkTimeout(null);
+            return result;
+        }
+
+        /**
+         * Schedule the closing of the body should the current read not complete in time.
+         */
+        private ScheduledFuture<?> startTimeout ()
+        {
+            return _timer.schedule(new Runnable() {
+                public void run () {
+                    _timedOut = true;
+                    try {
+                        in.close();
+                    } catch (IOException ioe) {
+                        // Nothing to do; the connection is discarded
+                    }
+                }
+            }, _requestTimeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Throw if the current read timed out, whether it failed as a result, or ended as
+         * though the body were complete.
+         *
+         * @param cause The read's failure, or null.
+         */
+        private void checkTimeout (IOException cause)
+            throws SocketTimeoutException
+        {
+            if (_timedOut) {
+                SocketTimeoutException ste = new SocketTimeoutException("Read timed out after " +
+                    _requestTimeout + " ms");
+                ste.initCause(cause);
+                throw ste;
+            }
+        }
+
+        /** Set once a read has timed out. */
+        private volatile boolean _timedOut;
+    }
+
+    /** Endpoint URI prefix, without a trailing slash. */
+    private final String _endpoint;
+
+    /** HTTP client. */
+    private final HttpClient _client;
+
+    /** Executor on which request bodies are written. */
+    private final ExecutorService _writers;
+
+    /** Response header timeout, in milliseconds, or 0. */
+    private final int _requestTimeout;
+
+    /** Request slot wait timeout, in milliseconds, or 0. */
+    private final long _leaseTimeout;
+
+    /** Available request slots. */
+    private final Semaphore _slots;
+
+    /** Requests in flight. */
+    private final AtomicInteger _leased = new AtomicInteger();
+
+    /** Requests waiting for a slot. */
+    private final AtomicInteger _pending = new AtomicInteger();
+
+    /** Total requests. */
+    private final AtomicLong _leaseCount = new AtomicLong();
+
+    /** Total slot wait time. */
+    private final AtomicLong _totalWaitNanos = new AtomicLong();
+
+    /** Longest slot wait time. */
+    private final AtomicLong _maxWaitNanos = new AtomicLong();
+
+    /** Timer on which response body reads are timed out. */
+    private static final ScheduledThreadPoolExecutor _timer = createTimer();
+
+    /** Size of the buffers in which request bodies are published (64k). */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Content-Type header. */
+    private static final String CONTENT_TYPE_HEADER = "Content-Type";
+
+    /** Content-Length header. */
+    private static final String CONTENT_LENGTH_HEADER = "Content-Length";
+
+    /** Headers that java.net.http sets itself, and refuses to accept from the caller. */
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<String>(Arrays.asList(
+        "connection", "content-length", "expect", "host", "upgrade"));
+}
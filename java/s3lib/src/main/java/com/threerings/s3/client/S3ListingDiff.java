@@ -0,0 +1,248 @@
+/*
+ * S3ListingDiff vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+/**
+ * Compares two key spaces by performing a streaming merge-join over two
+ * {@link S3EntrySource}s. As both sources return their entries in S3 key order, the
+ * comparison runs in linear time and holds only a single entry from each source in
+ * memory, regardless of the size of the listings.
+ *
+ * The "from" source is treated as the old (or destination) key space, and the "to" source
+ * as the new (or source) key space: keys present only in "to" are reported as added, keys
+ * present only in "from" are reported as removed.
+ *
+ * Diff instances are "one-shot", as they will irreversibly read from the provided sources.
+ */
+public class S3ListingDiff {
+
+    /**
+     * Receives the results of a listing comparison, in key order.
+     */
+    public interface Listener {
+        /** The entry exists only in the "to" key space. */
+        public void added (S3ObjectEntry to) throws S3Exception;
+
+        /** The entry exists only in the "from" key space. */
+        public void removed (S3ObjectEntry from) throws S3Exception;
+
+        /** The entry exists in both key spaces, but its contents differ. */
+        public void changed (S3ObjectEntry from, S3ObjectEntry to) throws S3Exception;
+
+        /** The entry exists in both key spaces, and its contents match. */
+        public void unchanged (S3ObjectEntry from, S3ObjectEntry to) throws S3Exception;
+    }
+
+    /**
+     * Determines whether two entries sharing the same key have the same contents.
+     */
+    public interface Matcher {
+        /**
+         * Return true if the entries' contents match.
+         */
+        public boolean matches (S3ObjectEntry from, S3ObjectEntry to) throws S3Exception;
+    }
+
+    /**
+     * Matches entries by size and ETag. If either entry lacks an ETag, only the sizes are
+     * compared.
+     */
+    public static final Matcher SIZE_AND_ETAG = new Matcher() {
+        public boolean matches (S3ObjectEntry from, S3ObjectEntry to) {
+            if (from.getSize() != to.getSize()) {
+                return false;
+            }
+
+            if (from.getETag() == null || to.getETag() == null) {
+                return true;
+            }
+            return from.getETag().equalsIgnoreCase(to.getETag());
+        }
+    };
+
+    /**
+     * Create a new listing comparison, matching entries by size and ETag.
+     *
+     * @param from The old (or destination) key space.
+     * @param to The new (or source) key space.
+     */
+    public S3ListingDiff (S3EntrySource from, S3EntrySource to)
+    {
+        this(from, to, SIZE_AND_ETAG);
+    }
+
+    /**
+     * Create a new listing comparison.
+     *
+     * @param from The old (or destination) key space.
+     * @param to The new (or source) key space.
+     * @param matcher Determines whether entries sharing a key have changed.
+     */
+    public S3ListingDiff (S3EntrySource from, S3EntrySource to, Matcher matcher)
+    {
+        _from = from;
+        _to = to;
+        _matcher = matcher;
+    }
+
+    /**
+     * Run the comparison to completion, reporting all differences to the provided
+     * listener.
+     *
+     * @throws S3ClientException If either source returns its entries out of key order.
+     */
+    public void run (Listener listener)
+        throws S3Exception
+    {
+        S3ObjectEntry from = nextFrom();
+        S3ObjectEntry to = nextTo();
+
+        while (from != null || to != null) {
+            int order;
+            if (from == null) {
+                order = 1;
+            } else if (to == null) {
+                order = -1;
+            } else {
+                order = S3Utils.compareKeys(from.getKey(), to.getKey());
+            }
+
+            if (order < 0) {
+                _removed++;
+                listener.removed(from);
+                from = nextFrom();
+            } else if (order > 0) {
+                _added++;
+                listener.added(to);
+                to = nextTo();
+            } else {
+                if (_matcher.matches(from, to)) {
+                    _unchanged++;
+                    listener.unchanged(from, to);
+                } else {
+                    _changed++;
+                    listener.changed(from, to);
+                }
+                from = nextFrom();
+                to = nextTo();
+            }
+        }
+    }
+
+    /** Returns the number of entries reported as added. */
+    public long getAddedCount () {
+        return _added;
+    }
+
+    /** Returns the number of entries reported as removed. */
+    public long getRemovedCount () {
+        return _removed;
+    }
+
+    /** Returns the number of entries reported as changed. */
+    public long getChangedCount () {
+        return _changed;
+    }
+
+    /** Returns the number of entries reported as unchanged. */
+    public long getUnchangedCount () {
+        return _unchanged;
+    }
+
+    /**
+     * Fetch the next "from" entry, validating its ordering.
+     */
+    private S3ObjectEntry nextFrom ()
+        throws S3Exception
+    {
+        S3ObjectEntry entry = _from.next();
+        _lastFrom = checkOrder(_lastFrom, entry, "from");
+        return entry;
+    }
+
+    /**
+     * Fetch the next "to" entry, validating its ordering.
+     */
+    private S3ObjectEntry nextTo ()
+        throws S3Exception
+    {
+        S3ObjectEntry entry = _to.next();
+        _lastTo = checkOrder(_lastTo, entry, "to");
+        return entry;
+    }
+
+    /**
+     * Verify that the given entry sorts after the previous key, returning the entry's key.
+     * The merge-join silently produces incorrect results if a source is not sorted, so we
+     * refuse to continue.
+     */
+    private static String checkOrder (String lastKey, S3ObjectEntry entry, String name)
+        throws S3ClientException
+    {
+        if (entry == null) {
+            return lastKey;
+        }
+
+        if (lastKey != null && S3Utils.compareKeys(lastKey, entry.getKey()) >= 0) {
+            throw new S3ClientException("The '" + name + "' listing is not in key order: '" +
+                entry.getKey() + "' follows '" + lastKey + "'");
+        }
+        return entry.getKey();
+    }
+
+    /** Old key space. */
+    private final S3EntrySource _from;
+
+    /** New key space. */
+    private final S3EntrySource _to;
+
+    /** Entry content matcher. */
+    private final Matcher _matcher;
+
+    /** Last key read from the "from" source. */
+    private String _lastFrom;
+
+    /** Last key read from the "to" source. */
+    private String _lastTo;
+
+    /** Number of added entries. */
+    private long _added;
+
+    /** Number of removed entries. */
+    private long _removed;
+
+    /** Number of changed entries. */
+    private long _changed;
+
+    /** Number of unchanged entries. */
+    private long _unchanged;
+}
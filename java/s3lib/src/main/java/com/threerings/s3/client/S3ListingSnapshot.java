@@ -0,0 +1,204 @@
+/*
+ * S3ListingSnapshot vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.Date;
+
+/**
+ * A saved bucket listing. Snapshots are written by {@link #write(S3EntrySource, OutputStream)}
+ * and may later be read back, in their original key order, as an {@link S3EntrySource}. This
+ * allows a listing to be compared against a later listing without re-fetching it, or
+ * without holding it in memory.
+ *
+ * Snapshot instances are "one-shot" -- they irreversibly read from the provided stream. The
+ * caller is responsible for closing the stream.
+ */
+public class S3ListingSnapshot implements S3EntrySource {
+
+    /**
+     * Write all entries from the provided source to the given output stream, in snapshot
+     * format. The output stream is flushed, but not closed.
+     *
+     * @param source Entry source.
+     * @param output Snapshot output stream.
+     * @return The number of entries written.
+     */
+    public static long write (S3EntrySource source, OutputStream output)
+        throws S3Exception
+    {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output,
+            BUFFER_SIZE));
+        S3ObjectEntry entry;
+        long count = 0;
+
+        try {
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+
+            while ((entry = source.next()) != null) {
+                S3Owner owner = entry.getOwner();
+                Date lastModified = entry.getLastModified();
+
+                data.writeByte(RECORD_ENTRY);
+                data.writeUTF(entry.getKey());
+                data.writeLong(lastModified != null ? lastModified.getTime() : -1L);
+                writeString(data, entry.getETag());
+                data.writeLong(entry.getSize());
+                writeString(data, entry.getStorageClass());
+                writeString(data, owner != null ? owner.getId() : null);
+                writeString(data, owner != null ? owner.getDisplayName() : null);
+                count++;
+            }
+
+            data.writeByte(RECORD_END);
+            data.flush();
+        } catch (IOException ioe) {
+            throw new S3ClientException("Failure writing listing snapshot: " + ioe, ioe);
+        }
+
+        return count;
+    }
+
+    /**
+     * Read a listing snapshot from the provided stream.
+     *
+     * @param input Snapshot input stream, as written by
+     *  {@link #write(S3EntrySource, OutputStream)}.
+     */
+    public S3ListingSnapshot (InputStream input)
+    {
+        _input = new DataInputStream(new BufferedInputStream(input, BUFFER_SIZE));
+    }
+
+    // from interface S3EntrySource
+    public S3ObjectEntry next ()
+        throws S3Exception
+    {
+        if (_finished) {
+            return null;
+        }
+
+        try {
+            /* Validate the header on the first read. */
+            if (!_readHeader) {
+                if (_input.readInt() != MAGIC) {
+                    throw new S3ClientException("Invalid listing snapshot header");
+                }
+                int version = _input.readInt();
+                if (version != VERSION) {
+                    throw new S3ClientException("Unsupported listing snapshot version: " +
+                        version);
+                }
+                _readHeader = true;
+            }
+
+            /* Read the record type. */
+            byte record = _input.readByte();
+            if (record == RECORD_END) {
+                _finished = true;
+                return null;
+            } else if (record != RECORD_ENTRY) {
+                throw new S3ClientException("Invalid listing snapshot record: " + record);
+            }
+
+            String key = _input.readUTF();
+            long lastModified = _input.readLong();
+            String eTag = readString(_input);
+            long size = _input.readLong();
+            String storageClass = readString(_input);
+            String ownerId = readString(_input);
+            String ownerName = readString(_input);
+
+            return new S3ObjectEntry(key, lastModified >= 0 ? new Date(lastModified) : null,
+                eTag, size, storageClass,
+                (ownerId != null || ownerName != null) ? new S3Owner(ownerId, ownerName) : null);
+        } catch (EOFException eof) {
+            throw new S3ClientException("Truncated listing snapshot", eof);
+        } catch (IOException ioe) {
+            throw new S3ClientException("Failure reading listing snapshot: " + ioe, ioe);
+        }
+    }
+
+    /**
+     * Write a nullable string.
+     */
+    private static void writeString (DataOutputStream data, String value)
+        throws IOException
+    {
+        data.writeBoolean(value != null);
+        if (value != null) {
+            data.writeUTF(value);
+        }
+    }
+
+    /**
+     * Read a nullable string.
+     */
+    private static String readString (DataInputStream data)
+        throws IOException
+    {
+        return data.readBoolean() ? data.readUTF() : null;
+    }
+
+    /** Snapshot input stream. */
+    private final DataInputStream _input;
+
+    /** Set once the snapshot header has been validated. */
+    private boolean _readHeader = false;
+
+    /** Set once the end record has been read. */
+    private boolean _finished = false;
+
+    /** Snapshot file magic ("S3LS"). */
+    private static final int MAGIC = 0x53334c53;
+
+    /** Snapshot format version. */
+    private static final int VERSION = 1;
+
+    /** Record type for an object entry. */
+    private static final byte RECORD_ENTRY = 1;
+
+    /** Record type marking the end of the snapshot. */
+    private static final byte RECORD_END = 0;
+
+    /** Snapshot I/O buffer size (64k). */
+    private static final int BUFFER_SIZE = 64 * 1024;
+}
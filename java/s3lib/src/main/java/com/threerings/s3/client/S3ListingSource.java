@@ -0,0 +1,139 @@
+/*
+ * S3ListingSource vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.List;
+
+/**
+ * An {@link S3EntrySource} backed by a live bucket listing. Entries are fetched lazily, one
+ * listing page at a time, and only the current page is held in memory.
+ */
+public class S3ListingSource implements S3EntrySource {
+
+    /** Default number of keys requested per listing page. */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * List all keys in the given bucket beginning with the provided prefix.
+     *
+     * @param connection S3 connection.
+     * @param bucketName Bucket to list.
+     * @param prefix Key prefix. Specify null for no prefix.
+     */
+    public S3ListingSource (S3Connection connection, String bucketName, String prefix)
+    {
+        this(connection, bucketName, prefix, null);
+    }
+
+    /**
+     * List all keys in the given bucket beginning with the provided prefix, starting after
+     * the provided marker.
+     *
+     * @param connection S3 connection.
+     * @param bucketName Bucket to list.
+     * @param prefix Key prefix. Specify null for no prefix.
+     * @param marker The listing will only include keys that occur lexicographically after
+     *  marker. Specify null for no marker.
+     */
+    public S3ListingSource (S3Connection connection, String bucketName, String prefix,
+        String marker)
+    {
+        this(connection, bucketName, prefix, marker, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * List all keys in the given bucket beginning with the provided prefix, starting after
+     * the provided marker.
+     *
+     * @param connection S3 connection.
+     * @param bucketName Bucket to list.
+     * @param prefix Key prefix. Specify null for no prefix.
+     * @param marker The listing will only include keys that occur lexicographically after
+     *  marker. Specify null for no marker.
+     * @param pageSize Maximum number of keys to request per listing page.
+     */
+    public S3ListingSource (S3Connection connection, String bucketName, String prefix,
+        String marker, int pageSize)
+    {
+        _connection = connection;
+        _bucketName = bucketName;
+        _prefix = prefix;
+        _marker = marker;
+        _pageSize = pageSize;
+    }
+
+    // from interface S3EntrySource
+    public S3ObjectEntry next ()
+        throws S3Exception
+    {
+        /* Fetch pages until we find an entry or run out of pages. A page may legitimately
+         * be empty while still truncated. */
+        while (_page == null || _pageIndex >= _page.size()) {
+            if (_finished) {
+                return null;
+            }
+
+            S3ObjectListing listing = _connection.listObjects(_bucketName, _prefix, _marker,
+                _pageSize, null);
+            _page = listing.getEntries();
+            _pageIndex = 0;
+            _marker = listing.getNextMarker();
+            _finished = !listing.truncated() || _marker == null;
+        }
+
+        return _page.get(_pageIndex++);
+    }
+
+    /** S3 connection. */
+    private final S3Connection _connection;
+
+    /** Bucket being listed. */
+    private final String _bucketName;
+
+    /** Listing prefix, or null. */
+    private final String _prefix;
+
+    /** Keys per listing request. */
+    private final int _pageSize;
+
+    /** Marker for the next listing request, or null. */
+    private String _marker;
+
+    /** The current listing page. */
+    private List<S3ObjectEntry> _page;
+
+    /** Index of the next entry to return from the current page. */
+    private int _pageIndex;
+
+    /** Set once the final page has been fetched. */
+    private boolean _finished = false;
+}
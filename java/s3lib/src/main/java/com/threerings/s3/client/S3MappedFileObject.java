@@ -0,0 +1,195 @@
+/*
+ * S3MappedFileObject vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.security.MessageDigest;
+
+/**
+ * A representation of a (locally file-backed) object stored in S3, read through a memory
+ * mapping of the file rather than through a file stream. Digests are computed, and uploads
+ * are written, directly from the mapped pages, and regions of the object -- such as the
+ * parts of a multipart upload -- are views of the same mapping, requiring no additional
+ * buffering.
+ *
+ * The file must not be truncated while the object is in use. See {@link FileMapping}.
+ */
+public class S3MappedFileObject extends S3Object {
+
+    /**
+     * Instantiate an S3 memory-mapped file object with the given key.
+     * @param key S3 object key.
+     * @param file File backing.
+     * @throws IOException If the file does not exist or cannot be read.
+     */
+    public S3MappedFileObject (String key, File file)
+        throws IOException
+    {
+        this(key, file, S3Object.DEFAULT_MEDIA_TYPE);
+    }
+
+    /**
+     * Instantiate an S3 memory-mapped file object with the given key.
+     * @param key S3 object key.
+     * @param file File backing.
+     * @param mediaType Object's media type.
+     * @throws IOException If the file does not exist or cannot be read.
+     */
+    public S3MappedFileObject (String key, File file, MediaType mediaType)
+        throws IOException
+    {
+        this(key, mediaType, new FileMapping(file), 0L, -1L);
+    }
+
+    /**
+     * Instantiate an S3 object backed by a region of an existing mapping.
+     */
+    S3MappedFileObject (String key, MediaType mediaType, FileMapping mapping,
+        long offset, long length)
+    {
+        super(key, mediaType);
+        _mapping = mapping;
+        _offset = offset;
+        _length = (length >= 0) ? length : mapping.size() - offset;
+    }
+
+    /**
+     * Return an object with the same key and media type, backed by a region of this object,
+     * such as a part of a multipart upload. The region shares this object's mapping.
+     *
+     * @param offset Offset of the region within this object.
+     * @param length Length of the region.
+     */
+    public S3MappedFileObject getRegion (long offset, long length)
+    {
+        if (offset < 0 || length < 0 || offset + length > _length) {
+            throw new IllegalArgumentException("Region [" + offset + ", " + (offset + length) +
+                ") lies outside of the object (" + _length + " bytes)");
+        }
+        return new S3MappedFileObject(getKey(), getMediaType(), _mapping, _offset + offset,
+            length);
+    }
+
+    @Override // From S3Object
+    public InputStream getInputStream ()
+        throws S3ClientException
+    {
+        return new ByteBufferInputStream(slice());
+    }
+
+    @Override // From S3Object
+    public boolean isRepeatable () {
+        return true;
+    }
+
+    @Override // From S3Object
+    DigestingRequestEntity createRequestEntity (boolean digest)
+        throws S3ClientException
+    {
+        return new ByteBufferRequestEntity(slice(), getMediaType().getMimeType(), digest);
+    }
+
+    @Override // From S3Object
+    public byte[] getMD5 ()
+        throws S3ClientException
+    {
+        return computeChecksum(S3ChecksumAlgorithm.MD5);
+    }
+
+    @Override // From S3Object
+    protected byte[] computeChecksum (S3ChecksumAlgorithm algorithm)
+        throws S3ClientException
+    {
+        MessageDigest md = algorithm.createDigest();
+        for (ByteBuffer buffer : slice()) {
+            md.update(buffer);
+        }
+        return md.digest();
+    }
+
+    /**
+     * Digest the object as it would be uploaded with the given part size. As the parts are
+     * independent, they may be digested in parallel.
+     *
+     * @param partSize Upload part size.
+     * @param threads Number of threads used to digest the parts.
+     */
+    public S3MultipartDigest getMultipartDigest (long partSize, int threads)
+        throws S3ClientException
+    {
+        return S3MultipartDigest.compute(_length, partSize, threads,
+            new S3MultipartDigest.PartDigester() {
+                public byte[] digest (long offset, long length)
+                    throws S3ClientException
+                {
+                    return getRegion(offset, length).getMD5();
+                }
+            });
+    }
+
+    @Override // From S3Object
+    public long lastModified () {
+        return _mapping.getFile().lastModified();
+    }
+
+    @Override // From S3Object
+    public long length () {
+        return _length;
+    }
+
+    /**
+     * Return views of the object's data.
+     */
+    private ByteBuffer[] slice ()
+        throws S3ClientException
+    {
+        try {
+            return _mapping.slice(_offset, _length);
+        } catch (IOException ioe) {
+            throw new S3ClientException("Failure mapping input file: " + ioe, ioe);
+        }
+    }
+
+    /** The file mapping, shared with all regions of the file. */
+    private final FileMapping _mapping;
+
+    /** Offset of the region within the file. */
+    private final long _offset;
+
+    /** Length of the region. */
+    private final long _length;
+}
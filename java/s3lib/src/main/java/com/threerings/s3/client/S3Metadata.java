@@ -1,5 +1,6 @@
 package com.threerings.s3.client;
 
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -97,6 +98,46 @@ public abstract class S3Metadata {
      */
     public abstract long length ();
 
+    /**
+     * Get the object's checksum using the given algorithm. The MD5 checksum is that returned
+     * by {@link #getMD5}; other checksums are available only if they were supplied by S3. If
+     * the checksum is unavailable, this method returns null.
+     */
+    public byte[] getChecksum (S3ChecksumAlgorithm algorithm)
+        throws S3ClientException
+    {
+        if (algorithm == S3ChecksumAlgorithm.MD5) {
+            return getMD5();
+        }
+        return _checksums.get(algorithm);
+    }
+
+    /**
+     * Record a checksum supplied by S3.
+     */
+    void setChecksum (S3ChecksumAlgorithm algorithm, byte[] checksum)
+    {
+        _checksums.put(algorithm, checksum);
+    }
+
+    /**
+     * Returns the object's ETag, without surrounding quotes, if it was supplied by S3, or
+     * null. The ETags of objects created by a multipart upload, and of most encrypted
+     * objects, are not MD5 digests of their data.
+     */
+    public String getETag ()
+    {
+        return _eTag;
+    }
+
+    /**
+     * Record the ETag supplied by S3.
+     */
+    void setETag (String eTag)
+    {
+        _eTag = eTag;
+    }
+
     /** S3 object media type. */
     private MediaType _mediaType;
 
@@ -105,4 +146,11 @@ public abstract class S3Metadata {
 
     /** S3 object meta-data. */
     private Map<String,String> _metadata;
+
+    /** ETag supplied by S3, or null. */
+    private String _eTag;
+
+    /** Checksums supplied by S3. */
+    private final Map<S3ChecksumAlgorithm,byte[]> _checksums =
+        new EnumMap<S3ChecksumAlgorithm,byte[]>(S3ChecksumAlgorithm.class);
 }
@@ -0,0 +1,323 @@
+/*
+ * S3MultipartCopy vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import com.threerings.s3.client.acl.AccessControlList;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copies a single large object, server-side, as a multipart upload. The source is split into
+ * byte ranges which are copied concurrently with {@link S3Connection#uploadPartCopy}, and
+ * then assembled into the destination object. This is both faster than a single
+ * {@link S3Connection#copyObject} request for very large objects, and the only way to copy
+ * objects larger than S3's 5 GB single-copy limit.
+ *
+ * The part size is chosen from the source object's size, as returned by a HEAD request, so
+ * that the copy never exceeds S3's limit on the number of parts. Objects no larger than a
+ * single part are copied with a plain {@link S3Connection#copyObject} request.
+ *
+ * Instances must be configured before use, after which {@link #copy} may be called from
+ * multiple threads.
+ */
+public class S3MultipartCopy {
+
+    /** Minimum size of any part but the last (5 MB). */
+    public static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+
+    /** Maximum size of a part, and of a single-request copy (5 GB). */
+    public static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024;
+
+    /** Maximum number of parts in a multipart upload. */
+    public static final int MAX_PARTS = 10000;
+
+    /** Default preferred part size (128 MB). */
+    public static final long DEFAULT_PART_SIZE = 128L * 1024 * 1024;
+
+    /**
+     * Return the part size to use when copying an object of the given size. The preferred
+     * part size is used unless the object would then require more than {@link #MAX_PARTS}
+     * parts, in which case the smallest sufficient size is used. Part sizes are rounded up to
+     * a whole megabyte.
+     *
+     * @param size Object size.
+     * @param preferredSize Preferred part size.
+     */
+    public static long choosePartSize (long size, long preferredSize)
+    {
+        long partSize = Math.max(preferredSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+        partSize = (partSize + PART_SIZE_ALIGNMENT - 1) / PART_SIZE_ALIGNMENT *
+            PART_SIZE_ALIGNMENT;
+        return Math.min(MAX_PART_SIZE, Math.max(MIN_PART_SIZE, partSize));
+    }
+
+    /**
+     * Create a new multipart copier.
+     *
+     * @param connection S3 connection.
+     * @param concurrency Maximum number of concurrent part copy requests, per object.
+     */
+    public S3MultipartCopy (S3Connection connection, int concurrency)
+    {
+        _connection = connection;
+        _concurrency = concurrency;
+    }
+
+    /**
+     * Set the preferred part size. Defaults to {@link #DEFAULT_PART_SIZE}. Larger parts may
+     * be used for very large objects.
+     *
+     * @throws IllegalArgumentException If the size is outside of S3's part size limits.
+     */
+    public void setPartSize (long partSize) {
+        if (partSize < MIN_PART_SIZE || partSize > MAX_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be between " + MIN_PART_SIZE +
+                " and " + MAX_PART_SIZE + " bytes: " + partSize);
+        }
+        _partSize = partSize;
+    }
+
+    /**
+     * Set the destination object's access policy. Defaults to PRIVATE.
+     */
+    public void setAccessPolicy (AccessControlList.StandardPolicy accessPolicy) {
+        _accessPolicy = accessPolicy;
+    }
+
+    /**
+     * Replace the destination object's metadata with the given map. If null (the default),
+     * the source object's metadata and media type are preserved.
+     */
+    public void setMetadata (Map<String,String> metadata) {
+        _metadata = metadata;
+    }
+
+    /**
+     * Set the maximum number of times a failed part copy is retried. Defaults to 5. If the
+     * connection has a retry policy, parts are retried only as it allows.
+     */
+    public void setMaxRetry (int maxRetry) {
+        _maxRetry = maxRetry;
+    }
+
+    /**
+     * Share a bound on concurrent requests with other work, such as the copying of other
+     * objects. Each request made by the copier holds one of the given permits, in addition
+     * to the per-object concurrency limit. Defaults to null, for no shared bound.
+     */
+    public void setRequestPermits (Semaphore permits) {
+        _permits = permits;
+    }
+
+    /**
+     * Copy an object, blocking until the copy has completed. If any part fails to copy, the
+     * multipart upload is aborted, and the destination object is left unmodified.
+     *
+     * @param srcBucket Source bucket.
+     * @param srcObjectKey Source object key.
+     * @param destBucket Destination bucket.
+     * @param destObjectKey Destination object key.
+     */
+    public void copy (String srcBucket, String srcObjectKey, String destBucket,
+        String destObjectKey)
+        throws S3Exception
+    {
+        S3Metadata source;
+        long size;
+        long partSize;
+        String uploadId;
+        S3Utils.acquirePermit(_permits);
+        try {
+            source = _connection.getObjectMetadata(srcBucket, srcObjectKey);
+            size = source.length();
+            partSize = choosePartSize(size, _partSize);
+
+            if (size <= partSize) {
+                _connection.copyObject(srcObjectKey, destObjectKey, srcBucket, destBucket,
+                    _accessPolicy, _metadata);
+                return;
+            }
+
+            Map<String,String> metadata = (_metadata != null) ?
+                _metadata : source.getMetadata();
+            uploadId = _connection.initiateMultipartUpload(destBucket, destObjectKey,
+                source.getMediaType(), _accessPolicy, metadata);
+        } finally {
+            S3Utils.releasePermit(_permits);
+        }
+
+        /* Guard against the source changing between parts, where S3 supplied its ETag. The
+         * ETag need not be an MD5 digest, as for multipart or KMS-encrypted sources. */
+        String srcETag = source.getETag();
+
+        boolean success = false;
+        try {
+            S3UploadPart[] parts = copyParts(srcBucket, srcObjectKey, srcETag, destBucket,
+                destObjectKey, uploadId, size, partSize);
+            S3Utils.acquirePermit(_permits);
+            try {
+                _connection.completeMultipartUpload(destBucket, destObjectKey, uploadId,
+                    Arrays.asList(parts));
+            } finally {
+                S3Utils.releasePermit(_permits);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                abort(destBucket, destObjectKey, uploadId);
+            }
+        }
+    }
+
+    /**
+     * Copy all parts of the source object, returning the completed parts in order.
+     */
+    private S3UploadPart[] copyParts (final String srcBucket, final String srcObjectKey,
+        final String srcETag, final String destBucket, final String destObjectKey,
+        final String uploadId, long size, long partSize)
+        throws S3Exception
+    {
+        final int count = (int)((size + partSize - 1) / partSize);
+        final S3UploadPart[] parts = new S3UploadPart[count];
+        final AtomicReference<S3Exception> failure = new AtomicReference<S3Exception>();
+
+        BoundedExecutor executor = new BoundedExecutor(Math.min(_concurrency, count),
+            "S3MultipartCopy");
+        try {
+            try {
+                for (int i = 0; i < count && failure.get() == null; i++) {
+                    final int partNumber = i + 1;
+                    final long firstByte = i * partSize;
+                    final long lastByte = Math.min(size, firstByte + partSize) - 1;
+
+                    executor.execute(new Runnable() {
+                        public void run () {
+                            /* Don't bother copying further parts once any part has failed. */
+                            if (failure.get() != null) {
+                                return;
+                            }
+                            try {
+                                String eTag = copyPart(srcBucket, srcObjectKey, srcETag,
+                                    destBucket, destObjectKey, uploadId, partNumber, firstByte,
+                                    lastByte);
+                                parts[partNumber - 1] = new S3UploadPart(partNumber, eTag);
+                            } catch (S3Exception e) {
+                                failure.compareAndSet(null, e);
+                            }
+                        }
+                    });
+                }
+            } finally {
+                executor.awaitCompletion();
+            }
+        } catch (InterruptedException ie) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new S3ClientException("Interrupted while copying " + srcObjectKey, ie);
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return parts;
+    }
+
+    /**
+     * Copy a single part, retrying on failure.
+     */
+    private String copyPart (String srcBucket, String srcObjectKey, String srcETag,
+        String destBucket, String destObjectKey, String uploadId, int partNumber,
+        long firstByte, long lastByte)
+        throws S3Exception
+    {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                S3Utils.acquirePermit(_permits);
+                try {
+                    return _connection.uploadPartCopy(srcBucket, srcObjectKey, srcETag,
+                        destBucket, destObjectKey, uploadId, partNumber, firstByte, lastByte);
+                } finally {
+                    S3Utils.releasePermit(_permits);
+                }
+            } catch (S3Exception e) {
+                if (S3Utils.retryOperation(_connection.getRetryPolicy(), attempt,
+                    _maxRetry, e)) {
+                    continue;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Abort a failed upload. Failure to abort is not reported, as the upload has already
+     * failed; S3 will continue to store (and bill for) the copied parts until the upload is
+     * aborted or expired by a bucket lifecycle rule.
+     */
+    private void abort (String destBucket, String destObjectKey, String uploadId)
+    {
+        try {
+            _connection.abortMultipartUpload(destBucket, destObjectKey, uploadId);
+        } catch (S3Exception e) {
+            // Nothing more we can do
+        }
+    }
+
+    /** S3 connection. */
+    private final S3Connection _connection;
+
+    /** Maximum concurrent part copies. */
+    private final int _concurrency;
+
+    /** Permits shared with other work, or null. */
+    private Semaphore _permits;
+
+    /** Preferred part size. */
+    private long _partSize = DEFAULT_PART_SIZE;
+
+    /** Destination access policy. */
+    private AccessControlList.StandardPolicy _accessPolicy =
+        AccessControlList.StandardPolicy.PRIVATE;
+
+    /** Replacement metadata, or null. */
+    private Map<String,String> _metadata;
+
+    /** Maximum retries per part. */
+    private int _maxRetry = 5;
+
+    /** Part sizes are rounded up to a multiple of this alignment (1 MB). */
+    private static final long PART_SIZE_ALIGNMENT = 1024 * 1024;
+}
@@ -0,0 +1,327 @@
+/*
+ * S3MultipartDigest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.security.MessageDigest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * The digest of data uploaded as a multipart upload: the MD5 digest of each part, and the
+ * composite ETag S3 assigns to the completed object -- the hex-encoded MD5 digest of the
+ * concatenated part digests, followed by a dash and the number of parts.
+ *
+ * Unlike a single MD5 digest of the data, whose computation is inherently serial, the parts
+ * are independent and may be digested concurrently, allowing a large file to be compared
+ * against a multipart object's ETag at the speed of the disk rather than of a single core.
+ */
+public class S3MultipartDigest {
+
+    /**
+     * Digest a file as it would be uploaded with the given part size.
+     *
+     * @param file File to digest.
+     * @param partSize Upload part size.
+     * @param threads Number of threads used to digest the parts.
+     */
+    public static S3MultipartDigest compute (File file, long partSize, int threads)
+        throws S3ClientException
+    {
+        try {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = input.getChannel();
+                return compute(channel, 0L, channel.size(), partSize, threads);
+            } finally {
+                input.close();
+            }
+        } catch (IOException ioe) {
+            throw new S3ClientException("Failure reading input file: " + ioe, ioe);
+        }
+    }
+
+    /**
+     * Digest a region of a file channel as it would be uploaded with the given part size.
+     * The parts are read with positional reads, and the channel's position is not modified.
+     *
+     * @param channel File channel.
+     * @param offset Offset of the region.
+     * @param length Length of the region.
+     * @param partSize Upload part size.
+     * @param threads Number of threads used to digest the parts.
+     */
+    public static S3MultipartDigest compute (final FileChannel channel, final long offset,
+        final long length, final long partSize, int threads)
+        throws S3ClientException
+    {
+        return compute(length, partSize, threads, new PartDigester() {
+            public byte[] digest (long partOffset, long partLength)
+                throws S3ClientException
+            {
+                MessageDigest md = S3ChecksumAlgorithm.MD5.createDigest();
+                ByteBuffer buffer = ByteBuffer.allocateDirect(
+                    (int)Math.min(READ_BUFFER_SIZE, Math.max(1, partLength)));
+                long position = offset + partOffset;
+                long remaining = partLength;
+                try {
+                    while (remaining > 0) {
+                        buffer.clear();
+                        buffer.limit((int)Math.min(buffer.capacity(), remaining));
+                        int count = channel.read(buffer, position);
+                        if (count < 0) {
+                            throw new S3ClientException("Unexpected end of file with " +
+                                remaining + " bytes remaining");
+                        }
+                        buffer.flip();
+                        md.update(buffer);
+                        position += count;
+                        remaining -= count;
+                    }
+                } catch (IOException ioe) {
+                    throw new S3ClientException("Failure reading input file: " + ioe, ioe);
+                }
+                return md.digest();
+            }
+        });
+    }
+
+    /**
+     * Returns the number of parts recorded in a multipart ETag, or -1 if the ETag is not
+     * that of a multipart upload.
+     */
+    public static int getPartCount (String eTag)
+    {
+        eTag = S3Connection.stripQuotes(eTag);
+        int dash = eTag.lastIndexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(eTag.substring(dash + 1));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * Return the part sizes an uploader most plausibly used to upload an object of the given
+     * size in the given number of parts, most likely first: the smallest whole number of
+     * megabytes yielding that many parts, and any power-of-two number of megabytes that
+     * also does so. Objects uploaded as a single part have the same ETag regardless of part
+     * size. The list is empty if no such part size exists.
+     *
+     * These are guesses: an uploader that used some other part size, such as a multiple of
+     * 8 MB larger than the minimum, is not detected. Callers that know the part size used
+     * should try it first.
+     */
+    public static List<Long> getCandidatePartSizes (long size, int partCount)
+    {
+        List<Long> sizes = new ArrayList<Long>();
+        if (partCount < 1 || (partCount > 1 && size < partCount)) {
+            return sizes;
+        } else if (partCount == 1) {
+            sizes.add(Math.max(1, size));
+            return sizes;
+        }
+
+        long minimum = (size + partCount - 1) / partCount;
+        minimum = (minimum + MEGABYTE - 1) / MEGABYTE * MEGABYTE;
+        if (countParts(size, minimum) == partCount) {
+            sizes.add(minimum);
+        }
+
+        for (long partSize = MEGABYTE; countParts(size, partSize) >= partCount;
+            partSize *= 2)
+        {
+            if (partSize > minimum && countParts(size, partSize) == partCount) {
+                sizes.add(partSize);
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Create a multipart digest from known part digests.
+     *
+     * @param partSize Upload part size.
+     * @param partDigests The MD5 digest of each part, in order.
+     */
+    public S3MultipartDigest (long partSize, byte[][] partDigests)
+    {
+        _partSize = partSize;
+        _partDigests = partDigests;
+    }
+
+    /** Returns the upload part size. */
+    public long getPartSize () {
+        return _partSize;
+    }
+
+    /** Returns the number of parts. */
+    public int getPartCount () {
+        return _partDigests.length;
+    }
+
+    /**
+     * Returns the MD5 digest of the given part.
+     *
+     * @param partNumber Part number, starting at 1.
+     */
+    public byte[] getPartDigest (int partNumber) {
+        return _partDigests[partNumber - 1];
+    }
+
+    /**
+     * Returns the ETag S3 assigns to an object uploaded with these parts (without
+     * surrounding quotes).
+     */
+    public String getETag ()
+    {
+        MessageDigest md = S3ChecksumAlgorithm.MD5.createDigest();
+        for (byte[] digest : _partDigests) {
+            md.update(digest);
+        }
+        return new String(Hex.encodeHex(md.digest())) + "-" + _partDigests.length;
+    }
+
+    /**
+     * Returns true if the given ETag, quoted or not, is that of an object uploaded with these
+     * parts.
+     */
+    public boolean matches (String eTag)
+    {
+        return eTag != null && S3Connection.stripQuotes(eTag).equalsIgnoreCase(getETag());
+    }
+
+    /**
+     * Digests a single part of the data.
+     */
+    interface PartDigester {
+        /**
+         * Return the MD5 digest of the part at the given offset.
+         */
+        public byte[] digest (long offset, long length) throws S3ClientException;
+    }
+
+    /**
+     * Digest data of the given length as it would be uploaded with the given part size,
+     * digesting the parts concurrently.
+     */
+    static S3MultipartDigest compute (long length, final long partSize, int threads,
+        final PartDigester digester)
+        throws S3ClientException
+    {
+        if (partSize <= 0) {
+            throw new IllegalArgumentException("Invalid part size: " + partSize);
+        }
+
+        final int count = (int)Math.max(1, countParts(length, partSize));
+        final byte[][] digests = new byte[count][];
+        final AtomicReference<S3ClientException> failure =
+            new AtomicReference<S3ClientException>();
+
+        if (threads <= 1 || count == 1) {
+            for (int i = 0; i < count; i++) {
+                long offset = i * partSize;
+                digests[i] = digester.digest(offset, Math.min(partSize, length - offset));
+            }
+            return new S3MultipartDigest(partSize, digests);
+        }
+
+        BoundedExecutor executor = new BoundedExecutor(Math.min(threads, count),
+            "S3MultipartDigest");
+        try {
+            try {
+                for (int i = 0; i < count && failure.get() == null; i++) {
+                    final int index = i;
+                    final long offset = i * partSize;
+                    final long partLength = Math.min(partSize, length - offset);
+
+                    executor.execute(new Runnable() {
+                        public void run () {
+                            if (failure.get() != null) {
+                                return;
+                            }
+                            try {
+                                digests[index] = digester.digest(offset, partLength);
+                            } catch (S3ClientException e) {
+                                failure.compareAndSet(null, e);
+                            }
+                        }
+                    });
+                }
+            } finally {
+                executor.awaitCompletion();
+            }
+        } catch (InterruptedException ie) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new S3ClientException("Interrupted while digesting parts", ie);
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return new S3MultipartDigest(partSize, digests);
+    }
+
+    /**
+     * Return the number of parts of the given size needed to hold the given length.
+     */
+    private static long countParts (long length, long partSize)
+    {
+        return (length + partSize - 1) / partSize;
+    }
+
+    /** Upload part size. */
+    private final long _partSize;
+
+    /** Part digests, in order. */
+    private final byte[][] _partDigests;
+
+    /** Part read buffer size (1MB). */
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    /** One megabyte. */
+    private static final long MEGABYTE = 1024 * 1024;
+}
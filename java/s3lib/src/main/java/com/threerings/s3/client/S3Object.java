@@ -35,6 +35,9 @@ import java.util.HashMap;
 import java.util.Map;
 
 import java.io.InputStream;
+import java.io.IOException;
+
+import java.security.MessageDigest;
 
 /**
  * A representation of a single object stored in S3.
@@ -79,4 +82,109 @@ public abstract class S3Object extends S3Metadata{
      * stream.
      */
     public abstract InputStream getInputStream () throws S3ClientException;
+
+    /**
+     * Set the checksum algorithm used to protect the object's data when it is uploaded, or
+     * null to use the connection's default. See
+     * {@link S3Connection#setChecksumAlgorithm(S3ChecksumAlgorithm)}.
+     */
+    public void setChecksumAlgorithm (S3ChecksumAlgorithm checksumAlgorithm) {
+        _checksumAlgorithm = checksumAlgorithm;
+    }
+
+    /**
+     * Returns the checksum algorithm used to upload the object, or null if the connection's
+     * default is used.
+     */
+    public S3ChecksumAlgorithm getChecksumAlgorithm () {
+        return _checksumAlgorithm;
+    }
+
+    /**
+     * Get the object's checksum using the given algorithm. Checksums not supplied by S3 are
+     * computed from the object's data.
+     */
+    @Override // From S3Metadata
+    public byte[] getChecksum (S3ChecksumAlgorithm algorithm)
+        throws S3ClientException
+    {
+        byte[] checksum = super.getChecksum(algorithm);
+        if (checksum == null && algorithm != S3ChecksumAlgorithm.MD5 &&
+            algorithm != S3ChecksumAlgorithm.NONE)
+        {
+            checksum = computeChecksum(algorithm);
+        }
+        return checksum;
+    }
+
+    /**
+     * Compute the object's checksum from its data, or return null if the data can not be
+     * read more than once.
+     *
+     * This implementation reads the object's input stream in full.
+     */
+    protected byte[] computeChecksum (S3ChecksumAlgorithm algorithm)
+        throws S3ClientException
+    {
+        MessageDigest md = algorithm.createDigest();
+        byte[] data = new byte[CHECKSUM_BUFFER_SIZE];
+        int nbytes;
+
+        InputStream input = getInputStream();
+        try {
+            while ((nbytes = input.read(data)) > 0) {
+                md.update(data, 0, nbytes);
+            }
+        } catch (IOException ioe) {
+            throw new S3ClientException("Failure reading object data: " + ioe, ioe);
+        } finally {
+            try {
+                input.close();
+            } catch (IOException ioe) {
+                // Nothing to do
+            }
+        }
+        return md.digest();
+    }
+
+    /**
+     * Returns true if the object's MD5 digest should be computed while its data is uploaded,
+     * rather than by calling {@link #getMD5} beforehand. This avoids reading the data twice
+     * when the digest is expensive to compute. The streamed digest is verified against the
+     * ETag returned by S3, rather than being sent with the request.
+     *
+     * By default, this implementation returns false.
+     */
+    public boolean isStreamingDigest () {
+        return false;
+    }
+
+    /**
+     * Returns true if the object's data may be read more than once, allowing a failed
+     * upload of the object to be retried.
+     *
+     * By default, this implementation returns false.
+     */
+    public boolean isRepeatable () {
+        return false;
+    }
+
+    /**
+     * Create the request entity used to upload the object's data. The object's length must
+     * be known.
+     *
+     * @param digest If true, the entity must compute the MD5 digest of the data.
+     */
+    DigestingRequestEntity createRequestEntity (boolean digest)
+        throws S3ClientException
+    {
+        return new DigestingRequestEntity(getInputStream(), length(),
+            getMediaType().getMimeType(), digest);
+    }
+
+    /** Upload checksum algorithm, or null for the connection's default. */
+    private S3ChecksumAlgorithm _checksumAlgorithm;
+
+    /** Checksum read buffer size (64k). */
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
 }
@@ -0,0 +1,219 @@
+/*
+ * S3PrefixStatistics vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregate statistics for the objects stored beneath a single key prefix: object counts,
+ * total bytes, a size histogram, a storage class breakdown, and the oldest and newest
+ * modification dates.
+ *
+ * Instances are mutable and are not thread-safe; statistics gathered in parallel should be
+ * accumulated separately and combined with {@link #merge(S3PrefixStatistics)}.
+ */
+public class S3PrefixStatistics {
+
+    /** Number of size histogram buckets. */
+    public static final int HISTOGRAM_BUCKETS = 65;
+
+    /**
+     * Create an empty statistics record for the given prefix.
+     *
+     * @param prefix Key prefix, or null for the bucket root.
+     */
+    public S3PrefixStatistics (String prefix)
+    {
+        _prefix = prefix;
+    }
+
+    /**
+     * Add a single object entry.
+     */
+    public void add (S3ObjectEntry entry)
+    {
+        long size = entry.getSize();
+        Date lastModified = entry.getLastModified();
+
+        _objectCount++;
+        _totalBytes += size;
+        _histogram[histogramBucket(size)]++;
+
+        String storageClass = entry.getStorageClass();
+        if (storageClass == null) {
+            storageClass = UNKNOWN_STORAGE_CLASS;
+        }
+        increment(_storageClassCounts, storageClass, 1);
+        increment(_storageClassBytes, storageClass, size);
+
+        if (lastModified != null) {
+            long time = lastModified.getTime();
+            if (_oldest == null || time < _oldest.getTime()) {
+                _oldest = lastModified;
+            }
+            if (_newest == null || time > _newest.getTime()) {
+                _newest = lastModified;
+            }
+        }
+    }
+
+    /**
+     * Merge the provided statistics into this record.
+     */
+    public void merge (S3PrefixStatistics other)
+    {
+        _objectCount += other._objectCount;
+        _totalBytes += other._totalBytes;
+
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            _histogram[i] += other._histogram[i];
+        }
+
+        for (Map.Entry<String,Long> entry : other._storageClassCounts.entrySet()) {
+            increment(_storageClassCounts, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String,Long> entry : other._storageClassBytes.entrySet()) {
+            increment(_storageClassBytes, entry.getKey(), entry.getValue());
+        }
+
+        if (other._oldest != null && (_oldest == null ||
+            other._oldest.getTime() < _oldest.getTime())) {
+            _oldest = other._oldest;
+        }
+        if (other._newest != null && (_newest == null ||
+            other._newest.getTime() > _newest.getTime())) {
+            _newest = other._newest;
+        }
+    }
+
+    /**
+     * Returns the key prefix, or null for the bucket root.
+     */
+    public String getPrefix () {
+        return _prefix;
+    }
+
+    /**
+     * Returns the number of objects.
+     */
+    public long getObjectCount () {
+        return _objectCount;
+    }
+
+    /**
+     * Returns the total size of all objects, in bytes.
+     */
+    public long getTotalBytes () {
+        return _totalBytes;
+    }
+
+    /**
+     * Returns the object size histogram. Bucket 0 counts empty objects, and bucket
+     * <code>n</code> counts objects of at least 2^(n-1) bytes and less than 2^n bytes.
+     */
+    public long[] getSizeHistogram () {
+        return _histogram.clone();
+    }
+
+    /**
+     * Returns the number of objects in each storage class.
+     */
+    public Map<String,Long> getStorageClassCounts () {
+        return Collections.unmodifiableMap(_storageClassCounts);
+    }
+
+    /**
+     * Returns the total bytes stored in each storage class.
+     */
+    public Map<String,Long> getStorageClassBytes () {
+        return Collections.unmodifiableMap(_storageClassBytes);
+    }
+
+    /**
+     * Returns the oldest modification date, or null if no objects have been added.
+     */
+    public Date getOldestModified () {
+        return _oldest;
+    }
+
+    /**
+     * Returns the newest modification date, or null if no objects have been added.
+     */
+    public Date getNewestModified () {
+        return _newest;
+    }
+
+    /**
+     * Returns the histogram bucket for the given object size.
+     */
+    static int histogramBucket (long size) {
+        return size <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(size);
+    }
+
+    /**
+     * Increment a map counter.
+     */
+    private static void increment (Map<String,Long> map, String key, long amount) {
+        Long value = map.get(key);
+        map.put(key, value == null ? amount : value + amount);
+    }
+
+    /** Storage class name used for entries that did not report a storage class. */
+    private static final String UNKNOWN_STORAGE_CLASS = "UNKNOWN";
+
+    /** Key prefix. */
+    private final String _prefix;
+
+    /** Number of objects. */
+    private long _objectCount;
+
+    /** Total object bytes. */
+    private long _totalBytes;
+
+    /** Power-of-two size histogram. */
+    private final long[] _histogram = new long[HISTOGRAM_BUCKETS];
+
+    /** Per-storage class object counts. */
+    private final Map<String,Long> _storageClassCounts = new TreeMap<String,Long>();
+
+    /** Per-storage class byte counts. */
+    private final Map<String,Long> _storageClassBytes = new TreeMap<String,Long>();
+
+    /** Oldest modification date. */
+    private Date _oldest;
+
+    /** Newest modification date. */
+    private Date _newest;
+}
@@ -0,0 +1,304 @@
+/*
+ * S3RateLimiter vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate at which requests are issued to each bucket, or to each key prefix
+ * within a bucket, so that clients stay below S3's request rate limits rather than
+ * recovering from SlowDown errors after exceeding them.
+ *
+ * Reads (GET and HEAD) and writes (PUT, POST, COPY and DELETE) are metered by separate
+ * token buckets, as S3 limits them separately. Each bucket permits a burst of one second's
+ * worth of requests. Limiters are thread-safe, and may be shared between connections, in
+ * which case they limit the connections' aggregate rate. Setters return the limiter
+ * instance, allowing them to be chained:
+ *
+ * <pre>
+ * connection.setRateLimiter(new S3RateLimiter().setWriteRate(1000).setPrefixDepth(1));
+ * </pre>
+ *
+ * Each partition's token bucket is discarded once it has refilled, as it then holds no
+ * state that a new bucket would not, so that the limiter does not grow without bound as
+ * many prefixes are visited.
+ *
+ * A limiter must not be reconfigured once it is in use.
+ */
+public class S3RateLimiter {
+
+    /** Default per-partition read (GET and HEAD) rate, in requests per second. */
+    public static final long DEFAULT_READ_RATE = 5500;
+
+    /** Default per-partition write (PUT, POST, COPY and DELETE) rate, in requests per second. */
+    public static final long DEFAULT_WRITE_RATE = 3500;
+
+    /**
+     * Set the maximum rate of GET and HEAD requests per partition, in requests per second.
+     * Specify 0 for no limit. Defaults to {@link #DEFAULT_READ_RATE}.
+     */
+    public S3RateLimiter setReadRate (long readRate) {
+        _readRate = readRate;
+        return this;
+    }
+
+    /** Returns the per-partition read rate, or 0. */
+    public long getReadRate () {
+        return _readRate;
+    }
+
+    /**
+     * Set the maximum rate of PUT, POST, COPY and DELETE requests per partition, in
+     * requests per second. Specify 0 for no limit. Defaults to {@link #DEFAULT_WRITE_RATE}.
+     */
+    public S3RateLimiter setWriteRate (long writeRate) {
+        _writeRate = writeRate;
+        return this;
+    }
+
+    /** Returns the per-partition write rate, or 0. */
+    public long getWriteRate () {
+        return _writeRate;
+    }
+
+    /**
+     * Set the number of key prefix components, delimited by '/', that identify a
+     * partition. Specify 0 to meter each bucket as a single partition. Defaults to 0.
+     */
+    public S3RateLimiter setPrefixDepth (int prefixDepth) {
+        _prefixDepth = prefixDepth;
+        return this;
+    }
+
+    /** Returns the partition prefix depth. */
+    public int getPrefixDepth () {
+        return _prefixDepth;
+    }
+
+    /**
+     * Wait until a request with the given method may be issued for the given resource path.
+     *
+     * @param method The HTTP method, as returned by {@link S3TransportRequest#getMethod}.
+     * @param path The encoded request path, as returned by
+     *  {@link S3TransportRequest#getPath}.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void acquire (String method, String path)
+        throws InterruptedException
+    {
+        acquire(method, path, null);
+    }
+
+    /**
+     * Wait until a request with the given method may be issued for the given resource path,
+     * or until the given handle is cancelled. Returns false if the handle was cancelled
+     * first.
+     *
+     * @param method The HTTP method, as returned by {@link S3TransportRequest#getMethod}.
+     * @param path The encoded request path, as returned by
+     *  {@link S3TransportRequest#getPath}.
+     * @param cancellation The request's cancellation handle, or null.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean acquire (String method, String path, S3Cancellation cancellation)
+        throws InterruptedException
+    {
+        while (true) {
+            RequestThrottle throttle = getThrottle(method, path);
+            if (throttle == null) {
+                return true;
+            }
+
+            long delay = throttle.reserve(1);
+            if (delay == RETIRED) {
+                continue;
+            } else if (delay <= 0) {
+                return true;
+            } else if (cancellation == null) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+                return true;
+            }
+            return cancellation.sleep(delay);
+        }
+    }
+
+    /**
+     * Return true, and consume a token, if a request with the given method may be issued
+     * for the given resource path immediately. Returns false, without consuming a token,
+     * if it may not.
+     *
+     * @param method The HTTP method, as returned by {@link S3TransportRequest#getMethod}.
+     * @param path The encoded request path, as returned by
+     *  {@link S3TransportRequest#getPath}.
+     */
+    public boolean tryAcquire (String method, String path)
+    {
+        while (true) {
+            RequestThrottle throttle = getThrottle(method, path);
+            if (throttle == null || throttle.tryAcquire(1)) {
+                return true;
+            } else if (!throttle.isRetired()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of partition throttles currently tracked.
+     */
+    public int getThrottleCount ()
+    {
+        return _readThrottles.size() + _writeThrottles.size();
+    }
+
+    /**
+     * Return the throttle metering the given request, creating it if necessary, or null if
+     * its requests are not limited.
+     */
+    private RequestThrottle getThrottle (String method, String path)
+    {
+        boolean read = method.equals(S3TransportRequest.GET) ||
+            method.equals(S3TransportRequest.HEAD);
+        long rate = read ? _readRate : _writeRate;
+        if (rate <= 0) {
+            return null;
+        }
+
+        ConcurrentMap<String, RequestThrottle> throttles =
+            read ? _readThrottles : _writeThrottles;
+        String key = S3ConcurrencyLimiter.partitionKey(path, _prefixDepth);
+        RequestThrottle throttle = throttles.get(key);
+        if (throttle == null) {
+            sweep();
+            RequestThrottle created = new RequestThrottle(rate);
+            throttle = throttles.putIfAbsent(key, created);
+            if (throttle == null) {
+                throttle = created;
+            }
+        }
+        return throttle;
+    }
+
+    /**
+     * Discard full throttles, at most once per {@link #SWEEP_INTERVAL}.
+     */
+    private void sweep ()
+    {
+        long now = System.nanoTime();
+        long last = _lastSweep.get();
+        if (now - last < SWEEP_INTERVAL || !_lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        sweep(_readThrottles);
+        sweep(_writeThrottles);
+    }
+
+    /**
+     * Discard the full throttles in the given map.
+     */
+    private static void sweep (ConcurrentMap<String, RequestThrottle> throttles)
+    {
+        for (Map.Entry<String, RequestThrottle> entry : throttles.entrySet()) {
+            if (entry.getValue().retireIfFull()) {
+                throttles.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * A partition's throttle, which refuses further reservations once it has been
+     * discarded, so that callers holding it retry with its replacement.
+     */
+    private static class RequestThrottle extends Throttle {
+        public RequestThrottle (long rate) {
+            super(rate);
+        }
+
+        @Override
+        public synchronized boolean tryAcquire (long tokens) {
+            return !_retired && super.tryAcquire(tokens);
+        }
+
+        /**
+         * Retire the throttle, and return true, if its bucket is full.
+         */
+        public synchronized boolean retireIfFull () {
+            if (isFull()) {
+                _retired = true;
+            }
+            return _retired;
+        }
+
+        public synchronized boolean isRetired () {
+            return _retired;
+        }
+
+        @Override
+        protected synchronized long reserve (long tokens) {
+            return _retired ? RETIRED : super.reserve(tokens);
+        }
+
+        /** Set once the throttle has been discarded. */
+        private boolean _retired;
+    }
+
+    /** Read throttles, by partition key. */
+    private final ConcurrentMap<String, RequestThrottle> _readThrottles =
+        new ConcurrentHashMap<String, RequestThrottle>();
+
+    /** Write throttles, by partition key. */
+    private final ConcurrentMap<String, RequestThrottle> _writeThrottles =
+        new ConcurrentHashMap<String, RequestThrottle>();
+
+    /** Time of the last sweep for full throttles, in nanoseconds. */
+    private final AtomicLong _lastSweep = new AtomicLong(System.nanoTime());
+
+    /** Per-partition read rate. */
+    private long _readRate = DEFAULT_READ_RATE;
+
+    /** Per-partition write rate. */
+    private long _writeRate = DEFAULT_WRITE_RATE;
+
+    /** Partition key prefix depth. */
+    private int _prefixDepth = 0;
+
+    /** Returned by {@link RequestThrottle#reserve} once the throttle has been discarded. */
+    private static final long RETIRED = -1;
+
+    /** Minimum interval between sweeps for full throttles, in nanoseconds. */
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+}
@@ -0,0 +1,684 @@
+/*
+ * S3Replicator vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import com.threerings.s3.client.acl.AccessControlList;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+/**
+ * Replicates the objects of one bucket (or key prefix) to another bucket, which may belong
+ * to a different account or S3 endpoint. The source and destination listings are compared
+ * as a stream with an {@link S3ListingDiff}, and only objects that are missing from, or
+ * differ in, the destination are copied. Objects present only in the destination are
+ * counted, but left in place.
+ *
+ * When the source and destination share a connection, objects are copied server-side.
+ * Otherwise, each object is streamed from a source GET directly into a destination PUT,
+ * without touching local disk; the bandwidth consumed by streamed copies may be capped.
+ * Objects larger than the multipart threshold are streamed into a multipart upload, one
+ * part at a time. Streamed data is verified against the source's MD5, where known, and
+ * each part or object is verified by S3 as it is received.
+ * After each copy, the destination object is checked with a HEAD request against the
+ * source listing's size and ETag.
+ *
+ * A run may be made resumable by providing a checkpoint file. While running, the
+ * replicator periodically records the last key before which every object has been
+ * replicated; a subsequent run resumes from that key. The checkpoint is deleted once a run
+ * completes without failures.
+ *
+ * Instances are "one-shot", and are not thread-safe.
+ */
+public class S3Replicator {
+
+    /**
+     * Receives per-object progress. Calls are made from worker threads, and implementations
+     * must be thread-safe.
+     */
+    public interface Listener {
+        /** The source object was copied to the destination, and verified. */
+        public void replicated (S3ObjectEntry source);
+
+        /** The source object could not be replicated, and will not be retried. */
+        public void failed (S3ObjectEntry source, S3Exception cause);
+    }
+
+    /**
+     * Create a new replicator.
+     *
+     * @param source Source connection.
+     * @param srcBucket Source bucket.
+     * @param dest Destination connection. If this is the same instance as the source
+     *  connection, objects are copied server-side.
+     * @param destBucket Destination bucket.
+     * @param concurrency Maximum number of concurrent copies.
+     */
+    public S3Replicator (S3Connection source, String srcBucket, S3Connection dest,
+        String destBucket, int concurrency)
+    {
+        _source = source;
+        _srcBucket = srcBucket;
+        _dest = dest;
+        _destBucket = destBucket;
+        _concurrency = concurrency;
+        _permits = new Semaphore(concurrency);
+        _serverSideCopy = (source == dest);
+    }
+
+    /**
+     * Replicate only keys beginning with the given prefix. Defaults to null, replicating the
+     * entire bucket.
+     */
+    public void setPrefix (String prefix) {
+        _prefix = prefix;
+    }
+
+    /**
+     * Set whether objects are copied server-side. This defaults to true only if the source
+     * and destination share a connection, but may be enabled for distinct connections to the
+     * same endpoint, provided that the destination credentials may read the source bucket.
+     */
+    public void setServerSideCopy (boolean serverSideCopy) {
+        _serverSideCopy = serverSideCopy;
+    }
+
+    /**
+     * Limit the aggregate rate of streamed copies, in bytes per second. Defaults to 0, for no
+     * limit. Server-side copies transfer no data through the client, and are not limited.
+     */
+    public void setBandwidthLimit (long bytesPerSecond) {
+        _throttle = (bytesPerSecond > 0) ? new Throttle(bytesPerSecond) : null;
+    }
+
+    /**
+     * Set the checkpoint file. If the file exists, replication resumes after the key it
+     * records. Defaults to null, for no checkpointing.
+     */
+    public void setCheckpointFile (File checkpointFile) {
+        _checkpointFile = checkpointFile;
+    }
+
+    /**
+     * Set whether each copied object is verified against its source. Defaults to true.
+     */
+    public void setVerify (boolean verify) {
+        _verify = verify;
+    }
+
+    /**
+     * Set the destination objects' access policy. Defaults to PRIVATE.
+     */
+    public void setAccessPolicy (AccessControlList.StandardPolicy accessPolicy) {
+        _accessPolicy = accessPolicy;
+    }
+
+    /**
+     * Set the maximum number of times a failed copy is retried. Defaults to 5. If the
+     * destination connection has a retry policy, copies are retried only as it allows.
+     */
+    public void setMaxRetry (int maxRetry) {
+        _maxRetry = maxRetry;
+    }
+
+    /**
+     * Set the size above which copies are made as multipart uploads. Defaults to
+     * {@link S3MultipartCopy#MAX_PART_SIZE}, the largest object that may be copied or
+     * uploaded with a single request; larger objects are always copied in parts.
+     */
+    public void setMultipartThreshold (long threshold) {
+        _multipartThreshold = threshold;
+    }
+
+    /**
+     * Set the preferred part size of multipart copies. Defaults to
+     * {@link S3MultipartCopy#DEFAULT_PART_SIZE}.
+     *
+     * @see S3MultipartCopy#setPartSize
+     */
+    public void setPartSize (long partSize) {
+        if (partSize < S3MultipartCopy.MIN_PART_SIZE ||
+            partSize > S3MultipartCopy.MAX_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be between " +
+                S3MultipartCopy.MIN_PART_SIZE + " and " + S3MultipartCopy.MAX_PART_SIZE +
+                " bytes: " + partSize);
+        }
+        _partSize = partSize;
+    }
+
+    /**
+     * Set the progress listener.
+     */
+    public void setListener (Listener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * Run the replication to completion.
+     *
+     * @throws S3ClientException If any objects failed to replicate.
+     */
+    public void run ()
+        throws S3Exception
+    {
+        String marker = readCheckpoint();
+        S3ListingDiff diff = new S3ListingDiff(
+            new S3ListingSource(_dest, _destBucket, _prefix, marker),
+            new S3ListingSource(_source, _srcBucket, _prefix, marker));
+
+        /* Multipart copies run their part copies alongside the other copies, all sharing a
+         * single bound on concurrent requests. */
+        final BoundedExecutor executor = new BoundedExecutor(_concurrency, "S3Replicator");
+        _multipartCopy = new S3MultipartCopy(_dest, _concurrency);
+        _multipartCopy.setRequestPermits(_permits);
+        _multipartCopy.setPartSize(_partSize);
+        _multipartCopy.setAccessPolicy(_accessPolicy);
+        _multipartCopy.setMaxRetry(_maxRetry);
+        _lastVisited = marker;
+
+        try {
+            try {
+                diff.run(new S3ListingDiff.Listener() {
+                    public void added (S3ObjectEntry to) throws S3Exception {
+                        submit(executor, to);
+                    }
+
+                    public void changed (S3ObjectEntry from, S3ObjectEntry to)
+                        throws S3Exception
+                    {
+                        submit(executor, to);
+                    }
+
+                    public void removed (S3ObjectEntry from) throws S3Exception {
+                        _extraneous++;
+                        visited(from.getKey());
+                    }
+
+                    public void unchanged (S3ObjectEntry from, S3ObjectEntry to)
+                        throws S3Exception
+                    {
+                        _unchanged++;
+                        visited(to.getKey());
+                    }
+                });
+            } finally {
+                /* Let any in-progress copies finish, even if the listing failed. */
+                executor.awaitCompletion();
+            }
+        } catch (InterruptedException ie) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new S3ClientException("Interrupted while replicating objects", ie);
+        } finally {
+            writeCheckpoint(true);
+        }
+
+        if (_failed.get() > 0) {
+            throw new S3ClientException(_failed.get() + " object(s) failed to replicate",
+                _lastFailure);
+        }
+
+        /* The run completed; the next run should start from the beginning. */
+        if (_checkpointFile != null && _checkpointFile.exists() && !_checkpointFile.delete()) {
+            throw new S3ClientException("Unable to delete checkpoint file " + _checkpointFile);
+        }
+    }
+
+    /** Returns the number of objects copied. */
+    public long getCopiedCount () {
+        return _copied.get();
+    }
+
+    /** Returns the number of bytes copied. */
+    public long getCopiedBytes () {
+        return _copiedBytes.get();
+    }
+
+    /** Returns the number of objects that failed to replicate. */
+    public long getFailedCount () {
+        return _failed.get();
+    }
+
+    /** Returns the number of objects already present in the destination. */
+    public long getUnchangedCount () {
+        return _unchanged;
+    }
+
+    /** Returns the number of objects present only in the destination. */
+    public long getExtraneousCount () {
+        return _extraneous;
+    }
+
+    /**
+     * Submit a copy of the given source entry.
+     */
+    private void submit (BoundedExecutor executor, final S3ObjectEntry entry)
+        throws S3Exception
+    {
+        synchronized (this) {
+            _pending.put(entry.getKey(), _lastVisited);
+            _lastVisited = entry.getKey();
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                public void run () {
+                    replicate(entry);
+                }
+            });
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new S3ClientException("Interrupted while replicating objects", ie);
+        }
+        writeCheckpoint(false);
+    }
+
+    /**
+     * Record that the given key required no copy.
+     */
+    private void visited (String key)
+        throws S3Exception
+    {
+        synchronized (this) {
+            _lastVisited = key;
+        }
+        writeCheckpoint(false);
+    }
+
+    /**
+     * Copy and verify a single entry, retrying on failure.
+     */
+    private void replicate (S3ObjectEntry entry)
+    {
+        boolean multipart = _serverSideCopy && (entry.getSize() > _multipartThreshold);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (multipart) {
+                    _multipartCopy.copy(_srcBucket, entry.getKey(), _destBucket,
+                        entry.getKey());
+                }
+
+                S3Utils.acquirePermit(_permits);
+                try {
+                    if (!multipart) {
+                        if (_serverSideCopy) {
+                            _dest.copyObject(entry.getKey(), entry.getKey(), _srcBucket,
+                                _destBucket, _accessPolicy, null);
+                        } else {
+                            stream(entry);
+                        }
+                    }
+                    if (_verify) {
+                        verify(entry);
+                    }
+                } finally {
+                    S3Utils.releasePermit(_permits);
+                }
+
+                _copied.incrementAndGet();
+                _copiedBytes.addAndGet(entry.getSize());
+                synchronized (this) {
+                    _pending.remove(entry.getKey());
+                }
+                if (_listener != null) {
+                    _listener.replicated(entry);
+                }
+                return;
+            } catch (S3Exception e) {
+                /* The multipart copier retries individual parts itself. */
+                if (!multipart && S3Utils.retryOperation(_dest.getRetryPolicy(), attempt,
+                    _maxRetry, e)) {
+                    continue;
+                }
+
+                /* The entry is left pending, holding the checkpoint before its key. */
+                _failed.incrementAndGet();
+                _lastFailure = e;
+                if (_listener != null) {
+                    _listener.failed(entry, e);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stream a single object from the source connection to the destination.
+     */
+    private void stream (S3ObjectEntry entry)
+        throws S3Exception
+    {
+        S3Object object = _source.getObject(_srcBucket, entry.getKey(),
+            new S3RequestOptions());
+        InputStream input = object.getInputStream();
+        try {
+            if (_throttle != null) {
+                input = _throttle.wrap(input);
+            }
+
+            long size = object.length();
+            long partSize = S3MultipartCopy.choosePartSize(size, _partSize);
+            if (size > Math.min(_multipartThreshold, S3MultipartCopy.MAX_PART_SIZE) &&
+                size > partSize) {
+                streamParts(object, input, partSize);
+            } else {
+                /* The source MD5, where known, is sent as the Content-MD5 of the PUT,
+                 * allowing S3 to reject any corruption in transit. */
+                _dest.putObject(_destBucket, new StreamedObject(object.getKey(),
+                    object.getMediaType(), size, object.getMD5(), object.getMetadata(), input,
+                    object.lastModified()), _accessPolicy);
+            }
+            verifySource(object, input);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Stream an object from the source connection to the destination as a multipart upload,
+     * reading one part at a time from the given stream. If any part fails, the upload is
+     * aborted.
+     */
+    private void streamParts (S3Object object, InputStream input, long partSize)
+        throws S3Exception
+    {
+        String key = object.getKey();
+        String uploadId = _dest.initiateMultipartUpload(_destBucket, key,
+            object.getMediaType(), _accessPolicy, object.getMetadata());
+
+        boolean success = false;
+        try {
+            List<S3UploadPart> parts = new ArrayList<S3UploadPart>();
+            long size = object.length();
+            for (long offset = 0; offset < size; offset += partSize) {
+                /* Each part's upload closes its stream once the part is read. */
+                int partNumber = parts.size() + 1;
+                S3Object part = new StreamedObject(key, object.getMediaType(),
+                    Math.min(partSize, size - offset), null,
+                    Collections.<String,String>emptyMap(), new CloseShieldInputStream(input),
+                    0L);
+                parts.add(new S3UploadPart(partNumber,
+                    _dest.uploadPart(_destBucket, key, uploadId, partNumber, part)));
+            }
+            _dest.completeMultipartUpload(_destBucket, key, uploadId, parts);
+            success = true;
+        } finally {
+            if (!success) {
+                try {
+                    _dest.abortMultipartUpload(_destBucket, key, uploadId);
+                } catch (S3Exception e) {
+                    // Nothing more we can do
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the end of a streamed source object, which verifies its data against its size
+     * and MD5. Uploads read exactly the object's length, and stop short of the end.
+     */
+    private void verifySource (S3Object object, InputStream input)
+        throws S3Exception
+    {
+        try {
+            if (input.read() != -1) {
+                throw new S3ClientException.DigestMismatchException("Source object '" +
+                    object.getKey() + "' is longer than " + object.length() + " bytes");
+            }
+        } catch (IOException ioe) {
+            if (ioe.getCause() instanceof S3ClientException.DigestMismatchException) {
+                throw (S3ClientException.DigestMismatchException)ioe.getCause();
+            }
+            throw new S3ClientException.NetworkException("Failure reading source object '" +
+                object.getKey() + "': " + ioe, ioe);
+        }
+    }
+
+    /**
+     * Verify that the destination object matches the source listing entry.
+     */
+    private void verify (S3ObjectEntry entry)
+        throws S3Exception
+    {
+        S3Metadata dest = _dest.getObjectMetadata(_destBucket, entry.getKey());
+        if (dest.length() != entry.getSize()) {
+            throw new S3ClientException.DigestMismatchException("Replicated object '" +
+                entry.getKey() + "' has size " + dest.length() + ", expected " +
+                entry.getSize());
+        }
+
+        /* Multipart ETags are not MD5 digests, and are only comparable with each other. */
+        byte[] md5 = dest.getMD5();
+        String eTag = entry.getETag();
+        if (md5 == null || eTag == null || eTag.indexOf('-') >= 0) {
+            return;
+        }
+
+        String destETag = new String(Hex.encodeHex(md5));
+        if (!eTag.equalsIgnoreCase(destETag)) {
+            throw new S3ClientException.DigestMismatchException("Replicated object '" +
+                entry.getKey() + "' has ETag " + destETag + ", expected " + eTag);
+        }
+    }
+
+    /**
+     * Read the resume marker from the checkpoint file, if any.
+     */
+    private String readCheckpoint ()
+        throws S3Exception
+    {
+        if (_checkpointFile == null || !_checkpointFile.exists()) {
+            return null;
+        }
+
+        InputStream input = null;
+        try {
+            input = new FileInputStream(_checkpointFile);
+            String marker = IOUtils.toString(input, "UTF-8");
+            return (marker.length() > 0) ? marker : null;
+        } catch (IOException ioe) {
+            throw new S3ClientException("Failure reading checkpoint file " + _checkpointFile +
+                ": " + ioe, ioe);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Record the current resume marker, if a checkpoint file is configured and either the
+     * write is forced or the checkpoint interval has elapsed. The marker is written to a
+     * temporary file, which then replaces the checkpoint, so that an interrupted write never
+     * leaves a truncated checkpoint behind.
+     */
+    private void writeCheckpoint (boolean force)
+        throws S3Exception
+    {
+        long now = System.currentTimeMillis();
+        if (_checkpointFile == null || (!force && now - _lastCheckpoint < CHECKPOINT_INTERVAL)) {
+            return;
+        }
+        _lastCheckpoint = now;
+
+        String marker;
+        synchronized (this) {
+            marker = _pending.isEmpty() ? _lastVisited : _pending.firstEntry().getValue();
+        }
+
+        File temp = new File(_checkpointFile.getPath() + ".tmp");
+        OutputStream output = null;
+        try {
+            output = new FileOutputStream(temp);
+            output.write((marker != null ? marker : "").getBytes("UTF-8"));
+            output.close();
+            output = null;
+        } catch (IOException ioe) {
+            throw new S3ClientException("Failure writing checkpoint file " + temp + ": " + ioe,
+                ioe);
+        } finally {
+            IOUtils.closeQuietly(output);
+        }
+
+        if (!temp.renameTo(_checkpointFile)) {
+            throw new S3ClientException("Unable to replace checkpoint file " + _checkpointFile);
+        }
+    }
+
+    /**
+     * An object streamed from the source, uploaded with an MD5 digest. Where the source MD5
+     * is not known, the digest is computed as the data is uploaded, and verified against the
+     * ETag S3 returns.
+     */
+    private static class StreamedObject extends S3StreamObject {
+        public StreamedObject (String key, MediaType mediaType, long length, byte[] digest,
+            Map<String,String> metadata, InputStream input, long lastModified)
+        {
+            super(key, mediaType, length, digest, metadata, input, lastModified);
+            setChecksumAlgorithm(S3ChecksumAlgorithm.MD5);
+            _streamingDigest = (digest == null);
+        }
+
+        @Override // From S3Object
+        public boolean isStreamingDigest () {
+            return _streamingDigest;
+        }
+
+        /** Compute the digest while uploading. */
+        private final boolean _streamingDigest;
+    }
+
+    /** Source connection. */
+    private final S3Connection _source;
+
+    /** Source bucket. */
+    private final String _srcBucket;
+
+    /** Destination connection. */
+    private final S3Connection _dest;
+
+    /** Destination bucket. */
+    private final String _destBucket;
+
+    /** Maximum concurrent copies. */
+    private final int _concurrency;
+
+    /** Key prefix, or null. */
+    private String _prefix;
+
+    /** Copy objects server-side. */
+    private boolean _serverSideCopy;
+
+    /** Bandwidth throttle for streamed copies, or null. */
+    private Throttle _throttle;
+
+    /** Checkpoint file, or null. */
+    private File _checkpointFile;
+
+    /** Verify copied objects. */
+    private boolean _verify = true;
+
+    /** Destination access policy. */
+    private AccessControlList.StandardPolicy _accessPolicy =
+        AccessControlList.StandardPolicy.PRIVATE;
+
+    /** Maximum retries per object. */
+    private int _maxRetry = 5;
+
+    /** Size above which server-side copies are made as multipart uploads. */
+    private long _multipartThreshold = S3MultipartCopy.MAX_PART_SIZE;
+
+    /** Preferred multipart copy part size. */
+    private long _partSize = S3MultipartCopy.DEFAULT_PART_SIZE;
+
+    /** Progress listener, or null. */
+    private Listener _listener;
+
+    /** Bounds the concurrent requests of the replication. */
+    private final Semaphore _permits;
+
+    /** Large object copier. */
+    private S3MultipartCopy _multipartCopy;
+
+    /** Keys of submitted, incomplete (or failed) copies, mapped to the key visited before
+     * each. The checkpoint may not advance past the first pending key. */
+    private final TreeMap<String,String> _pending = new TreeMap<String,String>(
+        new Comparator<String>() {
+            public int compare (String a, String b) {
+                return S3Utils.compareKeys(a, b);
+            }
+        });
+
+    /** The last key visited by the listing comparison. */
+    private String _lastVisited;
+
+    /** Time of the last checkpoint write. */
+    private long _lastCheckpoint;
+
+    /** Number of objects copied. */
+    private final AtomicLong _copied = new AtomicLong();
+
+    /** Number of bytes copied. */
+    private final AtomicLong _copiedBytes = new AtomicLong();
+
+    /** Number of failed objects. */
+    private final AtomicLong _failed = new AtomicLong();
+
+    /** Number of unchanged objects. */
+    private long _unchanged;
+
+    /** Number of destination-only objects. */
+    private long _extraneous;
+
+    /** The most recent copy failure. */
+    private volatile S3Exception _lastFailure;
+
+    /** Minimum interval between checkpoint writes, in milliseconds. */
+    private static final long CHECKPOINT_INTERVAL = 10 * 1000;
+}
@@ -0,0 +1,161 @@
+/*
+ * S3RequestOptions vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+/**
+ * Optional settings for a single S3 request. Setters return the options instance, allowing
+ * them to be chained:
+ *
+ * <pre>
+ * connection.getObjectToFile(bucket, key, path, new S3RequestOptions().setPreallocate(true));
+ * </pre>
+ *
+ * Settings that do not apply to a given request are ignored.
+ */
+public class S3RequestOptions {
+
+    /** Default transfer buffer size (1 MB). */
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Set whether downloaded data is verified against the object's MD5 digest, where S3
+     * provides one. Defaults to true.
+     */
+    public S3RequestOptions setVerifyDigest (boolean verifyDigest) {
+        _verifyDigest = verifyDigest;
+        return this;
+    }
+
+    /** Returns true if downloaded data is verified against the object's digest. */
+    public boolean getVerifyDigest () {
+        return _verifyDigest;
+    }
+
+    /**
+     * Set the checksum used to verify downloaded data. If {@link S3ChecksumAlgorithm#CRC32C}
+     * is selected, S3 is asked to return the object's CRC32C checksum, which is verified in
+     * preference to the object's MD5 digest if the object was uploaded with one. If
+     * {@link S3ChecksumAlgorithm#NONE} is selected, only the length of the data is verified.
+     * Defaults to {@link S3ChecksumAlgorithm#MD5}.
+     */
+    public S3RequestOptions setChecksumAlgorithm (S3ChecksumAlgorithm checksumAlgorithm) {
+        _checksumAlgorithm = checksumAlgorithm;
+        return this;
+    }
+
+    /** Returns the checksum used to verify downloaded data. */
+    public S3ChecksumAlgorithm getChecksumAlgorithm () {
+        return _checksumAlgorithm;
+    }
+
+    /**
+     * Set whether the digest of downloaded data is computed on a helper thread, overlapping
+     * network reads, rather than inline as the data is read. This applies to verified object
+     * streams returned by {@link S3Connection#getObject(String, String, S3RequestOptions)}.
+     * Defaults to false.
+     */
+    public S3RequestOptions setBackgroundDigest (boolean backgroundDigest) {
+        _backgroundDigest = backgroundDigest;
+        return this;
+    }
+
+    /** Returns true if downloaded data is digested on a helper thread. */
+    public boolean getBackgroundDigest () {
+        return _backgroundDigest;
+    }
+
+    /**
+     * Set whether the file system's free space is checked against the response's
+     * Content-Length before any data is written to a downloaded file, failing early if it
+     * lacks the space. No blocks are reserved, as Java has no portable fallocate, so a
+     * concurrent writer may still exhaust the space. Defaults to false.
+     */
+    public S3RequestOptions setPreallocate (boolean preallocate) {
+        _preallocate = preallocate;
+        return this;
+    }
+
+    /** Returns true if free space is checked before downloading to a file. */
+    public boolean getPreallocate () {
+        return _preallocate;
+    }
+
+    /**
+     * Set the size of the buffer used to transfer data. Defaults to
+     * {@link #DEFAULT_BUFFER_SIZE}.
+     */
+    public S3RequestOptions setBufferSize (int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        _bufferSize = bufferSize;
+        return this;
+    }
+
+    /** Returns the transfer buffer size. */
+    public int getBufferSize () {
+        return _bufferSize;
+    }
+
+    /**
+     * Set the handle through which the request may be cancelled, and which bounds its
+     * duration, including any retries, by its deadline. Specify null for no cancellation or
+     * deadline. Defaults to null.
+     */
+    public S3RequestOptions setCancellation (S3Cancellation cancellation) {
+        _cancellation = cancellation;
+        return this;
+    }
+
+    /** Returns the request's cancellation handle, or null. */
+    public S3Cancellation getCancellation () {
+        return _cancellation;
+    }
+
+    /** Verify downloaded data. */
+    private boolean _verifyDigest = true;
+
+    /** Download verification checksum. */
+    private S3ChecksumAlgorithm _checksumAlgorithm = S3ChecksumAlgorithm.MD5;
+
+    /** Digest downloaded data on a helper thread. */
+    private boolean _backgroundDigest = false;
+
+    /** Check free space before downloading to a file. */
+    private boolean _preallocate = false;
+
+    /** Transfer buffer size. */
+    private int _bufferSize = DEFAULT_BUFFER_SIZE;
+
+    /** Cancellation handle, or null. */
+    private S3Cancellation _cancellation;
+}
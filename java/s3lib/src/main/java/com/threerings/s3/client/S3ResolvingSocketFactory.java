@@ -0,0 +1,446 @@
+/*
+ * S3ResolvingSocketFactory vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+
+/**
+ * A socket factory that spreads connections across all of a host's addresses. S3 spreads
+ * load over its front-end servers with DNS, returning a changing set of addresses for each
+ * endpoint, but a connection pool tends to open all of its connections to whichever
+ * address was resolved first.
+ *
+ * The factory instead keeps the full set of A and AAAA records for each host to which it
+ * connects, re-resolving the host periodically, and opens each new connection to the
+ * address with the fewest open connections. Connections to addresses that disappear from
+ * the host's records are retired: each is closed the next time it is leased from, or
+ * returned to, its connection pool, rather than reused.
+ *
+ * The actual sockets are created by a wrapped socket factory. To use the factory, connect
+ * with a host configuration using a protocol created by {@link #createProtocol}:
+ *
+ * <pre>
+ * HostConfiguration hostConfig = new HostConfiguration();
+ * hostConfig.setHost(host, 443,
+ *     S3ResolvingSocketFactory.createProtocol(Protocol.getProtocol("https")));
+ * </pre>
+ *
+ * Addresses are resolved with {@link InetAddress#getAllByName}, and so are subject to the
+ * JVM's DNS cache; the <code>networkaddress.cache.ttl</code> security property should be no
+ * longer than the refresh interval.
+ */
+public class S3ResolvingSocketFactory implements ProtocolSocketFactory {
+
+    /** Default interval at which hosts are re-resolved, in milliseconds. */
+    public static final long DEFAULT_REFRESH_INTERVAL = 30 * 1000;
+
+    /**
+     * A resolving socket factory for secure protocols, which layers each secure socket over
+     * a plain connection to the chosen address.
+     */
+    public static class Secure extends S3ResolvingSocketFactory
+        implements SecureProtocolSocketFactory
+    {
+        public Secure (SecureProtocolSocketFactory factory, long refreshInterval) {
+            super(factory, refreshInterval);
+            _secureFactory = factory;
+        }
+
+        // from interface SecureProtocolSocketFactory
+        public Socket createSocket (Socket socket, String host, int port, boolean autoClose)
+            throws IOException, UnknownHostException
+        {
+            return _secureFactory.createSocket(socket, host, port, autoClose);
+        }
+
+        @Override
+        protected Socket connect (InetAddress address, String host, int port,
+            InetAddress localAddress, int localPort, HttpConnectionParams params)
+            throws IOException
+        {
+            int timeout = (params != null) ? params.getConnectionTimeout() : 0;
+            Socket socket = new Socket();
+            boolean success = false;
+            try {
+                if (localAddress != null) {
+                    socket.bind(new InetSocketAddress(localAddress, localPort));
+                }
+                InetSocketAddress remote = new InetSocketAddress(address, port);
+                try {
+                    socket.connect(remote, timeout);
+                } catch (SocketTimeoutException ste) {
+                    throw new ConnectTimeoutException("Connect to " + remote + " timed out",
+                        ste);
+                }
+
+                /* Layer the secure socket with the host's name, rather than its address,
+                 * for server name indication. */
+                Socket secure = createSocket(socket, host, port, true);
+                success = true;
+                return secure;
+            } finally {
+                if (!success) {
+                    socket.close();
+                }
+            }
+        }
+
+        /** The wrapped secure socket factory. */
+        private final SecureProtocolSocketFactory _secureFactory;
+    }
+
+    /**
+     * Create a protocol that resolves hosts as the given protocol does, but spreads its
+     * connections across their addresses, re-resolving hosts at the
+     * {@link #DEFAULT_REFRESH_INTERVAL}.
+     */
+    public static Protocol createProtocol (Protocol protocol)
+    {
+        return createProtocol(protocol, DEFAULT_REFRESH_INTERVAL);
+    }
+
+    /**
+     * Create a protocol that resolves hosts as the given protocol does, but spreads its
+     * connections across their addresses.
+     *
+     * @param refreshInterval Interval at which hosts are re-resolved, in milliseconds.
+     */
+    public static Protocol createProtocol (Protocol protocol, long refreshInterval)
+    {
+        ProtocolSocketFactory factory = protocol.getSocketFactory();
+        if (factory instanceof SecureProtocolSocketFactory) {
+            // The protocol is marked secure by the factory's type
+            factory = new Secure((SecureProtocolSocketFactory)factory, refreshInterval);
+        } else {
+            factory = new S3ResolvingSocketFactory(factory, refreshInterval);
+        }
+        return new Protocol(protocol.getScheme(), factory, protocol.getDefaultPort());
+    }
+
+    /**
+     * Create a factory opening sockets with the given factory.
+     *
+     * @param refreshInterval Interval at which hosts are re-resolved, in milliseconds.
+     */
+    public S3ResolvingSocketFactory (ProtocolSocketFactory factory, long refreshInterval)
+    {
+        _factory = factory;
+        _refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Returns the addresses currently known for the given host, resolving it if necessary.
+     */
+    public List<InetAddress> getAddresses (String host)
+        throws UnknownHostException
+    {
+        return getHost(host).addresses;
+    }
+
+    /**
+     * Returns the number of open connections to the given address.
+     */
+    public synchronized int getConnectionCount (InetAddress address)
+    {
+        Set<ResolvedSocket> sockets = _sockets.get(address);
+        return (sockets == null) ? 0 : sockets.size();
+    }
+
+    /**
+     * Re-resolve every known host immediately, retiring connections to any addresses that
+     * have disappeared. Hosts that fail to resolve keep their previous addresses.
+     */
+    public void refresh ()
+    {
+        List<Host> hosts;
+        synchronized (this) {
+            hosts = new ArrayList<Host>(_hosts.values());
+        }
+        for (Host host : hosts) {
+            try {
+                update(host, resolve(host.name));
+            } catch (UnknownHostException uhe) {
+                // Keep the previous addresses
+            }
+        }
+    }
+
+    /**
+     * Stop re-resolving hosts. Open connections are unaffected.
+     */
+    public synchronized void shutdown ()
+    {
+        if (_refresher != null) {
+            _refresher.cancel(false);
+            _refresher = null;
+        }
+    }
+
+    // from interface ProtocolSocketFactory
+    public Socket createSocket (String host, int port)
+        throws IOException, UnknownHostException
+    {
+        return createSocket(host, port, null, 0, null);
+    }
+
+    // from interface ProtocolSocketFactory
+    public Socket createSocket (String host, int port, InetAddress localAddress, int localPort)
+        throws IOException, UnknownHostException
+    {
+        return createSocket(host, port, localAddress, localPort, null);
+    }
+
+    // from interface ProtocolSocketFactory
+    public Socket createSocket (String host, int port, InetAddress localAddress, int localPort,
+        HttpConnectionParams params)
+        throws IOException, UnknownHostException, ConnectTimeoutException
+    {
+        InetAddress address = select(getHost(host));
+        Socket socket = connect(address, host, port, localAddress, localPort, params);
+        ResolvedSocket resolved = new ResolvedSocket(socket, address, _observer);
+        synchronized (this) {
+            Set<ResolvedSocket> sockets = _sockets.get(address);
+            if (sockets == null) {
+                _sockets.put(address, sockets = new HashSet<ResolvedSocket>());
+            }
+            sockets.add(resolved);
+
+            /* The address may have disappeared while the socket was connecting. */
+            if (!_current.contains(address)) {
+                resolved.retire();
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Resolve all addresses of the given host.
+     */
+    protected List<InetAddress> resolve (String host)
+        throws UnknownHostException
+    {
+        return Arrays.asList(InetAddress.getAllByName(host));
+    }
+
+    /**
+     * Open a socket to the given address of the given host.
+     */
+    protected Socket connect (InetAddress address, String host, int port,
+        InetAddress localAddress, int localPort, HttpConnectionParams params)
+        throws IOException
+    {
+        if (params == null) {
+            return _factory.createSocket(address.getHostAddress(), port, localAddress,
+                localPort);
+        }
+        return _factory.createSocket(address.getHostAddress(), port, localAddress, localPort,
+            params);
+    }
+
+    /**
+     * Returns the given host's state, resolving it if it has not yet been resolved.
+     */
+    private Host getHost (String name)
+        throws UnknownHostException
+    {
+        synchronized (this) {
+            Host host = _hosts.get(name);
+            if (host != null) {
+                return host;
+            }
+        }
+
+        Host host = new Host(name);
+        List<InetAddress> addresses = resolve(name);
+        synchronized (this) {
+            Host existing = _hosts.get(name);
+            if (existing != null) {
+                return existing;
+            }
+            _hosts.put(name, host);
+            update(host, addresses);
+            if (_refresher == null && _refreshInterval > 0) {
+                _refresher = getTimer().scheduleWithFixedDelay(new Runnable() {
+                    public void run () {
+                        refresh();
+                    }
+                }, _refreshInterval, _refreshInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+        return host;
+    }
+
+    /**
+     * Select the address with the fewest open connections, starting from a rotating
+     * position so that ties are spread evenly.
+     */
+    private synchronized InetAddress select (Host host)
+    {
+        List<InetAddress> addresses = host.addresses;
+        int size = addresses.size();
+        int start = (host.next.getAndIncrement() & Integer.MAX_VALUE) % size;
+
+        InetAddress best = null;
+        int bestCount = Integer.MAX_VALUE;
+        for (int ii = 0; ii < size; ii++) {
+            InetAddress address = addresses.get((start + ii) % size);
+            int count = getConnectionCount(address);
+            if (count < bestCount) {
+                best = address;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Replace a host's addresses, retiring connections to addresses that are no longer in
+     * use by any host.
+     */
+    private synchronized void update (Host host, List<InetAddress> addresses)
+    {
+        if (addresses.isEmpty()) {
+            return;
+        }
+        host.addresses = Collections.unmodifiableList(new ArrayList<InetAddress>(addresses));
+
+        Set<InetAddress> current = new HashSet<InetAddress>();
+        for (Host known : _hosts.values()) {
+            current.addAll(known.addresses);
+        }
+        _current = current;
+
+        for (Map.Entry<InetAddress,Set<ResolvedSocket>> entry : _sockets.entrySet()) {
+            if (!current.contains(entry.getKey())) {
+                for (ResolvedSocket socket : entry.getValue()) {
+                    socket.retire();
+                }
+            }
+        }
+    }
+
+    /**
+     * The resolved state of a single host.
+     */
+    private static class Host {
+        /** The host's name. */
+        public final String name;
+
+        /** The host's current addresses. Never empty. */
+        public volatile List<InetAddress> addresses = Collections.emptyList();
+
+        /** Rotating selection position. */
+        public final AtomicInteger next = new AtomicInteger();
+
+        public Host (String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Returns the shared refresh timer, creating it if necessary.
+     */
+    private static synchronized ScheduledExecutorService getTimer ()
+    {
+        if (_timer == null) {
+            _timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "S3ResolvingSocketFactory Refresher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return _timer;
+    }
+
+    /** The wrapped socket factory. */
+    private final ProtocolSocketFactory _factory;
+
+    /** Refresh interval, in milliseconds. */
+    private final long _refreshInterval;
+
+    /** Hosts, by name. */
+    private final Map<String,Host> _hosts = new HashMap<String,Host>();
+
+    /** Open sockets, by address. */
+    private final Map<InetAddress,Set<ResolvedSocket>> _sockets =
+        new HashMap<InetAddress,Set<ResolvedSocket>>();
+
+    /** Current addresses of all hosts. */
+    private Set<InetAddress> _current = Collections.emptySet();
+
+    /** Periodic refresh task, or null. */
+    private ScheduledFuture<?> _refresher;
+
+    /** Removes closed sockets. */
+    private final ResolvedSocket.Observer _observer = new ResolvedSocket.Observer() {
+        public void socketClosed (ResolvedSocket socket) {
+            synchronized (S3ResolvingSocketFactory.this) {
+                Set<ResolvedSocket> sockets = _sockets.get(socket.getResolvedAddress());
+                if (sockets != null && sockets.remove(socket) && sockets.isEmpty()) {
+                    _sockets.remove(socket.getResolvedAddress());
+                }
+            }
+        }
+    };
+
+    /** Shared refresh timer. */
+    private static ScheduledExecutorService _timer;
+}
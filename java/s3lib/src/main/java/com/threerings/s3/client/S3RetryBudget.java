@@ -0,0 +1,120 @@
+/*
+ * S3RetryBudget vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A shared allowance of retries. Each retry withdraws tokens from the budget, and each
+ * successful request returns a token, up to the budget's capacity. While requests are
+ * mostly succeeding, the budget stays full; during an outage, it is soon exhausted, and
+ * further failures are reported immediately rather than retried, so that retries can not
+ * multiply the load on an already failing service.
+ *
+ * Budgets are thread-safe, and are intended to be shared: by default, all
+ * {@link S3RetryPolicy} instances draw on a single process-wide budget.
+ */
+public class S3RetryBudget {
+
+    /** Default budget capacity. */
+    public static final int DEFAULT_CAPACITY = 500;
+
+    /**
+     * Returns the process-wide default budget.
+     */
+    public static S3RetryBudget getDefault ()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * Create a new, full, budget.
+     *
+     * @param capacity Maximum number of tokens held by the budget.
+     */
+    public S3RetryBudget (int capacity)
+    {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Budget capacity must be positive: " + capacity);
+        }
+        _capacity = capacity;
+        _tokens = new AtomicInteger(capacity);
+    }
+
+    /**
+     * Withdraw the given number of tokens, returning false if the budget holds too few.
+     */
+    public boolean tryAcquire (int cost)
+    {
+        int tokens;
+        do {
+            tokens = _tokens.get();
+            if (tokens < cost) {
+                return false;
+            }
+        } while (!_tokens.compareAndSet(tokens, tokens - cost));
+        return true;
+    }
+
+    /**
+     * Return the given number of tokens to the budget, up to its capacity.
+     */
+    public void release (int amount)
+    {
+        int tokens;
+        do {
+            tokens = _tokens.get();
+            if (tokens >= _capacity) {
+                return;
+            }
+        } while (!_tokens.compareAndSet(tokens, Math.min(_capacity, tokens + amount)));
+    }
+
+    /** Returns the number of tokens currently available. */
+    public int getAvailable () {
+        return _tokens.get();
+    }
+
+    /** Returns the budget's capacity. */
+    public int getCapacity () {
+        return _capacity;
+    }
+
+    /** Maximum number of tokens. */
+    private final int _capacity;
+
+    /** Available tokens. */
+    private final AtomicInteger _tokens;
+
+    /** The process-wide default budget. */
+    private static final S3RetryBudget DEFAULT = new S3RetryBudget(DEFAULT_CAPACITY);
+}
@@ -0,0 +1,219 @@
+/*
+ * S3RetryPolicy vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Determines whether, and when, a failed S3 request is retried. Requests failing with a
+ * transient error -- a network error, or an S3 InternalError, SlowDown, RequestTimeout or
+ * other 5xx response -- are retried after an exponential backoff with "full jitter": the
+ * delay before each retry is chosen uniformly between zero and an exponentially growing
+ * ceiling, spreading retries from many clients over time rather than synchronizing them.
+ *
+ * Retries stop once the maximum number of attempts or the maximum total retry time is
+ * reached, or once the policy's {@link S3RetryBudget} is exhausted. Setters return the
+ * policy instance, allowing them to be chained:
+ *
+ * <pre>
+ * connection.setRetryPolicy(new S3RetryPolicy().setMaxAttempts(8).setMaxRetryTime(30000));
+ * </pre>
+ *
+ * A policy must not be modified once it is in use.
+ */
+public class S3RetryPolicy {
+
+    /** Default maximum number of attempts, including the first. */
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+
+    /** Default base retry delay, in milliseconds. */
+    public static final long DEFAULT_BASE_DELAY = 100;
+
+    /** Default maximum retry delay, in milliseconds. */
+    public static final long DEFAULT_MAX_DELAY = 20 * 1000;
+
+    /** Default maximum total time spent retrying a request, in milliseconds. */
+    public static final long DEFAULT_MAX_RETRY_TIME = 60 * 1000;
+
+    /** Budget tokens withdrawn for each retry. */
+    public static final int RETRY_COST = 5;
+
+    /** Budget tokens withdrawn for each retry following a network error. */
+    public static final int NETWORK_RETRY_COST = 10;
+
+    /** Budget tokens returned for each successful request. */
+    public static final int SUCCESS_REFUND = 1;
+
+    /**
+     * Set the maximum number of attempts made for each request, including the first.
+     * Defaults to {@link #DEFAULT_MAX_ATTEMPTS}.
+     */
+    public S3RetryPolicy setMaxAttempts (int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is required: " +
+                maxAttempts);
+        }
+        _maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /** Returns the maximum number of attempts. */
+    public int getMaxAttempts () {
+        return _maxAttempts;
+    }
+
+    /**
+     * Set the ceiling on the delay before the first retry, in milliseconds. The ceiling
+     * doubles with each subsequent retry. Defaults to {@link #DEFAULT_BASE_DELAY}.
+     */
+    public S3RetryPolicy setBaseDelay (long baseDelay) {
+        _baseDelay = baseDelay;
+        return this;
+    }
+
+    /** Returns the base retry delay, in milliseconds. */
+    public long getBaseDelay () {
+        return _baseDelay;
+    }
+
+    /**
+     * Set the maximum delay before any single retry, in milliseconds. Defaults to
+     * {@link #DEFAULT_MAX_DELAY}.
+     */
+    public S3RetryPolicy setMaxDelay (long maxDelay) {
+        _maxDelay = maxDelay;
+        return this;
+    }
+
+    /** Returns the maximum retry delay, in milliseconds. */
+    public long getMaxDelay () {
+        return _maxDelay;
+    }
+
+    /**
+     * Set the maximum time spent retrying a request, measured from its first attempt, in
+     * milliseconds. A retry that could not begin within this time is not attempted.
+     * Specify 0 for no limit. Defaults to {@link #DEFAULT_MAX_RETRY_TIME}.
+     */
+    public S3RetryPolicy setMaxRetryTime (long maxRetryTime) {
+        _maxRetryTime = maxRetryTime;
+        return this;
+    }
+
+    /** Returns the maximum retry time, in milliseconds, or 0. */
+    public long getMaxRetryTime () {
+        return _maxRetryTime;
+    }
+
+    /**
+     * Set the budget from which retries are drawn, or null to retry without a budget.
+     * Defaults to the process-wide {@link S3RetryBudget#getDefault} budget.
+     */
+    public S3RetryPolicy setBudget (S3RetryBudget budget) {
+        _budget = budget;
+        return this;
+    }
+
+    /** Returns the retry budget, or null. */
+    public S3RetryBudget getBudget () {
+        return _budget;
+    }
+
+    /**
+     * Return true if a request failing with the given exception may succeed on retry.
+     */
+    public boolean isRetryable (S3Exception e)
+    {
+        return S3Utils.isRetryable(e);
+    }
+
+    /**
+     * Return the randomized delay before the given (zero-based) retry, in milliseconds.
+     */
+    public long getBackoff (int retry)
+    {
+        return S3Utils.backoffDelay(retry, _baseDelay, _maxDelay);
+    }
+
+    /**
+     * Determine whether a failed request should be retried, returning the delay before the
+     * retry in milliseconds, or -1 if the request should not be retried. If the request is
+     * to be retried, the retry's cost is withdrawn from the budget.
+     *
+     * @param e The request's failure.
+     * @param retry The number of retries already made.
+     * @param elapsed Time since the request's first attempt, in milliseconds.
+     */
+    public long getRetryDelay (S3Exception e, int retry, long elapsed)
+    {
+        if (retry + 1 >= _maxAttempts || !isRetryable(e)) {
+            return -1;
+        }
+
+        long delay = getBackoff(retry);
+        if (_maxRetryTime > 0 && elapsed + delay > _maxRetryTime) {
+            return -1;
+        }
+
+        int cost = (e instanceof S3ClientException.NetworkException) ? NETWORK_RETRY_COST :
+            RETRY_COST;
+        if (_budget != null && !_budget.tryAcquire(cost)) {
+            return -1;
+        }
+        return delay;
+    }
+
+    /**
+     * Record a successful request, returning a token to the budget.
+     */
+    public void recordSuccess ()
+    {
+        if (_budget != null) {
+            _budget.release(SUCCESS_REFUND);
+        }
+    }
+
+    /** Maximum attempts per request. */
+    private int _maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /** Base retry delay. */
+    private long _baseDelay = DEFAULT_BASE_DELAY;
+
+    /** Maximum retry delay. */
+    private long _maxDelay = DEFAULT_MAX_DELAY;
+
+    /** Maximum total retry time, or 0. */
+    private long _maxRetryTime = DEFAULT_MAX_RETRY_TIME;
+
+    /** Retry budget, or null. */
+    private S3RetryBudget _budget = S3RetryBudget.getDefault();
+}
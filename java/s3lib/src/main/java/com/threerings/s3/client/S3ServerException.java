@@ -228,12 +228,28 @@ public class S3ServerException extends S3Exception
         return _hostId;
     }
 
+    /** Get the HTTP status code of the S3 response, or 0 if it is unknown. */
+    public int getStatusCode ()
+    {
+        return _statusCode;
+    }
+
+    /** Set the HTTP status code of the S3 response. */
+    S3ServerException setStatusCode (int statusCode)
+    {
+        _statusCode = statusCode;
+        return this;
+    }
+
     /** Amazon S3 Request ID */
     private String _requestId;
 
     /** Amazon S3 Host ID */
     private String _hostId;
 
+    /** HTTP status code, or 0 */
+    private int _statusCode;
+
     // The following was autogenerated using the included genexceptions.py:
     // curl docs.amazonwebservices.com/AmazonS3/2006-03-01/ErrorCodeList.html | python bin/genexceptions.py
 
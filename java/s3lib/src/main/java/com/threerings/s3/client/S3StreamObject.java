@@ -119,6 +119,12 @@ public class S3StreamObject extends S3Object {
         return digest;
     }
 
+    @Override // From S3Object
+    protected byte[] computeChecksum (S3ChecksumAlgorithm algorithm) {
+        // The stream can only be read once
+        return null;
+    }
+
     @Override // From S3Object
     public long lastModified () {
         return lastModified;
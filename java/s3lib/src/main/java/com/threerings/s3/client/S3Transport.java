@@ -0,0 +1,67 @@
+/*
+ * S3Transport vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.IOException;
+
+/**
+ * The HTTP transport beneath an {@link S3Connection}. The connection builds and signs each
+ * {@link S3TransportRequest}, and the transport sends it to its S3 endpoint and returns the
+ * response, leaving the interpretation of S3 status codes and error documents to the
+ * connection.
+ *
+ * Two transports are provided: {@link S3CommonsTransport}, built on commons-httpclient, which
+ * is used by default, and {@link S3JavaNetTransport}, built on {@code java.net.http}.
+ *
+ * Transport implementations must be thread-safe.
+ */
+public interface S3Transport {
+    /**
+     * Send the provided request, returning its response. The response must be released
+     * once it is no longer needed.
+     *
+     * @throws IOException If a network error occurs.
+     */
+    public S3TransportResponse execute (S3TransportRequest request) throws IOException;
+
+    /**
+     * Return a snapshot of the transport's connection statistics. Statistics that the
+     * transport does not track are reported as zero.
+     */
+    public S3ConnectionPoolStats getPoolStats ();
+
+    /**
+     * Release the transport's connections and threads. The transport must not be used
+     * afterwards.
+     */
+    public void shutdown ();
+}
@@ -0,0 +1,277 @@
+/*
+ * S3TransportRequest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.UnsupportedEncodingException;
+
+import java.net.URLEncoder;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * A transport-neutral HTTP request, built by an {@link S3Connection} and sent by an
+ * {@link S3Transport}. The request path and query string are relative to the transport's
+ * S3 endpoint, and are already URL-encoded.
+ */
+public class S3TransportRequest {
+
+    /** The HTTP GET method. */
+    public static final String GET = "GET";
+
+    /** The HTTP HEAD method. */
+    public static final String HEAD = "HEAD";
+
+    /** The HTTP PUT method. */
+    public static final String PUT = "PUT";
+
+    /** The HTTP POST method. */
+    public static final String POST = "POST";
+
+    /** The HTTP DELETE method. */
+    public static final String DELETE = "DELETE";
+
+    /**
+     * Create a new request.
+     *
+     * @param method HTTP method name.
+     * @param path Encoded request path.
+     */
+    public S3TransportRequest (String method, String path)
+    {
+        _method = method;
+        _path = path;
+    }
+
+    /** Returns the HTTP method name. */
+    public String getMethod () {
+        return _method;
+    }
+
+    /** Returns the encoded request path. */
+    public String getPath () {
+        return _path;
+    }
+
+    /**
+     * Append a query parameter, encoding its name and value.
+     *
+     * @param name Parameter name.
+     * @param value Parameter value, or null for a parameter without a value (eg, ?uploads).
+     */
+    public S3TransportRequest addQueryParameter (String name, String value) {
+        StringBuilder query = new StringBuilder();
+        if (_query != null) {
+            query.append(_query).append('&');
+        }
+        query.append(encode(name));
+        if (value != null) {
+            query.append('=').append(encode(value));
+        }
+        _query = query.toString();
+        return this;
+    }
+
+    /** Returns the encoded query string, or null if the request has no query parameters. */
+    public String getQueryString () {
+        return _query;
+    }
+
+    /**
+     * Set a request header, replacing any existing header of the same name.
+     */
+    public S3TransportRequest setHeader (String name, String value) {
+        _headers.remove(name);
+        _headers.put(name, value);
+        return this;
+    }
+
+    /**
+     * Returns the value of the named request header, matched without regard to case, or
+     * null if it is not set.
+     */
+    public String getHeader (String name) {
+        return _headers.get(name);
+    }
+
+    /** Returns all request headers, by name. */
+    public Map<String,String> getHeaders () {
+        return Collections.unmodifiableMap(_headers);
+    }
+
+    /**
+     * Set the request body. The entity's content type is sent as the request's
+     * Content-Type.
+     */
+    public S3TransportRequest setEntity (RequestEntity entity) {
+        _entity = entity;
+        return this;
+    }
+
+    /** Returns the request body, or null. */
+    public RequestEntity getEntity () {
+        return _entity;
+    }
+
+    /**
+     * Set whether the transport may transparently resend the request following a network
+     * error. This must be disabled for request bodies that can not be replayed, or that
+     * compute a digest as they are sent. Defaults to true.
+     */
+    public S3TransportRequest setRetryable (boolean retryable) {
+        _retryable = retryable;
+        return this;
+    }
+
+    /** Returns true if the transport may resend the request. */
+    public boolean isRetryable () {
+        return _retryable;
+    }
+
+    /**
+     * Return a copy of this request, sharing its entity, that may be signed and sent
+     * independently of the original.
+     */
+    S3TransportRequest copy ()
+    {
+        S3TransportRequest copy = new S3TransportRequest(_method, _path);
+        copy._query = _query;
+        copy._headers.putAll(_headers);
+        copy._entity = _entity;
+        copy._retryable = _retryable;
+        copy._cancellation = _cancellation;
+        return copy;
+    }
+
+    /**
+     * Set the cancellation handle that governs this request, or null.
+     */
+    public S3TransportRequest setCancellation (S3Cancellation cancellation) {
+        _cancellation = cancellation;
+        return this;
+    }
+
+    /** Returns the request's cancellation handle, or null. */
+    public S3Cancellation getCancellation () {
+        return _cancellation;
+    }
+
+    /**
+     * Set the action that aborts this request's HTTP exchange, including the reading of its
+     * response body. Transports set the action just before sending the request. If the
+     * request has already been aborted, the action is run immediately.
+     */
+    public void setAbortHandler (Runnable handler)
+    {
+        boolean aborted;
+        synchronized (this) {
+            _abortHandler = handler;
+            aborted = _aborted;
+        }
+        if (aborted) {
+            handler.run();
+        }
+    }
+
+    /**
+     * Abort the request's HTTP exchange, freeing its connection. If the request has not yet
+     * been sent, it is aborted as soon as it is.
+     */
+    public void abort ()
+    {
+        Runnable handler;
+        synchronized (this) {
+            if (_aborted) {
+                return;
+            }
+            _aborted = true;
+            handler = _abortHandler;
+        }
+        if (handler != null) {
+            handler.run();
+        }
+    }
+
+    /** Returns true if the request has been aborted. */
+    public synchronized boolean isAborted () {
+        return _aborted;
+    }
+
+    @Override
+    public String toString () {
+        return _method + " " + _path + (_query != null ? "?" + _query : "");
+    }
+
+    /**
+     * Encode a query parameter name or value.
+     */
+    private static String encode (String value)
+    {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            // UTF8 must always be supported.
+            throw new RuntimeException("Missing UTF8 encoding");
+        }
+    }
+
+    /** HTTP method name. */
+    private final String _method;
+
+    /** Encoded request path. */
+    private final String _path;
+
+    /** Encoded query string, or null. */
+    private String _query;
+
+    /** Request headers, ordered by name without regard to case. */
+    private final Map<String,String> _headers =
+        new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
+
+    /** Request body, or null. */
+    private RequestEntity _entity;
+
+    /** Whether the transport may resend the request. */
+    private boolean _retryable = true;
+
+    /** Cancellation handle, or null. */
+    private S3Cancellation _cancellation;
+
+    /** Aborts the HTTP exchange, or null. */
+    private Runnable _abortHandler;
+
+    /** Set once the request has been aborted. */
+    private boolean _aborted;
+}
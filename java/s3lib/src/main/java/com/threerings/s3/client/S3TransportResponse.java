@@ -0,0 +1,79 @@
+/*
+ * S3TransportResponse vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.Map;
+
+/**
+ * The response to an {@link S3TransportRequest}. The response holds its connection until it
+ * is released.
+ */
+public interface S3TransportResponse {
+    /** Returns the HTTP status code. */
+    public int getStatusCode ();
+
+    /**
+     * Returns the value of the named response header, matched without regard to case, or
+     * null if the response has no such header.
+     */
+    public String getHeader (String name);
+
+    /** Returns all response headers, by name. */
+    public Map<String,String> getHeaders ();
+
+    /** Returns the response's Content-Length, or -1 if it is unknown. */
+    public long getContentLength ();
+
+    /**
+     * Returns the response body, or null if the response has none. The response must still
+     * be released once the body has been read.
+     */
+    public InputStream getBody () throws IOException;
+
+    /**
+     * Release the response's connection. Any unread body data is discarded.
+     */
+    public void release ();
+
+    /**
+     * Release the response's connection without reading any unread body data. The
+     * connection is closed rather than reused. Releasing an aborted response has no effect.
+     * Transports that cannot discard a connection release it normally.
+     */
+    public default void abort ()
+    {
+        release();
+    }
+}
@@ -44,17 +44,28 @@ import org.apache.commons.httpclient.protocol.Protocol;
 import javax.crypto.spec.SecretKeySpec;
 import javax.crypto.Mac;
 
+import java.io.UnsupportedEncodingException;
+
+import java.net.URLDecoder;
+
 import java.security.NoSuchAlgorithmException;
 import java.security.InvalidKeyException;
 
 import java.text.SimpleDateFormat;
 
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TimeZone;
 import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 
 class S3Utils {
     /** Header prefix for generic S3 headers. */
@@ -113,43 +124,96 @@ class S3Utils {
     public static void signAWSRequest (String awsKeyId, String awsSecretKey,
         HttpMethod method, Date expires)
     {
+        // Set the required Date header (now)
+        method.setRequestHeader("Date", rfc822Date(new Date()));
+
+        Map<String,String> headers = new LinkedHashMap<String,String>();
+        for (Header header : method.getRequestHeaders()) {
+            headers.put(header.getName(), header.getValue());
+        }
+
+        // If there's a request entity, use that to find the content-type
+        // header
+        String contentType = null;
+        if (method instanceof EntityEnclosingMethod) {
+            RequestEntity requestEntity =
+                ((EntityEnclosingMethod) method).getRequestEntity();
+
+            if (requestEntity != null) {
+                contentType = requestEntity.getContentType();
+            }
+        }
 
+        // Set the expires header
+        if (expires != null) {
+            method.setRequestHeader("Expires", rfc822Date(expires));
+        }
+
+        // Insert the header
+        String signature = computeSignature(awsSecretKey, method.getName(), headers,
+            contentType, method.getPath(), method.getQueryString(), expires);
+        method.setRequestHeader(S3Utils.AUTH_HEADER, "AWS " + awsKeyId + ":" + signature);
+    }
+
+    /**
+     * Sign (SHA-1 HMAC) a given transport request using the provided key. The request is
+     * dated with the x-amz-date header rather than Date, which some transports may not set.
+     *
+     * @param awsKeyId AWS ID
+     * @param awsSecretKey The secret string used to generate the HMAC.
+     * @param request The request to sign.
+     */
+    static void signAWSRequest (String awsKeyId, String awsSecretKey,
+        S3TransportRequest request)
+    {
+        request.setHeader(ALTERNATIVE_DATE_HEADER, rfc822Date(new Date()));
+
+        RequestEntity requestEntity = request.getEntity();
+        String signature = computeSignature(awsSecretKey, request.getMethod(),
+            request.getHeaders(), requestEntity != null ? requestEntity.getContentType() : null,
+            request.getPath(), request.getQueryString(), null);
+        request.setHeader(S3Utils.AUTH_HEADER, "AWS " + awsKeyId + ":" + signature);
+    }
+
+    /**
+     * Compute the base64-encoded request signature.
+     *
+     * @param awsSecretKey The secret string used to generate the HMAC.
+     * @param verb The HTTP method name.
+     * @param headers The request headers.
+     * @param contentType The request entity's content type, or null if the request has no
+     *  entity.
+     * @param path The request path, which may include a query string.
+     * @param query The request query string, or null.
+     * @param expires The expiration date for the signature, or null.
+     */
+    private static String computeSignature (String awsSecretKey, String verb,
+        Map<String,String> headers, String contentType, String path, String query,
+        Date expires)
+    {
         StringBuffer buf = new StringBuffer();
 
-        // Set the required Date header (now)
-        method.setRequestHeader("Date", rfc822Date(new Date()));
-        
         // Append method "verb"
-        buf.append(method.getName() + "\n");
+        buf.append(verb + "\n");
 
         // Add all interesting headers to a list, then sort them.  "Interesting"
         // is defined as Content-MD5, Content-Type, Date, and x-amz-
         SortedMap<String,String> interestingHeaders = new TreeMap<String,String>();
-        Header[] requestHeaders = method.getRequestHeaders();
-        for (int i = 0; i < requestHeaders.length; i++) {
-            Header header = requestHeaders[i];
-            String key = header.getName().toLowerCase();
-            
+        for (Map.Entry<String,String> header : headers.entrySet()) {
+            String key = header.getKey().toLowerCase();
+
             // Pull out only the headers that should be included in the signature.
             if (key.equals("content-type") || key.equals("content-md5") ||
                 key.equals("date") ||
                 key.startsWith(AMAZON_HEADER_PREFIX)) {
-                    
+
                 // Stow the header
                 interestingHeaders.put(key, header.getValue().trim());
             }
         }
-        
-        // If there's a request entity, use that to find the content-type
-        // header
-        if (method instanceof EntityEnclosingMethod) {
-            RequestEntity requestEntity =
-                ((EntityEnclosingMethod) method).getRequestEntity();
-                
-            if (requestEntity != null) {
-                interestingHeaders.put("content-type",
-                    requestEntity.getContentType());
-            }
+
+        if (contentType != null) {
+            interestingHeaders.put("content-type", contentType);
         }
 
         // If an AWS date header was specified, it should be used for the Date
@@ -162,10 +226,8 @@ class S3Utils {
         // trumps the x-amz-date behavior.
         if (expires != null) {
             interestingHeaders.put("date", rfc822Date(expires));
-            // Set the expires header
-            method.setRequestHeader("Expires", rfc822Date(expires));
         }
-        
+
         // these headers require that we still put a new line in after them,
         // even if they don't exist.
         if (!interestingHeaders.containsKey("content-type")) {
@@ -188,20 +250,16 @@ class S3Utils {
         }
 
         // Don't include the query parameters...
-        String path = method.getPath();
         int queryIndex = path.indexOf('?');
         if (queryIndex == -1) {
             buf.append(path);
         } else {
+            query = path.substring(queryIndex + 1) + (query != null ? "&" + query : "");
             buf.append(path.substring(0, queryIndex));
         }
 
-        // ...unless there is an acl or torrent parameter
-        if (path.matches(".*[&?]acl($|=|&).*")) {
-            buf.append("?acl");
-        } else if (path.matches(".*[&?]torrent($|=|&).*")) {
-            buf.append("?torrent");
-        }
+        // ...unless they name a sub-resource (eg, ?acl or ?uploadId=...)
+        buf.append(canonicalSubresources(query));
         
         // Finally, sign and encode the canonicalized headers
         SecretKeySpec signingKey = new SecretKeySpec(awsSecretKey.getBytes(), HMAC_SHA1_ALGORITHM);
@@ -224,12 +282,174 @@ class S3Utils {
         
         // Compute the HMAC
         byte[] raw = buf.toString().getBytes();
-        String b64 = new String(Base64.encodeBase64(mac.doFinal(raw)));
-        
-        // Insert the header
-        method.setRequestHeader(S3Utils.AUTH_HEADER, "AWS " + awsKeyId + ":" + b64);
+        return new String(Base64.encodeBase64(mac.doFinal(raw)));
     }
     
+    /**
+     * Return the sub-resource portion of the canonical resource for the given request
+     * query string, sorted by name, or an empty string if the query names no
+     * sub-resources.
+     */
+    static String canonicalSubresources (String query) {
+        if (query == null || query.length() == 0) {
+            return "";
+        }
+
+        SortedMap<String,String> subresources = new TreeMap<String,String>();
+        for (String param : query.split("&")) {
+            int valueIndex = param.indexOf('=');
+            String name = valueIndex == -1 ? param : param.substring(0, valueIndex);
+            if (!SIGNED_SUBRESOURCES.contains(name)) {
+                continue;
+            }
+
+            String value = null;
+            if (valueIndex != -1 && valueIndex < param.length() - 1) {
+                try {
+                    value = URLDecoder.decode(param.substring(valueIndex + 1), "utf-8");
+                } catch (UnsupportedEncodingException uee) {
+                    // UTF8 must always be supported.
+                    throw new RuntimeException("Missing UTF8 encoding");
+                }
+            }
+            subresources.put(name, value);
+        }
+
+        StringBuilder buf = new StringBuilder();
+        for (Map.Entry<String,String> entry : subresources.entrySet()) {
+            buf.append(buf.length() == 0 ? '?' : '&').append(entry.getKey());
+            if (entry.getValue() != null) {
+                buf.append('=').append(entry.getValue());
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Return true if a request failing with the given exception may succeed on retry: the
+     * exception is transient, or S3 returned an InternalError, SlowDown, RequestTimeout, or
+     * other 5xx response.
+     */
+    static boolean isRetryable (S3Exception e) {
+        if (e.isTransient() || e instanceof S3ServerException.S3Server500Exception ||
+            e instanceof S3ServerException.S3Server503Exception ||
+            e instanceof S3ServerException.RequestTimeoutException) {
+            return true;
+        }
+        return e instanceof S3ServerException && ((S3ServerException)e).getStatusCode() >= 500;
+    }
+
+    /**
+     * Sleep before the given (zero-based) retry attempt, using an exponential backoff with
+     * full jitter. Returns false if the thread was interrupted.
+     */
+    static boolean retryBackoff (int attempt) {
+        return retrySleep(backoffDelay(attempt, RETRY_BASE_DELAY, RETRY_MAX_DELAY));
+    }
+
+    /**
+     * Determine whether a failed operation made up of one or more requests, such as copying
+     * an object, should be retried, sleeping before the retry if so. The connection's retry
+     * policy, if any, has already retried the operation's requests, so the operation is then
+     * retried only as the policy allows, drawing on its retry budget; otherwise, the default
+     * backoff is used. Either way, at most <code>maxRetry</code> retries are made.
+     *
+     * @param policy The connection's retry policy, or null.
+     * @param attempt The number of retries already made.
+     */
+    static boolean retryOperation (S3RetryPolicy policy, int attempt, int maxRetry,
+        S3Exception e)
+    {
+        if (attempt >= maxRetry || !isRetryable(e)) {
+            return false;
+        } else if (policy == null) {
+            return retryBackoff(attempt);
+        }
+        long delay = policy.getRetryDelay(e, attempt, 0);
+        return (delay >= 0) && retrySleep(delay);
+    }
+
+    /**
+     * Return the delay before the given (zero-based) retry attempt, chosen uniformly between
+     * zero and the exponentially growing, capped, backoff ceiling.
+     */
+    static long backoffDelay (int attempt, long baseDelay, long maxDelay) {
+        long ceiling = Math.min(maxDelay, baseDelay << Math.min(attempt, 16));
+        return (ceiling > 0) ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+    }
+
+    /**
+     * Acquire one of the given permits, which bound the number of concurrent requests made
+     * by cooperating workers. A null semaphore imposes no bound.
+     */
+    static void acquirePermit (Semaphore permits)
+        throws S3ClientException
+    {
+        if (permits == null) {
+            return;
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new S3ClientException("Interrupted while waiting to make a request", ie);
+        }
+    }
+
+    /**
+     * Release a permit acquired with {@link #acquirePermit}.
+     */
+    static void releasePermit (Semaphore permits)
+    {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /**
+     * Sleep for the given number of milliseconds before a retry. Returns false if the thread
+     * was interrupted.
+     */
+    static boolean retrySleep (long delay) {
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Compare two object keys using the same ordering S3 uses when listing a bucket: the
+     * binary ordering of the keys' UTF-8 encodings. This is equivalent to comparing unicode
+     * code points, which differs from {@link String#compareTo(String)} for keys containing
+     * supplementary characters.
+     */
+    static int compareKeys (String key1, String key2) {
+        int len1 = key1.length();
+        int len2 = key2.length();
+        int i1 = 0;
+        int i2 = 0;
+
+        while (i1 < len1 && i2 < len2) {
+            int c1 = key1.codePointAt(i1);
+            int c2 = key2.codePointAt(i2);
+            if (c1 != c2) {
+                return c1 < c2 ? -1 : 1;
+            }
+            i1 += Character.charCount(c1);
+            i2 += Character.charCount(c2);
+        }
+
+        if (i1 < len1) {
+            return 1;
+        } else if (i2 < len2) {
+            return -1;
+        }
+        return 0;
+    }
+
     public static String rfc822Date (Date date) {
         // Convert the expiration date to rfc822 format.
         final String DateFormat = "EEE, dd MMM yyyy HH:mm:ss ";
@@ -243,6 +463,18 @@ class S3Utils {
     /** AWS Authorization Header Name. */
     protected static final String AUTH_HEADER = "Authorization";
     
+    /** Initial retry delay, in milliseconds. */
+    private static final long RETRY_BASE_DELAY = 100;
+
+    /** Maximum retry delay, in milliseconds. */
+    private static final long RETRY_MAX_DELAY = 10 * 1000;
+
+    /** Query parameters naming sub-resources, which must be included in request
+     * signatures. */
+    private static final Set<String> SIGNED_SUBRESOURCES = new HashSet<String>(Arrays.asList(
+        "acl", "location", "logging", "partNumber", "torrent", "uploadId", "uploads",
+        "versionId", "versioning", "versions"));
+
     /** HMAC/SHA1 Algorithm per RFC 2104. */
     protected static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
 }
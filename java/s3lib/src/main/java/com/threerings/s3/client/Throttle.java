@@ -0,0 +1,192 @@
+/*
+ * Throttle vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+
+/**
+ * A token bucket, limiting the rate at which bytes may be transferred. A single throttle may
+ * be shared by any number of threads, in which case it limits their aggregate rate.
+ *
+ * Bytes are reserved before they are transferred. A reservation that exceeds the available
+ * tokens is granted immediately, placing the bucket in debt, and the caller then sleeps for
+ * the time required to repay the debt. This allows transfers larger than the bucket's
+ * capacity while still holding the long-term rate to the configured limit.
+ *
+ * Throttles may equally meter requests rather than bytes, by acquiring one token for each
+ * request.
+ */
+class Throttle {
+    /**
+     * Create a new throttle.
+     *
+     * @param bytesPerSecond Maximum sustained rate. One second's worth of bytes may be
+     *  transferred in a burst.
+     */
+    public Throttle (long bytesPerSecond)
+    {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + bytesPerSecond);
+        }
+        _rate = bytesPerSecond;
+        _available = bytesPerSecond;
+        _lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Reserve the given number of bytes, sleeping as long as is required to remain within
+     * the throttle's rate.
+     */
+    public void acquire (long bytes)
+        throws InterruptedException
+    {
+        long delay = reserve(bytes);
+        if (delay > 0) {
+            Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+        }
+    }
+
+    /**
+     * Reserve the given number of tokens only if they are available immediately, returning
+     * false, without reserving anything, if they are not.
+     */
+    public synchronized boolean tryAcquire (long tokens)
+    {
+        refill();
+        if (_available < tokens) {
+            return false;
+        }
+        _available -= tokens;
+        return true;
+    }
+
+    /**
+     * Wrap the given input stream, throttling all reads through this throttle.
+     */
+    public InputStream wrap (InputStream input)
+    {
+        return new FilterInputStream(input) {
+            @Override
+            public int read ()
+                throws IOException
+            {
+                int b = super.read();
+                if (b != -1) {
+                    throttle(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read (byte[] b, int off, int len)
+                throws IOException
+            {
+                int count = super.read(b, off, len);
+                if (count > 0) {
+                    throttle(count);
+                }
+                return count;
+            }
+
+            @Override
+            public long skip (long n)
+                throws IOException
+            {
+                long count = super.skip(n);
+                if (count > 0) {
+                    throttle(count);
+                }
+                return count;
+            }
+
+            private void throttle (long bytes)
+                throws InterruptedIOException
+            {
+                try {
+                    acquire(bytes);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+        };
+    }
+
+    /**
+     * Reserve the given number of bytes, returning the number of nanoseconds the caller must
+     * wait before transferring them.
+     */
+    protected synchronized long reserve (long bytes)
+    {
+        refill();
+        _available -= bytes;
+        if (_available >= 0) {
+            return 0;
+        }
+        return (long)(-_available * 1e9 / _rate);
+    }
+
+    /**
+     * Returns true if the bucket is full, in which case the throttle is indistinguishable
+     * from a newly created one.
+     */
+    protected synchronized boolean isFull ()
+    {
+        refill();
+        return _available >= _rate;
+    }
+
+    /**
+     * Add the tokens accrued since the last refill, up to one second's worth.
+     */
+    private void refill ()
+    {
+        long now = System.nanoTime();
+        long elapsed = now - _lastRefill;
+        if (elapsed > 0) {
+            _available = Math.min(_rate, _available + elapsed * _rate / 1e9);
+            _lastRefill = now;
+        }
+    }
+
+    /** Tokens (bytes) per second. */
+    private final long _rate;
+
+    /** Available tokens. Negative when in debt. */
+    private double _available;
+
+    /** Time of the last refill, in nanoseconds. */
+    private long _lastRefill;
+}
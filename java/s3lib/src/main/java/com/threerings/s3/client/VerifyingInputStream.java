@@ -0,0 +1,383 @@
+/*
+ * VerifyingInputStream vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+
+import java.security.MessageDigest;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An input stream that verifies an object's data as it is read. The number of bytes read,
+ * and the checksum of the data where one is expected, are checked when the end of the
+ * stream is reached; a mismatch or a truncated body causes the final read to fail with an
+ * IOException whose cause is an {@link S3ClientException.DigestMismatchException}.
+ *
+ * Data that is never read -- because the stream is closed early -- is not verified.
+ * Skipped data is read and verified.
+ */
+class VerifyingInputStream extends FilterInputStream {
+    /**
+     * Wrap the given object data stream.
+     *
+     * @param input Object data stream.
+     * @param key Object key, used in error messages.
+     * @param length Expected data length.
+     * @param algorithm Checksum algorithm.
+     * @param checksum Expected checksum, or null if only the length is to be verified.
+     * @param background If true, the digest is computed on a helper thread, overlapping
+     *  reads from the network. Each chunk of data read is copied for the helper.
+     */
+    public VerifyingInputStream (InputStream input, String key, long length,
+        S3ChecksumAlgorithm algorithm, byte[] checksum, boolean background)
+    {
+        super(input);
+        _key = key;
+        _length = length;
+        _algorithm = algorithm;
+        _expected = checksum;
+
+        MessageDigest md = (checksum != null) ? algorithm.createDigest() : null;
+        if (md != null) {
+            if (background) {
+                _digester = new Digester(md);
+                _md = null;
+            } else {
+                _digester = null;
+                _md = md;
+            }
+        } else {
+            _digester = null;
+            _md = null;
+        }
+    }
+
+    @Override
+    public int read ()
+        throws IOException
+    {
+        int b = super.read();
+        if (b == -1) {
+            verify();
+        } else {
+            _single[0] = (byte)b;
+            update(_single, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read (byte[] b, int off, int len)
+        throws IOException
+    {
+        int count = super.read(b, off, len);
+        if (count == -1) {
+            verify();
+        } else if (count > 0) {
+            update(b, off, count);
+        }
+        return count;
+    }
+
+    @Override
+    public long skip (long n)
+        throws IOException
+    {
+        /* Skipped data must still be digested. */
+        byte[] buffer = new byte[(int)Math.min(n, SKIP_BUFFER_SIZE)];
+        long skipped = 0;
+        while (skipped < n) {
+            int count = read(buffer, 0, (int)Math.min(buffer.length, n - skipped));
+            if (count == -1) {
+                break;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported () {
+        return false;
+    }
+
+    @Override
+    public void mark (int readlimit) {
+        // Not supported
+    }
+
+    @Override
+    public void reset ()
+        throws IOException
+    {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void close ()
+        throws IOException
+    {
+        if (_digester != null && !_verified) {
+            _digester.cancel();
+        }
+        super.close();
+    }
+
+    /**
+     * Account for data read from the stream.
+     */
+    private void update (byte[] b, int off, int len)
+        throws IOException
+    {
+        _count += len;
+        if (_md != null) {
+            _md.update(b, off, len);
+        } else if (_digester != null) {
+            _digester.update(Arrays.copyOfRange(b, off, off + len));
+        }
+    }
+
+    /**
+     * Verify the data read, once the end of the stream has been reached.
+     */
+    private void verify ()
+        throws IOException
+    {
+        if (_verified) {
+            return;
+        }
+        _verified = true;
+
+        if (_count != _length) {
+            if (_digester != null) {
+                _digester.cancel();
+            }
+            throw mismatch("Received " + _count + " bytes for '" + _key + "', expected " +
+                _length);
+        }
+
+        if (_md != null || _digester != null) {
+            byte[] actual = (_digester != null) ? _digester.finish() : _md.digest();
+            if (!MessageDigest.isEqual(_expected, actual)) {
+                throw mismatch("Data received for '" + _key + "' does not match its " +
+                    _algorithm + " checksum");
+            }
+        }
+    }
+
+    /**
+     * Create the exception thrown on verification failure.
+     */
+    private static IOException mismatch (String message)
+    {
+        return new IOException(message, new S3ClientException.DigestMismatchException(message));
+    }
+
+    /**
+     * Computes a digest on a helper thread, from chunks of data handed over by the reader.
+     * The helper gives up its thread whenever no data has arrived for {@link #IDLE_TIMEOUT}
+     * milliseconds, and is rescheduled when more arrives, so that a stream that is dropped
+     * without being closed does not hold a thread.
+     */
+    private static class Digester implements Runnable {
+        public Digester (MessageDigest md)
+        {
+            _md = md;
+        }
+
+        /**
+         * Queue a chunk of data to be digested. The chunk must not be modified.
+         */
+        public void update (byte[] chunk)
+            throws IOException
+        {
+            try {
+                _queue.put(chunk);
+            } catch (InterruptedException ie) {
+                cancel();
+                throw new InterruptedIOException("Interrupted while digesting data");
+            }
+            schedule();
+        }
+
+        /**
+         * Wait for all queued data to be digested, and return the digest.
+         */
+        public byte[] finish ()
+            throws IOException
+        {
+            try {
+                _queue.put(END);
+                schedule();
+                _done.await();
+                return _digest;
+            } catch (InterruptedException ie) {
+                cancel();
+                throw new InterruptedIOException("Interrupted while digesting data");
+            }
+        }
+
+        /**
+         * Abandon the digest.
+         */
+        public void cancel () {
+            _cancelled = true;
+            _queue.clear();
+        }
+
+        // from interface Runnable
+        public void run ()
+        {
+            try {
+                while (!_cancelled) {
+                    byte[] chunk = _queue.poll(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+                    if (chunk == END) {
+                        _digest = _md.digest();
+                        _done.countDown();
+                        return;
+                    } else if (chunk != null) {
+                        _md.update(chunk);
+                        continue;
+                    }
+
+                    // Release the thread until more data arrives
+                    synchronized (this) {
+                        if (_queue.isEmpty()) {
+                            _running = false;
+                            return;
+                        }
+                    }
+                }
+            } catch (InterruptedException ie) {
+                // Only the executor interrupts its threads, when shutting down
+            }
+            synchronized (this) {
+                _running = false;
+            }
+        }
+
+        /**
+         * Schedule the helper, if it is not already running.
+         */
+        private synchronized void schedule ()
+        {
+            if (!_running && !_cancelled) {
+                _running = true;
+                _executor.execute(this);
+            }
+        }
+
+        /** Digest. */
+        private final MessageDigest _md;
+
+        /** Chunks awaiting digestion. */
+        private final BlockingQueue<byte[]> _queue =
+            new ArrayBlockingQueue<byte[]>(QUEUE_CAPACITY);
+
+        /** Released once the digest has been computed. */
+        private final CountDownLatch _done = new CountDownLatch(1);
+
+        /** The computed digest. */
+        private volatile byte[] _digest;
+
+        /** Set while the helper is scheduled or running. */
+        private boolean _running;
+
+        /** Set once the digest has been abandoned. */
+        private volatile boolean _cancelled;
+
+        /** Marks the end of the data. */
+        private static final byte[] END = new byte[0];
+
+        /** Maximum number of chunks queued for the helper. */
+        private static final int QUEUE_CAPACITY = 16;
+
+        /** Time after which an idle helper gives up its thread, in milliseconds. */
+        private static final long IDLE_TIMEOUT = 1000;
+    }
+
+    /** Object key. */
+    private final String _key;
+
+    /** Expected data length. */
+    private final long _length;
+
+    /** Checksum algorithm. */
+    private final S3ChecksumAlgorithm _algorithm;
+
+    /** Expected checksum, or null. */
+    private final byte[] _expected;
+
+    /** Inline digest, or null. */
+    private final MessageDigest _md;
+
+    /** Helper thread digest, or null. */
+    private final Digester _digester;
+
+    /** Buffer for single byte reads. */
+    private final byte[] _single = new byte[1];
+
+    /** Number of bytes read. */
+    private long _count;
+
+    /** Set once the end of the stream has been verified. */
+    private boolean _verified = false;
+
+    /** Skip buffer size (64k). */
+    private static final int SKIP_BUFFER_SIZE = 64 * 1024;
+
+    /** Helper threads shared by all background digests, one per processor. */
+    private static final ThreadPoolExecutor _executor;
+    static {
+        int threads = Runtime.getRuntime().availableProcessors();
+        _executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "S3 digest");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        _executor.allowCoreThreadTimeOut(true);
+    }
+}
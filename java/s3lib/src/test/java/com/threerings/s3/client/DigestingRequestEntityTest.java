@@ -0,0 +1,82 @@
+/*
+ * DigestingRequestEntityTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.codec.binary.Hex;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class DigestingRequestEntityTest {
+    @Test
+    public void testDigest ()
+        throws Exception
+    {
+        byte[] data = S3FileObjectTest.TEST_DATA.getBytes("utf8");
+        DigestingRequestEntity entity = new DigestingRequestEntity(
+            new ByteArrayInputStream(data), data.length, "text/plain", true);
+        assertEquals(data.length, entity.getContentLength());
+        assertFalse(entity.isRepeatable());
+        assertNull(entity.getDigest());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        entity.writeRequest(output);
+        assertEquals(S3FileObjectTest.TEST_DATA, output.toString("utf8"));
+        assertEquals(S3FileObjectTest.TEST_DATA_MD5, new String(Hex.encodeHex(entity.getDigest())));
+    }
+
+    @Test
+    public void testNoDigest ()
+        throws Exception
+    {
+        byte[] data = new byte[200 * 1024];
+        DigestingRequestEntity entity = new DigestingRequestEntity(
+            new ByteArrayInputStream(data), data.length, "text/plain", false);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        entity.writeRequest(output);
+        assertEquals(data.length, output.size());
+        assertNull(entity.getDigest());
+    }
+
+    @Test(expected=IOException.class)
+    public void testShortStream ()
+        throws Exception
+    {
+        DigestingRequestEntity entity = new DigestingRequestEntity(
+            new ByteArrayInputStream(new byte[10]), 20, "text/plain", true);
+        entity.writeRequest(new ByteArrayOutputStream());
+    }
+}
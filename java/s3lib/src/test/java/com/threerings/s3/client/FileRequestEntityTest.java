@@ -0,0 +1,147 @@
+/*
+ * FileRequestEntityTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class FileRequestEntityTest {
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _data = new byte[300 * 1024];
+        for (int i = 0; i < _data.length; i++) {
+            _data[i] = (byte)(i * 31);
+        }
+
+        _file = File.createTempFile("FileRequestEntityTest", null);
+        FileOutputStream output = new FileOutputStream(_file);
+        output.write(_data);
+        output.close();
+    }
+
+    @After
+    public void tearDown ()
+        throws Exception
+    {
+        _file.delete();
+    }
+
+    @Test
+    public void testFindChannel ()
+        throws Exception
+    {
+        /* Ordinary streams have no channel. */
+        assertNull(ChannelOutputStream.findChannel(new BufferedOutputStream(
+            new ByteArrayOutputStream())));
+    }
+
+    @Test
+    public void testTransfer ()
+        throws Exception
+    {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        try {
+            Socket client = new S3ChannelSocketFactory().createSocket(
+                InetAddress.getLoopbackAddress().getHostAddress(), server.getLocalPort());
+            Socket accepted = server.accept();
+            assertNotNull(client.getChannel());
+
+            /* Write buffered "headers", followed by a file region, as httpclient would. */
+            int offset = 1000;
+            int length = 200 * 1024;
+            OutputStream output = new BufferedOutputStream(client.getOutputStream(), 2048);
+            output.write(HEADER);
+            FileInputStream input = new FileInputStream(_file);
+            input.getChannel().position(offset);
+            new FileRequestEntity(input, offset, length, "text/plain", false).writeRequest(output);
+            output.flush();
+            client.close();
+
+            InputStream received = accepted.getInputStream();
+            byte[] result = IOUtils.toByteArray(received);
+            accepted.close();
+
+            assertEquals(HEADER.length + length, result.length);
+            assertTrue(Arrays.equals(HEADER, Arrays.copyOfRange(result, 0, HEADER.length)));
+            assertTrue(Arrays.equals(Arrays.copyOfRange(_data, offset, offset + length),
+                Arrays.copyOfRange(result, HEADER.length, result.length)));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRegionObject ()
+        throws Exception
+    {
+        S3FileObject region = new S3FileObject("key", _file, S3Object.DEFAULT_MEDIA_TYPE,
+            100, 5000);
+        assertEquals(5000, region.length());
+
+        byte[] expected = Arrays.copyOfRange(_data, 100, 5100);
+        assertTrue(Arrays.equals(expected, IOUtils.toByteArray(region.getInputStream())));
+
+        /* Without a socket channel, the entity copies (and digests) the region. */
+        DigestingRequestEntity entity = region.createRequestEntity(true);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        entity.writeRequest(output);
+        assertTrue(Arrays.equals(expected, output.toByteArray()));
+        assertTrue(Arrays.equals(region.getMD5(), entity.getDigest()));
+    }
+
+    /** Test file data. */
+    protected byte[] _data;
+
+    /** Test file. */
+    protected File _file;
+
+    /** Fake request headers. */
+    protected static final byte[] HEADER = "PUT / HTTP/1.1\r\n\r\n".getBytes();
+}
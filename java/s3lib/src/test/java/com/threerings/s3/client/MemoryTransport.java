@@ -0,0 +1,616 @@
+/*
+ * MemoryTransport vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import java.net.URLDecoder;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SimpleTimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.httpclient.util.DateUtil;
+
+/**
+ * An in-memory S3 endpoint, implementing enough of the S3 API -- listing, object GET, HEAD,
+ * PUT, copy and DELETE, and multipart uploads -- to exercise the request engines without
+ * network access. Subclasses may inject failures by overriding {@link #intercept}.
+ */
+class MemoryTransport implements S3Transport {
+
+    /** A stored object. */
+    public static class Stored {
+        public final byte[] data;
+        public final String eTag;
+        public final String contentType;
+        public final Map<String,String> headers = new TreeMap<String,String>(
+            String.CASE_INSENSITIVE_ORDER);
+        public long lastModified = System.currentTimeMillis();
+
+        public Stored (byte[] data, String eTag, String contentType) {
+            this.data = data;
+            this.eTag = eTag;
+            this.contentType = contentType;
+        }
+    }
+
+    /** Number of requests executed, by method. */
+    public final Map<String,AtomicInteger> requests = Collections.synchronizedMap(
+        new HashMap<String,AtomicInteger>());
+
+    /** The largest number of requests seen executing at once. */
+    public final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    /**
+     * Delay each request by the given time, in milliseconds, so that concurrent requests
+     * overlap.
+     */
+    public MemoryTransport setDelay (long delay) {
+        _delay = delay;
+        return this;
+    }
+
+    /**
+     * Store an object.
+     */
+    public synchronized Stored put (String bucket, String key, byte[] data)
+    {
+        Stored stored = new Stored(data, hex(md5(data)), "application/octet-stream");
+        bucket(bucket).put(key, stored);
+        return stored;
+    }
+
+    /**
+     * Store an object.
+     */
+    public synchronized Stored put (String bucket, String key, Stored stored)
+    {
+        bucket(bucket).put(key, stored);
+        return stored;
+    }
+
+    /**
+     * Store an object as though it had been uploaded in parts of the given size.
+     */
+    public synchronized Stored putMultipart (String bucket, String key, byte[] data,
+        int partSize)
+    {
+        ByteArrayOutputStream digests = new ByteArrayOutputStream();
+        int count = 0;
+        for (int offset = 0; offset < data.length; offset += partSize, count++) {
+            int length = Math.min(partSize, data.length - offset);
+            byte[] part = new byte[length];
+            System.arraycopy(data, offset, part, 0, length);
+            digests.write(md5(part), 0, 16);
+        }
+        Stored stored = new Stored(data, hex(md5(digests.toByteArray())) + "-" + count,
+            "application/octet-stream");
+        bucket(bucket).put(key, stored);
+        return stored;
+    }
+
+    /**
+     * Returns the named object, or null.
+     */
+    public synchronized Stored get (String bucket, String key)
+    {
+        return bucket(bucket).get(key);
+    }
+
+    /**
+     * Returns the keys stored in the given bucket, in order.
+     */
+    public synchronized List<String> keys (String bucket)
+    {
+        return new ArrayList<String>(bucket(bucket).keySet());
+    }
+
+    /**
+     * Returns the number of requests executed with the given method.
+     */
+    public int getRequestCount (String method)
+    {
+        AtomicInteger count = requests.get(method);
+        return (count == null) ? 0 : count.get();
+    }
+
+    // from interface S3Transport
+    public S3TransportResponse execute (S3TransportRequest request)
+        throws IOException
+    {
+        synchronized (requests) {
+            AtomicInteger count = requests.get(request.getMethod());
+            if (count == null) {
+                requests.put(request.getMethod(), count = new AtomicInteger());
+            }
+            count.incrementAndGet();
+        }
+
+        int concurrent = _concurrent.incrementAndGet();
+        try {
+            int max;
+            while (concurrent > (max = maxConcurrent.get()) &&
+                !maxConcurrent.compareAndSet(max, concurrent))
+            {
+                // Retry
+            }
+            if (_delay > 0) {
+                try {
+                    Thread.sleep(_delay);
+                } catch (InterruptedException ie) {
+                    throw new IOException("Interrupted");
+                }
+            }
+
+            S3TransportResponse response = intercept(request);
+            return (response != null) ? response : handle(request);
+        } finally {
+            _concurrent.decrementAndGet();
+        }
+    }
+
+    // from interface S3Transport
+    public S3ConnectionPoolStats getPoolStats ()
+    {
+        return new S3ConnectionPoolStats(0, 0, 0, 0, 0, 0);
+    }
+
+    // from interface S3Transport
+    public void shutdown ()
+    {
+    }
+
+    /**
+     * Return a response for the given request in place of the stored state, or null to
+     * handle the request normally.
+     */
+    protected S3TransportResponse intercept (S3TransportRequest request)
+        throws IOException
+    {
+        return null;
+    }
+
+    /**
+     * Returns an S3 error response.
+     */
+    public static Response error (int status, String code)
+    {
+        return new Response(status, utf8("<Error><Code>" + code + "</Code><Message>" + code +
+            "</Message></Error>"));
+    }
+
+    /**
+     * Handle a request against the stored state.
+     */
+    protected synchronized S3TransportResponse handle (S3TransportRequest request)
+        throws IOException
+    {
+        String method = request.getMethod();
+        String[] path = request.getPath().substring(1).split("/", 2);
+        String bucket = decode(path[0]);
+        String key = (path.length > 1) ? decode(path[1]) : null;
+        Map<String,String> query = parseQuery(request.getQueryString());
+        String uploadId = query.get("uploadId");
+
+        if (key == null) {
+            return method.equals(S3TransportRequest.GET) ? list(bucket, query) :
+                new Response(200, null);
+        }
+
+        if (method.equals(S3TransportRequest.POST) && query.containsKey("uploads")) {
+            String id = "upload-" + (++_lastUploadId);
+            _uploads.put(id, new TreeMap<Integer,byte[]>());
+            return new Response(200, utf8("<InitiateMultipartUploadResult><UploadId>" + id +
+                "</UploadId></InitiateMultipartUploadResult>"));
+
+        } else if (method.equals(S3TransportRequest.POST) && uploadId != null) {
+            return complete(bucket, key, uploadId, readEntity(request));
+
+        } else if (method.equals(S3TransportRequest.PUT) && uploadId != null) {
+            TreeMap<Integer,byte[]> parts = _uploads.get(uploadId);
+            if (parts == null) {
+                return error(404, "NoSuchUpload");
+            }
+            byte[] data;
+            String source = request.getHeader("x-amz-copy-source");
+            if (source != null) {
+                Stored stored = getSource(source);
+                if (stored == null) {
+                    return error(404, "NoSuchKey");
+                }
+                String ifMatch = request.getHeader("x-amz-copy-source-if-match");
+                if (ifMatch != null && !ifMatch.equals("\"" + stored.eTag + "\"")) {
+                    return error(412, "PreconditionFailed");
+                }
+                data = range(stored.data, request.getHeader("x-amz-copy-source-range"));
+            } else {
+                data = readEntity(request);
+            }
+            parts.put(Integer.valueOf(query.get("partNumber")), data);
+            String eTag = "\"" + hex(md5(data)) + "\"";
+            Response response = new Response(200, (source == null) ? null :
+                utf8("<CopyPartResult><ETag>" + eTag + "</ETag></CopyPartResult>"));
+            response.headers.put("ETag", eTag);
+            return response;
+
+        } else if (method.equals(S3TransportRequest.DELETE) && uploadId != null) {
+            _uploads.remove(uploadId);
+            return new Response(204, null);
+
+        } else if (method.equals(S3TransportRequest.PUT)) {
+            String source = request.getHeader("x-amz-copy-source");
+            Stored stored;
+            if (source != null) {
+                Stored original = getSource(source);
+                if (original == null) {
+                    return error(404, "NoSuchKey");
+                }
+                stored = new Stored(original.data, original.eTag, original.contentType);
+                stored.headers.putAll(original.headers);
+            } else {
+                byte[] data = readEntity(request);
+                String md5 = request.getHeader("Content-MD5");
+                if (md5 != null && !md5.equals(new String(Base64.encodeBase64(md5(data)),
+                    "ascii")))
+                {
+                    return error(400, "BadDigest");
+                }
+                String contentType = (request.getEntity() != null) ?
+                    request.getEntity().getContentType() : null;
+                stored = new Stored(data, hex(md5(data)), (contentType != null) ?
+                    contentType : "application/octet-stream");
+                for (Map.Entry<String,String> header : request.getHeaders().entrySet()) {
+                    if (header.getKey().toLowerCase().startsWith("x-amz-meta-")) {
+                        stored.headers.put(header.getKey(), header.getValue());
+                    }
+                }
+            }
+            bucket(bucket).put(key, stored);
+            Response response = new Response(200, (source == null) ? null :
+                utf8("<CopyObjectResult><ETag>\"" + stored.eTag + "\"</ETag>" +
+                    "</CopyObjectResult>"));
+            response.headers.put("ETag", "\"" + stored.eTag + "\"");
+            return response;
+
+        } else if (method.equals(S3TransportRequest.DELETE)) {
+            bucket(bucket).remove(key);
+            return new Response(204, null);
+        }
+
+        Stored stored = bucket(bucket).get(key);
+        if (stored == null) {
+            return method.equals(S3TransportRequest.HEAD) ? new Response(404, null) :
+                error(404, "NoSuchKey");
+        }
+        Response response = new Response(200,
+            method.equals(S3TransportRequest.GET) ? stored.data : null);
+        response.headers.putAll(stored.headers);
+        response.headers.put("Content-Type", stored.contentType);
+        response.headers.put("ETag", "\"" + stored.eTag + "\"");
+        response.headers.put("Last-Modified", DateUtil.formatDate(new Date(stored.lastModified)));
+        response.length = stored.data.length;
+        return response;
+    }
+
+    /**
+     * Complete a multipart upload.
+     */
+    protected S3TransportResponse complete (String bucket, String key, String uploadId,
+        byte[] document)
+        throws IOException
+    {
+        TreeMap<Integer,byte[]> parts = _uploads.remove(uploadId);
+        if (parts == null) {
+            return error(404, "NoSuchUpload");
+        }
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteArrayOutputStream digests = new ByteArrayOutputStream();
+        Matcher matcher = PART_NUMBER.matcher(new String(document, "UTF-8"));
+        int count = 0;
+        while (matcher.find()) {
+            byte[] part = parts.get(Integer.valueOf(matcher.group(1)));
+            if (part == null) {
+                return error(400, "InvalidPart");
+            }
+            data.write(part);
+            digests.write(md5(part));
+            count++;
+        }
+
+        Stored stored = new Stored(data.toByteArray(), hex(md5(digests.toByteArray())) + "-" +
+            count, "application/octet-stream");
+        bucket(bucket).put(key, stored);
+        return new Response(200, utf8("<CompleteMultipartUploadResult><ETag>\"" +
+            stored.eTag + "\"</ETag></CompleteMultipartUploadResult>"));
+    }
+
+    /**
+     * List a bucket.
+     */
+    protected S3TransportResponse list (String bucket, Map<String,String> query)
+    {
+        String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+        String marker = query.get("marker");
+        String delimiter = query.get("delimiter");
+        int maxKeys = query.containsKey("max-keys") ?
+            Integer.parseInt(query.get("max-keys")) : 1000;
+
+        StringBuilder contents = new StringBuilder();
+        List<String> prefixes = new ArrayList<String>();
+        String last = null;
+        int count = 0;
+        boolean truncated = false;
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(new SimpleTimeZone(0, "GMT"));
+
+        for (Map.Entry<String,Stored> entry : bucket(bucket).entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(prefix) || (marker != null && key.compareTo(marker) <= 0)) {
+                continue;
+            }
+
+            String common = null;
+            if (delimiter != null) {
+                int idx = key.indexOf(delimiter, prefix.length());
+                if (idx >= 0) {
+                    common = key.substring(0, idx + delimiter.length());
+                    if (common.equals(last) ||
+                        (marker != null && common.compareTo(marker) <= 0)) {
+                        continue;
+                    }
+                }
+            }
+
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            count++;
+
+            if (common != null) {
+                prefixes.add(common);
+                last = common;
+            } else {
+                Stored stored = entry.getValue();
+                contents.append("<Contents><Key>").append(escape(key))
+                    .append("</Key><LastModified>")
+                    .append(format.format(new Date(stored.lastModified)))
+                    .append("</LastModified><ETag>&quot;").append(stored.eTag)
+                    .append("&quot;</ETag><Size>").append(stored.data.length)
+                    .append("</Size><Owner><ID>owner</ID></Owner>")
+                    .append("<StorageClass>STANDARD</StorageClass></Contents>");
+                last = key;
+            }
+        }
+
+        StringBuilder document = new StringBuilder("<ListBucketResult><Name>");
+        document.append(escape(bucket)).append("</Name><Prefix>").append(escape(prefix))
+            .append("</Prefix><Marker>").append(marker != null ? escape(marker) : "")
+            .append("</Marker><MaxKeys>").append(maxKeys).append("</MaxKeys>");
+        if (delimiter != null) {
+            document.append("<Delimiter>").append(escape(delimiter)).append("</Delimiter>");
+            if (truncated) {
+                document.append("<NextMarker>").append(escape(last)).append("</NextMarker>");
+            }
+        }
+        document.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        document.append(contents);
+        for (String common : prefixes) {
+            document.append("<CommonPrefixes><Prefix>").append(escape(common))
+                .append("</Prefix></CommonPrefixes>");
+        }
+        document.append("</ListBucketResult>");
+        return new Response(200, utf8(document.toString()));
+    }
+
+    /**
+     * Returns the object named by a copy source header, or null.
+     */
+    protected Stored getSource (String source)
+        throws IOException
+    {
+        String[] path = source.substring(1).split("/", 2);
+        return bucket(decode(path[0])).get(decode(path[1]));
+    }
+
+    /**
+     * Returns the named bucket, creating it if necessary.
+     */
+    protected TreeMap<String,Stored> bucket (String name)
+    {
+        TreeMap<String,Stored> bucket = _buckets.get(name);
+        if (bucket == null) {
+            _buckets.put(name, bucket = new TreeMap<String,Stored>());
+        }
+        return bucket;
+    }
+
+    /**
+     * Read the request's entity.
+     */
+    protected static byte[] readEntity (S3TransportRequest request)
+        throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        if (request.getEntity() != null) {
+            request.getEntity().writeRequest(output);
+        }
+        return output.toByteArray();
+    }
+
+    protected static byte[] range (byte[] data, String range)
+    {
+        if (range == null) {
+            return data;
+        }
+        String[] bounds = range.substring("bytes=".length()).split("-");
+        int first = Integer.parseInt(bounds[0]);
+        int last = Integer.parseInt(bounds[1]);
+        byte[] result = new byte[last - first + 1];
+        System.arraycopy(data, first, result, 0, result.length);
+        return result;
+    }
+
+    protected static Map<String,String> parseQuery (String query)
+        throws UnsupportedEncodingException
+    {
+        Map<String,String> params = new HashMap<String,String>();
+        if (query == null) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int idx = param.indexOf('=');
+            if (idx < 0) {
+                params.put(decode(param), null);
+            } else {
+                params.put(decode(param.substring(0, idx)), decode(param.substring(idx + 1)));
+            }
+        }
+        return params;
+    }
+
+    protected static String decode (String value)
+        throws UnsupportedEncodingException
+    {
+        return URLDecoder.decode(value, "UTF-8");
+    }
+
+    protected static String escape (String value)
+    {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    protected static byte[] utf8 (String value)
+    {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new RuntimeException(uee);
+        }
+    }
+
+    public static byte[] md5 (byte[] data)
+    {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae);
+        }
+    }
+
+    public static String hex (byte[] data)
+    {
+        return new String(Hex.encodeHex(data));
+    }
+
+    /**
+     * A canned response.
+     */
+    public static class Response implements S3TransportResponse {
+        public final Map<String,String> headers = new TreeMap<String,String>(
+            String.CASE_INSENSITIVE_ORDER);
+        public long length;
+
+        public Response (int status, byte[] body) {
+            _status = status;
+            _body = body;
+            length = (body != null) ? body.length : 0;
+        }
+
+        public int getStatusCode () {
+            return _status;
+        }
+
+        public String getHeader (String name) {
+            return headers.get(name);
+        }
+
+        public Map<String,String> getHeaders () {
+            return headers;
+        }
+
+        public long getContentLength () {
+            return length;
+        }
+
+        public InputStream getBody () {
+            return (_body != null) ? new ByteArrayInputStream(_body) : null;
+        }
+
+        public void release () {
+        }
+
+        protected final int _status;
+        protected final byte[] _body;
+    }
+
+    /** Buckets, by name. */
+    protected final Map<String,TreeMap<String,Stored>> _buckets =
+        new HashMap<String,TreeMap<String,Stored>>();
+
+    /** Multipart uploads in progress, by ID. */
+    protected final Map<String,TreeMap<Integer,byte[]>> _uploads =
+        new HashMap<String,TreeMap<Integer,byte[]>>();
+
+    /** The last upload ID issued. */
+    protected int _lastUploadId;
+
+    /** Requests currently executing. */
+    protected final AtomicInteger _concurrent = new AtomicInteger();
+
+    /** Request delay, in milliseconds. */
+    protected volatile long _delay;
+
+    /** Matches the part numbers of a complete multipart upload document. */
+    protected static final Pattern PART_NUMBER = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+}
@@ -0,0 +1,233 @@
+/*
+ * PooledConnectionManagerTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.protocol.Protocol;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class PooledConnectionManagerTest {
+    @Before
+    public void setUp () {
+        _manager = new PooledConnectionManager(0);
+        _manager.getParams().setDefaultMaxConnectionsPerHost(1);
+        _manager.getParams().setMaxTotalConnections(1);
+        _host = new HostConfiguration();
+        _host.setHost("localhost", 80);
+    }
+
+    @After
+    public void tearDown ()
+        throws Exception
+    {
+        _manager.shutdown();
+        if (_server != null) {
+            _server.close();
+        }
+    }
+
+    @Test
+    public void testStats ()
+        throws Exception
+    {
+        HttpConnection connection = _manager.getConnectionWithTimeout(_host, 1000);
+        S3ConnectionPoolStats stats = _manager.getStats();
+        assertEquals(1, stats.getLeased());
+        assertEquals(0, stats.getIdle());
+        assertEquals(0, stats.getPending());
+        assertEquals(1, stats.getLeaseCount());
+
+        connection.releaseConnection();
+        stats = _manager.getStats();
+        assertEquals(0, stats.getLeased());
+        assertEquals(1, stats.getIdle());
+    }
+
+    @Test
+    public void testLeaseTimeout ()
+        throws Exception
+    {
+        HttpConnection connection = _manager.getConnectionWithTimeout(_host, 1000);
+        try {
+            /* The pool is exhausted. */
+            _manager.getConnectionWithTimeout(_host, 50);
+            fail("Lease did not time out");
+        } catch (ConnectionPoolTimeoutException e) {
+            // Expected
+        } finally {
+            connection.releaseConnection();
+        }
+
+        /* The failed lease is neither pending nor counted. */
+        S3ConnectionPoolStats stats = _manager.getStats();
+        assertEquals(0, stats.getPending());
+        assertEquals(1, stats.getLeaseCount());
+    }
+
+    @Test
+    public void testLostLease ()
+        throws Exception
+    {
+        _manager.getConnectionWithTimeout(_host, 1000);
+        assertEquals(1, _manager.getStats().getLeased());
+
+        /* A lease dropped without being released is reclaimed by httpclient, and no longer
+         * counted. */
+        for (int i = 0; i < 100 && _manager.getStats().getLeased() > 0; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertEquals(0, _manager.getStats().getLeased());
+    }
+
+    @Test
+    public void testConnectionTTL ()
+        throws Exception
+    {
+        _manager.shutdown();
+        _manager = new PooledConnectionManager(100);
+        _manager.getParams().setDefaultMaxConnectionsPerHost(1);
+        _manager.getParams().setMaxTotalConnections(1);
+        HostConfiguration host = startServer();
+
+        /* A connection's age is measured from its first return to the pool. */
+        HttpConnection connection = _manager.getConnectionWithTimeout(host, 1000);
+        connection.open();
+        connection.releaseConnection();
+
+        connection = _manager.getConnectionWithTimeout(host, 1000);
+        assertTrue(connection.isOpen());
+        connection.releaseConnection();
+
+        /* Once it has outlived its time to live, it is closed as it is returned. */
+        Thread.sleep(150);
+        connection = _manager.getConnectionWithTimeout(host, 1000);
+        assertTrue(connection.isOpen());
+        connection.releaseConnection();
+
+        connection = _manager.getConnectionWithTimeout(host, 1000);
+        assertFalse(connection.isOpen());
+        connection.releaseConnection();
+    }
+
+    @Test
+    public void testIdleReaper ()
+        throws Exception
+    {
+        HostConfiguration host = startServer();
+        final int[] closed = new int[1];
+        Thread server = new Thread() {
+            public void run () {
+                try {
+                    Socket socket = _server.accept();
+                    socket.setSoTimeout(10 * 1000);
+                    InputStream input = socket.getInputStream();
+                    while (!readLine(input).isEmpty()) {
+                        // Skip the request headers
+                    }
+                    OutputStream output = socket.getOutputStream();
+                    output.write("HTTP/1.1 204 No Content\r\n\r\n".getBytes("US-ASCII"));
+                    output.flush();
+
+                    /* Wait for the client to close the connection. */
+                    closed[0] = input.read();
+                    socket.close();
+                } catch (Exception e) {
+                    closed[0] = 0;
+                }
+            }
+        };
+        server.start();
+
+        S3CommonsTransport transport = new S3CommonsTransport(host,
+            new S3ConnectionConfig().setIdleTimeout(100));
+        try {
+            /* Issue a request, and return its connection to the pool. */
+            transport.execute(new S3TransportRequest(S3TransportRequest.GET, "/bucket/key"))
+                .release();
+
+            /* The reaper closes the idle connection. */
+            server.join(10 * 1000);
+            assertEquals(-1, closed[0]);
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    /**
+     * Start a server socket, returning a host configuration that connects to it.
+     */
+    protected HostConfiguration startServer ()
+        throws Exception
+    {
+        _server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        return S3Utils.createHostConfig("127.0.0.1", _server.getLocalPort(),
+            Protocol.getProtocol("http"));
+    }
+
+    /**
+     * Read a CRLF terminated line.
+     */
+    protected static String readLine (InputStream input)
+        throws Exception
+    {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) != '\n') {
+            assertTrue(c != -1);
+            if (c != '\r') {
+                line.append((char)c);
+            }
+        }
+        return line.toString();
+    }
+
+    /** Connection manager. */
+    protected PooledConnectionManager _manager;
+
+    /** Test host. */
+    protected HostConfiguration _host;
+
+    /** Test server, or null. */
+    protected ServerSocket _server;
+}
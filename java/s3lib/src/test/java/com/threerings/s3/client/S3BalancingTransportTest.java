@@ -0,0 +1,172 @@
+/*
+ * S3BalancingTransportTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3BalancingTransportTest {
+    @Test
+    public void testRoundRobin ()
+        throws Exception
+    {
+        List<S3RetryPolicyTest.FailingTransport> transports = createTransports(3, 0);
+        S3BalancingTransport balancer = new S3BalancingTransport(transports,
+            S3BalancingTransport.ROUND_ROBIN);
+
+        for (int i = 0; i < 30; i++) {
+            balancer.execute(new S3TransportRequest("GET", "/bucket/key")).release();
+        }
+        for (S3RetryPolicyTest.FailingTransport transport : transports) {
+            assertEquals(10, transport.attempts.get());
+        }
+    }
+
+    @Test
+    public void testLeastOutstanding ()
+        throws Exception
+    {
+        List<S3RetryPolicyTest.FailingTransport> transports = createTransports(2, 0);
+        S3BalancingTransport balancer = new S3BalancingTransport(transports,
+            S3BalancingTransport.LEAST_OUTSTANDING);
+
+        /* Responses held open keep their endpoints busy. */
+        List<S3TransportResponse> held = new ArrayList<S3TransportResponse>();
+        for (int i = 0; i < 20; i++) {
+            held.add(balancer.execute(new S3TransportRequest("GET", "/bucket/key")));
+        }
+        for (S3BalancingTransport.Endpoint endpoint : balancer.getEndpoints()) {
+            int outstanding = endpoint.getOutstanding();
+            assertTrue("Unbalanced: " + outstanding, outstanding >= 9 && outstanding <= 11);
+        }
+
+        /* Outstanding counts drop once responses are released, however often. */
+        for (S3TransportResponse response : held) {
+            response.release();
+            response.abort();
+        }
+        for (S3BalancingTransport.Endpoint endpoint : balancer.getEndpoints()) {
+            assertEquals(0, endpoint.getOutstanding());
+            assertTrue(endpoint.getLatency() >= 0);
+        }
+    }
+
+    @Test
+    public void testUnmeasuredLatency ()
+    {
+        /* Unmeasured endpoints are costed at the mean latency, so a busy one is avoided. */
+        S3BalancingTransport.Endpoint measured = new S3BalancingTransport.Endpoint("a", null);
+        measured.record(false, TimeUnit.MILLISECONDS.toNanos(10), 1, 0);
+        S3BalancingTransport.Endpoint busy = new S3BalancingTransport.Endpoint("b", null) {
+            @Override public int getOutstanding () {
+                return 10;
+            }
+        };
+        List<S3BalancingTransport.Endpoint> endpoints = Arrays.asList(measured, busy);
+        for (int i = 0; i < 10; i++) {
+            assertSame(measured, S3BalancingTransport.LATENCY_EWMA.select(endpoints));
+        }
+    }
+
+    @Test
+    public void testEjection ()
+        throws Exception
+    {
+        S3RetryPolicyTest.FailingTransport failing = new S3RetryPolicyTest.FailingTransport(500, 4);
+        S3RetryPolicyTest.FailingTransport healthy = new S3RetryPolicyTest.FailingTransport(500, 0);
+        S3BalancingTransport balancer = new S3BalancingTransport(
+            Arrays.asList(failing, healthy), S3BalancingTransport.ROUND_ROBIN)
+            .setFailureThreshold(3).setEjectionTime(50);
+        S3BalancingTransport.Endpoint endpoint = balancer.getEndpoints().get(0);
+
+        /* Three consecutive failures eject the endpoint. */
+        for (int i = 0; i < 6; i++) {
+            balancer.execute(new S3TransportRequest("GET", "/bucket/key")).release();
+        }
+        assertEquals(3, failing.attempts.get());
+        assertFalse(endpoint.isHealthy());
+
+        /* Requests go only to the remaining endpoint. */
+        for (int i = 0; i < 4; i++) {
+            balancer.execute(new S3TransportRequest("GET", "/bucket/key")).release();
+        }
+        assertEquals(3, failing.attempts.get());
+
+        /* Once returned, a single failure ejects it again. */
+        Thread.sleep(60);
+        assertTrue(endpoint.isHealthy());
+        for (int i = 0; i < 2; i++) {
+            balancer.execute(new S3TransportRequest("GET", "/bucket/key")).release();
+        }
+        assertEquals(4, failing.attempts.get());
+        assertFalse(endpoint.isHealthy());
+
+        /* And a success after its return keeps it in rotation. */
+        Thread.sleep(60);
+        for (int i = 0; i < 4; i++) {
+            balancer.execute(new S3TransportRequest("GET", "/bucket/key")).release();
+        }
+        assertTrue(endpoint.isHealthy());
+        assertTrue(failing.attempts.get() >= 5);
+    }
+
+    @Test
+    public void testThrottlingIsHealthy ()
+        throws Exception
+    {
+        S3RetryPolicyTest.FailingTransport throttled =
+            new S3RetryPolicyTest.FailingTransport(503, 10);
+        S3BalancingTransport balancer = new S3BalancingTransport(Arrays.asList(throttled),
+            S3BalancingTransport.LATENCY_EWMA).setFailureThreshold(1);
+
+        for (int i = 0; i < 10; i++) {
+            balancer.execute(new S3TransportRequest("GET", "/bucket/key")).release();
+        }
+        assertTrue(balancer.getEndpoints().get(0).isHealthy());
+    }
+
+    protected static List<S3RetryPolicyTest.FailingTransport> createTransports (int count,
+        int failures)
+    {
+        List<S3RetryPolicyTest.FailingTransport> transports =
+            new ArrayList<S3RetryPolicyTest.FailingTransport>();
+        for (int i = 0; i < count; i++) {
+            transports.add(new S3RetryPolicyTest.FailingTransport(500, failures));
+        }
+        return transports;
+    }
+}
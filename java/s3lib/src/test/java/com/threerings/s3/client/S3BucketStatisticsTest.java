@@ -0,0 +1,110 @@
+/*
+ * S3BucketStatisticsTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3BucketStatisticsTest {
+    @Test
+    public void testCollect ()
+        throws Exception
+    {
+        MemoryTransport transport = new MemoryTransport().setDelay(5);
+        S3Connection connection = new S3Connection("id", "key", transport);
+        transport.put("bucket", "top", new byte[1]);
+        transport.put("bucket", "a/1", new byte[10]);
+        transport.put("bucket", "a/x/2", new byte[20]);
+        transport.put("bucket", "a/x/3", new byte[30]);
+        transport.put("bucket", "b/1", new byte[40]);
+        transport.put("bucket", "b/y/z/4", new byte[50]);
+
+        final Map<String,S3PrefixStatistics> reported =
+            new TreeMap<String,S3PrefixStatistics>();
+        S3BucketStatistics statistics = new S3BucketStatistics(connection, "bucket", 2);
+        S3PrefixStatistics total = statistics.collect((String)null,
+            new S3BucketStatistics.Listener() {
+                public void prefixCompleted (S3PrefixStatistics stats) {
+                    reported.put(stats.getPrefix(), stats);
+                }
+            });
+
+        assertEquals(6, total.getObjectCount());
+        assertEquals(151, total.getTotalBytes());
+        assertEquals(2, reported.size());
+        assertEquals(3, reported.get("a/").getObjectCount());
+        assertEquals(60, reported.get("a/").getTotalBytes());
+        assertEquals(2, reported.get("b/").getObjectCount());
+        assertEquals(90, reported.get("b/").getTotalBytes());
+
+        /* Listings are bounded by the parallelism, though the pool may add threads. */
+        assertTrue(transport.maxConcurrent.get() <= 2);
+    }
+
+    @Test
+    public void testFailure ()
+        throws Exception
+    {
+        MemoryTransport transport = new MemoryTransport() {
+            @Override protected S3TransportResponse intercept (S3TransportRequest request) {
+                String query = request.getQueryString();
+                if (query != null && query.contains("prefix=a%2F")) {
+                    return error(403, "AccessDenied");
+                }
+                return null;
+            }
+        }.setDelay(5);
+        S3Connection connection = new S3Connection("id", "key", transport);
+        transport.put("bucket", "a/1", new byte[1]);
+        for (int i = 0; i < 50; i++) {
+            String prefix = String.format("p%02d/", i);
+            transport.put("bucket", prefix + "x/1", new byte[1]);
+            transport.put("bucket", prefix + "y/1", new byte[1]);
+        }
+
+        S3BucketStatistics statistics = new S3BucketStatistics(connection, "bucket", 2);
+        try {
+            statistics.collect((String)null, null);
+            fail("Expected an S3Exception");
+        } catch (S3Exception e) {
+            // Expected
+        }
+
+        /* The walk stops at the failure, rather than listing all 152 prefixes in the
+         * background. */
+        Thread.sleep(500);
+        assertTrue(transport.getRequestCount(S3TransportRequest.GET) < 50);
+    }
+}
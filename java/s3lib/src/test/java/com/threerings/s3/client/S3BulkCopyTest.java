@@ -0,0 +1,207 @@
+/*
+ * S3BulkCopyTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3BulkCopyTest {
+    @Test
+    public void testPrefixMapper ()
+    {
+        S3BulkCopy.KeyMapper mapper = S3BulkCopy.prefixMapper("old/", "new/");
+        assertEquals("new/a/b", mapper.map("old/a/b"));
+        assertEquals("new/", mapper.map("old/"));
+        assertNull(mapper.map("other/a"));
+    }
+
+    @Test
+    public void testIdentityMapper ()
+    {
+        assertEquals("a/b", S3BulkCopy.IDENTITY.map("a/b"));
+    }
+
+    @Test
+    public void testConcurrency ()
+        throws Exception
+    {
+        MemoryTransport transport = new MemoryTransport().setDelay(5);
+        S3Connection connection = new S3Connection("id", "key", transport);
+        byte[] large = createData((int)(S3MultipartCopy.MIN_PART_SIZE * 2 + 1000));
+        for (int i = 0; i < 3; i++) {
+            transport.put("src", "large" + i, large);
+            transport.put("src", "small" + i, createData(100 + i));
+        }
+
+        /* Multipart copies share the bound on concurrent requests with other copies. */
+        S3BulkCopy copy = new S3BulkCopy(connection, "src", "dest", S3BulkCopy.IDENTITY, 2);
+        copy.setMultipartThreshold(S3MultipartCopy.MIN_PART_SIZE);
+        copy.setPartSize(S3MultipartCopy.MIN_PART_SIZE);
+        copy.copy((String)null);
+
+        assertEquals(6, copy.getCopiedCount());
+        assertTrue(transport.maxConcurrent.get() <= 2);
+        assertTrue(transport.get("dest", "large0").eTag.endsWith("-3"));
+        assertArrayEquals(large, transport.get("dest", "large2").data);
+    }
+
+    @Test
+    public void testRetry ()
+        throws Exception
+    {
+        final AtomicInteger partCopies = new AtomicInteger();
+        MemoryTransport transport = new MemoryTransport() {
+            @Override protected S3TransportResponse intercept (S3TransportRequest request) {
+                if (request.getHeader("x-amz-copy-source-range") != null) {
+                    partCopies.incrementAndGet();
+                    return error(500, "InternalError");
+                }
+                return null;
+            }
+        };
+        S3Connection connection = new S3Connection("id", "key", transport);
+        transport.put("src", "large", createData((int)S3MultipartCopy.MIN_PART_SIZE + 1));
+
+        /* Failed parts are retried by the multipart copier alone. */
+        S3BulkCopy copy = new S3BulkCopy(connection, "src", "dest", S3BulkCopy.IDENTITY, 1);
+        copy.setMultipartThreshold(S3MultipartCopy.MIN_PART_SIZE);
+        copy.setPartSize(S3MultipartCopy.MIN_PART_SIZE);
+        copy.setMaxRetry(2);
+        try {
+            copy.copy((String)null);
+            fail("Expected an S3ClientException");
+        } catch (S3ClientException e) {
+            // Expected
+        }
+        assertEquals(1, copy.getFailedCount());
+        assertEquals(3, partCopies.get());
+    }
+
+    @Test
+    public void testRetryBudget ()
+        throws Exception
+    {
+        final AtomicInteger copies = new AtomicInteger();
+        MemoryTransport transport = new MemoryTransport() {
+            @Override protected S3TransportResponse intercept (S3TransportRequest request) {
+                if (request.getHeader("x-amz-copy-source") != null) {
+                    copies.incrementAndGet();
+                    return error(500, "InternalError");
+                }
+                return null;
+            }
+        };
+        S3Connection connection = new S3Connection("id", "key", transport);
+        connection.setRetryPolicy(new S3RetryPolicy().setBaseDelay(1)
+            .setBudget(new S3RetryBudget(S3RetryPolicy.RETRY_COST * 2)));
+        transport.put("src", "key", createData(100));
+
+        /* Once the connection's retries exhaust its budget, the copy is not retried. */
+        S3BulkCopy copy = new S3BulkCopy(connection, "src", "dest", S3BulkCopy.IDENTITY, 1);
+        copy.setMaxRetry(5);
+        try {
+            copy.copy((String)null);
+            fail("Expected an S3ClientException");
+        } catch (S3ClientException e) {
+            // Expected
+        }
+        assertEquals(1, copy.getFailedCount());
+        assertEquals(3, copies.get());
+    }
+
+    @Test
+    public void testCopyError ()
+        throws Exception
+    {
+        MemoryTransport transport = new MemoryTransport() {
+            @Override protected S3TransportResponse intercept (S3TransportRequest request) {
+                if (request.getHeader("x-amz-copy-source") != null) {
+                    return new Response(200, utf8("<Error><Code>InternalError</Code>" +
+                        "<Message>InternalError</Message></Error>"));
+                }
+                return null;
+            }
+        };
+        S3Connection connection = new S3Connection("id", "key", transport);
+        transport.put("src", "key", createData(100));
+
+        /* A copy that fails after S3 returns a 200 status is still an error. */
+        try {
+            connection.copyObject("key", "key", "src", "dest");
+            fail("Expected an S3ServerException");
+        } catch (S3ServerException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSkipIdentical ()
+        throws Exception
+    {
+        MemoryTransport transport = new MemoryTransport();
+        S3Connection connection = new S3Connection("id", "key", transport);
+        byte[] data = createData(1000);
+        transport.put("src", "same", data);
+        transport.put("dest", "same", data);
+        transport.put("src", "changed", data);
+        byte[] changed = createData(1000);
+        changed[0]++;
+        transport.put("dest", "changed", changed);
+        transport.putMultipart("src", "multipart", data, 300);
+        transport.putMultipart("dest", "multipart", data, 300);
+        transport.putMultipart("src", "resized", data, 300);
+        transport.putMultipart("dest", "resized", data, 400);
+        transport.put("src", "missing", data);
+
+        S3BulkCopy copy = new S3BulkCopy(connection, "src", "dest", S3BulkCopy.IDENTITY, 2);
+        copy.copy((String)null);
+
+        /* Multipart ETags match only when both sides were uploaded alike. */
+        assertEquals(2, copy.getSkippedCount());
+        assertEquals(3, copy.getCopiedCount());
+        assertEquals(3, transport.getRequestCount(S3TransportRequest.PUT));
+    }
+
+    /**
+     * Create test data of the given length.
+     */
+    protected static byte[] createData (int length)
+    {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte)(i * 31 + length);
+        }
+        return data;
+    }
+}
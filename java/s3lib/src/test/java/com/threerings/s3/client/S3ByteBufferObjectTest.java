@@ -0,0 +1,106 @@
+/*
+ * S3ByteBufferObjectTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.ByteArrayOutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3ByteBufferObjectTest {
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        byte[] data = TEST_DATA.getBytes("utf8");
+
+        /* Surround the data with padding, to verify that only the remaining bytes are used. */
+        _buffer = ByteBuffer.allocateDirect(data.length + 8);
+        _buffer.put(new byte[4]).put(data).put(new byte[4]);
+        _buffer.position(4).limit(4 + data.length);
+        _bufferObj = new S3ByteBufferObject("aKey", _buffer);
+    }
+
+    @Test
+    public void testLength () {
+        assertEquals(TEST_DATA.length(), _bufferObj.length());
+    }
+
+    @Test
+    public void testGetInputStream ()
+        throws Exception
+    {
+        assertEquals(TEST_DATA, IOUtils.toString(_bufferObj.getInputStream(),
+            StandardCharsets.UTF_8.name()));
+
+        /* The stream may be re-read, and leaves the buffer untouched. */
+        assertEquals(TEST_DATA, IOUtils.toString(_bufferObj.getInputStream(),
+            StandardCharsets.UTF_8.name()));
+        assertEquals(4, _buffer.position());
+    }
+
+    @Test
+    public void testGetMD5 () {
+        assertEquals(TEST_DATA_MD5, new String(Hex.encodeHex(_bufferObj.getMD5())));
+        assertEquals(4, _buffer.position());
+    }
+
+    @Test
+    public void testRequestEntity ()
+        throws Exception
+    {
+        DigestingRequestEntity entity = _bufferObj.createRequestEntity(true);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        entity.writeRequest(output);
+
+        assertEquals(TEST_DATA, output.toString("utf8"));
+        assertEquals(TEST_DATA_MD5, new String(Hex.encodeHex(entity.getDigest())));
+    }
+
+    /** Backing buffer. */
+    protected ByteBuffer _buffer;
+
+    /** Test object. */
+    protected S3ByteBufferObject _bufferObj;
+
+    /** Test data. */
+    protected static final String TEST_DATA = "Hello, World!";
+
+    /** Pre-computed MD5 Checksum for test data. */
+    protected static final String TEST_DATA_MD5 = "65a8e27d8879283831b664bd8b7f0ad4";
+}
@@ -0,0 +1,363 @@
+/*
+ * S3CancellationTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.httpclient.protocol.Protocol;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3CancellationTest {
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _executor = Executors.newCachedThreadPool();
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.setExecutor(_executor);
+        _server.createContext("/", new HttpHandler() {
+            public void handle (HttpExchange exchange) throws IOException {
+                /* Never respond until the test is torn down. */
+                try {
+                    _stalled.await();
+                } catch (InterruptedException ie) {
+                    // Respond
+                }
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            }
+        });
+        _server.createContext("/stream/", new HttpHandler() {
+            public void handle (HttpExchange exchange) throws IOException {
+                /* Send the start of the body, then stall. */
+                exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+                exchange.getResponseHeaders().add("ETag", "\"" +
+                    MemoryTransport.hex(MemoryTransport.md5(new byte[0])) + "\"");
+                exchange.sendResponseHeaders(200, 1024 * 1024);
+                OutputStream output = exchange.getResponseBody();
+                output.write(new byte[1024]);
+                output.flush();
+                try {
+                    _stalled.await();
+                } catch (InterruptedException ie) {
+                    // Close
+                }
+                exchange.close();
+            }
+        });
+        _server.start();
+    }
+
+    @After
+    public void tearDown ()
+    {
+        _stalled.countDown();
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    @Test
+    public void testHandle ()
+        throws Exception
+    {
+        S3Cancellation cancellation = new S3Cancellation();
+        assertFalse(cancellation.isCancelled());
+        assertEquals(Long.MAX_VALUE, cancellation.getRemaining());
+        cancellation.cancel();
+        assertTrue(cancellation.isCancelled());
+
+        /* Requests registered after cancellation are aborted at once. */
+        S3TransportRequest request = new S3TransportRequest(S3TransportRequest.GET, "/b/k");
+        cancellation.register(request);
+        assertTrue(request.isAborted());
+
+        S3Cancellation deadline = new S3Cancellation(0);
+        assertTrue(deadline.isCancelled());
+        try {
+            deadline.check(request);
+            fail("Expected a DeadlineExceededException");
+        } catch (S3ClientException.DeadlineExceededException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testExpiry ()
+        throws Exception
+    {
+        /* The expiry of a handle with no requests in flight is not retained. */
+        int scheduled = S3Cancellation.getScheduledCount();
+        for (int i = 0; i < 1000; i++) {
+            S3Cancellation cancellation = new S3Cancellation(60 * 1000);
+            S3TransportRequest request = new S3TransportRequest(S3TransportRequest.GET, "/b/k");
+            cancellation.register(request);
+            cancellation.unregister(request);
+        }
+        assertEquals(scheduled, S3Cancellation.getScheduledCount());
+
+        /* A request registered later is still aborted at the deadline. */
+        S3Cancellation cancellation = new S3Cancellation(100);
+        S3TransportRequest request = new S3TransportRequest(S3TransportRequest.GET, "/b/k");
+        cancellation.register(request);
+        cancellation.unregister(request);
+        cancellation.register(request);
+        long end = System.currentTimeMillis() + 5000;
+        while (!request.isAborted() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertTrue(request.isAborted());
+    }
+
+    @Test
+    public void testCommonsDeadline ()
+        throws Exception
+    {
+        checkDeadline(new S3CommonsTransport(createHostConfig(), new S3ConnectionConfig()));
+    }
+
+    @Test
+    public void testJavaNetDeadline ()
+        throws Exception
+    {
+        checkDeadline(new S3JavaNetTransport(createHostConfig(), new S3ConnectionConfig()));
+    }
+
+    @Test
+    public void testCommonsCancel ()
+        throws Exception
+    {
+        checkCancel(new S3CommonsTransport(createHostConfig(), new S3ConnectionConfig()));
+    }
+
+    @Test
+    public void testJavaNetCancel ()
+        throws Exception
+    {
+        checkCancel(new S3JavaNetTransport(createHostConfig(), new S3ConnectionConfig()));
+    }
+
+    @Test
+    public void testCommonsBodyCancel ()
+        throws Exception
+    {
+        checkBodyCancel(new S3CommonsTransport(createHostConfig(), new S3ConnectionConfig()));
+    }
+
+    @Test
+    public void testJavaNetBodyCancel ()
+        throws Exception
+    {
+        checkBodyCancel(new S3JavaNetTransport(createHostConfig(), new S3ConnectionConfig()));
+    }
+
+    @Test
+    public void testRetrySleep ()
+        throws Exception
+    {
+        S3RetryPolicyTest.FailingTransport transport =
+            new S3RetryPolicyTest.FailingTransport(503, Integer.MAX_VALUE);
+        S3Connection connection = new S3Connection("id", "key", transport);
+        connection.setRetryPolicy(new S3RetryPolicy().setBudget(null).setMaxAttempts(100)
+            .setBaseDelay(60000).setMaxDelay(60000).setMaxRetryTime(0));
+
+        /* Cancelling wakes a request waiting to retry. */
+        long start = System.nanoTime();
+        try {
+            connection.deleteObject("bucket", "key",
+                new S3RequestOptions().setCancellation(cancelLater(200)));
+            fail("Expected a CancelledException");
+        } catch (S3ClientException.CancelledException e) {
+            assertFalse(e instanceof S3ClientException.DeadlineExceededException);
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testRateLimit ()
+        throws Exception
+    {
+        S3RetryPolicyTest.FailingTransport transport =
+            new S3RetryPolicyTest.FailingTransport(503, 0);
+        S3Connection connection = new S3Connection("id", "key", transport);
+        S3RateLimiter limiter = new S3RateLimiter().setWriteRate(1);
+        connection.setRateLimiter(limiter);
+
+        /* Exhaust the burst, so that the next request must wait a second. */
+        connection.deleteObject("bucket", "key");
+
+        /* Cancelling wakes a request waiting on the limiter, before it's sent. */
+        long start = System.nanoTime();
+        try {
+            connection.deleteObject("bucket", "key",
+                new S3RequestOptions().setCancellation(cancelLater(100)));
+            fail("Expected a CancelledException");
+        } catch (S3ClientException.CancelledException e) {
+            // Expected
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(800));
+        assertEquals(1, transport.attempts.get());
+    }
+
+    /**
+     * Verify that cancelling a request while its body is read fails the read with a
+     * CancelledException.
+     */
+    protected void checkBodyCancel (S3Transport transport)
+        throws Exception
+    {
+        S3Connection connection = new S3Connection("id", "key", transport);
+        S3Cancellation cancellation = new S3Cancellation();
+        try {
+            S3Object object = connection.getObject("stream", "key",
+                new S3RequestOptions().setCancellation(cancellation).setVerifyDigest(false));
+            InputStream input = object.getInputStream();
+            assertTrue(input.read(new byte[1024]) > 0);
+
+            cancellation.cancel();
+            try {
+                while (input.read(new byte[1024]) >= 0) {
+                    // Drain any buffered data
+                }
+                fail("Expected an IOException");
+            } catch (IOException ioe) {
+                assertTrue(ioe.getCause() instanceof S3ClientException.CancelledException);
+            }
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    /**
+     * Returns a handle that is cancelled from another thread after the given delay.
+     */
+    protected S3Cancellation cancelLater (final long delay)
+    {
+        final S3Cancellation cancellation = new S3Cancellation();
+        _executor.execute(new Runnable() {
+            public void run () {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    // Cancel now
+                }
+                cancellation.cancel();
+            }
+        });
+        return cancellation;
+    }
+
+    /**
+     * Verify that a stalled request fails promptly at its deadline, without being retried.
+     */
+    protected void checkDeadline (S3Transport transport)
+        throws Exception
+    {
+        S3Connection connection = new S3Connection("id", "key", transport);
+        connection.setRetryPolicy(new S3RetryPolicy().setBudget(null));
+        long start = System.nanoTime();
+        try {
+            connection.getObjectMetadata("bucket", "key",
+                new S3RequestOptions().setCancellation(new S3Cancellation(200)));
+            fail("Expected a DeadlineExceededException");
+        } catch (S3ClientException.DeadlineExceededException e) {
+            assertFalse(S3Utils.isRetryable(e));
+        } finally {
+            transport.shutdown();
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    /**
+     * Verify that cancelling a stalled request from another thread aborts it.
+     */
+    protected void checkCancel (S3Transport transport)
+        throws Exception
+    {
+        S3Connection connection = new S3Connection("id", "key", transport);
+        final S3Cancellation cancellation = new S3Cancellation();
+        _executor.execute(new Runnable() {
+            public void run () {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ie) {
+                    // Cancel now
+                }
+                cancellation.cancel();
+            }
+        });
+
+        long start = System.nanoTime();
+        try {
+            connection.deleteObject("bucket", "key",
+                new S3RequestOptions().setCancellation(cancellation));
+            fail("Expected a CancelledException");
+        } catch (S3ClientException.CancelledException e) {
+            assertFalse(e instanceof S3ClientException.DeadlineExceededException);
+        } finally {
+            transport.shutdown();
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    /**
+     * Returns a host configuration for the test server.
+     */
+    protected org.apache.commons.httpclient.HostConfiguration createHostConfig ()
+    {
+        return S3Utils.createHostConfig("127.0.0.1", _server.getAddress().getPort(),
+            Protocol.getProtocol("http"));
+    }
+
+    /** Test HTTP server. */
+    protected HttpServer _server;
+
+    /** Server request executor. */
+    protected ExecutorService _executor;
+
+    /** Released when the server should respond to stalled requests. */
+    protected final CountDownLatch _stalled = new CountDownLatch(1);
+}
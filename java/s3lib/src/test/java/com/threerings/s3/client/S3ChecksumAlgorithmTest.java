@@ -0,0 +1,92 @@
+/*
+ * S3ChecksumAlgorithmTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.ByteArrayInputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Hex;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3ChecksumAlgorithmTest {
+    @Test
+    public void testCRC32C ()
+        throws Exception
+    {
+        byte[] data = TEST_DATA.getBytes("ascii");
+        byte[] crc = S3ChecksumAlgorithm.CRC32C.createDigest().digest(data);
+        assertEquals(TEST_DATA_CRC32C, new String(Hex.encodeHex(crc)));
+
+        /* Direct buffers are checksummed in place. */
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        S3ByteBufferObject object = new S3ByteBufferObject("aKey", buffer);
+        assertTrue(Arrays.equals(crc, object.getChecksum(S3ChecksumAlgorithm.CRC32C)));
+
+        /* As are arrays. */
+        S3ByteArrayObject array = new S3ByteArrayObject("aKey", data);
+        assertTrue(Arrays.equals(crc, array.getChecksum(S3ChecksumAlgorithm.CRC32C)));
+    }
+
+    @Test
+    public void testNone ()
+        throws Exception
+    {
+        assertNull(S3ChecksumAlgorithm.NONE.createDigest());
+        assertNull(new S3ByteArrayObject("aKey", new byte[1]).getChecksum(
+            S3ChecksumAlgorithm.NONE));
+    }
+
+    @Test
+    public void testStreamChecksum ()
+        throws Exception
+    {
+        /* Streams can only be read once, and so can not provide computed checksums. */
+        S3StreamObject object = new S3StreamObject("aKey", 1, null,
+            new ByteArrayInputStream(new byte[1]));
+        assertNull(object.getChecksum(S3ChecksumAlgorithm.CRC32C));
+
+        object.setChecksum(S3ChecksumAlgorithm.CRC32C, new byte[4]);
+        assertTrue(Arrays.equals(new byte[4], object.getChecksum(S3ChecksumAlgorithm.CRC32C)));
+    }
+
+    /** Test data. */
+    protected static final String TEST_DATA = "123456789";
+
+    /** The standard CRC32C check value for the test data. */
+    protected static final String TEST_DATA_CRC32C = "e3069283";
+}
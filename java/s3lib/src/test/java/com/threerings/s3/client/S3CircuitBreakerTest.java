@@ -0,0 +1,154 @@
+/*
+ * S3CircuitBreakerTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3CircuitBreakerTest {
+    @Test
+    public void testStates ()
+        throws Exception
+    {
+        S3CircuitBreaker breaker = new S3CircuitBreaker().setFailureThreshold(3)
+            .setOpenTime(50);
+
+        /* Successes reset the failure count. */
+        failRequests(breaker, 2);
+        breaker.allowRequest().record(false);
+        failRequests(breaker, 2);
+        assertEquals(S3CircuitBreaker.State.CLOSED, breaker.getState());
+
+        /* The third consecutive failure opens the breaker. */
+        S3CircuitBreaker.Permit early = breaker.allowRequest();
+        failRequests(breaker, 1);
+        assertEquals(S3CircuitBreaker.State.OPEN, breaker.getState());
+        assertNull(breaker.allowRequest());
+
+        /* Requests admitted before the breaker opened can't close it. */
+        early.record(false);
+        assertEquals(S3CircuitBreaker.State.OPEN, breaker.getState());
+
+        /* A failed trial reopens it. */
+        Thread.sleep(60);
+        assertEquals(S3CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        S3CircuitBreaker.Permit trial = breaker.allowRequest();
+        assertNotNull(trial);
+        assertNull(breaker.allowRequest());
+        trial.record(true);
+        assertEquals(S3CircuitBreaker.State.OPEN, breaker.getState());
+
+        /* A trial presumed lost can't close it once another has been admitted. */
+        Thread.sleep(60);
+        S3CircuitBreaker.Permit lost = breaker.allowRequest();
+        Thread.sleep(60);
+        trial = breaker.allowRequest();
+        lost.record(false);
+        assertEquals(S3CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        /* A successful trial closes it. */
+        trial.record(false);
+        assertEquals(S3CircuitBreaker.State.CLOSED, breaker.getState());
+        assertNotNull(breaker.allowRequest());
+    }
+
+    @Test
+    public void testConnection ()
+        throws Exception
+    {
+        S3RetryPolicyTest.FailingTransport transport =
+            new S3RetryPolicyTest.FailingTransport(503, 2);
+        S3Connection connection = new S3Connection("id", "key", transport);
+        connection.setCircuitBreaker(new S3CircuitBreaker().setFailureThreshold(2));
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                connection.deleteObject("bucket", "key");
+                fail("Expected a SlowDown exception");
+            } catch (S3ServerException.SlowDownException e) {
+                // Expected
+            }
+        }
+
+        /* Further requests are refused without being sent. */
+        try {
+            connection.deleteObject("bucket", "key");
+            fail("Expected a CircuitOpenException");
+        } catch (S3ClientException.CircuitOpenException e) {
+            assertFalse(S3Utils.isRetryable(e));
+        }
+        assertEquals(2, transport.attempts.get());
+    }
+
+    @Test
+    public void testCancelledTrial ()
+        throws Exception
+    {
+        S3RetryPolicyTest.FailingTransport transport =
+            new S3RetryPolicyTest.FailingTransport(503, 1);
+        S3Connection connection = new S3Connection("id", "key", transport);
+        S3CircuitBreaker breaker = new S3CircuitBreaker().setFailureThreshold(1)
+            .setOpenTime(50);
+        connection.setCircuitBreaker(breaker);
+
+        try {
+            connection.deleteObject("bucket", "key");
+            fail("Expected a SlowDown exception");
+        } catch (S3ServerException.SlowDownException e) {
+            // Expected
+        }
+
+        /* A trial that fails without reaching S3 says nothing of its health. */
+        Thread.sleep(60);
+        S3Cancellation cancellation = new S3Cancellation();
+        cancellation.cancel();
+        try {
+            connection.getObject("bucket", "key",
+                new S3RequestOptions().setCancellation(cancellation));
+            fail("Expected a CancelledException");
+        } catch (S3ClientException.CancelledException e) {
+            // Expected
+        }
+        assertEquals(S3CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(1, transport.attempts.get());
+    }
+
+    /**
+     * Admit count requests, recording each as failed.
+     */
+    protected void failRequests (S3CircuitBreaker breaker, int count)
+    {
+        for (int i = 0; i < count; i++) {
+            breaker.allowRequest().record(true);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * S3ConcurrencyLimiterTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3ConcurrencyLimiterTest {
+    @Test
+    public void testPartitionKey ()
+    {
+        assertEquals("/bucket", S3ConcurrencyLimiter.partitionKey("/bucket", 0));
+        assertEquals("/bucket", S3ConcurrencyLimiter.partitionKey("/bucket/a%2Fb%2Fc", 0));
+        assertEquals("/bucket/a", S3ConcurrencyLimiter.partitionKey("/bucket/a%2Fb%2Fc", 1));
+        assertEquals("/bucket/a%2Fb", S3ConcurrencyLimiter.partitionKey("/bucket/a%2Fb%2Fc", 2));
+        assertEquals("/bucket/a%2Fb", S3ConcurrencyLimiter.partitionKey("/bucket/a%2Fb%2Fc", 5));
+    }
+
+    @Test
+    public void testAIMD ()
+        throws Exception
+    {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter().setInitialLimit(8)
+            .setMaxLimit(10);
+
+        /* The limit grows by about one for each round of successful requests. */
+        runRound(limiter, "/bucket/key", 8, false);
+        runRound(limiter, "/bucket/key", 8, false);
+        assertEquals(9, limiter.getLimit("/bucket/key"));
+        for (int i = 0; i < 5; i++) {
+            runRound(limiter, "/bucket/key", limiter.getLimit("/bucket/key"), false);
+        }
+        assertEquals(10, limiter.getLimit("/bucket/key"));
+
+        /* A round of throttled requests halves the limit only once. */
+        runRound(limiter, "/bucket/key", 10, true);
+        assertEquals(5, limiter.getLimit("/bucket/key"));
+        assertEquals(0, limiter.getInFlight("/bucket/key"));
+
+        /* Other buckets are unaffected. */
+        assertEquals(8, limiter.getLimit("/other"));
+    }
+
+    @Test
+    public void testMinimum ()
+        throws Exception
+    {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter().setInitialLimit(2)
+            .setMinLimit(1);
+        for (int i = 0; i < 5; i++) {
+            runRound(limiter, "/bucket", 1, true);
+        }
+        assertEquals(1, limiter.getLimit("/bucket"));
+    }
+
+    @Test
+    public void testBlocking ()
+        throws Exception
+    {
+        final S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter().setInitialLimit(1);
+        S3ConcurrencyLimiter.Permit permit = limiter.acquire("/bucket");
+        final CountDownLatch acquired = new CountDownLatch(1);
+
+        Thread waiter = new Thread() {
+            public void run () {
+                try {
+                    limiter.acquire("/bucket").release();
+                    acquired.countDown();
+                } catch (InterruptedException ie) {
+                    // Test fails
+                }
+            }
+        };
+        waiter.start();
+
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        permit.record(false);
+        permit.release();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiter.join();
+    }
+
+    @Test
+    public void testEviction ()
+        throws Exception
+    {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter().setInitialLimit(4)
+            .setPrefixDepth(1);
+        for (int i = 0; i < 100; i++) {
+            runRound(limiter, "/bucket/p" + i + "%2Fkey", 1, false);
+        }
+
+        /* A partition that has been cut, or has requests in flight, is retained. */
+        runRound(limiter, "/bucket/cut%2Fkey", 4, true);
+        assertEquals(2, limiter.getLimit("/bucket/cut%2Fkey"));
+        S3ConcurrencyLimiter.Permit busy = limiter.acquire("/bucket/busy%2Fkey");
+        assertEquals(102, limiter.getPartitionCount());
+
+        /* Idle partitions back at their initial limit are discarded by the next sweep. */
+        Thread.sleep(1100);
+        runRound(limiter, "/bucket/new%2Fkey", 1, false);
+        assertEquals(3, limiter.getPartitionCount());
+        assertEquals(2, limiter.getLimit("/bucket/cut%2Fkey"));
+        assertEquals(1, limiter.getInFlight("/bucket/busy%2Fkey"));
+        busy.release();
+        assertEquals(4, limiter.getLimit("/bucket/p0%2Fkey"));
+        assertEquals(0, limiter.getInFlight("/bucket/p0%2Fkey"));
+    }
+
+    /**
+     * Acquire count permits together, record the given outcome for each, and then release
+     * them.
+     */
+    protected void runRound (S3ConcurrencyLimiter limiter, String path, int count,
+        boolean overloaded)
+        throws InterruptedException
+    {
+        S3ConcurrencyLimiter.Permit[] permits = new S3ConcurrencyLimiter.Permit[count];
+        for (int i = 0; i < count; i++) {
+            permits[i] = limiter.acquire(path);
+        }
+        for (S3ConcurrencyLimiter.Permit permit : permits) {
+            permit.record(overloaded);
+        }
+        for (S3ConcurrencyLimiter.Permit permit : permits) {
+            permit.release();
+        }
+    }
+}
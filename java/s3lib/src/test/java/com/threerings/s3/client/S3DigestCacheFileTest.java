@@ -0,0 +1,143 @@
+/*
+ * S3DigestCacheFileTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Hex;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3DigestCacheFileTest {
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _cacheFile = File.createTempFile("S3DigestCacheFileTest", null);
+        _cacheFile.delete();
+    }
+
+    @After
+    public void tearDown ()
+        throws Exception
+    {
+        _cacheFile.delete();
+    }
+
+    @Test
+    public void testPersist ()
+        throws Exception
+    {
+        S3DigestCacheFile cache = new S3DigestCacheFile(_cacheFile);
+        cache.put(ID_A, DIGEST_A);
+        cache.put(ID_B, DIGEST_A);
+        cache.put(ID_B, DIGEST_B);
+        cache.close();
+
+        cache = new S3DigestCacheFile(_cacheFile);
+        assertEquals(2, cache.size());
+        assertTrue(Arrays.equals(DIGEST_A, cache.get(ID_A)));
+        assertTrue(Arrays.equals(DIGEST_B, cache.get(ID_B)));
+
+        /* A changed identity misses. */
+        assertNull(cache.get(new S3FileIdentity("/a", 10, 101, "inode=1")));
+        assertNull(cache.get(new S3FileIdentity("/a", 10, 100, "inode=2")));
+        cache.close();
+    }
+
+    @Test
+    public void testTruncated ()
+        throws Exception
+    {
+        S3DigestCacheFile cache = new S3DigestCacheFile(_cacheFile);
+        cache.put(ID_A, DIGEST_A);
+        cache.put(ID_B, DIGEST_B);
+        cache.close();
+
+        /* Chop off part of the final record. */
+        RandomAccessFile raf = new RandomAccessFile(_cacheFile, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        cache = new S3DigestCacheFile(_cacheFile);
+        assertEquals(1, cache.size());
+        assertTrue(Arrays.equals(DIGEST_A, cache.get(ID_A)));
+        cache.put(ID_B, DIGEST_B);
+        cache.close();
+
+        cache = new S3DigestCacheFile(_cacheFile);
+        assertTrue(Arrays.equals(DIGEST_B, cache.get(ID_B)));
+        cache.close();
+    }
+
+    @Test
+    public void testFileObject ()
+        throws Exception
+    {
+        File file = File.createTempFile("S3DigestCacheFileTest", null);
+        try {
+            FileOutputStream output = new FileOutputStream(file);
+            output.write(S3FileObjectTest.TEST_DATA.getBytes("utf8"));
+            output.close();
+
+            S3DigestCacheFile cache = new S3DigestCacheFile(_cacheFile);
+            S3FileObject object = new S3FileObject("aKey", file);
+            object.setDigestCache(cache);
+            assertEquals(S3FileObjectTest.TEST_DATA_MD5,
+                new String(Hex.encodeHex(object.getMD5())));
+            assertEquals(1, cache.size());
+
+            /* The cached digest is returned without reading the file. */
+            cache.put(S3FileIdentity.of(file), DIGEST_A);
+            assertTrue(Arrays.equals(DIGEST_A, object.getMD5()));
+            cache.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Test cache file. */
+    protected File _cacheFile;
+
+    protected static final S3FileIdentity ID_A = new S3FileIdentity("/a", 10, 100, "inode=1");
+    protected static final S3FileIdentity ID_B = new S3FileIdentity("/b", 20, 200, null);
+
+    protected static final byte[] DIGEST_A = new byte[] {
+        0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 };
+    protected static final byte[] DIGEST_B = new byte[] {
+        15, 14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1, 0 };
+}
@@ -0,0 +1,301 @@
+/*
+ * S3DirectorySyncTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3DirectorySyncTest {
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _root = File.createTempFile("S3DirectorySyncTest", null);
+        _root.delete();
+        _root.mkdir();
+        _transport = new MemoryTransport();
+        _connection = new S3Connection("id", "key", _transport);
+    }
+
+    @After
+    public void tearDown ()
+        throws Exception
+    {
+        FileUtils.deleteDirectory(_root);
+    }
+
+    @Test
+    public void testSync ()
+        throws Exception
+    {
+        /* Missing and resized files are uploaded. */
+        createFile("added", S3BulkCopyTest.createData(10));
+        createFile("dir/resized", S3BulkCopyTest.createData(20));
+        _transport.put("bucket", "prefix/dir/resized", S3BulkCopyTest.createData(21));
+
+        /* Files no newer than their objects are skipped without being read. */
+        createFile("current", S3BulkCopyTest.createData(30));
+        _transport.put("bucket", "prefix/current", new byte[30]).lastModified =
+            System.currentTimeMillis() + 60 * 1000;
+
+        /* Touched files are skipped if their contents match. */
+        createFile("touched", S3BulkCopyTest.createData(40));
+        touch(_transport.put("bucket", "prefix/touched", S3BulkCopyTest.createData(40)));
+
+        /* Objects with no local file are deleted, but directory placeholders and keys
+         * outside the prefix are not. */
+        _transport.put("bucket", "prefix/removed", new byte[1]);
+        _transport.put("bucket", "prefix/empty/", new byte[0]);
+        _transport.put("bucket", "other", new byte[1]);
+
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        S3DirectorySync sync = new S3DirectorySync(_connection, _root, "bucket", "prefix/", 2);
+        sync.setDelete(true);
+        sync.setListener(new S3DirectorySync.Listener() {
+            public void uploaded (S3ObjectEntry local, File file) {
+                events.add("uploaded " + local.getKey());
+            }
+            public void deleted (S3ObjectEntry remote) {
+                events.add("deleted " + remote.getKey());
+            }
+            public void failed (String key, S3Exception cause) {
+                events.add("failed " + key);
+            }
+        });
+        sync.run();
+
+        Collections.sort(events);
+        assertEquals(Arrays.asList("deleted prefix/removed", "uploaded prefix/added",
+            "uploaded prefix/dir/resized"), events);
+        assertEquals(2, sync.getUploadedCount());
+        assertEquals(30, sync.getUploadedBytes());
+        assertEquals(2, sync.getUnchangedCount());
+        assertEquals(1, sync.getDeletedCount());
+        assertEquals(0, sync.getFailedCount());
+
+        assertEquals(Arrays.asList("other", "prefix/added", "prefix/current",
+            "prefix/dir/resized", "prefix/empty/", "prefix/touched"), _transport.keys("bucket"));
+        assertArrayEquals(S3BulkCopyTest.createData(20),
+            _transport.get("bucket", "prefix/dir/resized").data);
+        assertArrayEquals(new byte[30], _transport.get("bucket", "prefix/current").data);
+        assertEquals(2, _transport.getRequestCount(S3TransportRequest.PUT));
+        assertEquals(1, _transport.getRequestCount(S3TransportRequest.DELETE));
+
+        /* A second run finds nothing to do. */
+        sync = new S3DirectorySync(_connection, _root, "bucket", "prefix/", 2);
+        sync.setDelete(true);
+        sync.run();
+        assertEquals(0, sync.getUploadedCount());
+        assertEquals(0, sync.getDeletedCount());
+        assertEquals(2, _transport.getRequestCount(S3TransportRequest.PUT));
+    }
+
+    @Test
+    public void testNoDelete ()
+        throws Exception
+    {
+        _transport.put("bucket", "removed", new byte[1]);
+        S3DirectorySync sync = new S3DirectorySync(_connection, _root, "bucket", null, 2);
+        sync.run();
+        assertEquals(0, sync.getDeletedCount());
+        assertEquals(Arrays.asList("removed"), _transport.keys("bucket"));
+    }
+
+    @Test
+    public void testFailure ()
+        throws Exception
+    {
+        _transport = new MemoryTransport() {
+            @Override protected S3TransportResponse intercept (S3TransportRequest request) {
+                if (request.getMethod().equals(S3TransportRequest.PUT) &&
+                    request.getPath().endsWith("/denied")) {
+                    return error(403, "AccessDenied");
+                }
+                return null;
+            }
+        };
+        _connection = new S3Connection("id", "key", _transport);
+        createFile("denied", S3BulkCopyTest.createData(10));
+        createFile("allowed", S3BulkCopyTest.createData(10));
+
+        /* Failures are reported once the remaining files have been synchronized. */
+        S3DirectorySync sync = new S3DirectorySync(_connection, _root, "bucket", null, 2);
+        try {
+            sync.run();
+            fail("Expected an S3ClientException");
+        } catch (S3ClientException e) {
+            // Expected
+        }
+        assertEquals(1, sync.getFailedCount());
+        assertEquals(1, sync.getUploadedCount());
+        assertEquals(Arrays.asList("allowed"), _transport.keys("bucket"));
+    }
+
+    @Test
+    public void testMultipartIdentical ()
+        throws Exception
+    {
+        /* A 9 MB object in 4 MB parts is found among the guessed part sizes. */
+        byte[] guessed = S3BulkCopyTest.createData(9 * MEGABYTE);
+        createFile("guessed", guessed);
+        touch(_transport.putMultipart("bucket", "guessed", guessed, 4 * MEGABYTE));
+
+        /* A 13 MB object in 6 MB parts is only found given its part size. */
+        byte[] known = S3BulkCopyTest.createData(13 * MEGABYTE);
+        createFile("known", known);
+        touch(_transport.putMultipart("bucket", "known", known, 6 * MEGABYTE));
+
+        /* An object of the same size but different contents is uploaded. */
+        byte[] changed = S3BulkCopyTest.createData(9 * MEGABYTE);
+        createFile("changed", changed);
+        changed[0]++;
+        touch(_transport.putMultipart("bucket", "changed", changed, 4 * MEGABYTE));
+
+        S3DirectorySync sync = new S3DirectorySync(_connection, _root, "bucket", null, 2);
+        sync.setPartSize(6 * MEGABYTE);
+        sync.run();
+
+        assertEquals(2, sync.getUnchangedCount());
+        assertEquals(1, sync.getUploadedCount());
+        assertEquals(1, _transport.getRequestCount(S3TransportRequest.PUT));
+        assertArrayEquals(S3BulkCopyTest.createData(9 * MEGABYTE),
+            _transport.get("bucket", "changed").data);
+    }
+
+    @Test
+    public void testUnknownPartSize ()
+        throws Exception
+    {
+        /* Without its part size, a 13 MB object in 6 MB parts can't be matched. */
+        byte[] data = S3BulkCopyTest.createData(13 * MEGABYTE);
+        createFile("known", data);
+        touch(_transport.putMultipart("bucket", "known", data, 6 * MEGABYTE));
+
+        S3DirectorySync sync = new S3DirectorySync(_connection, _root, "bucket", null, 2);
+        sync.run();
+        assertEquals(0, sync.getUnchangedCount());
+        assertEquals(1, sync.getUploadedCount());
+    }
+
+    @Test
+    public void testMultipartUpload ()
+        throws Exception
+    {
+        /* Files above the threshold are uploaded in parts. */
+        byte[] data = S3BulkCopyTest.createData(11 * MEGABYTE);
+        createFile("large", data);
+        createFile("small", S3BulkCopyTest.createData(10));
+
+        S3DirectorySync sync = new S3DirectorySync(_connection, _root, "bucket", null, 2);
+        sync.setMultipartThreshold(5 * MEGABYTE);
+        sync.setPartSize(5 * MEGABYTE);
+        sync.run();
+
+        assertEquals(2, sync.getUploadedCount());
+        assertTrue(_transport.get("bucket", "large").eTag.endsWith("-3"));
+        assertArrayEquals(data, _transport.get("bucket", "large").data);
+        assertEquals(4, _transport.getRequestCount(S3TransportRequest.PUT));
+    }
+
+    @Test
+    public void testMultipartFailure ()
+        throws Exception
+    {
+        _transport = new MemoryTransport() {
+            @Override protected S3TransportResponse intercept (S3TransportRequest request) {
+                if (request.getMethod().equals(S3TransportRequest.PUT) &&
+                    String.valueOf(request.getQueryString()).contains("partNumber=2")) {
+                    return error(403, "AccessDenied");
+                }
+                return null;
+            }
+        };
+        _connection = new S3Connection("id", "key", _transport);
+        createFile("large", S3BulkCopyTest.createData(11 * MEGABYTE));
+
+        /* A failed upload is aborted, rather than left to accumulate parts. */
+        S3DirectorySync sync = new S3DirectorySync(_connection, _root, "bucket", null, 2);
+        sync.setMultipartThreshold(5 * MEGABYTE);
+        sync.setPartSize(5 * MEGABYTE);
+        try {
+            sync.run();
+            fail("Expected an S3ClientException");
+        } catch (S3ClientException e) {
+            // Expected
+        }
+        assertEquals(1, sync.getFailedCount());
+        assertEquals(1, _transport.getRequestCount(S3TransportRequest.DELETE));
+        assertTrue(_transport.keys("bucket").isEmpty());
+    }
+
+    /**
+     * Create a file beneath the root directory.
+     */
+    protected File createFile (String path, byte[] data)
+        throws Exception
+    {
+        File file = S3FileTreeSource.getFile(_root, null, path);
+        file.getParentFile().mkdirs();
+        FileUtils.writeByteArrayToFile(file, data);
+        return file;
+    }
+
+    /**
+     * Date a stored object before its local file was modified, so that the file is checked
+     * for changes.
+     */
+    protected static void touch (MemoryTransport.Stored stored)
+    {
+        stored.lastModified = System.currentTimeMillis() - 60 * 1000;
+    }
+
+    /** Temporary root directory. */
+    protected File _root;
+
+    /** In-memory S3. */
+    protected MemoryTransport _transport;
+
+    /** Connection to the in-memory S3. */
+    protected S3Connection _connection;
+
+    /** One megabyte. */
+    protected static final int MEGABYTE = 1024 * 1024;
+}
@@ -0,0 +1,111 @@
+/*
+ * S3FileTreeSourceTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.apache.commons.io.FileUtils;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3FileTreeSourceTest {
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _root = File.createTempFile("S3FileTreeSourceTest", null);
+        _root.delete();
+        _root.mkdir();
+
+        /* '-' (0x2D) and '.' (0x2E) sort before '/' (0x2F), so "a-c" and "a.txt" must be
+         * returned before the contents of directory "a". */
+        createFile("a/b");
+        createFile("a/c/d");
+        createFile("a-c");
+        createFile("a.txt");
+        createFile("b");
+        new File(_root, "empty").mkdir();
+    }
+
+    @After
+    public void tearDown ()
+        throws Exception
+    {
+        FileUtils.deleteDirectory(_root);
+    }
+
+    @Test
+    public void testOrder ()
+        throws Exception
+    {
+        S3FileTreeSource source = new S3FileTreeSource(_root, "prefix/");
+        String[] expected = {
+            "prefix/a-c", "prefix/a.txt", "prefix/a/b", "prefix/a/c/d", "prefix/b"
+        };
+
+        for (String key : expected) {
+            S3ObjectEntry entry = source.next();
+            assertNotNull(entry);
+            assertEquals(key, entry.getKey());
+            assertEquals(key.length(), entry.getSize());
+            assertNull(entry.getETag());
+        }
+        assertNull(source.next());
+        assertNull(source.next());
+    }
+
+    @Test
+    public void testGetFile ()
+    {
+        assertEquals(new File(new File(_root, "a"), "b"),
+            S3FileTreeSource.getFile(_root, "prefix/", "prefix/a/b"));
+        assertEquals(new File(_root, "b"), S3FileTreeSource.getFile(_root, null, "b"));
+    }
+
+    /**
+     * Create a file beneath the root directory, containing its own key.
+     */
+    protected void createFile (String path)
+        throws Exception
+    {
+        File file = S3FileTreeSource.getFile(_root, null, path);
+        file.getParentFile().mkdirs();
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(("prefix/" + path).getBytes("utf8"));
+        output.close();
+    }
+
+    /** Temporary root directory. */
+    protected File _root;
+}
@@ -0,0 +1,214 @@
+/*
+ * S3HedgePolicyTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3HedgePolicyTest {
+    @Test
+    public void testPercentile ()
+    {
+        S3HedgePolicy policy = new S3HedgePolicy().setDelay(500).setPercentile(90);
+        for (int i = 1; i < 100; i++) {
+            policy.recordLatency(i);
+        }
+
+        /* The fixed delay is used until enough latencies are observed. */
+        assertEquals(500, policy.getHedgeDelay());
+        policy.recordLatency(100);
+        assertEquals(90, policy.getHedgeDelay());
+    }
+
+    @Test
+    public void testBudget ()
+    {
+        S3HedgePolicy policy = new S3HedgePolicy()
+            .setBudget(new S3RetryBudget(S3HedgePolicy.HEDGE_COST));
+        assertTrue(policy.tryHedge());
+        assertFalse(policy.tryHedge());
+
+        for (int i = 0; i < S3HedgePolicy.HEDGE_COST; i++) {
+            policy.recordRequest();
+        }
+        assertTrue(policy.tryHedge());
+    }
+
+    @Test
+    public void testHedge ()
+        throws Exception
+    {
+        SlowTransport transport = new SlowTransport();
+        S3Connection connection = new S3Connection("id", "key", transport);
+        connection.setHedgePolicy(new S3HedgePolicy().setDelay(50).setPercentile(0));
+
+        /* The hedge returns long before the slow first attempt. */
+        long start = System.nanoTime();
+        connection.getObjectMetadata("bucket", "key");
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(2, transport.attempts.get());
+
+        /* The slow exchange is aborted, without waiting for its response. */
+        assertTrue(transport.exchangeAborted.await(5, TimeUnit.SECONDS));
+
+        /* Should its response arrive anyway, it is aborted too. */
+        assertTrue(transport.aborted.await(5, TimeUnit.SECONDS));
+
+        /* Requests other than GET and HEAD are never hedged. */
+        transport.attempts.set(0);
+        connection.deleteObject("bucket", "key");
+        assertEquals(1, transport.attempts.get());
+    }
+
+    @Test
+    public void testBothComplete ()
+        throws Exception
+    {
+        /* Both attempts respond at once, so the loser may complete before the winner. */
+        int count = 200;
+        BarrierTransport transport = new BarrierTransport();
+        S3Connection connection = new S3Connection("id", "key", transport);
+        connection.setHedgePolicy(new S3HedgePolicy().setDelay(1).setPercentile(0)
+            .setBudget(new S3RetryBudget(S3HedgePolicy.HEDGE_COST * count)));
+
+        for (int i = 0; i < count; i++) {
+            assertNotNull(connection.getObjectMetadata("bucket", "key"));
+        }
+    }
+
+    /**
+     * A transport whose requests each wait for the next before responding.
+     */
+    protected static class BarrierTransport extends SlowTransport {
+        public final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        @Override
+        public S3TransportResponse execute (S3TransportRequest request)
+        {
+            try {
+                barrier.await(5, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                barrier.reset();
+            }
+            return super.execute(request);
+        }
+
+        @Override
+        protected boolean isSlow () {
+            return false;
+        }
+    }
+
+    /**
+     * A transport whose first request blocks, uninterruptibly, until released or aborted.
+     */
+    protected static class SlowTransport implements S3Transport {
+        public final AtomicInteger attempts = new AtomicInteger();
+        public final CountDownLatch slow = new CountDownLatch(1);
+        public final CountDownLatch aborted = new CountDownLatch(1);
+        public final CountDownLatch exchangeAborted = new CountDownLatch(1);
+
+        public S3TransportResponse execute (S3TransportRequest request)
+        {
+            final boolean first = (attempts.incrementAndGet() == 1);
+            if (first) {
+                /* Like closing the socket, aborting the exchange releases the request. */
+                request.setAbortHandler(new Runnable() {
+                    public void run () {
+                        exchangeAborted.countDown();
+                        slow.countDown();
+                    }
+                });
+            }
+            /* Like blocking socket I/O, ignore interrupts. */
+            while (first && isSlow()) {
+                try {
+                    slow.await();
+                    break;
+                } catch (InterruptedException ie) {
+                    // Keep waiting
+                }
+            }
+
+            return new S3TransportResponse() {
+                public int getStatusCode () {
+                    return 200;
+                }
+                public String getHeader (String name) {
+                    if (name.equalsIgnoreCase("Content-Type")) {
+                        return "text/plain";
+                    } else if (name.equalsIgnoreCase("ETag")) {
+                        return "\"d41d8cd98f00b204e9800998ecf8427e\"";
+                    }
+                    return null;
+                }
+                public Map<String,String> getHeaders () {
+                    return Collections.emptyMap();
+                }
+                public long getContentLength () {
+                    return 0;
+                }
+                public InputStream getBody () {
+                    return new ByteArrayInputStream(new byte[0]);
+                }
+                public void release () {
+                }
+                public void abort () {
+                    if (first) {
+                        aborted.countDown();
+                    }
+                }
+            };
+        }
+
+        public S3ConnectionPoolStats getPoolStats () {
+            return new S3ConnectionPoolStats(0, 0, 0, 0, 0, 0);
+        }
+
+        public void shutdown () {
+        }
+
+        protected boolean isSlow () {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * S3ListingDiffTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3ListingDiffTest {
+    @Test
+    public void testDiff ()
+        throws Exception
+    {
+        S3EntrySource from = new ListSource(
+            entry("a", "1", 1), entry("b", "2", 2), entry("c", "3", 3), entry("e", "5", 5));
+        S3EntrySource to = new ListSource(
+            entry("b", "2", 2), entry("c", "x", 3), entry("d", "4", 4), entry("e", "5", 6),
+            entry("f", "6", 6));
+
+        RecordingListener listener = new RecordingListener();
+        S3ListingDiff diff = new S3ListingDiff(from, to);
+        diff.run(listener);
+
+        assertEquals(Arrays.asList("-a", "=b", "~c", "+d", "~e", "+f"), listener.events);
+        assertEquals(2, diff.getAddedCount());
+        assertEquals(1, diff.getRemovedCount());
+        assertEquals(2, diff.getChangedCount());
+        assertEquals(1, diff.getUnchangedCount());
+    }
+
+    @Test
+    public void testEmptySources ()
+        throws Exception
+    {
+        RecordingListener listener = new RecordingListener();
+        new S3ListingDiff(new ListSource(), new ListSource(entry("a", "1", 1))).run(listener);
+        assertEquals(Arrays.asList("+a"), listener.events);
+
+        listener = new RecordingListener();
+        new S3ListingDiff(new ListSource(entry("a", "1", 1)), new ListSource()).run(listener);
+        assertEquals(Arrays.asList("-a"), listener.events);
+    }
+
+    @Test
+    public void testCodePointOrder ()
+        throws Exception
+    {
+        /* S3 sorts by UTF-8 byte order; U+1F600 sorts after U+FF5E, although its UTF-16
+         * surrogate pair sorts before it. */
+        String high = "\uFF5E";
+        String supplementary = new String(Character.toChars(0x1F600));
+
+        RecordingListener listener = new RecordingListener();
+        new S3ListingDiff(new ListSource(entry(high, "1", 1)),
+            new ListSource(entry(high, "1", 1), entry(supplementary, "2", 2))).run(listener);
+        assertEquals(Arrays.asList("=" + high, "+" + supplementary), listener.events);
+    }
+
+    @Test(expected=S3ClientException.class)
+    public void testUnsortedSource ()
+        throws Exception
+    {
+        new S3ListingDiff(new ListSource(entry("b", "1", 1), entry("a", "1", 1)),
+            new ListSource()).run(new RecordingListener());
+    }
+
+    /** Create a test entry. */
+    protected static S3ObjectEntry entry (String key, String eTag, long size) {
+        return new S3ObjectEntry(key, new Date(), eTag, size, "STANDARD", null);
+    }
+
+    /** An in-memory entry source. */
+    protected static class ListSource implements S3EntrySource {
+        public ListSource (S3ObjectEntry... entries) {
+            _entries = Arrays.asList(entries).iterator();
+        }
+
+        public S3ObjectEntry next () {
+            return _entries.hasNext() ? _entries.next() : null;
+        }
+
+        private final Iterator<S3ObjectEntry> _entries;
+    }
+
+    /** Records diff events as "+key", "-key", "~key" and "=key". */
+    protected static class RecordingListener implements S3ListingDiff.Listener {
+        public void added (S3ObjectEntry to) {
+            events.add("+" + to.getKey());
+        }
+
+        public void removed (S3ObjectEntry from) {
+            events.add("-" + from.getKey());
+        }
+
+        public void changed (S3ObjectEntry from, S3ObjectEntry to) {
+            events.add("~" + to.getKey());
+        }
+
+        public void unchanged (S3ObjectEntry from, S3ObjectEntry to) {
+            events.add("=" + to.getKey());
+        }
+
+        public final List<String> events = new ArrayList<String>();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * S3ListingSnapshotTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import java.util.Date;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3ListingSnapshotTest {
+    @Test
+    public void testRoundTrip ()
+        throws Exception
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        S3ObjectEntry first = new S3ObjectEntry("aKey", new Date(1175540488000L),
+            "65a8e27d8879283831b664bd8b7f0ad4", 13, "STANDARD", new S3Owner("anId", "aName"));
+        S3ObjectEntry second = new S3ObjectEntry("bKey", null, null, 0, null, null);
+
+        long count = S3ListingSnapshot.write(
+            new S3ListingDiffTest.ListSource(first, second), output);
+        assertEquals(2, count);
+
+        S3ListingSnapshot snapshot = new S3ListingSnapshot(
+            new ByteArrayInputStream(output.toByteArray()));
+
+        S3ObjectEntry entry = snapshot.next();
+        assertEquals("aKey", entry.getKey());
+        assertEquals(1175540488000L, entry.getLastModified().getTime());
+        assertEquals("65a8e27d8879283831b664bd8b7f0ad4", entry.getETag());
+        assertEquals(13, entry.getSize());
+        assertEquals("STANDARD", entry.getStorageClass());
+        assertEquals("anId", entry.getOwner().getId());
+        assertEquals("aName", entry.getOwner().getDisplayName());
+
+        entry = snapshot.next();
+        assertEquals("bKey", entry.getKey());
+        assertNull(entry.getLastModified());
+        assertNull(entry.getETag());
+        assertNull(entry.getOwner());
+
+        assertNull(snapshot.next());
+        assertNull(snapshot.next());
+    }
+
+    @Test(expected=S3ClientException.class)
+    public void testTruncated ()
+        throws Exception
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        S3ListingSnapshot.write(new S3ListingDiffTest.ListSource(
+            new S3ObjectEntry("aKey", new Date(), "etag", 1, "STANDARD", null)), output);
+
+        byte[] data = output.toByteArray();
+        byte[] truncated = new byte[data.length - 4];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+        S3ListingSnapshot snapshot = new S3ListingSnapshot(new ByteArrayInputStream(truncated));
+        snapshot.next();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * S3MappedFileObjectTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.security.MessageDigest;
+
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3MappedFileObjectTest {
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _data = new byte[100 * 1024 + 17];
+        for (int i = 0; i < _data.length; i++) {
+            _data[i] = (byte)(i * 31);
+        }
+
+        _file = File.createTempFile("S3MappedFileObjectTest", null);
+        FileOutputStream output = new FileOutputStream(_file);
+        output.write(_data);
+        output.close();
+
+        /* Use small windows, so that reads span several of them. */
+        _object = new S3MappedFileObject("aKey", S3Object.DEFAULT_MEDIA_TYPE,
+            new FileMapping(_file, WINDOW_SIZE), 0L, -1L);
+    }
+
+    @After
+    public void tearDown ()
+        throws Exception
+    {
+        _file.delete();
+    }
+
+    @Test
+    public void testInputStream ()
+        throws Exception
+    {
+        assertEquals(_data.length, _object.length());
+        assertTrue(Arrays.equals(_data, IOUtils.toByteArray(_object.getInputStream())));
+    }
+
+    @Test
+    public void testMissingFile ()
+        throws Exception
+    {
+        /* A missing file is an error, rather than an empty object. */
+        _file.delete();
+        try {
+            new S3MappedFileObject("aKey", _file);
+            fail("Expected an IOException");
+        } catch (IOException ioe) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testGetMD5 ()
+        throws Exception
+    {
+        assertTrue(Arrays.equals(MessageDigest.getInstance("md5").digest(_data),
+            _object.getMD5()));
+    }
+
+    @Test
+    public void testRegion ()
+        throws Exception
+    {
+        int offset = WINDOW_SIZE - 100;
+        int length = 3 * WINDOW_SIZE;
+        byte[] expected = new byte[length];
+        System.arraycopy(_data, offset, expected, 0, length);
+
+        S3MappedFileObject region = _object.getRegion(offset, length);
+        assertEquals("aKey", region.getKey());
+        assertEquals(length, region.length());
+        assertTrue(Arrays.equals(expected, IOUtils.toByteArray(region.getInputStream())));
+        assertTrue(Arrays.equals(MessageDigest.getInstance("md5").digest(expected),
+            region.getMD5()));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidRegion () {
+        _object.getRegion(1, _data.length);
+    }
+
+    @Test
+    public void testMultipartDigest ()
+        throws Exception
+    {
+        long partSize = 16 * 1024;
+        MessageDigest md = MessageDigest.getInstance("md5");
+        int count = 0;
+        for (int offset = 0; offset < _data.length; offset += partSize) {
+            int length = (int)Math.min(partSize, _data.length - offset);
+            MessageDigest part = MessageDigest.getInstance("md5");
+            part.update(_data, offset, length);
+            md.update(part.digest());
+            count++;
+        }
+        String expected = new String(Hex.encodeHex(md.digest())) + "-" + count;
+
+        assertEquals(expected, _object.getMultipartDigest(partSize, 1).getETag());
+        assertEquals(expected, _object.getMultipartDigest(partSize, 4).getETag());
+    }
+
+    @Test
+    public void testRequestEntity ()
+        throws Exception
+    {
+        DigestingRequestEntity entity = _object.createRequestEntity(true);
+        assertEquals(_data.length, entity.getContentLength());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        entity.writeRequest(output);
+        assertTrue(Arrays.equals(_data, output.toByteArray()));
+        assertTrue(Arrays.equals(MessageDigest.getInstance("md5").digest(_data),
+            entity.getDigest()));
+    }
+
+    /** Test data. */
+    protected byte[] _data;
+
+    /** Test file. */
+    protected File _file;
+
+    /** Test object. */
+    protected S3MappedFileObject _object;
+
+    /** Mapping window size used by the tests. */
+    protected static final int WINDOW_SIZE = 8 * 1024;
+}
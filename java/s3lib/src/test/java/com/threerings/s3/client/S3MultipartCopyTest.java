@@ -0,0 +1,92 @@
+/*
+ * S3MultipartCopyTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3MultipartCopyTest {
+    @Test
+    public void testChoosePartSize ()
+    {
+        long mb = 1024 * 1024;
+
+        /* Small objects use the preferred size. */
+        assertEquals(128 * mb, S3MultipartCopy.choosePartSize(10 * mb, 128 * mb));
+        assertEquals(S3MultipartCopy.MIN_PART_SIZE,
+            S3MultipartCopy.choosePartSize(10 * mb, 1));
+
+        /* Very large objects must fit within the part limit, rounded up to a megabyte. */
+        long size = 5L * 1024 * 1024 * mb;
+        long partSize = S3MultipartCopy.choosePartSize(size, 128 * mb);
+        assertEquals(525 * mb, partSize);
+        assertTrue((size + partSize - 1) / partSize <= S3MultipartCopy.MAX_PARTS);
+    }
+
+    @Test
+    public void testSourceGuard ()
+        throws Exception
+    {
+        final AtomicInteger guarded = new AtomicInteger();
+        MemoryTransport transport = new MemoryTransport() {
+            @Override protected S3TransportResponse intercept (S3TransportRequest request) {
+                if (request.getHeader("x-amz-copy-source-if-match") != null) {
+                    guarded.incrementAndGet();
+                }
+                return null;
+            }
+        };
+        S3Connection connection = new S3Connection("id", "key", transport);
+        byte[] data = S3BulkCopyTest.createData((int)S3MultipartCopy.MIN_PART_SIZE + 1);
+        transport.putMultipart("src", "large", data, (int)S3MultipartCopy.MIN_PART_SIZE);
+
+        /* Parts are copied on condition of the source's ETag, even though it is no MD5. */
+        S3MultipartCopy copy = new S3MultipartCopy(connection, 1);
+        copy.setPartSize(S3MultipartCopy.MIN_PART_SIZE);
+        copy.copy("src", "large", "dest", "large");
+        assertEquals(2, guarded.get());
+        assertArrayEquals(data, transport.get("dest", "large").data);
+    }
+
+    @Test
+    public void testCanonicalSubresources ()
+    {
+        assertEquals("", S3Utils.canonicalSubresources(null));
+        assertEquals("", S3Utils.canonicalSubresources("prefix=a&max-keys=10"));
+        assertEquals("?uploads", S3Utils.canonicalSubresources("uploads"));
+        assertEquals("?partNumber=2&uploadId=a b",
+            S3Utils.canonicalSubresources("uploadId=a+b&partNumber=2"));
+        assertEquals("?acl", S3Utils.canonicalSubresources("acl"));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * S3MultipartDigestTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import java.security.MessageDigest;
+
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Hex;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3MultipartDigestTest {
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _data = new byte[PART_SIZE * 3 + 1234];
+        for (int i = 0; i < _data.length; i++) {
+            _data[i] = (byte)(i * 31);
+        }
+
+        _file = File.createTempFile("S3MultipartDigestTest", null);
+        FileOutputStream output = new FileOutputStream(_file);
+        output.write(_data);
+        output.close();
+    }
+
+    @After
+    public void tearDown ()
+        throws Exception
+    {
+        _file.delete();
+    }
+
+    @Test
+    public void testCompute ()
+        throws Exception
+    {
+        S3MultipartDigest serial = S3MultipartDigest.compute(_file, PART_SIZE, 1);
+        S3MultipartDigest parallel = S3MultipartDigest.compute(_file, PART_SIZE, 4);
+
+        assertEquals(4, parallel.getPartCount());
+        assertEquals(PART_SIZE, parallel.getPartSize());
+        for (int part = 1; part <= 4; part++) {
+            int offset = (part - 1) * PART_SIZE;
+            MessageDigest md = MessageDigest.getInstance("md5");
+            md.update(_data, offset, Math.min(PART_SIZE, _data.length - offset));
+            assertTrue(Arrays.equals(md.digest(), parallel.getPartDigest(part)));
+        }
+
+        assertEquals(serial.getETag(), parallel.getETag());
+        assertTrue(parallel.getETag().endsWith("-4"));
+        assertTrue(parallel.matches("\"" + parallel.getETag().toUpperCase() + "\""));
+        assertFalse(parallel.matches(S3MultipartDigest.compute(_file, PART_SIZE * 2, 4)
+            .getETag()));
+    }
+
+    @Test
+    public void testFileObject ()
+        throws Exception
+    {
+        /* A region of a file is digested from the region's start. */
+        S3FileObject region = new S3FileObject("aKey", _file, S3Object.DEFAULT_MEDIA_TYPE,
+            PART_SIZE, PART_SIZE);
+        MessageDigest md = MessageDigest.getInstance("md5");
+        md.update(_data, PART_SIZE, PART_SIZE);
+        assertEquals(new String(Hex.encodeHex(md.digest())),
+            new String(Hex.encodeHex(region.getMultipartDigest(PART_SIZE, 2).getPartDigest(1))));
+    }
+
+    @Test
+    public void testGetPartCount () {
+        assertEquals(12, S3MultipartDigest.getPartCount("\"d41d8cd98f00b204e9800998ecf8427e-12\""));
+        assertEquals(-1, S3MultipartDigest.getPartCount("d41d8cd98f00b204e9800998ecf8427e"));
+    }
+
+    @Test
+    public void testCandidatePartSizes () {
+        long mb = 1024 * 1024;
+
+        /* 100MB in 13 parts: 8MB parts, as used by many uploaders. */
+        assertEquals(Arrays.asList(8 * mb), S3MultipartDigest.getCandidatePartSizes(100 * mb,
+            13));
+
+        /* 100MB in 7 parts: at least 15MB per part; 16MB is also a power of two. */
+        assertEquals(Arrays.asList(15 * mb, 16 * mb),
+            S3MultipartDigest.getCandidatePartSizes(100 * mb, 7));
+
+        /* A single part has the same ETag regardless of part size. */
+        assertEquals(1, S3MultipartDigest.getCandidatePartSizes(100 * mb, 1).size());
+        assertTrue(S3MultipartDigest.getCandidatePartSizes(0, 2).isEmpty());
+    }
+
+    /** Test data. */
+    protected byte[] _data;
+
+    /** Test file. */
+    protected File _file;
+
+    /** Part size used by the tests. */
+    protected static final int PART_SIZE = 64 * 1024;
+}
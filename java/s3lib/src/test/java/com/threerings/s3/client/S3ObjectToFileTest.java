@@ -0,0 +1,199 @@
+/*
+ * S3ObjectToFileTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.ByteArrayInputStream;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3ObjectToFileTest {
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _dir = Files.createTempDirectory("S3ObjectToFileTest");
+        _path = _dir.resolve("object");
+        _data = S3FileObjectTest.TEST_DATA.getBytes("utf8");
+        _md5 = Hex.decodeHex(S3FileObjectTest.TEST_DATA_MD5.toCharArray());
+    }
+
+    @After
+    public void tearDown ()
+        throws Exception
+    {
+        FileUtils.deleteDirectory(_dir.toFile());
+    }
+
+    @Test
+    public void testSave ()
+        throws Exception
+    {
+        S3Metadata result = S3Connection.saveObject(createObject(_data, _md5), _path,
+            new S3RequestOptions().setPreallocate(true).setBufferSize(4));
+        assertTrue(Arrays.equals(_data, Files.readAllBytes(_path)));
+        assertEquals(LAST_MODIFIED, Files.getLastModifiedTime(_path).toMillis());
+        assertEquals(_data.length, result.length());
+
+        /* Only the destination remains. */
+        assertEquals(1, _dir.toFile().list().length);
+    }
+
+    @Test
+    public void testPermissions ()
+        throws Exception
+    {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return;
+        }
+
+        /* A new file is given the default permissions. */
+        Path other = Files.createFile(_dir.resolve("other"));
+        S3Connection.saveObject(createObject(_data, _md5), _path, new S3RequestOptions());
+        assertEquals(Files.getPosixFilePermissions(other), Files.getPosixFilePermissions(_path));
+
+        /* A replaced file keeps its permissions. */
+        Files.setPosixFilePermissions(_path, PosixFilePermissions.fromString("rw-r-----"));
+        S3Connection.saveObject(createObject(_data, _md5), _path, new S3RequestOptions());
+        assertEquals(PosixFilePermissions.fromString("rw-r-----"),
+            Files.getPosixFilePermissions(_path));
+    }
+
+    @Test
+    public void testDigestMismatch ()
+        throws Exception
+    {
+        Files.write(_path, new byte[] { 1, 2, 3 });
+
+        byte[] corrupt = _data.clone();
+        corrupt[0]++;
+        try {
+            S3Connection.saveObject(createObject(corrupt, _md5), _path, new S3RequestOptions());
+            fail("Expected a DigestMismatchException");
+        } catch (S3ClientException.DigestMismatchException e) {
+            // Expected
+        }
+
+        /* The existing file is untouched, and the temporary file removed. */
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, Files.readAllBytes(_path)));
+        assertEquals(1, _dir.toFile().list().length);
+
+        /* Verification may be disabled. */
+        S3Connection.saveObject(createObject(corrupt, _md5), _path,
+            new S3RequestOptions().setVerifyDigest(false));
+        assertTrue(Arrays.equals(corrupt, Files.readAllBytes(_path)));
+    }
+
+    @Test
+    public void testTruncated ()
+        throws Exception
+    {
+        S3Object object = new S3StreamObject("key", S3Object.DEFAULT_MEDIA_TYPE,
+            _data.length + 1, null, new ByteArrayInputStream(_data), LAST_MODIFIED);
+        try {
+            S3Connection.saveObject(object, _path, new S3RequestOptions());
+            fail("Expected a DigestMismatchException");
+        } catch (S3ClientException.DigestMismatchException e) {
+            // Expected
+        }
+        assertFalse(Files.exists(_path));
+    }
+
+    @Test
+    public void testEncrypted ()
+        throws Exception
+    {
+        /* The ETags of objects encrypted with KMS or customer keys are not MD5 digests. */
+        MemoryTransport transport = new MemoryTransport();
+        S3Connection connection = new S3Connection("id", "key", transport);
+        MemoryTransport.Stored kms = transport.put("bucket", "kms",
+            new MemoryTransport.Stored(_data, "0123456789abcdef0123456789abcdef",
+                "application/octet-stream"));
+        kms.headers.put("x-amz-server-side-encryption", "aws:kms");
+        MemoryTransport.Stored customer = transport.put("bucket", "customer",
+            new MemoryTransport.Stored(_data, "0123456789abcdef0123456789abcdef",
+                "application/octet-stream"));
+        customer.headers.put("x-amz-server-side-encryption-customer-algorithm", "AES256");
+
+        for (String key : new String[] { "kms", "customer" }) {
+            connection.getObjectToFile("bucket", key, _path);
+            assertTrue(Arrays.equals(_data, Files.readAllBytes(_path)));
+            assertNull(connection.getObject("bucket", key).getMD5());
+            assertTrue(Arrays.equals(_data, IOUtils.toByteArray(
+                connection.getObject("bucket", key, new S3RequestOptions()).getInputStream())));
+        }
+
+        /* Objects encrypted with S3-managed keys are still verified. */
+        MemoryTransport.Stored managed = transport.put("bucket", "managed",
+            new MemoryTransport.Stored(_data, "0123456789abcdef0123456789abcdef",
+                "application/octet-stream"));
+        managed.headers.put("x-amz-server-side-encryption", "AES256");
+        try {
+            connection.getObjectToFile("bucket", "managed", _path);
+            fail("Expected a DigestMismatchException");
+        } catch (S3ClientException.DigestMismatchException e) {
+            // Expected
+        }
+    }
+
+    protected S3Object createObject (byte[] data, byte[] md5)
+    {
+        return new S3StreamObject("key", S3Object.DEFAULT_MEDIA_TYPE, data.length, md5,
+            new ByteArrayInputStream(data), LAST_MODIFIED);
+    }
+
+    /** Temporary directory. */
+    protected Path _dir;
+
+    /** Destination file. */
+    protected Path _path;
+
+    /** Object data. */
+    protected byte[] _data;
+
+    /** Object digest. */
+    protected byte[] _md5;
+
+    /** Object modification time. */
+    protected static final long LAST_MODIFIED = 1000000000000L;
+}
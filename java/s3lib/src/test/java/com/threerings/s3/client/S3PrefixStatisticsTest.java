@@ -0,0 +1,86 @@
+/*
+ * S3PrefixStatisticsTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.util.Date;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3PrefixStatisticsTest {
+    @Test
+    public void testAdd ()
+    {
+        S3PrefixStatistics stats = new S3PrefixStatistics("a/");
+        stats.add(new S3ObjectEntry("a/1", new Date(2000), "e1", 0, "STANDARD", null));
+        stats.add(new S3ObjectEntry("a/2", new Date(1000), "e2", 1, "STANDARD", null));
+        stats.add(new S3ObjectEntry("a/3", new Date(3000), "e3", 1024, "GLACIER", null));
+
+        assertEquals("a/", stats.getPrefix());
+        assertEquals(3, stats.getObjectCount());
+        assertEquals(1025, stats.getTotalBytes());
+        assertEquals(1000, stats.getOldestModified().getTime());
+        assertEquals(3000, stats.getNewestModified().getTime());
+        assertEquals(Long.valueOf(2), stats.getStorageClassCounts().get("STANDARD"));
+        assertEquals(Long.valueOf(1), stats.getStorageClassBytes().get("STANDARD"));
+        assertEquals(Long.valueOf(1024), stats.getStorageClassBytes().get("GLACIER"));
+
+        long[] histogram = stats.getSizeHistogram();
+        assertEquals(1, histogram[0]);
+        assertEquals(1, histogram[1]);
+        assertEquals(1, histogram[11]);
+    }
+
+    @Test
+    public void testMerge ()
+    {
+        S3PrefixStatistics first = new S3PrefixStatistics("a/");
+        first.add(new S3ObjectEntry("a/1", new Date(2000), "e1", 10, "STANDARD", null));
+
+        S3PrefixStatistics second = new S3PrefixStatistics("b/");
+        second.add(new S3ObjectEntry("b/1", new Date(1000), "e2", 20, null, null));
+
+        S3PrefixStatistics total = new S3PrefixStatistics(null);
+        total.merge(first);
+        total.merge(second);
+        total.merge(new S3PrefixStatistics("c/"));
+
+        assertEquals(2, total.getObjectCount());
+        assertEquals(30, total.getTotalBytes());
+        assertEquals(1000, total.getOldestModified().getTime());
+        assertEquals(2000, total.getNewestModified().getTime());
+        assertEquals(Long.valueOf(1), total.getStorageClassCounts().get("STANDARD"));
+        assertEquals(Long.valueOf(1), total.getStorageClassCounts().get("UNKNOWN"));
+        assertEquals(1, total.getSizeHistogram()[S3PrefixStatistics.histogramBucket(10)]);
+        assertEquals(1, total.getSizeHistogram()[S3PrefixStatistics.histogramBucket(20)]);
+    }
+}
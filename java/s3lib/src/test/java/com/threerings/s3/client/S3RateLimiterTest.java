@@ -0,0 +1,93 @@
+/*
+ * S3RateLimiterTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3RateLimiterTest {
+    @Test
+    public void testTryAcquire ()
+    {
+        S3RateLimiter limiter = new S3RateLimiter().setReadRate(10).setWriteRate(5)
+            .setPrefixDepth(1);
+
+        /* Reads and writes are metered separately. */
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire(S3TransportRequest.GET, "/bucket/a%2Fkey"));
+        }
+        assertFalse(limiter.tryAcquire(S3TransportRequest.HEAD, "/bucket/a%2Fother"));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire(S3TransportRequest.PUT, "/bucket/a%2Fkey"));
+        }
+        assertFalse(limiter.tryAcquire(S3TransportRequest.DELETE, "/bucket/a%2Fkey"));
+
+        /* Other prefixes have their own buckets. */
+        assertTrue(limiter.tryAcquire(S3TransportRequest.GET, "/bucket/b%2Fkey"));
+        assertTrue(limiter.tryAcquire(S3TransportRequest.GET, "/other/a%2Fkey"));
+    }
+
+    @Test
+    public void testEviction ()
+        throws Exception
+    {
+        S3RateLimiter limiter = new S3RateLimiter().setReadRate(1000).setWriteRate(1)
+            .setPrefixDepth(1);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire(S3TransportRequest.GET, "/bucket/p" + i + "%2Fkey"));
+        }
+        assertEquals(100, limiter.getThrottleCount());
+
+        /* Full throttles are discarded by the next sweep; draining ones are retained. */
+        Thread.sleep(1100);
+        assertTrue(limiter.tryAcquire(S3TransportRequest.PUT, "/bucket/busy%2Fkey"));
+        assertTrue(limiter.tryAcquire(S3TransportRequest.GET, "/bucket/new%2Fkey"));
+        assertEquals(2, limiter.getThrottleCount());
+        assertFalse(limiter.tryAcquire(S3TransportRequest.PUT, "/bucket/busy%2Fkey"));
+    }
+
+    @Test
+    public void testUnlimited ()
+        throws Exception
+    {
+        S3RateLimiter limiter = new S3RateLimiter().setReadRate(0).setWriteRate(1);
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(limiter.tryAcquire(S3TransportRequest.GET, "/bucket/key"));
+        }
+
+        /* Blocking acquisition waits for the bucket to refill. */
+        long start = System.nanoTime();
+        limiter.acquire(S3TransportRequest.PUT, "/bucket/key");
+        limiter.acquire(S3TransportRequest.PUT, "/bucket/key");
+        assertTrue(System.nanoTime() - start > 500 * 1000 * 1000L);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * S3ReplicatorTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3ReplicatorTest {
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _checkpoint = File.createTempFile("S3ReplicatorTest", ".checkpoint");
+        _checkpoint.delete();
+    }
+
+    @After
+    public void tearDown ()
+    {
+        _checkpoint.delete();
+    }
+
+    @Test
+    public void testStream ()
+        throws Exception
+    {
+        MemoryTransport source = new MemoryTransport();
+        final AtomicInteger corrupted = new AtomicInteger();
+        MemoryTransport dest = new MemoryTransport() {
+            @Override protected S3TransportResponse intercept (S3TransportRequest request)
+                throws IOException
+            {
+                /* Corrupt the first part received. */
+                if (request.getQueryString() != null &&
+                    request.getQueryString().contains("partNumber") &&
+                    corrupted.getAndIncrement() == 0) {
+                    readEntity(request);
+                    Response response = new Response(200, null);
+                    response.headers.put("ETag", "\"0123456789abcdef0123456789abcdef\"");
+                    return response;
+                }
+                return null;
+            }
+        };
+        byte[] large = S3BulkCopyTest.createData((int)(S3MultipartCopy.MIN_PART_SIZE * 2 + 1));
+        byte[] small = S3BulkCopyTest.createData(1000);
+        source.put("src", "large", large);
+        source.put("src", "small", small);
+
+        /* Part data is verified even when the destination prefers CRC32C checksums. */
+        S3Connection destConnection = new S3Connection("id", "key", dest);
+        destConnection.setChecksumAlgorithm(S3ChecksumAlgorithm.CRC32C);
+        S3Replicator replicator = new S3Replicator(new S3Connection("id", "key", source),
+            "src", destConnection, "dest", 2);
+        replicator.setMultipartThreshold(S3MultipartCopy.MIN_PART_SIZE);
+        replicator.setPartSize(S3MultipartCopy.MIN_PART_SIZE);
+        replicator.run();
+
+        assertEquals(2, replicator.getCopiedCount());
+        assertArrayEquals(large, dest.get("dest", "large").data);
+        assertTrue(dest.get("dest", "large").eTag.endsWith("-3"));
+        assertArrayEquals(small, dest.get("dest", "small").data);
+        assertTrue(corrupted.get() > 3);
+    }
+
+    @Test
+    public void testResume ()
+        throws Exception
+    {
+        MemoryTransport source = new MemoryTransport();
+        final AtomicInteger failures = new AtomicInteger(1);
+        MemoryTransport dest = new MemoryTransport() {
+            @Override protected S3TransportResponse intercept (S3TransportRequest request) {
+                if (request.getMethod().equals(S3TransportRequest.PUT) &&
+                    request.getPath().endsWith("/key5") && failures.get() > 0) {
+                    return error(403, "AccessDenied");
+                }
+                return null;
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            source.put("src", "key" + i, S3BulkCopyTest.createData(100 + i));
+        }
+
+        /* The failed run leaves a checkpoint before the failed key. */
+        S3Replicator replicator = createReplicator(source, dest);
+        try {
+            replicator.run();
+            fail("Expected an S3ClientException");
+        } catch (S3ClientException e) {
+            // Expected
+        }
+        assertEquals(9, replicator.getCopiedCount());
+        assertEquals(1, replicator.getFailedCount());
+        assertEquals("key4", FileUtils.readFileToString(_checkpoint, "UTF-8"));
+
+        /* The next run resumes from the checkpoint, and removes it on completion. */
+        failures.set(0);
+        replicator = createReplicator(source, dest);
+        replicator.run();
+        assertEquals(1, replicator.getCopiedCount());
+        assertEquals(4, replicator.getUnchangedCount());
+        assertEquals(10, dest.keys("dest").size());
+        assertFalse(_checkpoint.exists());
+    }
+
+    protected S3Replicator createReplicator (MemoryTransport source, MemoryTransport dest)
+    {
+        S3Replicator replicator = new S3Replicator(new S3Connection("id", "key", source),
+            "src", new S3Connection("id", "key", dest), "dest", 2);
+        replicator.setCheckpointFile(_checkpoint);
+        replicator.setMaxRetry(0);
+        return replicator;
+    }
+
+    /** Checkpoint file. */
+    protected File _checkpoint;
+}
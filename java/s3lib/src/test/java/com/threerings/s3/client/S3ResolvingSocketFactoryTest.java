@@ -0,0 +1,188 @@
+/*
+ * S3ResolvingSocketFactoryTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3ResolvingSocketFactoryTest {
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+            0);
+        _server.createContext("/", new HttpHandler() {
+            public void handle (HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        _server.start();
+
+        /* The test host resolves to unroutable documentation addresses, but every
+         * connection is made to the server on the loopback address. */
+        _first = InetAddress.getByAddress("s3.test", new byte[] { (byte)192, 0, 2, 1 });
+        _second = InetAddress.getByAddress("s3.test", new byte[] { (byte)192, 0, 2, 2 });
+        _factory = new S3ResolvingSocketFactory(
+            Protocol.getProtocol("http").getSocketFactory(), 0) {
+            @Override
+            protected List<InetAddress> resolve (String host)
+                throws UnknownHostException
+            {
+                return _addresses;
+            }
+
+            @Override
+            protected Socket connect (InetAddress address, String host, int port,
+                InetAddress localAddress, int localPort, HttpConnectionParams params)
+                throws IOException
+            {
+                return super.connect(InetAddress.getLoopbackAddress(), host, port,
+                    localAddress, localPort, params);
+            }
+        };
+    }
+
+    @After
+    public void tearDown ()
+    {
+        _factory.shutdown();
+        _server.stop(0);
+    }
+
+    @Test
+    public void testSpreading ()
+        throws Exception
+    {
+        _addresses = Arrays.asList(_first, _second);
+        int port = _server.getAddress().getPort();
+
+        List<Socket> sockets = new ArrayList<Socket>();
+        for (int ii = 0; ii < 4; ii++) {
+            sockets.add(_factory.createSocket("s3.test", port));
+        }
+        assertEquals(_addresses, _factory.getAddresses("s3.test"));
+        assertEquals(2, _factory.getConnectionCount(_first));
+        assertEquals(2, _factory.getConnectionCount(_second));
+
+        /* Sockets to a vanished address are retired, and new sockets avoid it. */
+        _addresses = Arrays.asList(_first);
+        _factory.refresh();
+        for (Socket socket : sockets) {
+            boolean vanished = ((ResolvedSocket)socket).getResolvedAddress().equals(_second);
+            assertEquals(vanished, ResolvedSocket.isRetired(socket.getOutputStream()));
+        }
+        sockets.add(_factory.createSocket("s3.test", port));
+        assertEquals(3, _factory.getConnectionCount(_first));
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        assertEquals(0, _factory.getConnectionCount(_first));
+        assertEquals(0, _factory.getConnectionCount(_second));
+        assertFalse(ResolvedSocket.hasRetired());
+    }
+
+    @Test
+    public void testRetirement ()
+        throws Exception
+    {
+        _addresses = Arrays.asList(_second, _first);
+        int port = _server.getAddress().getPort();
+        HostConfiguration hostConfig = new HostConfiguration();
+        hostConfig.setHost("s3.test", port, new Protocol("http", _factory, port));
+        S3Transport transport = new S3CommonsTransport(hostConfig, new S3ConnectionConfig());
+        S3Connection connection = new S3Connection("id", "key", transport);
+
+        try {
+            connection.deleteObject("bucket", "key");
+            assertEquals(1, _factory.getConnectionCount(_second));
+
+            /* The pooled connection is closed, rather than reused, once its address
+             * disappears. */
+            _addresses = Arrays.asList(_first);
+            _factory.refresh();
+            connection.deleteObject("bucket", "key");
+            assertEquals(0, _factory.getConnectionCount(_second));
+            assertEquals(1, _factory.getConnectionCount(_first));
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void testCreateProtocol ()
+    {
+        Protocol https = S3ResolvingSocketFactory.createProtocol(Protocol.getProtocol("https"));
+        assertTrue(https.isSecure());
+        assertTrue(https.getSocketFactory() instanceof S3ResolvingSocketFactory.Secure);
+        assertEquals(443, https.getDefaultPort());
+
+        Protocol http = S3ResolvingSocketFactory.createProtocol(Protocol.getProtocol("http"));
+        assertFalse(http.isSecure());
+        assertTrue(http.getSocketFactory() instanceof S3ResolvingSocketFactory);
+        ((S3ResolvingSocketFactory)https.getSocketFactory()).shutdown();
+        ((S3ResolvingSocketFactory)http.getSocketFactory()).shutdown();
+    }
+
+    /** Test HTTP server. */
+    protected HttpServer _server;
+
+    /** Factory under test. */
+    protected S3ResolvingSocketFactory _factory;
+
+    /** Test host addresses. */
+    protected InetAddress _first, _second;
+
+    /** Addresses currently returned for the test host. */
+    protected volatile List<InetAddress> _addresses;
+}
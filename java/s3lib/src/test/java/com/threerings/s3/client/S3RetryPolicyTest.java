@@ -0,0 +1,181 @@
+/*
+ * S3RetryPolicyTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3RetryPolicyTest {
+    @Test
+    public void testRetryable ()
+    {
+        S3RetryPolicy policy = new S3RetryPolicy();
+        assertTrue(policy.isRetryable(new S3ClientException.NetworkException("network", null)));
+        assertTrue(policy.isRetryable(new S3ServerException.SlowDownException("slow")));
+        assertTrue(policy.isRetryable(new S3ServerException.InternalErrorException("error")));
+        assertTrue(policy.isRetryable(new S3ServerException("gateway").setStatusCode(502)));
+        assertFalse(policy.isRetryable(new S3ServerException.NoSuchKeyException("missing")));
+        assertFalse(policy.isRetryable(new S3ServerException.AccessDeniedException("denied")));
+    }
+
+    @Test
+    public void testBackoff ()
+    {
+        S3RetryPolicy policy = new S3RetryPolicy().setBaseDelay(100).setMaxDelay(1000);
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getBackoff(2);
+            assertTrue(delay >= 0 && delay <= 400);
+            delay = policy.getBackoff(10);
+            assertTrue(delay >= 0 && delay <= 1000);
+        }
+    }
+
+    @Test
+    public void testLimits ()
+    {
+        S3Exception slowDown = new S3ServerException.SlowDownException("slow");
+        S3RetryPolicy policy = new S3RetryPolicy().setMaxAttempts(3).setBudget(null)
+            .setMaxRetryTime(1000);
+
+        assertTrue(policy.getRetryDelay(slowDown, 0, 0) >= 0);
+        assertTrue(policy.getRetryDelay(slowDown, 1, 0) >= 0);
+        assertEquals(-1, policy.getRetryDelay(slowDown, 2, 0));
+        assertEquals(-1, policy.getRetryDelay(slowDown, 0, 1001));
+        assertEquals(-1, policy.getRetryDelay(new S3ServerException.NoSuchKeyException("missing"),
+            0, 0));
+    }
+
+    @Test
+    public void testBudget ()
+    {
+        S3Exception slowDown = new S3ServerException.SlowDownException("slow");
+        S3RetryBudget budget = new S3RetryBudget(2 * S3RetryPolicy.RETRY_COST);
+        S3RetryPolicy policy = new S3RetryPolicy().setBudget(budget);
+
+        assertTrue(policy.getRetryDelay(slowDown, 0, 0) >= 0);
+        assertTrue(policy.getRetryDelay(slowDown, 0, 0) >= 0);
+        assertEquals(0, budget.getAvailable());
+        assertEquals(-1, policy.getRetryDelay(slowDown, 0, 0));
+
+        for (int i = 0; i < S3RetryPolicy.RETRY_COST; i++) {
+            policy.recordSuccess();
+        }
+        assertTrue(policy.getRetryDelay(slowDown, 0, 0) >= 0);
+
+        /* Refunds never exceed the capacity. */
+        for (int i = 0; i < 100; i++) {
+            policy.recordSuccess();
+        }
+        assertEquals(budget.getCapacity(), budget.getAvailable());
+    }
+
+    @Test
+    public void testConnectionRetry ()
+        throws Exception
+    {
+        FailingTransport transport = new FailingTransport(503, 2);
+        S3Connection connection = new S3Connection("id", "key", transport);
+        connection.setRetryPolicy(new S3RetryPolicy().setBaseDelay(1).setBudget(null));
+        connection.deleteObject("bucket", "key");
+        assertEquals(3, transport.attempts.get());
+
+        /* Non-retryable failures are reported immediately. */
+        transport = new FailingTransport(404, 2);
+        connection = new S3Connection("id", "key", transport);
+        connection.setRetryPolicy(new S3RetryPolicy().setBaseDelay(1).setBudget(null));
+        try {
+            connection.getObjectMetadata("bucket", "key");
+            fail("Expected a 404 exception");
+        } catch (S3ServerException.S3Server404Exception e) {
+            assertEquals(404, e.getStatusCode());
+        }
+        assertEquals(1, transport.attempts.get());
+    }
+
+    /**
+     * A transport that fails a fixed number of requests with the given status code before
+     * succeeding.
+     */
+    protected static class FailingTransport implements S3Transport {
+        public final AtomicInteger attempts = new AtomicInteger();
+
+        public FailingTransport (int statusCode, int failures) {
+            _statusCode = statusCode;
+            _failures = failures;
+        }
+
+        public S3TransportResponse execute (S3TransportRequest request) {
+            final int status = (attempts.incrementAndGet() <= _failures) ? _statusCode : 204;
+            return new S3TransportResponse() {
+                public int getStatusCode () {
+                    return status;
+                }
+                public String getHeader (String name) {
+                    return null;
+                }
+                public Map<String,String> getHeaders () {
+                    return Collections.emptyMap();
+                }
+                public long getContentLength () {
+                    return 0;
+                }
+                public InputStream getBody () {
+                    return new ByteArrayInputStream(ERROR_DOCUMENT.getBytes());
+                }
+                public void release () {
+                }
+            };
+        }
+
+        public S3ConnectionPoolStats getPoolStats () {
+            return new S3ConnectionPoolStats(0, 0, 0, 0, 0, 0);
+        }
+
+        public void shutdown () {
+        }
+
+        protected final int _statusCode;
+        protected final int _failures;
+    }
+
+    /** A SlowDown error document. */
+    protected static final String ERROR_DOCUMENT =
+        "<Error><Code>SlowDown</Code><Message>Reduce your request rate.</Message></Error>";
+}
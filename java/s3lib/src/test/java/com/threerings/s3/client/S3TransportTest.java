@@ -0,0 +1,234 @@
+/*
+ * S3TransportTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.protocol.Protocol;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3TransportTest {
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/", new HttpHandler() {
+            public void handle (HttpExchange exchange) throws IOException {
+                _method = exchange.getRequestMethod();
+                _query = exchange.getRequestURI().getRawQuery();
+                _contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                _amzHeader = exchange.getRequestHeaders().getFirst("x-amz-test");
+
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                InputStream input = exchange.getRequestBody();
+                byte[] buffer = new byte[8192];
+                int len;
+                while ((len = input.read(buffer)) != -1) {
+                    body.write(buffer, 0, len);
+                }
+                _body = body.toByteArray();
+
+                byte[] response = "response".getBytes("ascii");
+                exchange.getResponseHeaders().set("ETag", "\"etag\"");
+                exchange.getResponseHeaders().set("x-amz-meta-test", "value");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream output = exchange.getResponseBody();
+                output.write(response);
+                output.close();
+            }
+        });
+        _server.createContext("/stall", new HttpHandler() {
+            public void handle (HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, 100);
+                OutputStream output = exchange.getResponseBody();
+                output.write(new byte[10]);
+                output.flush();
+                try {
+                    _release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    // Give up
+                }
+                exchange.close();
+            }
+        });
+        _server.start();
+
+        _host = S3Utils.createHostConfig("127.0.0.1", _server.getAddress().getPort(),
+            Protocol.getProtocol("http"));
+    }
+
+    @After
+    public void tearDown () {
+        _release.countDown();
+        _server.stop(0);
+    }
+
+    @Test
+    public void testCommonsTransport ()
+        throws Exception
+    {
+        checkTransport(new S3CommonsTransport(_host, new S3ConnectionConfig()));
+    }
+
+    @Test
+    public void testJavaNetTransport ()
+        throws Exception
+    {
+        checkTransport(new S3JavaNetTransport(_host, new S3ConnectionConfig()));
+    }
+
+    @Test
+    public void testJavaNetReadTimeout ()
+        throws Exception
+    {
+        S3Transport transport = new S3JavaNetTransport(_host,
+            new S3ConnectionConfig().setSocketTimeout(200));
+        try {
+            S3TransportResponse response = transport.execute(
+                new S3TransportRequest(S3TransportRequest.GET, "/stall"));
+            InputStream input = response.getBody();
+            assertEquals(10, input.read(new byte[10]));
+
+            /* A stalled body read times out, rather than blocking indefinitely. */
+            long start = System.nanoTime();
+            try {
+                input.read(new byte[10]);
+                fail("Expected a SocketTimeoutException");
+            } catch (SocketTimeoutException ste) {
+                // Expected
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+            response.release();
+            assertEquals(0, transport.getPoolStats().getLeased());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void testQueryParameters ()
+    {
+        S3TransportRequest request = new S3TransportRequest(S3TransportRequest.POST, "/b/k")
+            .addQueryParameter("uploads", null)
+            .addQueryParameter("prefix", "a b&c");
+        assertEquals("uploads&prefix=a+b%26c", request.getQueryString());
+    }
+
+    /**
+     * Send a request with a multi-chunk body over the given transport, and verify both the
+     * request received and the response returned.
+     */
+    protected void checkTransport (S3Transport transport)
+        throws Exception
+    {
+        byte[] data = new byte[200 * 1024 + 17];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)i;
+        }
+
+        try {
+            S3TransportRequest request = new S3TransportRequest(S3TransportRequest.PUT,
+                "/bucket/key")
+                .addQueryParameter("partNumber", "1")
+                .addQueryParameter("uploadId", "an id")
+                .setHeader("x-amz-test", "header")
+                .setEntity(new ByteArrayRequestEntity(data, "application/test"))
+                .setRetryable(false);
+
+            S3TransportResponse response = transport.execute(request);
+            try {
+                assertEquals(200, response.getStatusCode());
+                assertEquals("\"etag\"", response.getHeader("etag"));
+                assertEquals("value", response.getHeader("X-Amz-Meta-Test"));
+                assertEquals(8, response.getContentLength());
+                assertEquals(1, transport.getPoolStats().getLeased());
+
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                InputStream input = response.getBody();
+                int b;
+                while ((b = input.read()) != -1) {
+                    body.write(b);
+                }
+                assertEquals("response", body.toString("ascii"));
+            } finally {
+                response.release();
+            }
+
+            assertEquals("PUT", _method);
+            assertEquals("partNumber=1&uploadId=an+id", _query);
+            assertEquals("application/test", _contentType);
+            assertEquals("header", _amzHeader);
+            assertTrue(Arrays.equals(data, _body));
+
+            S3ConnectionPoolStats stats = transport.getPoolStats();
+            assertEquals(0, stats.getLeased());
+            assertEquals(1, stats.getLeaseCount());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    /** Local HTTP server. */
+    protected HttpServer _server;
+
+    /** Releases stalled responses. */
+    protected final CountDownLatch _release = new CountDownLatch(1);
+
+    /** Local server host configuration. */
+    protected HostConfiguration _host;
+
+    /** Last request received. */
+    protected volatile String _method;
+    protected volatile String _query;
+    protected volatile String _contentType;
+    protected volatile String _amzHeader;
+    protected volatile byte[] _body;
+}
@@ -0,0 +1,78 @@
+/*
+ * ThrottleTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class ThrottleTest {
+    @Test
+    public void testReserve ()
+    {
+        Throttle throttle = new Throttle(1000);
+
+        /* The first second's worth of bytes is available immediately. */
+        assertEquals(0, throttle.reserve(1000));
+
+        /* Further bytes place the bucket in debt. */
+        long delay = throttle.reserve(500);
+        assertTrue("Unexpected delay: " + delay, delay > 400000000L && delay <= 500000000L);
+    }
+
+    @Test
+    public void testTryAcquire ()
+    {
+        Throttle throttle = new Throttle(1000);
+        assertTrue(throttle.tryAcquire(600));
+
+        /* A refused request reserves nothing. */
+        assertFalse(throttle.tryAcquire(600));
+        assertTrue(throttle.tryAcquire(300));
+    }
+
+    @Test
+    public void testWrap ()
+        throws Exception
+    {
+        Throttle throttle = new Throttle(4096);
+        InputStream input = throttle.wrap(new ByteArrayInputStream(new byte[4096]));
+        byte[] data = new byte[8192];
+        assertEquals(4096, input.read(data));
+        assertEquals(-1, input.read(data));
+
+        /* The 4k read emptied the bucket. */
+        assertTrue(throttle.reserve(1024) > 0);
+    }
+}
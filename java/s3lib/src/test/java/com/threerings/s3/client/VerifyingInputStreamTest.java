@@ -0,0 +1,170 @@
+/*
+ * VerifyingInputStreamTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.security.MessageDigest;
+
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class VerifyingInputStreamTest {
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _data = new byte[200 * 1024 + 3];
+        for (int i = 0; i < _data.length; i++) {
+            _data[i] = (byte)(i * 31);
+        }
+        _digest = MessageDigest.getInstance("md5").digest(_data);
+    }
+
+    @Test
+    public void testVerified ()
+        throws Exception
+    {
+        assertTrue(Arrays.equals(_data, IOUtils.toByteArray(open(_data, _digest, false))));
+        assertTrue(Arrays.equals(_data, IOUtils.toByteArray(open(_data, _digest, true))));
+    }
+
+    @Test
+    public void testLengthOnly ()
+        throws Exception
+    {
+        assertTrue(Arrays.equals(_data, IOUtils.toByteArray(open(_data, null, false))));
+    }
+
+    @Test
+    public void testSkip ()
+        throws Exception
+    {
+        InputStream input = open(_data, _digest, true);
+        assertEquals(1000, input.skip(1000));
+        IOUtils.toByteArray(input);
+    }
+
+    @Test
+    public void testCorrupt ()
+        throws Exception
+    {
+        byte[] corrupt = _data.clone();
+        corrupt[corrupt.length / 2] ^= 1;
+
+        assertMismatch(open(corrupt, _digest, false));
+        assertMismatch(open(corrupt, _digest, true));
+    }
+
+    @Test
+    public void testCRC32C ()
+        throws Exception
+    {
+        byte[] crc = S3ChecksumAlgorithm.CRC32C.createDigest().digest(_data);
+        byte[] corrupt = _data.clone();
+        corrupt[0] ^= 1;
+
+        IOUtils.toByteArray(new VerifyingInputStream(new ByteArrayInputStream(_data), "aKey",
+            _data.length, S3ChecksumAlgorithm.CRC32C, crc, false));
+        assertMismatch(new VerifyingInputStream(new ByteArrayInputStream(corrupt), "aKey",
+            _data.length, S3ChecksumAlgorithm.CRC32C, crc, true));
+    }
+
+    @Test
+    public void testTruncated ()
+        throws Exception
+    {
+        byte[] truncated = Arrays.copyOf(_data, _data.length - 1);
+        assertMismatch(new VerifyingInputStream(new ByteArrayInputStream(truncated), "aKey",
+            _data.length, S3ChecksumAlgorithm.MD5, null, false));
+    }
+
+    @Test
+    public void testSingleByte ()
+        throws Exception
+    {
+        for (boolean background : new boolean[] { false, true }) {
+            InputStream input = open(_data, _digest, background);
+            for (int i = 0; i < 100; i++) {
+                assertEquals(_data[i] & 0xFF, input.read());
+            }
+            IOUtils.toByteArray(input);
+        }
+    }
+
+    @Test(timeout=30000)
+    public void testDropped ()
+        throws Exception
+    {
+        /* Streams dropped without being closed give up their helper threads. */
+        int count = Runtime.getRuntime().availableProcessors() * 2;
+        for (int i = 0; i < count; i++) {
+            InputStream input = open(_data, _digest, true);
+            assertEquals(1024, input.read(new byte[1024]));
+        }
+        assertTrue(Arrays.equals(_data, IOUtils.toByteArray(open(_data, _digest, true))));
+    }
+
+    /**
+     * Open a verifying stream over the given data, expecting the test data's length.
+     */
+    protected InputStream open (byte[] data, byte[] digest, boolean background)
+    {
+        return new VerifyingInputStream(new ByteArrayInputStream(data), "aKey",
+            _data.length, S3ChecksumAlgorithm.MD5, digest, background);
+    }
+
+    /**
+     * Read the stream to the end, expecting verification to fail.
+     */
+    protected void assertMismatch (InputStream input)
+    {
+        try {
+            IOUtils.toByteArray(input);
+            fail("Verification did not fail");
+        } catch (IOException ioe) {
+            assertTrue(ioe.getCause() instanceof S3ClientException.DigestMismatchException);
+        }
+    }
+
+    /** Test data. */
+    protected byte[] _data;
+
+    /** MD5 digest of the test data. */
+    protected byte[] _digest;
+}
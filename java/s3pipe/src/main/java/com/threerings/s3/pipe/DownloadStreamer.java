@@ -31,9 +31,11 @@
 
 package com.threerings.s3.pipe;
 
+import com.threerings.s3.client.S3ChecksumAlgorithm;
 import com.threerings.s3.client.S3Connection;
 import com.threerings.s3.client.S3Exception;
 import com.threerings.s3.client.S3Object;
+import com.threerings.s3.client.S3RequestOptions;
 import com.threerings.s3.client.S3ServerException;
 
 import java.io.OutputStream;
@@ -43,7 +45,6 @@ import java.io.InputStream;
 import java.util.Arrays;
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /*
  * Downloads a series of S3Objects and re-assembles them as a stream.
@@ -67,7 +68,7 @@ class DownloadStreamer {
         throws S3Exception, RemoteStreamException
     {
         RemoteStream stream;
-        RemoteStreamInfo info;
+        RemoteStreamInfo info = null;
 
         stream = new RemoteStream(_connection, _bucket, streamName);
 
@@ -91,6 +92,7 @@ class DownloadStreamer {
                         throw new RemoteStreamException.NoSuchStreamException("Stream \"" + streamName +
                             "\" does not exist.");
                     }             
+                    retry.recordSuccess();
                 } catch (S3Exception s3e) {
                     /* Let the retry handler check the exception */
                     retryError = s3e;
@@ -107,29 +109,32 @@ class DownloadStreamer {
         /*
          * Download the blocks from S3.
          */
+        S3ChecksumAlgorithm checksum = info.getChecksumAlgorithm();
         byte[] buffer = new byte[BUFFER_SIZE];
         for (long blockId = 0; ; blockId++) {
             /* Fetch the next remote block, write it to the output stream */
             try {
                 S3Object block;
                 MessageDigest blockDigest;
+                byte[] expected;
                 InputStream input;
                 boolean eof;
                 int nread;
 
                 /* Fetch the block from the remote host. */
-                block = fetchRemoteBlock(stream, blockId, maxRetry);
+                block = fetchRemoteBlock(stream, blockId, checksum, maxRetry);
                 if (block == null) {
                     /* No more blocks, exit */
                     break;
                 }
 
-                /* Set up the message digest context. */
-                try {
-                    blockDigest = MessageDigest.getInstance("md5");                    
-                } catch (NoSuchAlgorithmException e) {
-                    /* This should never be missing. */
-                    throw new RuntimeException("Missing MD5 algorithm!", e);
+                /* Set up the message digest context, using the algorithm the stream was
+                 * written with. */
+                blockDigest = checksum.createDigest();
+                expected = block.getChecksum(checksum);
+                if (blockDigest != null && expected == null) {
+                    throw new RemoteStreamException("S3 block " + Long.toString(blockId) +
+                        " is missing its " + checksum + " checksum.");
                 }
 
                 /* Read blocks from the input stream until EOF is detected. */
@@ -154,12 +159,14 @@ class DownloadStreamer {
                     }
 
                     /* Byte buffer full, update the digest and write it out */
-                    blockDigest.update(buffer, 0, nread);
+                    if (blockDigest != null) {
+                        blockDigest.update(buffer, 0, nread);
+                    }
                     output.write(buffer, 0, nread);
                 }
 
                 /* EOF reached, validate the digest. We do this AFTER we've streamed out the data. */
-                if (!Arrays.equals(blockDigest.digest(), block.getMD5())) {
+                if (blockDigest != null && !Arrays.equals(blockDigest.digest(), expected)) {
                     throw new RemoteStreamException("S3 block " + Long.toString(blockId) + " checksum invalid.");
                 }
             } catch (S3Exception e) {
@@ -183,9 +190,14 @@ class DownloadStreamer {
      * Restartable block-fetching.
      * @return null if the blockId does not exist.
      */
-    private S3Object fetchRemoteBlock (RemoteStream stream, Long blockId, int maxRetry)
+    private S3Object fetchRemoteBlock (RemoteStream stream, Long blockId,
+        S3ChecksumAlgorithm checksum, int maxRetry)
         throws S3Exception
     {
+        /* The block is verified as it is streamed out, rather than by the connection. */
+        S3RequestOptions options = new S3RequestOptions().setVerifyDigest(false)
+            .setChecksumAlgorithm(checksum);
+
         /* Fetch the next block, with a retry */
         S3Object object = null;
         S3RetryHandler retry = new S3RetryHandler(maxRetry);
@@ -199,7 +211,8 @@ class DownloadStreamer {
             }
 
             try {
-                object = _connection.getObject(_bucket, stream.streamBlockKey(blockId));
+                object = _connection.getObject(_bucket, stream.streamBlockKey(blockId), options);
+                retry.recordSuccess();
                 return object; // Succeeded
             } catch (S3ServerException.NoSuchKeyException nsk) {
                 /* Block doesn't exist, we're done. */
@@ -31,14 +31,27 @@
 
 package com.threerings.s3.pipe;
 
+import com.threerings.s3.client.S3BucketStatistics;
+import com.threerings.s3.client.S3ChecksumAlgorithm;
+import com.threerings.s3.client.S3ConcurrencyLimiter;
 import com.threerings.s3.client.S3Connection;
+import com.threerings.s3.client.S3ConnectionConfig;
+import com.threerings.s3.client.S3DigestCacheFile;
+import com.threerings.s3.client.S3DirectorySync;
 import com.threerings.s3.client.S3Exception;
+import com.threerings.s3.client.S3JavaNetTransport;
+import com.threerings.s3.client.S3ObjectEntry;
+import com.threerings.s3.client.S3PrefixStatistics;
+import com.threerings.s3.client.S3ResolvingSocketFactory;
 
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.protocol.Protocol;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -46,8 +59,10 @@ import java.io.IOException;
 import java.security.Security;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -131,6 +146,117 @@ final public class Main {
 
             @Override
             public void validate (Main app) {}
+        },
+
+        /** Print per-prefix object statistics for a bucket. */
+        STATS {
+            @Override
+            public void run (Main app)
+                throws S3Exception
+            {
+                S3BucketStatistics walker = new S3BucketStatistics(app.connection, app.bucketName,
+                    app.threads);
+                List<String> prefixes = app.prefixes;
+                if (prefixes.isEmpty()) {
+                    prefixes = Collections.singletonList(null);
+                }
+
+                walker.setDepth(app.depth);
+                S3PrefixStatistics total = walker.collect(prefixes,
+                    new S3BucketStatistics.Listener() {
+                        public void prefixCompleted (S3PrefixStatistics stats) {
+                            printStatistics(stats.getPrefix(), stats);
+                        }
+                    });
+
+                printStatistics("Total", total);
+                long[] histogram = total.getSizeHistogram();
+                for (int i = 0; i < histogram.length; i++) {
+                    if (histogram[i] > 0) {
+                        System.out.println("  < " + (i == 0 ? "1" : "2^" + i) + " bytes: " +
+                            histogram[i]);
+                    }
+                }
+            }
+
+            @Override
+            public void validate (Main app)
+                throws CmdLineException
+            {
+                if (app.threads < 1) {
+                    throw new CmdLineException("Option \"--threads\" must be at least 1.");
+                }
+                if (app.depth < 0) {
+                    throw new CmdLineException("Option \"--depth\" must not be negative.");
+                }
+            }
+        },
+
+        /** Upload changed files from a local directory tree. */
+        SYNC {
+            @Override
+            public void run (Main app)
+                throws S3Exception
+            {
+                String prefix = app.prefixes.isEmpty() ? null : app.prefixes.get(0);
+                if (prefix != null && prefix.length() > 0 && !prefix.endsWith("/")) {
+                    prefix = prefix + "/";
+                }
+
+                S3DirectorySync sync = new S3DirectorySync(app.connection, app.directory,
+                    app.bucketName, prefix, app.threads);
+                sync.setDelete(app.delete);
+                sync.setMaxRetry(app.maxRetry);
+                sync.setListener(new S3DirectorySync.Listener() {
+                    public void uploaded (S3ObjectEntry local, File file) {
+                        System.out.println("Uploaded: " + local.getKey());
+                    }
+
+                    public void deleted (S3ObjectEntry remote) {
+                        System.out.println("Deleted: " + remote.getKey());
+                    }
+
+                    public void failed (String key, S3Exception cause) {
+                        System.err.println("Failed: " + key + ": " + cause.getMessage());
+                    }
+                });
+
+                S3DigestCacheFile digestCache = null;
+                if (app.digestCacheFile != null) {
+                    digestCache = new S3DigestCacheFile(app.digestCacheFile);
+                    sync.setDigestCache(digestCache);
+                }
+
+                try {
+                    sync.run();
+                } finally {
+                    if (digestCache != null) {
+                        digestCache.close();
+                    }
+                    System.out.println("Uploaded " + sync.getUploadedCount() + " files (" +
+                        sync.getUploadedBytes() + " bytes), " + sync.getUnchangedCount() +
+                        " unchanged, " + sync.getDeletedCount() + " deleted, " +
+                        sync.getFailedCount() + " failed.");
+                }
+            }
+
+            @Override
+            public void validate (Main app)
+                throws CmdLineException
+            {
+                if (app.directory == null) {
+                    throw new CmdLineException("Option \"--directory\" is required.");
+                }
+                if (!app.directory.isDirectory()) {
+                    throw new CmdLineException("Not a directory: " + app.directory);
+                }
+                if (app.prefixes.size() > 1) {
+                    throw new CmdLineException("Option \"--prefix\" may only be given once.");
+                }
+                if (app.threads < 1) {
+                    throw new CmdLineException("Option \"--threads\" must be at least 1.");
+                }
+            }
         };
 
 
@@ -182,6 +308,18 @@ final public class Main {
                 throw new CmdLineException("Unknown command " + arguments.get(0));
             }
 
+            /* Map the checksum string to the S3ChecksumAlgorithm enum. */
+            try {
+                checksum = S3ChecksumAlgorithm.valueOf(checksumName.toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                throw new CmdLineException("Unknown checksum algorithm " + checksumName);
+            }
+
+            if (!transportName.equals(TRANSPORT_COMMONS) &&
+                !transportName.equals(TRANSPORT_JAVA)) {
+                throw new CmdLineException("Unknown transport " + transportName);
+            }
+
             /* Validate settings. */
             command.validate(this);
         } catch (CmdLineException cle) {
@@ -195,6 +333,8 @@ final public class Main {
             System.err.println("  delete\t\t: Delete the specified stream.");
             System.err.println("  createbucket\t\t: Create the specified bucket.");
             System.err.println("  deletebucket\t\t: Delete the specified bucket.");
+            System.err.println("  stats\t\t\t: Print per-prefix object statistics for the bucket.");
+            System.err.println("  sync\t\t\t: Upload changed files from a local directory.");
             System.err.println();
             System.exit(EXIT_FAILURE);
             return;
@@ -206,7 +346,22 @@ final public class Main {
 
         try {
             loadProperties();
-            connection = new S3Connection(awsId, awsKey);
+            if (transportName.equals(TRANSPORT_JAVA)) {
+                connection = new S3Connection(awsId, awsKey,
+                    new S3JavaNetTransport(new S3ConnectionConfig()));
+            } else if (spreadDns) {
+                HostConfiguration hostConfig = new HostConfiguration();
+                hostConfig.setHost(S3_HOST, 443,
+                    S3ResolvingSocketFactory.createProtocol(Protocol.getProtocol("https")));
+                connection = new S3Connection(awsId, awsKey, hostConfig);
+            } else {
+                connection = new S3Connection(awsId, awsKey);
+            }
+            connection.setChecksumAlgorithm(checksum);
+            if (adaptive) {
+                connection.setConcurrencyLimiter(new S3ConcurrencyLimiter()
+                    .setInitialLimit(threads).setMaxLimit(threads));
+            }
             command.run(this);
         } catch (S3Exception e) {
             System.err.println(e.getMessage());
@@ -220,6 +375,26 @@ final public class Main {
     }
 
 
+    /**
+     * Print a single line of prefix statistics.
+     */
+    private static void printStatistics (String label, S3PrefixStatistics stats) {
+        StringBuilder line = new StringBuilder();
+        line.append(label == null ? "/" : label);
+        line.append("\t").append(stats.getObjectCount()).append(" objects");
+        line.append("\t").append(stats.getTotalBytes()).append(" bytes");
+        if (stats.getOldestModified() != null) {
+            line.append("\toldest: ").append(stats.getOldestModified());
+            line.append("\tnewest: ").append(stats.getNewestModified());
+        }
+        for (Map.Entry<String,Long> entry : stats.getStorageClassBytes().entrySet()) {
+            line.append("\t").append(entry.getKey()).append(": ");
+            line.append(stats.getStorageClassCounts().get(entry.getKey())).append(" objects/");
+            line.append(entry.getValue()).append(" bytes");
+        }
+        System.out.println(line);
+    }
+
     /**
      * Load AWS Id and Key from the properties file.
      */
@@ -287,6 +462,59 @@ final public class Main {
         "in the event of S3 and/or network failure. Defaults to 30.", metaVar="<count>")
     private int maxRetry = 30;
 
+    /** Key prefixes. */
+    @Option(name="--prefix", usage="Specify a key prefix. May be given more than once.",
+        metaVar="<prefix>")
+    private List<String> prefixes = new ArrayList<String>();
+
+    /** Statistics reporting depth. */
+    @Option(name="--depth", usage="Specify the prefix depth at which statistics are " +
+        "reported. Defaults to 1.", metaVar="<depth>")
+    private int depth = 1;
+
+    /** Number of concurrent S3 requests. */
+    @Option(name="--threads", usage="Specify the number of concurrent S3 requests. " +
+        "Defaults to 8.", metaVar="<count>")
+    private int threads = 8;
+
+    /** Local directory. */
+    @Option(name="--directory", usage="Specify the local directory to synchronize.",
+        metaVar="<dir>")
+    private File directory;
+
+    /** Local file digest cache. */
+    @Option(name="--digest-cache", usage="Specify a file in which to cache local file " +
+        "digests between runs.", metaVar="<file>")
+    private File digestCacheFile;
+
+    /** Delete extraneous remote keys. */
+    @Option(name="--delete", usage="Delete remote keys with no corresponding local file.")
+    private boolean delete = false;
+
+    /** Upload checksum algorithm name. */
+    @Option(name="--checksum", usage="Specify the checksum used to protect uploaded data: " +
+        "md5, crc32c, or none. Defaults to md5.", metaVar="<algorithm>")
+    private String checksumName = "md5";
+
+    /** Upload checksum algorithm. */
+    private S3ChecksumAlgorithm checksum;
+
+    /** HTTP transport name. */
+    @Option(name="--transport", usage="Specify the HTTP transport: commons (commons-httpclient) " +
+        "or java (java.net.http). Defaults to commons.", metaVar="<transport>")
+    private String transportName = TRANSPORT_COMMONS;
+
+    /** Adapt request concurrency to S3 throttling. */
+    @Option(name="--adaptive", usage="Reduce the number of concurrent S3 requests when S3 " +
+        "responds with SlowDown or other server errors, recovering gradually up to the " +
+        "--threads limit.")
+    private boolean adaptive = false;
+
+    /** Spread connections across all of S3's resolved addresses. */
+    @Option(name="--spread-dns", usage="Spread connections across all addresses S3's DNS " +
+        "returns, re-resolving periodically. Applies to the commons transport only.")
+    private boolean spreadDns = false;
+
     /** Block size, in bytes. Default to 5 megabytes. */
     private int blockSize = 5 * 1024 * 1024;
 
@@ -300,6 +528,15 @@ final public class Main {
     /** AWS secret key property. */
     private static final String PROP_AWSKEY = "aws.key";
 
+    /** S3 endpoint host. */
+    private static final String S3_HOST = "s3.amazonaws.com";
+
+    /** commons-httpclient transport name. */
+    private static final String TRANSPORT_COMMONS = "commons";
+
+    /** java.net.http transport name. */
+    private static final String TRANSPORT_JAVA = "java";
+
     /** Standard C99 EXIT_SUCCESS value. */
     private static final int EXIT_SUCCESS = 0;
     
@@ -33,6 +33,7 @@ package com.threerings.s3.pipe;
 
 import com.threerings.s3.client.acl.AccessControlList;
 import com.threerings.s3.client.S3ByteArrayObject;
+import com.threerings.s3.client.S3ChecksumAlgorithm;
 import com.threerings.s3.client.S3Connection;
 import com.threerings.s3.client.S3Exception;
 import com.threerings.s3.client.S3Object;
@@ -153,7 +154,20 @@ public class RemoteStream {
             }
             created = new Date(Long.parseLong(createdString));
 
-            return new RemoteStreamInfo(name, version, created);
+            /* Extract the block checksum algorithm. Streams written before the algorithm
+             * was recorded always used MD5. */
+            String checksumString;
+            S3ChecksumAlgorithm checksum = S3ChecksumAlgorithm.MD5;
+            if ((checksumString = metadata.get(INFO_KEY_CHECKSUM)) != null) {
+                try {
+                    checksum = S3ChecksumAlgorithm.valueOf(checksumString);
+                } catch (IllegalArgumentException iae) {
+                    throw new RemoteStreamException.InvalidInfoRecordException(
+                        "Unsupported stream checksum algorithm: " + checksumString);
+                }
+            }
+
+            return new RemoteStreamInfo(name, version, created, checksum);
 
         } catch (S3ServerException.NoSuchKeyException nsk) {
             return null;
@@ -182,13 +196,25 @@ public class RemoteStream {
     }
 
 
+    /**
+     * Initialize remote stream info record, for a stream whose blocks are written with
+     * MD5 checksums.
+     */
+    public void putStreamInfo ()
+        throws S3Exception, RemoteStreamException
+    {
+        putStreamInfo(S3ChecksumAlgorithm.MD5);
+    }
+
     /**
      * Initialize remote stream info record.
      *
      * We currently use Amazon's metadata support to define simple key-value pairs
      * that are attached to a zero-length object.
+     *
+     * @param checksum The checksum algorithm the stream's blocks are written with.
      */
-    public void putStreamInfo ()
+    public void putStreamInfo (S3ChecksumAlgorithm checksum)
         throws S3Exception, RemoteStreamException
     {
         Map<String,String> metadata = new HashMap<String,String>();
@@ -204,6 +230,9 @@ public class RemoteStream {
         /* Set the creation date. */
         metadata.put(INFO_KEY_CTIME, Long.toString(new Date().getTime()));
 
+        /* Set the block checksum algorithm. */
+        metadata.put(INFO_KEY_CHECKSUM, checksum.name());
+
         /* Upload the info object. */
         infoObject.setMetadata(metadata);
         _connection.putObject(_bucketName, infoObject, AccessControlList.StandardPolicy.PRIVATE);
@@ -252,6 +281,7 @@ public class RemoteStream {
 
                     marker = listing.getNextMarker();
                 } while (listing.truncated());
+                retry.recordSuccess();
             } catch (S3Exception e) {
                 /* Let the retry handler check the exception */
                 retryError = e;
@@ -320,6 +350,9 @@ public class RemoteStream {
     /** Key to stream creation date. */
     private static final String INFO_KEY_CTIME = "ctime";
 
+    /** Stream info block checksum algorithm key. */
+    private static final String INFO_KEY_CHECKSUM = "checksum";
+
     /** Stream prefix. All stream-related keys will be prepended with this
       * prefix. */
     private static final String STREAM_PREFIX = "stream";
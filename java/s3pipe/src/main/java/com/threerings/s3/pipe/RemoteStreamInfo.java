@@ -31,6 +31,8 @@
 
 package com.threerings.s3.pipe;
 
+import com.threerings.s3.client.S3ChecksumAlgorithm;
+
 import java.util.Date;
 
 /**
@@ -38,9 +40,15 @@ import java.util.Date;
  */
 class RemoteStreamInfo {
     public RemoteStreamInfo (String name, int version, Date created) {
+        this(name, version, created, S3ChecksumAlgorithm.MD5);
+    }
+
+    public RemoteStreamInfo (String name, int version, Date created,
+        S3ChecksumAlgorithm checksum) {
         _name = name;
         _version = version;
         _creationDate = created;
+        _checksum = checksum;
     }
 
     /**
@@ -61,6 +69,13 @@ class RemoteStreamInfo {
         return _creationDate;
     }
 
+    /**
+     * Get the checksum algorithm the stream's blocks were written with.
+     */
+    public S3ChecksumAlgorithm getChecksumAlgorithm () {
+        return _checksum;
+    }
+
     /** Remote stream name. */
     private final String _name;
 
@@ -69,4 +84,7 @@ class RemoteStreamInfo {
 
     /** Remote stream version. */
     private final int _version;
-}
\ No newline at end of file
+
+    /** Block checksum algorithm. */
+    private final S3ChecksumAlgorithm _checksum;
+}
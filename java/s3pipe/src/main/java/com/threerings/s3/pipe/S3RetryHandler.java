@@ -32,9 +32,13 @@
 package com.threerings.s3.pipe;
 
 import com.threerings.s3.client.S3Exception;
+import com.threerings.s3.client.S3RetryPolicy;
 
 /**
- * Retry on non-fatal S3 Exceptions.
+ * Retry on non-fatal S3 Exceptions, using an {@link S3RetryPolicy}'s exponential backoff
+ * and the process-wide retry budget. Callers must report each successful operation with
+ * {@link #recordSuccess}, which refills the budget; otherwise a long transfer would
+ * eventually exhaust it and stop retrying altogether.
  */
 class S3RetryHandler {
 
@@ -42,38 +46,55 @@ class S3RetryHandler {
      * Initialize the retry handler with the provided maximum retry count.
      */
     protected S3RetryHandler (int maxRetry) {
-        _maxRetry = maxRetry;
+        this(new S3RetryPolicy().setMaxAttempts(Math.max(0, maxRetry) + 1)
+            .setMaxRetryTime(0));
+    }
+
+    /**
+     * Initialize the retry handler with the provided policy.
+     */
+    protected S3RetryHandler (S3RetryPolicy policy) {
+        _policy = policy;
+        _start = System.currentTimeMillis();
+    }
+
+    /**
+     * Record that the operation succeeded, returning a token to the retry budget.
+     */
+    protected void recordSuccess () {
+        _policy.recordSuccess();
     }
 
     /**
      * Returns true if the exception is transient and the caller
      * should retry. Otherwise, throws the provided exception.
-     * Sleeps for 1 second before returning true.
+     * Sleeps for the policy's backoff delay before returning true.
      */
     protected boolean shouldRetry (S3Exception exception)
         throws S3Exception
     {
-        /*
-         * For now, all exceptions are blindly retried.
-         * @todo Implement a transient flag for S3Exceptions to determine
-         *  whether an operation should be retried.
-         */
-         _retryCount++;
-         if (_retryCount > _maxRetry) {
-             throw exception;
-         } else {
-             try {
-                 Thread.sleep(1000);             
-             } catch (InterruptedException e) {
-                 // Ignore
-             }
-             return true;
-         }
+        long delay = _policy.getRetryDelay(exception, _retryCount,
+            System.currentTimeMillis() - _start);
+        if (delay < 0) {
+            throw exception;
+        }
+
+        _retryCount++;
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw exception;
+        }
+        return true;
     }
 
-    /** Maximum number of retry attempts. */
-    private final int _maxRetry;
+    /** Retry policy. */
+    private final S3RetryPolicy _policy;
+
+    /** Time of the first attempt. */
+    private final long _start;
 
-    /** Current number of attempts. */
+    /** Current number of retries. */
     private int _retryCount = 0;
 }
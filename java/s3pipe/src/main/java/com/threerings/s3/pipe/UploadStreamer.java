@@ -32,7 +32,7 @@
 package com.threerings.s3.pipe;
 
 import com.threerings.s3.client.acl.AccessControlList;
-import com.threerings.s3.client.S3ByteArrayObject;
+import com.threerings.s3.client.S3ByteBufferObject;
 import com.threerings.s3.client.S3Connection;
 import com.threerings.s3.client.S3Exception;
 import com.threerings.s3.client.S3Object;
@@ -107,27 +107,11 @@ class UploadStreamer {
             long blockId = 0;
 
             while ((block = reader.readBlock()) != null) {
-                byte[] data;
-                int length;
-                
                 /*
-                 * Get access to the byte[] data.
+                 * Upload the S3 Object, directly from the block.
                  */
-                length = block.limit();
-                if (!block.hasArray()) {
-                    /* No backing array, copy the data. */
-                    data = new byte[length];
-                    block.get(data);
-                } else {
-                    /* Backing array, no copying required. */
-                    data = block.array();
-                }
-
-                /*
-                 * Upload the S3 Object.
-                 */
-                S3ByteArrayObject obj = new S3ByteArrayObject(
-                    stream.streamBlockKey(blockId), data, 0, length);
+                S3ByteBufferObject obj = new S3ByteBufferObject(
+                    stream.streamBlockKey(blockId), block);
 
                 try {
                     uploadObject(obj, maxRetry);
@@ -178,8 +162,10 @@ class UploadStreamer {
                         stream.getStreamName() + "\" exits.");
                 }
 
-                /* Create the stream info record. */
-                stream.putStreamInfo();
+                /* Create the stream info record, noting the checksum the blocks are
+                 * written with. */
+                stream.putStreamInfo(_connection.getChecksumAlgorithm());
+                retry.recordSuccess();
                 break;
             } catch (S3Exception s3e) {
                 /* Let the retry handler check the exception */
@@ -207,6 +193,7 @@ class UploadStreamer {
 
             try {
                 _connection.putObject(_bucket, object, AccessControlList.StandardPolicy.PRIVATE);                            
+                retry.recordSuccess();
             } catch (S3Exception e) {
                 /* Let the retry handler check the exception */
                 retryError = e;
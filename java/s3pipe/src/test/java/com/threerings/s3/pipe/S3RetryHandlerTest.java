@@ -0,0 +1,80 @@
+/*
+ * S3RetryHandlerTest vi:ts=4:sw=4:expandtab:
+ *
+ * Copyright (c) 2005 - 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright owner nor the names of contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.threerings.s3.pipe;
+
+import com.threerings.s3.client.S3RetryBudget;
+import com.threerings.s3.client.S3RetryPolicy;
+import com.threerings.s3.client.S3ServerException;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class S3RetryHandlerTest {
+    @Test
+    public void testBudgetRefill ()
+        throws Exception
+    {
+        /* Transfer 2000 blocks, one in ten failing once, for 200 retries -- twice what the
+         * budget alone can fund. */
+        S3RetryBudget budget = new S3RetryBudget(S3RetryBudget.DEFAULT_CAPACITY);
+        for (int block = 0; block < 2000; block++) {
+            S3RetryHandler retry = new S3RetryHandler(new S3RetryPolicy().setBudget(budget)
+                .setBaseDelay(0).setMaxRetryTime(0));
+            if (block % 10 == 0) {
+                assertTrue(retry.shouldRetry(new S3ServerException.SlowDownException(
+                    "Slow down")));
+            }
+            retry.recordSuccess();
+        }
+        assertEquals(S3RetryBudget.DEFAULT_CAPACITY, budget.getAvailable());
+    }
+
+    @Test
+    public void testBudgetExhausted ()
+        throws Exception
+    {
+        /* Without successes, the budget is eventually exhausted. */
+        S3RetryBudget budget = new S3RetryBudget(10);
+        S3RetryHandler retry = new S3RetryHandler(new S3RetryPolicy().setBudget(budget)
+            .setBaseDelay(0).setMaxRetryTime(0).setMaxAttempts(10));
+        S3ServerException.SlowDownException error =
+            new S3ServerException.SlowDownException("Slow down");
+        assertTrue(retry.shouldRetry(error));
+        assertTrue(retry.shouldRetry(error));
+        try {
+            retry.shouldRetry(error);
+            fail("Expected the budget to be exhausted");
+        } catch (S3ServerException.SlowDownException e) {
+            assertSame(error, e);
+        }
+    }
+}